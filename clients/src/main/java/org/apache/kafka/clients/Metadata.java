@@ -32,6 +32,9 @@ import org.slf4j.LoggerFactory;
  * 
  * Metadata is maintained for only a subset of topics, which can be added to over time. When we request metadata for a
  * topic we don't have any metadata for it will trigger a metadata update.
+ * <p>
+ * The cluster and the set of topics are immutable snapshots that are replaced on change, so reading them, which every
+ * send does, takes no lock. Only changes are serialized.
  */
 public final class Metadata {
 
@@ -39,12 +42,12 @@ public final class Metadata {
 
     private final long refreshBackoffMs;
     private final long metadataExpireMs;
-    private int version;
-    private long lastRefreshMs;
-    private long lastSuccessfulRefreshMs;
-    private Cluster cluster;
-    private boolean needUpdate;
-    private final Set<String> topics;
+    private volatile int version;
+    private volatile long lastRefreshMs;
+    private volatile long lastSuccessfulRefreshMs;
+    private volatile Cluster cluster;
+    private volatile boolean needUpdate;
+    private volatile Set<String> topics;
     private final List<Listener> listeners;
     private boolean needMetadataForAllTopics;
 
@@ -69,7 +72,7 @@ public final class Metadata {
         this.version = 0;
         this.cluster = Cluster.empty();
         this.needUpdate = false;
-        this.topics = new HashSet<String>();
+        this.topics = Collections.emptySet();
         this.listeners = new ArrayList<>();
         this.needMetadataForAllTopics = false;
     }
@@ -77,15 +80,21 @@ public final class Metadata {
     /**
      * Get the current cluster info without blocking
      */
-    public synchronized Cluster fetch() {
+    public Cluster fetch() {
         return this.cluster;
     }
 
     /**
      * Add the topic to maintain in the metadata
      */
-    public synchronized void add(String topic) {
-        topics.add(topic);
+    public void add(String topic) {
+        if (this.topics.contains(topic))
+            return;
+        synchronized (this) {
+            Set<String> topics = new HashSet<String>(this.topics);
+            topics.add(topic);
+            this.topics = Collections.unmodifiableSet(topics);
+        }
     }
 
     /**
@@ -93,7 +102,7 @@ public final class Metadata {
      * current info can be updated (i.e. backoff time has elapsed); If an update has been request then the expiry time
      * is now
      */
-    public synchronized long timeToNextUpdate(long nowMs) {
+    public long timeToNextUpdate(long nowMs) {
         long timeToExpire = needUpdate ? 0 : Math.max(this.lastSuccessfulRefreshMs + this.metadataExpireMs - nowMs, 0);
         long timeToAllowUpdate = this.lastRefreshMs + this.refreshBackoffMs - nowMs;
         return Math.max(timeToExpire, timeToAllowUpdate);
@@ -133,14 +142,13 @@ public final class Metadata {
     public synchronized void setTopics(Collection<String> topics) {
         if (!this.topics.containsAll(topics))
             requestUpdate();
-        this.topics.clear();
-        this.topics.addAll(topics);
+        this.topics = Collections.unmodifiableSet(new HashSet<String>(topics));
     }
 
     /**
      * Get the list of topics we are currently maintaining metadata for
      */
-    public synchronized Set<String> topics() {
+    public Set<String> topics() {
         return new HashSet<String>(this.topics);
     }
 
@@ -149,7 +157,7 @@ public final class Metadata {
      * @param topic topic to check
      * @return true if the topic exists, false otherwise
      */
-    public synchronized boolean containsTopic(String topic) {
+    public boolean containsTopic(String topic) {
         return this.topics.contains(topic);
     }
 
@@ -183,14 +191,14 @@ public final class Metadata {
     /**
      * @return The current metadata version
      */
-    public synchronized int version() {
+    public int version() {
         return this.version;
     }
 
     /**
      * The last time metadata was successfully updated.
      */
-    public synchronized long lastSuccessfulUpdate() {
+    public long lastSuccessfulUpdate() {
         return this.lastSuccessfulRefreshMs;
     }
 
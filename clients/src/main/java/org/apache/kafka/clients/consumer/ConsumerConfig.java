@@ -147,6 +147,30 @@ public class ConsumerConfig extends AbstractConfig {
     public static final String CHECK_CRCS_CONFIG = "check.crcs";
     private static final String CHECK_CRCS_DOC = "Automatically check the CRC32 of the records consumed. This ensures no on-the-wire or on-disk corruption to the messages occurred. This check adds some overhead, so it may be disabled in cases seeking extreme performance.";
 
+    /** <code>prefetch.bytes</code> */
+    public static final String PREFETCH_BYTES_CONFIG = "prefetch.bytes";
+    private static final String PREFETCH_BYTES_DOC = "The most data the consumer buffers by fetching ahead of the records it has not returned yet. If this is more than 0, a background thread keeps receiving fetch responses and sending further fetches while the application processes the records returned by a poll, rather than only inside the consumer's calls.";
+
+    /** <code>enable.heartbeat.thread</code> */
+    public static final String ENABLE_HEARTBEAT_THREAD_CONFIG = "enable.heartbeat.thread";
+    private static final String ENABLE_HEARTBEAT_THREAD_DOC = "If true, a background thread sends the heartbeats to the group coordinator while the application processes the records returned by a poll, rather than only inside the consumer's calls, so that processing which takes longer than <code>" + SESSION_TIMEOUT_MS_CONFIG + "</code> does not get the consumer removed from the group. How long the processing may take is bounded by <code>processing.timeout.ms</code> instead.";
+
+    /** <code>processing.timeout.ms</code> */
+    public static final String PROCESSING_TIMEOUT_MS_CONFIG = "processing.timeout.ms";
+    private static final String PROCESSING_TIMEOUT_MS_DOC = "The longest time the application may take between polls when <code>" + ENABLE_HEARTBEAT_THREAD_CONFIG + "</code> is true. If it takes longer, the heartbeat thread leaves the group, so that the consumer's partitions are reassigned to the other members, and the consumer joins the group again with its next poll.";
+
+    /** <code>fetch.buffer.memory</code> */
+    public static final String FETCH_BUFFER_MEMORY_CONFIG = "fetch.buffer.memory";
+    private static final String FETCH_BUFFER_MEMORY_DOC = "The total bytes of memory the consumer can use for fetched data, shared by all assigned partitions. Every partition fetched takes up to <code>" + MAX_PARTITION_FETCH_BYTES_CONFIG + "</code> of it until the fetch completes, and the data fetched keeps its part until the records are returned. Partitions are left out of fetches while this memory is used up rather than taking more. A fetch is always possible when none of it is in use, so a partition fetch size larger than this still works. 0 means no limit.";
+
+    /** <code>fetch.lag.multiplier</code> */
+    public static final String FETCH_LAG_MULTIPLIER_CONFIG = "fetch.lag.multiplier";
+    private static final String FETCH_LAG_MULTIPLIER_DOC = "How many times <code>" + MAX_PARTITION_FETCH_BYTES_CONFIG + "</code> the consumer fetches at most from a partition that lags behind its high watermark, so that lagging partitions catch up. Of the partitions fetched from the same broker, the one lagging the most gets this multiple, the others a share in proportion to their lag, and a partition that has caught up the usual fetch size. 1 fetches the same size from every partition.";
+
+    /** <code>lazy.deserialization</code> */
+    public static final String LAZY_DESERIALIZATION_CONFIG = "lazy.deserialization";
+    private static final String LAZY_DESERIALIZATION_DOC = "Deserialize the key and value of a record only once they are accessed, straight from the fetched data when the deserializer implements <code>BufferDeserializer</code>. This saves copying and deserializing keys and values that are never looked at, but a key or value must then be accessed before the next poll.";
+
     /** <code>key.deserializer</code> */
     public static final String KEY_DESERIALIZER_CLASS_CONFIG = "key.deserializer";
     public static final String KEY_DESERIALIZER_CLASS_DOC = "Deserializer class for key that implements the <code>Deserializer</code> interface.";
@@ -259,6 +283,40 @@ public class ConsumerConfig extends AbstractConfig {
                                         true,
                                         Importance.LOW,
                                         CHECK_CRCS_DOC)
+                                .define(PREFETCH_BYTES_CONFIG,
+                                        Type.LONG,
+                                        0L,
+                                        atLeast(0L),
+                                        Importance.LOW,
+                                        PREFETCH_BYTES_DOC)
+                                .define(ENABLE_HEARTBEAT_THREAD_CONFIG,
+                                        Type.BOOLEAN,
+                                        false,
+                                        Importance.LOW,
+                                        ENABLE_HEARTBEAT_THREAD_DOC)
+                                .define(PROCESSING_TIMEOUT_MS_CONFIG,
+                                        Type.INT,
+                                        300000,
+                                        atLeast(0),
+                                        Importance.LOW,
+                                        PROCESSING_TIMEOUT_MS_DOC)
+                                .define(FETCH_BUFFER_MEMORY_CONFIG,
+                                        Type.LONG,
+                                        0L,
+                                        atLeast(0L),
+                                        Importance.MEDIUM,
+                                        FETCH_BUFFER_MEMORY_DOC)
+                                .define(FETCH_LAG_MULTIPLIER_CONFIG,
+                                        Type.INT,
+                                        1,
+                                        atLeast(1),
+                                        Importance.LOW,
+                                        FETCH_LAG_MULTIPLIER_DOC)
+                                .define(LAZY_DESERIALIZATION_CONFIG,
+                                        Type.BOOLEAN,
+                                        false,
+                                        Importance.LOW,
+                                        LAZY_DESERIALIZATION_DOC)
                                 .define(METRICS_SAMPLE_WINDOW_MS_CONFIG,
                                         Type.LONG,
                                         30000,
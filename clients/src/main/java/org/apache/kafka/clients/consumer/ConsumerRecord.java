@@ -17,11 +17,14 @@ package org.apache.kafka.clients.consumer;
  * record is being received and an offset that points to the record in a Kafka partition.
  */
 public final class ConsumerRecord<K, V> {
+    private static final String NOT_DESERIALIZED = "<not deserialized>";
+
     private final String topic;
     private final int partition;
     private final long offset;
     private final K key;
     private final V value;
+    private final RecordView<K, V> view;
 
     /**
      * Creates a record to be received from a specified topic and partition
@@ -40,6 +43,27 @@ public final class ConsumerRecord<K, V> {
         this.offset = offset;
         this.key = key;
         this.value = value;
+        this.view = null;
+    }
+
+    /**
+     * Creates a record whose key and value are deserialized from the fetched data once they are first accessed, which
+     * must be before the next poll
+     *
+     * @param topic The topic this record is received from
+     * @param partition The partition of the topic this record is received from
+     * @param offset The offset of this record in the corresponding Kafka partition
+     * @param view The view of the key and value in the fetched data
+     */
+    public ConsumerRecord(String topic, int partition, long offset, RecordView<K, V> view) {
+        if (topic == null)
+            throw new IllegalArgumentException("Topic cannot be null");
+        this.topic = topic;
+        this.partition = partition;
+        this.offset = offset;
+        this.key = null;
+        this.value = null;
+        this.view = view;
     }
 
     /**
@@ -60,14 +84,14 @@ public final class ConsumerRecord<K, V> {
      * The key (or null if no key is specified)
      */
     public K key() {
-        return key;
+        return view == null ? key : view.key();
     }
 
     /**
      * The value
      */
     public V value() {
-        return value;
+        return view == null ? value : view.value();
     }
 
     /**
@@ -79,6 +103,9 @@ public final class ConsumerRecord<K, V> {
 
     @Override
     public String toString() {
+        // a lazily deserialized key or value is not deserialized just to print it, since that fails after the next poll
+        Object key = view == null || view.keyDeserialized() ? key() : NOT_DESERIALIZED;
+        Object value = view == null || view.valueDeserialized() ? value() : NOT_DESERIALIZED;
         return "ConsumerRecord(topic = " + topic() + ", partition = " + partition() + ", offset = " + offset()
                 + ", key = " + key + ", value = " + value + ")";
     }
@@ -18,8 +18,10 @@ import org.apache.kafka.clients.NetworkClient;
 import org.apache.kafka.clients.consumer.internals.ConsumerCoordinator;
 import org.apache.kafka.clients.consumer.internals.ConsumerNetworkClient;
 import org.apache.kafka.clients.consumer.internals.Fetcher;
+import org.apache.kafka.clients.consumer.internals.HeartbeatThread;
 import org.apache.kafka.clients.consumer.internals.NoOpConsumerRebalanceListener;
 import org.apache.kafka.clients.consumer.internals.PartitionAssignor;
+import org.apache.kafka.clients.consumer.internals.Prefetcher;
 import org.apache.kafka.clients.consumer.internals.SubscriptionState;
 import org.apache.kafka.common.Cluster;
 import org.apache.kafka.common.KafkaException;
@@ -59,6 +61,7 @@ import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.atomic.AtomicLong;
 import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.ReentrantLock;
 import java.util.regex.Pattern;
 
 /**
@@ -440,6 +443,8 @@ public class KafkaConsumer<K, V> implements Consumer<K, V> {
     private final Deserializer<K> keyDeserializer;
     private final Deserializer<V> valueDeserializer;
     private final Fetcher<K, V> fetcher;
+    private final Prefetcher prefetcher;
+    private final HeartbeatThread heartbeatThread;
 
     private final Time time;
     private final ConsumerNetworkClient client;
@@ -602,6 +607,9 @@ public class KafkaConsumer<K, V> implements Consumer<K, V> {
                     config.getInt(ConsumerConfig.FETCH_MAX_WAIT_MS_CONFIG),
                     config.getInt(ConsumerConfig.MAX_PARTITION_FETCH_BYTES_CONFIG),
                     config.getBoolean(ConsumerConfig.CHECK_CRCS_CONFIG),
+                    config.getBoolean(ConsumerConfig.LAZY_DESERIALIZATION_CONFIG),
+                    config.getLong(ConsumerConfig.FETCH_BUFFER_MEMORY_CONFIG),
+                    config.getInt(ConsumerConfig.FETCH_LAG_MULTIPLIER_CONFIG),
                     this.keyDeserializer,
                     this.valueDeserializer,
                     this.metadata,
@@ -611,6 +619,15 @@ public class KafkaConsumer<K, V> implements Consumer<K, V> {
                     metricsTags,
                     this.time,
                     this.retryBackoffMs);
+            // the background threads share a lock, so that only one of them uses the consumer at a time. it is fair,
+            // so the application gets it as soon as the current background poll returns
+            ReentrantLock backgroundLock = new ReentrantLock(true);
+            long prefetchBytes = config.getLong(ConsumerConfig.PREFETCH_BYTES_CONFIG);
+            this.prefetcher = prefetchBytes > 0 ? new Prefetcher(this.client, this.fetcher, this.metadata, prefetchBytes, clientId, backgroundLock) : null;
+            this.heartbeatThread = config.getBoolean(ConsumerConfig.ENABLE_HEARTBEAT_THREAD_CONFIG)
+                    ? new HeartbeatThread(this.client, this.coordinator, this.time,
+                                          config.getInt(ConsumerConfig.PROCESSING_TIMEOUT_MS_CONFIG), clientId, backgroundLock)
+                    : null;
 
             config.logUnused();
             AppInfoParser.registerAppInfo(JMX_PREFIX, clientId);
@@ -820,6 +837,11 @@ public class KafkaConsumer<K, V> implements Consumer<K, V> {
             if (timeout < 0)
                 throw new IllegalArgumentException("Timeout must not be negative");
 
+            if (prefetcher != null)
+                prefetcher.maybeThrowFailure();
+            if (heartbeatThread != null)
+                heartbeatThread.maybeThrowFailure();
+
             // poll for new data until the timeout expires
             long start = time.milliseconds();
             long remaining = timeout;
@@ -829,7 +851,7 @@ public class KafkaConsumer<K, V> implements Consumer<K, V> {
                     // if data is available, then return it, but first send off the
                     // next round of fetches to enable pipelining while the user is
                     // handling the fetched records.
-                    fetcher.initFetches(metadata.fetch());
+                    fetcher.initFetches(metadata.fetch(), prefetcher == null ? 0 : prefetcher.maxBufferedBytes());
                     client.poll(0);
                     return new ConsumerRecords<>(records);
                 }
@@ -840,6 +862,9 @@ public class KafkaConsumer<K, V> implements Consumer<K, V> {
 
             return ConsumerRecords.empty();
         } finally {
+            // the processing of what this poll returns starts now
+            if (heartbeatThread != null)
+                heartbeatThread.polled();
             release();
         }
     }
@@ -1217,6 +1242,11 @@ public class KafkaConsumer<K, V> implements Consumer<K, V> {
         log.trace("Closing the Kafka consumer.");
         AtomicReference<Throwable> firstException = new AtomicReference<>();
         this.closed = true;
+        // the background threads stop once the consumer is released
+        if (prefetcher != null)
+            prefetcher.close();
+        if (heartbeatThread != null)
+            heartbeatThread.close();
         ClientUtils.closeQuietly(coordinator, "coordinator", firstException);
         ClientUtils.closeQuietly(metrics, "consumer metrics", firstException);
         ClientUtils.closeQuietly(client, "consumer network client", firstException);
@@ -1266,12 +1296,20 @@ public class KafkaConsumer<K, V> implements Consumer<K, V> {
         if (threadId != currentThread.get() && !currentThread.compareAndSet(NO_CURRENT_THREAD, threadId))
             throw new ConcurrentModificationException("KafkaConsumer is not safe for multi-threaded access");
         refcount.incrementAndGet();
+        if (prefetcher != null)
+            prefetcher.pause();
+        if (heartbeatThread != null)
+            heartbeatThread.pause();
     }
 
     /**
      * Release the light lock protecting the consumer from multi-threaded access.
      */
     private void release() {
+        if (heartbeatThread != null)
+            heartbeatThread.resume();
+        if (prefetcher != null)
+            prefetcher.resume();
         if (refcount.decrementAndGet() == 0)
             currentThread.set(NO_CURRENT_THREAD);
     }
@@ -0,0 +1,430 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more contributor license agreements. See the NOTICE
+ * file distributed with this work for additional information regarding copyright ownership. The ASF licenses this file
+ * to You under the Apache License, Version 2.0 (the "License"); you may not use this file except in compliance with the
+ * License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on
+ * an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.apache.kafka.clients.consumer;
+
+import java.io.Closeable;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+import org.apache.kafka.common.KafkaException;
+import org.apache.kafka.common.TopicPartition;
+import org.apache.kafka.common.errors.InterruptException;
+import org.apache.kafka.common.utils.KafkaThread;
+import org.apache.kafka.common.utils.Utils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Processes the records of a {@link Consumer} on a pool of worker threads while keeping the order of the records
+ * that have to be processed in order, and commits only offsets all of whose preceding records have been processed.
+ * <p>
+ * Each record is handed to one worker, chosen by its partition or, with {@link Ordering#KEY}, by its key, and a worker
+ * processes the records it is handed one at a time in the order they were polled. So records of the same partition
+ * (or with the same key) are processed in order, while different partitions (or keys) are processed in parallel.
+ * <p>
+ * For each partition the processor keeps track of the records handed out but not yet processed. The offset it commits
+ * is that of the first such record, so a restart never skips a record that was not processed, although it may process
+ * again records that were processed after it. A partition with {@code maxPendingRecords} records pending is paused, and
+ * resumed once half of them have been processed, so that a slow partition does not pile up records in memory.
+ * <p>
+ * All the calls to the consumer happen on the thread calling the processor, which must be the only one using the
+ * consumer. The consumer should not commit offsets by itself, so <code>enable.auto.commit</code> should be false.
+ * If the consumer subscribes to topics rather than having partitions assigned, the listener given to
+ * {@link Consumer#subscribe(java.util.List, ConsumerRebalanceListener) subscribe()} must be the one returned by
+ * {@link #rebalanceListener(ConsumerRebalanceListener)}, so that the records of the partitions taken away are processed
+ * before they are.
+ * <p>
+ * Usage:
+ * <pre>
+ * ParallelRecordProcessor&lt;String, String&gt; processor = new ParallelRecordProcessor&lt;&gt;(consumer, handler, 8,
+ *     ParallelRecordProcessor.Ordering.KEY, 1000);
+ * consumer.subscribe(topics, processor.rebalanceListener(new NoOpConsumerRebalanceListener()));
+ * while (running) {
+ *     processor.poll(100);
+ *     processor.commitAsync(null);
+ * }
+ * processor.close();
+ * </pre>
+ */
+public class ParallelRecordProcessor<K, V> implements Closeable {
+
+    private static final Logger log = LoggerFactory.getLogger(ParallelRecordProcessor.class);
+    private static final AtomicInteger PROCESSOR_ID_SEQUENCE = new AtomicInteger(1);
+
+    /**
+     * Which records are processed in order
+     */
+    public enum Ordering {
+        /** The records of a partition are processed in order */
+        PARTITION,
+        /** The records of a partition with the same key are processed in order, records without a key in any order */
+        KEY
+    }
+
+    private final Consumer<K, V> consumer;
+    private final RecordHandler<K, V> handler;
+    private final Ordering ordering;
+    private final int maxPendingRecords;
+    private final List<Worker> workers;
+    private final Map<TopicPartition, PartitionProgress> progress;
+    private final Set<TopicPartition> paused;
+    private final AtomicReference<Exception> failure;
+    // the records handed to the workers and not processed yet, which the consumer thread waits on to drop to 0
+    private final AtomicInteger inFlight;
+    private final ReentrantLock lock;
+    private final Condition idle;
+    private volatile boolean closed;
+
+    /**
+     * Create a processor and start its worker threads
+     *
+     * @param consumer The consumer to poll
+     * @param handler The processing of each record
+     * @param numWorkers The number of worker threads
+     * @param ordering Which records to process in order
+     * @param maxPendingRecords The most records of a partition to have waiting to be processed before pausing it
+     */
+    public ParallelRecordProcessor(Consumer<K, V> consumer,
+                                   RecordHandler<K, V> handler,
+                                   int numWorkers,
+                                   Ordering ordering,
+                                   int maxPendingRecords) {
+        if (numWorkers < 1)
+            throw new IllegalArgumentException("The number of workers must be at least 1");
+        if (maxPendingRecords < 1)
+            throw new IllegalArgumentException("The maximum number of pending records must be at least 1");
+        this.consumer = consumer;
+        this.handler = handler;
+        this.ordering = ordering;
+        this.maxPendingRecords = maxPendingRecords;
+        this.progress = new HashMap<>();
+        this.paused = new HashSet<>();
+        this.failure = new AtomicReference<>();
+        this.inFlight = new AtomicInteger(0);
+        this.lock = new ReentrantLock();
+        this.idle = lock.newCondition();
+        this.closed = false;
+        // the consumer does not expose its client id, so tell the worker threads of different processors apart by
+        // a processor id instead
+        String processorId = "processor-" + PROCESSOR_ID_SEQUENCE.getAndIncrement();
+        this.workers = new ArrayList<>(numWorkers);
+        for (int i = 0; i < numWorkers; i++) {
+            Worker worker = new Worker();
+            worker.thread = new KafkaThread("kafka-consumer-worker-" + i + " | " + processorId, worker, true);
+            this.workers.add(worker);
+            worker.thread.start();
+        }
+    }
+
+    /**
+     * Poll the consumer and hand the records returned to the workers, after pausing and resuming partitions by how many
+     * of their records are still pending.
+     *
+     * @param timeout The time, in milliseconds, to block in the consumer's poll if there are no records available
+     * @return The number of records handed to the workers
+     * @throws KafkaException If the processing of a record failed, after which the processor can only be closed
+     */
+    public int poll(long timeout) {
+        ensureNotClosed();
+        maybeThrowFailure();
+        updateProgress();
+
+        ConsumerRecords<K, V> records = this.consumer.poll(timeout);
+        TopicPartition partition = null;
+        PartitionProgress partitionProgress = null;
+        for (ConsumerRecord<K, V> record : records) {
+            if (partition == null || record.partition() != partition.partition() || !record.topic().equals(partition.topic())) {
+                partition = new TopicPartition(record.topic(), record.partition());
+                partitionProgress = progressFor(partition);
+            }
+            // a lazily deserialized record has to be deserialized before the next poll, so do it here
+            K key = record.key();
+            record.value();
+
+            PendingRecord pending = new PendingRecord(record.offset());
+            partitionProgress.pending.add(pending);
+            this.inFlight.incrementAndGet();
+            workerFor(partition, key).queue.add(new Task<>(record, pending));
+
+            if (partitionProgress.pending.size() >= this.maxPendingRecords && this.paused.add(partition)) {
+                log.debug("Pausing partition {} with {} records pending", partition, partitionProgress.pending.size());
+                this.consumer.pause(partition);
+            }
+        }
+        return records.count();
+    }
+
+    /**
+     * The offsets to commit for the partitions with records processed, which are those of the first records not
+     * processed yet
+     */
+    public Map<TopicPartition, OffsetAndMetadata> processedOffsets() {
+        updateProgress();
+        Map<TopicPartition, OffsetAndMetadata> offsets = new HashMap<>();
+        for (Map.Entry<TopicPartition, PartitionProgress> entry : this.progress.entrySet()) {
+            if (entry.getValue().processedOffset >= 0)
+                offsets.put(entry.getKey(), new OffsetAndMetadata(entry.getValue().processedOffset));
+        }
+        return offsets;
+    }
+
+    /**
+     * Commit the offsets of the records processed, blocking until the commit succeeds or fails
+     *
+     * @throws KafkaException If the commit failed, or the processing of a record failed
+     */
+    public void commitSync() {
+        ensureNotClosed();
+        maybeThrowFailure();
+        Map<TopicPartition, OffsetAndMetadata> offsets = uncommittedOffsets();
+        if (!offsets.isEmpty()) {
+            this.consumer.commitSync(offsets);
+            markCommitted(offsets);
+        }
+    }
+
+    /**
+     * Commit the offsets of the records processed without blocking
+     *
+     * @param callback The callback to invoke when the commit completes, or null
+     * @throws KafkaException If the processing of a record failed
+     */
+    public void commitAsync(final OffsetCommitCallback callback) {
+        ensureNotClosed();
+        maybeThrowFailure();
+        Map<TopicPartition, OffsetAndMetadata> offsets = uncommittedOffsets();
+        if (offsets.isEmpty())
+            return;
+        // count the offsets as committed right away so they are not sent again, and if the commit fails a later one
+        // will commit later offsets anyway
+        markCommitted(offsets);
+        this.consumer.commitAsync(offsets, callback);
+    }
+
+    /**
+     * Wait until every record handed to the workers has been processed
+     *
+     * @throws KafkaException If the processing of a record failed
+     * @throws InterruptException If the thread is interrupted while waiting
+     */
+    public void awaitProcessed() {
+        lock.lock();
+        try {
+            while (this.inFlight.get() > 0)
+                idle.await();
+        } catch (InterruptedException e) {
+            throw new InterruptException(e);
+        } finally {
+            lock.unlock();
+        }
+        maybeThrowFailure();
+        updateProgress();
+    }
+
+    /**
+     * Wrap a rebalance listener so that the records of the partitions taken from the consumer are processed before
+     * the listener is called, so the listener can commit their offsets with {@link #commitSync()}, and forgotten after
+     *
+     * @param listener The listener to wrap
+     * @return The listener to pass to {@link Consumer#subscribe(java.util.List, ConsumerRebalanceListener)}
+     */
+    public ConsumerRebalanceListener rebalanceListener(final ConsumerRebalanceListener listener) {
+        return new ConsumerRebalanceListener() {
+            @Override
+            public void onPartitionsRevoked(Collection<TopicPartition> partitions) {
+                awaitProcessed();
+                listener.onPartitionsRevoked(partitions);
+                for (TopicPartition partition : partitions) {
+                    progress.remove(partition);
+                    paused.remove(partition);
+                }
+            }
+
+            @Override
+            public void onPartitionsAssigned(Collection<TopicPartition> partitions) {
+                listener.onPartitionsAssigned(partitions);
+            }
+        };
+    }
+
+    /**
+     * Stop the worker threads, waiting for them to finish the record they are processing, which is not interrupted.
+     * The records not processed yet are dropped, and the consumer is left open.
+     */
+    @Override
+    public void close() {
+        if (this.closed)
+            return;
+        this.closed = true;
+        // wake up the workers waiting for a record, rather than interrupt the records being processed
+        for (Worker worker : this.workers)
+            worker.queue.add(new Task<K, V>(null, null));
+        for (Worker worker : this.workers) {
+            try {
+                worker.thread.join();
+            } catch (InterruptedException e) {
+                throw new InterruptException(e);
+            }
+        }
+    }
+
+    private void updateProgress() {
+        Iterator<Map.Entry<TopicPartition, PartitionProgress>> iter = this.progress.entrySet().iterator();
+        while (iter.hasNext()) {
+            Map.Entry<TopicPartition, PartitionProgress> entry = iter.next();
+            TopicPartition partition = entry.getKey();
+            PartitionProgress partitionProgress = entry.getValue();
+            ArrayDeque<PendingRecord> pending = partitionProgress.pending;
+            while (!pending.isEmpty() && pending.peekFirst().processed)
+                partitionProgress.processedOffset = pending.pollFirst().offset + 1;
+
+            if (pending.size() <= this.maxPendingRecords / 2 && this.paused.remove(partition)) {
+                log.debug("Resuming partition {} with {} records pending", partition, pending.size());
+                this.consumer.resume(partition);
+            }
+        }
+    }
+
+    private Map<TopicPartition, OffsetAndMetadata> uncommittedOffsets() {
+        Map<TopicPartition, OffsetAndMetadata> offsets = processedOffsets();
+        Iterator<Map.Entry<TopicPartition, OffsetAndMetadata>> iter = offsets.entrySet().iterator();
+        while (iter.hasNext()) {
+            Map.Entry<TopicPartition, OffsetAndMetadata> entry = iter.next();
+            if (this.progress.get(entry.getKey()).committedOffset == entry.getValue().offset())
+                iter.remove();
+        }
+        return offsets;
+    }
+
+    private void markCommitted(Map<TopicPartition, OffsetAndMetadata> offsets) {
+        for (Map.Entry<TopicPartition, OffsetAndMetadata> entry : offsets.entrySet()) {
+            PartitionProgress partitionProgress = this.progress.get(entry.getKey());
+            if (partitionProgress != null)
+                partitionProgress.committedOffset = entry.getValue().offset();
+        }
+    }
+
+    private PartitionProgress progressFor(TopicPartition partition) {
+        PartitionProgress partitionProgress = this.progress.get(partition);
+        if (partitionProgress == null) {
+            partitionProgress = new PartitionProgress();
+            this.progress.put(partition, partitionProgress);
+        }
+        return partitionProgress;
+    }
+
+    private Worker workerFor(TopicPartition partition, K key) {
+        int hash;
+        if (this.ordering == Ordering.KEY && key != null)
+            // arrays, which byte array keys are, only have identity hash codes
+            hash = key instanceof byte[] ? Arrays.hashCode((byte[]) key) : key.hashCode();
+        else
+            hash = partition.hashCode();
+        return this.workers.get(Utils.abs(hash) % this.workers.size());
+    }
+
+    private void maybeThrowFailure() {
+        Exception e = this.failure.get();
+        if (e != null)
+            throw new KafkaException("Failed to process a record", e);
+    }
+
+    private void ensureNotClosed() {
+        if (this.closed)
+            throw new IllegalStateException("This processor has already been closed.");
+    }
+
+    private void processed() {
+        if (this.inFlight.decrementAndGet() == 0) {
+            lock.lock();
+            try {
+                idle.signalAll();
+            } finally {
+                lock.unlock();
+            }
+        }
+    }
+
+    private final class Worker implements Runnable {
+        private final BlockingQueue<Task<K, V>> queue = new LinkedBlockingQueue<>();
+        private Thread thread;
+
+        @Override
+        public void run() {
+            while (true) {
+                Task<K, V> task;
+                try {
+                    task = queue.take();
+                } catch (InterruptedException e) {
+                    break;
+                }
+                // the records still queued once the processor is closed are dropped
+                if (closed)
+                    break;
+                // once a record failed, the records after it are dropped rather than processed out of order
+                if (failure.get() == null) {
+                    try {
+                        handler.handle(task.record);
+                        task.pending.processed = true;
+                    } catch (Exception e) {
+                        log.error("Failed to process record of partition {}-{} at offset {}",
+                                  task.record.topic(), task.record.partition(), task.record.offset(), e);
+                        failure.compareAndSet(null, e);
+                    }
+                }
+                processed();
+            }
+        }
+    }
+
+    private static final class Task<K, V> {
+        final ConsumerRecord<K, V> record;
+        final PendingRecord pending;
+
+        Task(ConsumerRecord<K, V> record, PendingRecord pending) {
+            this.record = record;
+            this.pending = pending;
+        }
+    }
+
+    private static final class PendingRecord {
+        final long offset;
+        volatile boolean processed;
+
+        PendingRecord(long offset) {
+            this.offset = offset;
+        }
+    }
+
+    private static final class PartitionProgress {
+        // the records handed out and not yet known to be processed, in offset order
+        final ArrayDeque<PendingRecord> pending = new ArrayDeque<>();
+        // the offset after the last record processed with all records before it, or -1 if there is none yet
+        long processedOffset = -1;
+        long committedOffset = -1;
+    }
+}
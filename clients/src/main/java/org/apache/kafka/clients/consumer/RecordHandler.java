@@ -0,0 +1,28 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more contributor license agreements. See the NOTICE
+ * file distributed with this work for additional information regarding copyright ownership. The ASF licenses this file
+ * to You under the Apache License, Version 2.0 (the "License"); you may not use this file except in compliance with the
+ * License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on
+ * an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.apache.kafka.clients.consumer;
+
+/**
+ * The processing of records that a {@link ParallelRecordProcessor} hands to its worker threads. The handler is called
+ * from several threads at once, but never at once for records that have to be processed in order.
+ */
+public interface RecordHandler<K, V> {
+
+    /**
+     * Process a record. The record counts as processed, and its offset can be committed, once this returns.
+     *
+     * @param record The record
+     * @throws Exception If the record could not be processed, which stops the processing of any further records
+     */
+    void handle(ConsumerRecord<K, V> record) throws Exception;
+}
@@ -0,0 +1,49 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more contributor license agreements. See the NOTICE
+ * file distributed with this work for additional information regarding copyright ownership. The ASF licenses this file
+ * to You under the Apache License, Version 2.0 (the "License"); you may not use this file except in compliance with the
+ * License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on
+ * an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.apache.kafka.clients.consumer;
+
+/**
+ * The key and value of a {@link ConsumerRecord} that are only deserialized once they are first accessed. The consumer
+ * creates these when it deserializes records lazily, in which case they read from fetched data that is only valid
+ * until the next poll.
+ *
+ * @param <K> The type of the key
+ * @param <V> The type of the value
+ */
+public interface RecordView<K, V> {
+
+    /**
+     * The key, deserialized on the first call
+     *
+     * @throws IllegalStateException If it is first accessed after the data it is read from is no longer valid
+     */
+    public K key();
+
+    /**
+     * The value, deserialized on the first call
+     *
+     * @throws IllegalStateException If it is first accessed after the data it is read from is no longer valid
+     */
+    public V value();
+
+    /**
+     * Whether the key has been deserialized already, so that {@link #key()} no longer reads the fetched data
+     */
+    public boolean keyDeserialized();
+
+    /**
+     * Whether the value has been deserialized already, so that {@link #value()} no longer reads the fetched data
+     */
+    public boolean valueDeserialized();
+
+}
@@ -0,0 +1,230 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more contributor license agreements. See the NOTICE
+ * file distributed with this work for additional information regarding copyright ownership. The ASF licenses this file
+ * to You under the Apache License, Version 2.0 (the "License"); you may not use this file except in compliance with the
+ * License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on
+ * an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.apache.kafka.clients.consumer;
+
+import org.apache.kafka.clients.consumer.internals.AbstractPartitionAssignor;
+import org.apache.kafka.clients.consumer.internals.ConsumerProtocol;
+import org.apache.kafka.common.Cluster;
+import org.apache.kafka.common.TopicPartition;
+import org.apache.kafka.common.protocol.types.SchemaException;
+import org.apache.kafka.common.utils.Utils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.SortedSet;
+import java.util.TreeSet;
+
+/**
+ * The sticky assignor balances the partitions across the consumers like the roundrobin assignor, but starts from the
+ * partitions each consumer had before, so that a rebalance moves as few partitions as it can. Every consumer sends
+ * the partitions it was last assigned as the user data of its subscription.
+ * <p>
+ * The partitions each consumer had, and still subscribes to, stay with it. The partitions that no consumer had, which
+ * includes those of consumers that left, go to the consumers with the fewest partitions. Then, as long as a consumer
+ * has at least two more partitions than another consumer that subscribes to the topic of one of them, one partition
+ * moves from the first to the second. If all consumers subscribe to the same topics, the partition counts end up
+ * within one of each other, like with the roundrobin assignor.
+ * <p>
+ * For example, suppose consumers C0 and C1 have partitions t0p0, t0p1, t0p2 and t0p3, t0p4, t0p5 when consumer C2
+ * joins. Rather than reassigning everything, only one partition of each moves, to C2:
+ * C0: [t0p0, t0p1]
+ * C1: [t0p3, t0p4]
+ * C2: [t0p2, t0p5]
+ */
+public class StickyAssignor extends AbstractPartitionAssignor {
+
+    private static final Logger log = LoggerFactory.getLogger(StickyAssignor.class);
+
+    // the partitions this consumer was last assigned, which it sends with its subscription
+    private List<TopicPartition> memberAssignment = Collections.emptyList();
+
+    @Override
+    public Subscription subscription(Set<String> topics) {
+        ByteBuffer userData = ConsumerProtocol.serializeAssignment(new Assignment(this.memberAssignment));
+        return new Subscription(new ArrayList<>(topics), userData);
+    }
+
+    @Override
+    public void onAssignment(Assignment assignment) {
+        this.memberAssignment = assignment.partitions();
+    }
+
+    @Override
+    public Map<String, Assignment> assign(Cluster metadata, Map<String, Subscription> subscriptions) {
+        Set<String> allSubscribedTopics = new HashSet<>();
+        Map<String, List<String>> topicSubscriptions = new HashMap<>();
+        Map<String, List<TopicPartition>> previousAssignment = new HashMap<>();
+        for (Map.Entry<String, Subscription> subscriptionEntry : subscriptions.entrySet()) {
+            String memberId = subscriptionEntry.getKey();
+            List<String> topics = subscriptionEntry.getValue().topics();
+            allSubscribedTopics.addAll(topics);
+            topicSubscriptions.put(memberId, topics);
+            List<TopicPartition> previous = previousPartitions(memberId, subscriptionEntry.getValue().userData());
+            if (!previous.isEmpty())
+                previousAssignment.put(memberId, previous);
+        }
+
+        Map<String, Integer> partitionsPerTopic = partitionsPerTopic(metadata, allSubscribedTopics);
+        Map<String, List<TopicPartition>> rawAssignments = assign(partitionsPerTopic, topicSubscriptions, previousAssignment);
+
+        Map<String, Assignment> assignments = new HashMap<>();
+        for (Map.Entry<String, List<TopicPartition>> assignmentEntry : rawAssignments.entrySet())
+            assignments.put(assignmentEntry.getKey(), new Assignment(assignmentEntry.getValue()));
+        return assignments;
+    }
+
+    @Override
+    public Map<String, List<TopicPartition>> assign(Map<String, Integer> partitionsPerTopic,
+                                                    Map<String, List<String>> subscriptions) {
+        return assign(partitionsPerTopic, subscriptions, Collections.<String, List<TopicPartition>>emptyMap());
+    }
+
+    /**
+     * Perform the group assignment starting from the partitions the members had before
+     * @param partitionsPerTopic The number of partitions for each subscribed topic (may be empty for some topics)
+     * @param subscriptions Map from the memberId to their respective topic subscription
+     * @param previousAssignment Map from the memberId to the partitions it was assigned before, if any
+     * @return Map from each member to the partitions assigned to it
+     */
+    public Map<String, List<TopicPartition>> assign(Map<String, Integer> partitionsPerTopic,
+                                                    Map<String, List<String>> subscriptions,
+                                                    Map<String, List<TopicPartition>> previousAssignment) {
+        List<String> memberIds = Utils.sorted(subscriptions.keySet());
+        Map<String, List<TopicPartition>> assignment = new HashMap<>();
+        for (String memberId : memberIds)
+            assignment.put(memberId, new ArrayList<TopicPartition>());
+
+        // keep the partitions the members had that still exist and are still subscribed to; a partition claimed by
+        // more than one member, which can happen if one of them missed a rebalance, stays with the first of them
+        Set<TopicPartition> assigned = new HashSet<>();
+        for (String memberId : memberIds) {
+            List<TopicPartition> previous = previousAssignment.get(memberId);
+            if (previous == null)
+                continue;
+            List<String> topics = subscriptions.get(memberId);
+            for (TopicPartition partition : previous) {
+                Integer numPartitions = partitionsPerTopic.get(partition.topic());
+                if (numPartitions != null && partition.partition() < numPartitions
+                        && topics.contains(partition.topic()) && assigned.add(partition))
+                    assignment.get(memberId).add(partition);
+            }
+        }
+
+        // give the partitions no member had to the least loaded members subscribed to them
+        for (TopicPartition partition : allPartitionsSorted(partitionsPerTopic, subscriptions)) {
+            if (assigned.contains(partition))
+                continue;
+            String memberId = leastLoaded(partition.topic(), memberIds, subscriptions, assignment);
+            if (memberId != null)
+                assignment.get(memberId).add(partition);
+        }
+
+        balance(memberIds, subscriptions, assignment);
+        return assignment;
+    }
+
+    @Override
+    public String name() {
+        return "sticky";
+    }
+
+    /**
+     * Move one partition at a time from a member to a member subscribed to its topic with at least two partitions
+     * less, until there is no such pair. Every move evens out the loads, so this ends.
+     */
+    private void balance(List<String> memberIds,
+                         Map<String, List<String>> subscriptions,
+                         Map<String, List<TopicPartition>> assignment) {
+        boolean moved = true;
+        while (moved) {
+            moved = false;
+            for (String from : byLoadDescending(memberIds, assignment)) {
+                List<TopicPartition> partitions = assignment.get(from);
+                // the partitions a member got last are moved first
+                for (int i = partitions.size() - 1; i >= 0 && !moved; i--) {
+                    TopicPartition partition = partitions.get(i);
+                    String to = leastLoaded(partition.topic(), memberIds, subscriptions, assignment);
+                    if (to != null && assignment.get(to).size() + 1 < partitions.size()) {
+                        partitions.remove(i);
+                        assignment.get(to).add(partition);
+                        moved = true;
+                    }
+                }
+                if (moved)
+                    break;
+            }
+        }
+    }
+
+    private static List<String> byLoadDescending(List<String> memberIds, final Map<String, List<TopicPartition>> assignment) {
+        List<String> members = new ArrayList<>(memberIds);
+        Collections.sort(members, new Comparator<String>() {
+            @Override
+            public int compare(String a, String b) {
+                int loads = Integer.compare(assignment.get(b).size(), assignment.get(a).size());
+                return loads != 0 ? loads : a.compareTo(b);
+            }
+        });
+        return members;
+    }
+
+    private static String leastLoaded(String topic,
+                                      List<String> memberIds,
+                                      Map<String, List<String>> subscriptions,
+                                      Map<String, List<TopicPartition>> assignment) {
+        String leastLoaded = null;
+        for (String memberId : memberIds) {
+            if (subscriptions.get(memberId).contains(topic)
+                    && (leastLoaded == null || assignment.get(memberId).size() < assignment.get(leastLoaded).size()))
+                leastLoaded = memberId;
+        }
+        return leastLoaded;
+    }
+
+    private static List<TopicPartition> allPartitionsSorted(Map<String, Integer> partitionsPerTopic,
+                                                            Map<String, List<String>> subscriptions) {
+        SortedSet<String> topics = new TreeSet<>();
+        for (List<String> subscription : subscriptions.values())
+            topics.addAll(subscription);
+
+        List<TopicPartition> allPartitions = new ArrayList<>();
+        for (String topic : topics) {
+            Integer partitions = partitionsPerTopic.get(topic);
+            if (partitions == null)
+                continue;
+            for (int partition = 0; partition < partitions; partition++)
+                allPartitions.add(new TopicPartition(topic, partition));
+        }
+        return allPartitions;
+    }
+
+    private static List<TopicPartition> previousPartitions(String memberId, ByteBuffer userData) {
+        if (userData == null || !userData.hasRemaining())
+            return Collections.emptyList();
+        try {
+            return ConsumerProtocol.deserializeAssignment(userData.duplicate()).partitions();
+        } catch (SchemaException e) {
+            log.warn("Ignoring the previous assignment of member {} that could not be read", memberId, e);
+            return Collections.emptyList();
+        }
+    }
+}
@@ -267,7 +267,7 @@ public abstract class AbstractCoordinator implements Closeable {
 
             if (!heartbeat.shouldHeartbeat(now)) {
                 // we don't need to heartbeat now, so reschedule for when we do
-                client.schedule(this, now + heartbeat.timeToNextHeartbeat(now));
+                schedule(now + heartbeat.timeToNextHeartbeat(now));
             } else {
                 heartbeat.sentHeartbeat(now);
                 RequestFuture<Void> future = sendHeartbeatRequest();
@@ -277,16 +277,36 @@ public abstract class AbstractCoordinator implements Closeable {
                         long now = time.milliseconds();
                         heartbeat.receiveHeartbeat(now);
                         long nextHeartbeatTime = now + heartbeat.timeToNextHeartbeat(now);
-                        client.schedule(HeartbeatTask.this, nextHeartbeatTime);
+                        schedule(nextHeartbeatTime);
                     }
 
                     @Override
                     public void onFailure(RuntimeException e) {
-                        client.schedule(HeartbeatTask.this, time.milliseconds() + retryBackoffMs);
+                        schedule(time.milliseconds() + retryBackoffMs);
                     }
                 });
             }
         }
+
+        private void schedule(long at) {
+            // the task can also run outside of the task queue (see pollHeartbeat), so keep a single instance queued
+            client.unschedule(this);
+            client.schedule(this, at);
+        }
+    }
+
+    /**
+     * Send a heartbeat now if one is due. This is for a thread that polls the network client on the consumer's behalf
+     * without executing its other scheduled tasks.
+     * @param now The current time
+     * @return The time in milliseconds until the next heartbeat is due, or the heartbeat interval if there is no active
+     *         group membership to heartbeat for
+     */
+    public long pollHeartbeat(long now) {
+        heartbeatTask.run(now);
+        if (generation < 0 || needRejoin() || coordinatorUnknown())
+            return heartbeat.interval();
+        return heartbeat.timeToNextHeartbeat(now);
     }
 
     /**
@@ -546,18 +566,38 @@ public abstract class AbstractCoordinator implements Closeable {
      * Leave the current group and reset local generation/memberId.
      */
     public void maybeLeaveGroup(boolean awaitResponse) {
+        RequestFuture<Void> future = leaveGroup();
+        if (future == null)
+            return;
+        if (awaitResponse)
+            client.poll(future);
+        else
+            client.poll(future, 0);
+    }
+
+    /**
+     * Leave the current group and reset local generation/memberId, leaving the LeaveGroup request to be sent by the
+     * next poll of the network client.
+     */
+    public void requestLeaveGroup() {
+        leaveGroup();
+    }
+
+    private RequestFuture<Void> leaveGroup() {
+        RequestFuture<Void> future = null;
         if (!coordinatorUnknown() && generation > 0) {
             // this is a minimal effort attempt to leave the group. we do not
             // attempt any resending if the request fails or times out.
-            sendLeaveGroupRequest(awaitResponse);
+            future = sendLeaveGroupRequest();
         }
 
         this.generation = OffsetCommitRequest.DEFAULT_GENERATION_ID;
         this.memberId = JoinGroupRequest.UNKNOWN_MEMBER_ID;
         rejoinNeeded = true;
+        return future;
     }
 
-    private void sendLeaveGroupRequest(boolean awaitResponse) {
+    private RequestFuture<Void> sendLeaveGroupRequest() {
         LeaveGroupRequest request = new LeaveGroupRequest(groupId, memberId);
         RequestFuture<Void> future = client.send(coordinator, ApiKeys.LEAVE_GROUP, request)
                 .compose(new LeaveGroupResponseHandler());
@@ -571,11 +611,7 @@ public abstract class AbstractCoordinator implements Closeable {
                 log.info("LeaveGroup request failed with error", e);
             }
         });
-
-        if (awaitResponse)
-            client.poll(future);
-        else
-            client.poll(future, 0);
+        return future;
     }
 
     private class LeaveGroupResponseHandler extends CoordinatorResponseHandler<LeaveGroupResponse, Void> {
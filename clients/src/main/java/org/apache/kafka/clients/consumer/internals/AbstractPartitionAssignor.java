@@ -55,15 +55,7 @@ public abstract class AbstractPartitionAssignor implements PartitionAssignor {
             topicSubscriptions.put(subscriptionEntry.getKey(), topics);
         }
 
-        Map<String, Integer> partitionsPerTopic = new HashMap<>();
-        for (String topic : allSubscribedTopics) {
-            Integer numPartitions = metadata.partitionCountForTopic(topic);
-            if (numPartitions != null)
-                partitionsPerTopic.put(topic, numPartitions);
-            else
-                log.debug("Skipping assignment for topic {} since no metadata is available", topic);
-        }
-
+        Map<String, Integer> partitionsPerTopic = partitionsPerTopic(metadata, allSubscribedTopics);
         Map<String, List<TopicPartition>> rawAssignments = assign(partitionsPerTopic, topicSubscriptions);
 
         // this class has maintains no user data, so just wrap the results
@@ -78,6 +70,24 @@ public abstract class AbstractPartitionAssignor implements PartitionAssignor {
         // this assignor maintains no internal state, so nothing to do
     }
 
+    /**
+     * Get the number of partitions of each of the topics that there is metadata for
+     * @param metadata The current cluster metadata
+     * @param topics The topics
+     * @return Map from each topic with metadata to its number of partitions
+     */
+    protected static Map<String, Integer> partitionsPerTopic(Cluster metadata, Set<String> topics) {
+        Map<String, Integer> partitionsPerTopic = new HashMap<>();
+        for (String topic : topics) {
+            Integer numPartitions = metadata.partitionCountForTopic(topic);
+            if (numPartitions != null)
+                partitionsPerTopic.put(topic, numPartitions);
+            else
+                log.debug("Skipping assignment for topic {} since no metadata is available", topic);
+        }
+        return partitionsPerTopic;
+    }
+
     protected static <K, V> void put(Map<K, List<V>> map, K key, V value) {
         List<V> list = map.get(key);
         if (list == null) {
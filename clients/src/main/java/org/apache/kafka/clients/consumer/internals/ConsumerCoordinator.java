@@ -36,6 +36,7 @@ import org.apache.kafka.common.metrics.stats.Max;
 import org.apache.kafka.common.metrics.stats.Rate;
 import org.apache.kafka.common.protocol.ApiKeys;
 import org.apache.kafka.common.protocol.Errors;
+import org.apache.kafka.common.requests.JoinGroupRequest;
 import org.apache.kafka.common.requests.OffsetCommitRequest;
 import org.apache.kafka.common.requests.OffsetCommitResponse;
 import org.apache.kafka.common.requests.OffsetFetchRequest;
@@ -69,6 +70,10 @@ public final class ConsumerCoordinator extends AbstractCoordinator {
     private final OffsetCommitCallback defaultOffsetCommitCallback;
     private final boolean autoCommitEnabled;
 
+    // the generation and member id this consumer had when the current rebalance began
+    private int previousGeneration;
+    private String previousMemberId;
+
     /**
      * Initialize the coordination manager.
      */
@@ -103,6 +108,8 @@ public final class ConsumerCoordinator extends AbstractCoordinator {
         this.subscriptions = subscriptions;
         this.defaultOffsetCommitCallback = defaultOffsetCommitCallback;
         this.autoCommitEnabled = autoCommitEnabled;
+        this.previousGeneration = OffsetCommitRequest.DEFAULT_GENERATION_ID;
+        this.previousMemberId = JoinGroupRequest.UNKNOWN_MEMBER_ID;
 
         this.protocolMap = new HashMap<>();
         for (PartitionAssignor assignor : assignors)
@@ -168,11 +175,15 @@ public final class ConsumerCoordinator extends AbstractCoordinator {
 
         Assignment assignment = ConsumerProtocol.deserializeAssignment(assignmentBuffer);
 
-        // set the flag to refresh last committed offsets
-        subscriptions.needRefreshCommits();
+        // if this consumer stayed in the group from the previous generation to this one, no other member can have
+        // owned the partitions it keeps, so their committed offsets and positions are still current and only those
+        // of the newly assigned partitions need to be fetched
+        boolean keepAssignedState = memberId.equals(this.previousMemberId) && generation == this.previousGeneration + 1;
+        if (!keepAssignedState)
+            subscriptions.needRefreshCommits();
 
         // update partition assignment
-        subscriptions.assignFromSubscribed(assignment.partitions());
+        subscriptions.assignFromSubscribed(assignment.partitions(), keepAssignedState);
 
         // give the assignor a chance to update internal state based on the received assignment
         assignor.onAssignment(assignment);
@@ -230,6 +241,9 @@ public final class ConsumerCoordinator extends AbstractCoordinator {
 
     @Override
     protected void onJoinPrepare(int generation, String memberId) {
+        this.previousGeneration = generation;
+        this.previousMemberId = memberId;
+
         // commit offsets prior to rebalance if auto-commit enabled
         maybeAutoCommitOffsetsSync();
 
@@ -260,7 +274,7 @@ public final class ConsumerCoordinator extends AbstractCoordinator {
      */
     public void refreshCommittedOffsetsIfNeeded() {
         if (subscriptions.refreshCommitsNeeded()) {
-            Map<TopicPartition, OffsetAndMetadata> offsets = fetchCommittedOffsets(subscriptions.assignedPartitions());
+            Map<TopicPartition, OffsetAndMetadata> offsets = fetchCommittedOffsets(subscriptions.commitsToRefresh());
             for (Map.Entry<TopicPartition, OffsetAndMetadata> entry : offsets.entrySet()) {
                 TopicPartition tp = entry.getKey();
                 // verify assignment is still active
@@ -144,6 +144,14 @@ public class ConsumerNetworkClient implements Closeable {
         this.client.wakeup();
     }
 
+    /**
+     * Wake up an active poll so that it returns early, without raising an exception in the polling thread. This is
+     * for another thread that is waiting to use this client itself.
+     */
+    public void interruptPoll() {
+        this.client.wakeup();
+    }
+
     /**
      * Block indefinitely until the given request future has finished.
      * @param future The request future to await.
@@ -184,14 +192,39 @@ public class ConsumerNetworkClient implements Closeable {
         poll(timeout, time.milliseconds());
     }
 
+    /**
+     * Poll for any network IO like {@link #poll(long)}, except that a pending {@link #wakeup()} is left for the next
+     * call that can raise it rather than raised here. This is for polling on behalf of the thread the wakeup is meant
+     * for.
+     * @param timeout The maximum time to wait for an IO event.
+     */
+    public void pollNoWakeup(long timeout) {
+        pollNoWakeup(timeout, true);
+    }
+
+    /**
+     * Poll for any network IO like {@link #pollNoWakeup(long)}, optionally without executing the scheduled tasks, which
+     * are then left for the next poll that does.
+     * @param timeout The maximum time to wait for an IO event.
+     * @param executeDelayedTasks Whether to execute the scheduled tasks that are due
+     */
+    public void pollNoWakeup(long timeout, boolean executeDelayedTasks) {
+        poll(timeout, time.milliseconds(), false, executeDelayedTasks);
+    }
+
     private void poll(long timeout, long now) {
+        poll(timeout, now, true, true);
+    }
+
+    private void poll(long timeout, long now, boolean raiseWakeup, boolean executeDelayedTasks) {
         // send all the requests we can send now
         trySend(now);
 
         // ensure we don't poll any longer than the deadline for
         // the next scheduled task
-        timeout = Math.min(timeout, delayedTasks.nextTimeout(now));
-        clientPoll(timeout, now);
+        if (executeDelayedTasks)
+            timeout = Math.min(timeout, delayedTasks.nextTimeout(now));
+        clientPoll(timeout, now, raiseWakeup);
         now = time.milliseconds();
 
         // handle any disconnects by failing the active requests. note that disconects must
@@ -200,7 +233,8 @@ public class ConsumerNetworkClient implements Closeable {
         checkDisconnects(now);
 
         // execute scheduled tasks
-        delayedTasks.poll(now);
+        if (executeDelayedTasks)
+            delayedTasks.poll(now);
 
         // try again to send requests since buffer space may have been
         // cleared or a connect finished in the poll
@@ -296,9 +330,9 @@ public class ConsumerNetworkClient implements Closeable {
         return requestsSent;
     }
 
-    private void clientPoll(long timeout, long now) {
+    private void clientPoll(long timeout, long now, boolean raiseWakeup) {
         client.poll(timeout, now);
-        if (wakeup.get()) {
+        if (raiseWakeup && wakeup.get()) {
             failUnsentRequests();
             wakeup.set(false);
             throw new WakeupException();
@@ -0,0 +1,91 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more contributor license agreements. See the NOTICE
+ * file distributed with this work for additional information regarding copyright ownership. The ASF licenses this file
+ * to You under the Apache License, Version 2.0 (the "License"); you may not use this file except in compliance with the
+ * License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on
+ * an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.apache.kafka.clients.consumer.internals;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Bounds the memory taken by the fetched data of a consumer. Every partition fetched reserves the most data its fetch
+ * can return before the fetch is sent, which covers the receive the response is read into, and once the response is
+ * handled the reservation is traded for the data actually kept until its records are returned.
+ * <p>
+ * Memory is only accounted for here, the buffers themselves are still allocated by the network layer. Reserving never
+ * blocks: the fetcher leaves out the partitions it cannot reserve memory for until some is released.
+ */
+public final class FetchMemoryPool {
+
+    private final long totalMemory;
+    private final AtomicLong used;
+
+    /**
+     * Create a pool
+     *
+     * @param totalMemory The most memory the fetched data may take, or 0 for no limit
+     */
+    public FetchMemoryPool(long totalMemory) {
+        this.totalMemory = totalMemory;
+        this.used = new AtomicLong(0);
+    }
+
+    /**
+     * Reserve the given amount of memory unless that would take the pool over its size. A pool with nothing in use can
+     * always reserve memory, so a fetch larger than the pool can still be made.
+     *
+     * @param bytes The amount of memory to reserve
+     * @return true if the memory was reserved
+     */
+    public boolean tryReserve(long bytes) {
+        if (this.totalMemory > 0) {
+            long current = this.used.get();
+            if (current > 0 && current + bytes > this.totalMemory)
+                return false;
+        }
+        this.used.addAndGet(bytes);
+        return true;
+    }
+
+    /**
+     * Take memory without checking the size of the pool, for data already received
+     */
+    public void add(long bytes) {
+        this.used.addAndGet(bytes);
+    }
+
+    /**
+     * Return memory to the pool
+     */
+    public void release(long bytes) {
+        this.used.addAndGet(-bytes);
+    }
+
+    /**
+     * The memory in use
+     */
+    public long used() {
+        return this.used.get();
+    }
+
+    /**
+     * The size of the pool, or 0 if it has no limit
+     */
+    public long totalMemory() {
+        return this.totalMemory;
+    }
+
+    /**
+     * The fraction of the pool in use, which is always 0 for a pool without a limit
+     */
+    public double utilization() {
+        return this.totalMemory > 0 ? this.used.get() / (double) this.totalMemory : 0.0;
+    }
+}
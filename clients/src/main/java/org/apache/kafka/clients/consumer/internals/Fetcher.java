@@ -24,6 +24,8 @@ import org.apache.kafka.common.Node;
 import org.apache.kafka.common.PartitionInfo;
 import org.apache.kafka.common.TopicPartition;
 import org.apache.kafka.common.errors.*;
+import org.apache.kafka.common.metrics.Measurable;
+import org.apache.kafka.common.metrics.MetricConfig;
 import org.apache.kafka.common.metrics.Metrics;
 import org.apache.kafka.common.metrics.Sensor;
 import org.apache.kafka.common.metrics.stats.Avg;
@@ -32,6 +34,7 @@ import org.apache.kafka.common.metrics.stats.Max;
 import org.apache.kafka.common.metrics.stats.Rate;
 import org.apache.kafka.common.protocol.ApiKeys;
 import org.apache.kafka.common.protocol.Errors;
+import org.apache.kafka.common.record.DecompressionContext;
 import org.apache.kafka.common.record.LogEntry;
 import org.apache.kafka.common.record.MemoryRecords;
 import org.apache.kafka.common.requests.FetchRequest;
@@ -50,6 +53,8 @@ import java.nio.ByteBuffer;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
@@ -68,8 +73,10 @@ public class Fetcher<K, V> {
     private final int minBytes;
     private final int maxWaitMs;
     private final int fetchSize;
+    private final int fetchLagMultiplier;
     private final long retryBackoffMs;
     private final boolean checkCrcs;
+    private final boolean lazyDeserialization;
     private final Metadata metadata;
     private final FetchManagerMetrics sensors;
     private final SubscriptionState subscriptions;
@@ -80,6 +87,15 @@ public class Fetcher<K, V> {
     private final Map<TopicPartition, Long> offsetOutOfRangePartitions;
     private final Set<String> unauthorizedTopics;
     private final Map<TopicPartition, Long> recordTooLargePartitions;
+    // the lifetimes of the fetched data of the lazily deserialized records returned by the last call to fetchedRecords()
+    private final List<LazyRecordView.Lifetime> returnedLifetimes;
+    // the decompression buffers reused across fetches, which include the buffer records are decompressed into unless
+    // records are deserialized lazily, since the records are otherwise copied out of as soon as they are parsed
+    private final DecompressionContext decompression;
+    // the memory taken by the fetched data, both kept until its records are returned and reserved for fetches in flight
+    private final FetchMemoryPool memoryPool;
+    // the memory held by the fetched data of the lazily deserialized records returned by the last call to fetchedRecords()
+    private long returnedBytes;
 
     public Fetcher(ConsumerNetworkClient client,
                    int minBytes,
@@ -95,6 +111,27 @@ public class Fetcher<K, V> {
                    Map<String, String> metricTags,
                    Time time,
                    long retryBackoffMs) {
+        this(client, minBytes, maxWaitMs, fetchSize, checkCrcs, false, 0L, 1, keyDeserializer, valueDeserializer, metadata,
+             subscriptions, metrics, metricGrpPrefix, metricTags, time, retryBackoffMs);
+    }
+
+    public Fetcher(ConsumerNetworkClient client,
+                   int minBytes,
+                   int maxWaitMs,
+                   int fetchSize,
+                   boolean checkCrcs,
+                   boolean lazyDeserialization,
+                   long fetchBufferMemory,
+                   int fetchLagMultiplier,
+                   Deserializer<K> keyDeserializer,
+                   Deserializer<V> valueDeserializer,
+                   Metadata metadata,
+                   SubscriptionState subscriptions,
+                   Metrics metrics,
+                   String metricGrpPrefix,
+                   Map<String, String> metricTags,
+                   Time time,
+                   long retryBackoffMs) {
 
         this.time = time;
         this.client = client;
@@ -103,7 +140,9 @@ public class Fetcher<K, V> {
         this.minBytes = minBytes;
         this.maxWaitMs = maxWaitMs;
         this.fetchSize = fetchSize;
+        this.fetchLagMultiplier = fetchLagMultiplier;
         this.checkCrcs = checkCrcs;
+        this.lazyDeserialization = lazyDeserialization;
 
         this.keyDeserializer = keyDeserializer;
         this.valueDeserializer = valueDeserializer;
@@ -112,6 +151,9 @@ public class Fetcher<K, V> {
         this.offsetOutOfRangePartitions = new HashMap<>();
         this.unauthorizedTopics = new HashSet<>();
         this.recordTooLargePartitions = new HashMap<>();
+        this.returnedLifetimes = new ArrayList<>();
+        this.memoryPool = new FetchMemoryPool(fetchBufferMemory);
+        this.decompression = new DecompressionContext(!lazyDeserialization);
 
         this.sensors = new FetchManagerMetrics(metrics, metricGrpPrefix, metricTags);
         this.retryBackoffMs = retryBackoffMs;
@@ -123,17 +165,36 @@ public class Fetcher<K, V> {
      * @param cluster The current cluster metadata
      */
     public void initFetches(Cluster cluster) {
-        for (Map.Entry<Node, FetchRequest> fetchEntry: createFetchRequests(cluster).entrySet()) {
+        initFetches(cluster, 0);
+    }
+
+    /**
+     * Set-up a fetch request for any node that we have assigned partitions for which doesn't have one. Partitions whose
+     * fetched records have not all been returned yet are fetched ahead too, as long as the fetched data and the most the
+     * fetches in flight can return stay within the given number of bytes. Partitions that the fetch memory cannot cover
+     * are left out until enough of it is released.
+     *
+     * @param cluster The current cluster metadata
+     * @param maxBufferedBytes The most data to buffer by fetching ahead
+     */
+    public void initFetches(Cluster cluster, long maxBufferedBytes) {
+        for (Map.Entry<Node, FetchRequest> fetchEntry: createFetchRequests(cluster, maxBufferedBytes).entrySet()) {
             final FetchRequest fetch = fetchEntry.getValue();
+            long reservedBytes = 0;
+            for (FetchRequest.PartitionData partitionData : fetch.fetchData().values())
+                reservedBytes += partitionData.maxBytes;
+            final long fetchBytes = reservedBytes;
             client.send(fetchEntry.getKey(), ApiKeys.FETCH, fetch)
                     .addListener(new RequestFutureListener<ClientResponse>() {
                         @Override
                         public void onSuccess(ClientResponse response) {
+                            memoryPool.release(fetchBytes);
                             handleFetchResponse(response, fetch);
                         }
 
                         @Override
                         public void onFailure(RuntimeException e) {
+                            memoryPool.release(fetchBytes);
                             log.debug("Fetch failed", e);
                         }
                     });
@@ -147,23 +208,26 @@ public class Fetcher<K, V> {
      */
     public void updateFetchPositions(Set<TopicPartition> partitions) {
         // reset the fetch position to the committed position
+        Set<TopicPartition> needsReset = new HashSet<>();
         for (TopicPartition tp : partitions) {
             if (!subscriptions.isAssigned(tp) || subscriptions.isFetchable(tp))
                 continue;
 
-            // TODO: If there are several offsets to reset, we could submit offset requests in parallel
             if (subscriptions.isOffsetResetNeeded(tp)) {
-                resetOffset(tp);
+                needsReset.add(tp);
             } else if (subscriptions.committed(tp) == null) {
                 // there's no committed position, so we need to reset with the default strategy
                 subscriptions.needOffsetReset(tp);
-                resetOffset(tp);
+                needsReset.add(tp);
             } else {
                 long committed = subscriptions.committed(tp).offset();
                 log.debug("Resetting offset for partition {} to the committed offset {}", tp, committed);
                 subscriptions.seek(tp, committed);
             }
         }
+
+        if (!needsReset.isEmpty())
+            resetOffsets(needsReset);
     }
 
     /**
@@ -228,51 +292,74 @@ public class Fetcher<K, V> {
     }
 
     /**
-     * Reset offsets for the given partition using the offset reset strategy.
+     * Reset offsets for the given partitions using their offset reset strategies. The offsets are looked up with one
+     * request to the leader of each partition, all sent before waiting for any of them.
      *
-     * @param partition The given partition that needs reset offset
+     * @param partitions The given partitions that need reset offsets
      * @throws org.apache.kafka.clients.consumer.NoOffsetForPartitionException If no offset reset strategy is defined
      */
-    private void resetOffset(TopicPartition partition) {
-        OffsetResetStrategy strategy = subscriptions.resetStrategy(partition);
-        final long timestamp;
-        if (strategy == OffsetResetStrategy.EARLIEST)
-            timestamp = ListOffsetRequest.EARLIEST_TIMESTAMP;
-        else if (strategy == OffsetResetStrategy.LATEST)
-            timestamp = ListOffsetRequest.LATEST_TIMESTAMP;
-        else
-            throw new NoOffsetForPartitionException("No offset is set and no reset policy is defined");
-
-        log.debug("Resetting offset for partition {} to {} offset.", partition, strategy.name().toLowerCase());
-        long offset = listOffset(partition, timestamp);
-
-        // we might lose the assignment while fetching the offset, so check it is still active
-        if (subscriptions.isAssigned(partition))
-            this.subscriptions.seek(partition, offset);
+    private void resetOffsets(Set<TopicPartition> partitions) {
+        Map<TopicPartition, Long> timestamps = new HashMap<>();
+        for (TopicPartition partition : partitions) {
+            OffsetResetStrategy strategy = subscriptions.resetStrategy(partition);
+            final long timestamp;
+            if (strategy == OffsetResetStrategy.EARLIEST)
+                timestamp = ListOffsetRequest.EARLIEST_TIMESTAMP;
+            else if (strategy == OffsetResetStrategy.LATEST)
+                timestamp = ListOffsetRequest.LATEST_TIMESTAMP;
+            else
+                throw new NoOffsetForPartitionException("No offset is set and no reset policy is defined");
+
+            log.debug("Resetting offset for partition {} to {} offset.", partition, strategy.name().toLowerCase());
+            timestamps.put(partition, timestamp);
+        }
+
+        Map<TopicPartition, Long> offsets = listOffsets(timestamps);
+        for (Map.Entry<TopicPartition, Long> entry : offsets.entrySet()) {
+            // we might lose the assignment while fetching the offset, so check it is still active
+            if (subscriptions.isAssigned(entry.getKey()))
+                this.subscriptions.seek(entry.getKey(), entry.getValue());
+        }
     }
 
     /**
-     * Fetch a single offset before the given timestamp for the partition.
+     * Fetch a single offset before the given timestamp for each partition. The partitions whose lookup fails with a
+     * retriable error are retried, after a metadata refresh if their leader may have moved.
      *
-     * @param partition The partition that needs fetching offset.
-     * @param timestamp The timestamp for fetching offset.
-     * @return The offset of the message that is published before the given timestamp
+     * @param timestamps The timestamps for fetching offsets of each partition.
+     * @return The offsets of the messages that are published before the given timestamps
      */
-    private long listOffset(TopicPartition partition, long timestamp) {
+    private Map<TopicPartition, Long> listOffsets(Map<TopicPartition, Long> timestamps) {
+        Map<TopicPartition, Long> offsets = new HashMap<>();
+        Map<TopicPartition, Long> remaining = new HashMap<>(timestamps);
         while (true) {
-            RequestFuture<Long> future = sendListOffsetRequest(partition, timestamp);
-            client.poll(future);
-
-            if (future.succeeded())
-                return future.value();
+            List<RequestFuture<Map<TopicPartition, Long>>> futures = sendListOffsetRequests(remaining);
+            for (RequestFuture<Map<TopicPartition, Long>> future : futures)
+                client.poll(future);
+
+            boolean staleMetadata = false;
+            boolean retryAfterBackoff = false;
+            for (RequestFuture<Map<TopicPartition, Long>> future : futures) {
+                if (future.succeeded()) {
+                    offsets.putAll(future.value());
+                    remaining.keySet().removeAll(future.value().keySet());
+                } else if (!future.isRetriable()) {
+                    throw future.exception();
+                } else if (future.exception() instanceof InvalidMetadataException) {
+                    staleMetadata = true;
+                } else {
+                    retryAfterBackoff = true;
+                }
+            }
 
-            if (!future.isRetriable())
-                throw future.exception();
+            if (remaining.isEmpty())
+                return offsets;
 
-            if (future.exception() instanceof InvalidMetadataException)
-                client.awaitMetadataUpdate();
-            else
+            // partitions missing from a successful response had errors that point to stale metadata
+            if (retryAfterBackoff && !staleMetadata)
                 Utils.sleep(retryBackoffMs);
+            else
+                client.awaitMetadataUpdate();
         }
     }
 
@@ -333,7 +420,8 @@ public class Fetcher<K, V> {
     }
 
     /**
-     * Return the fetched records, empty the record buffer and update the consumed position.
+     * Return the fetched records, empty the record buffer and update the consumed position. Lazily deserialized records
+     * returned by the previous call can no longer be deserialized after this.
      *
      * @return The fetched records per partition
      * @throws OffsetOutOfRangeException If there is OffsetOutOfRange error in fetchResponse and
@@ -343,41 +431,60 @@ public class Fetcher<K, V> {
         if (this.subscriptions.partitionAssignmentNeeded()) {
             return Collections.emptyMap();
         } else {
+            for (LazyRecordView.Lifetime lifetime : this.returnedLifetimes)
+                lifetime.expire();
+            this.returnedLifetimes.clear();
+            this.memoryPool.release(this.returnedBytes);
+            this.returnedBytes = 0;
+
             Map<TopicPartition, List<ConsumerRecord<K, V>>> drained = new HashMap<>();
             throwIfOffsetOutOfRange();
             throwIfUnauthorizedTopics();
             throwIfRecordTooLarge();
 
             for (PartitionRecords<K, V> part : this.records) {
-                if (!subscriptions.isAssigned(part.partition)) {
-                    // this can happen when a rebalance happened before fetched records are returned to the consumer's poll call
-                    log.debug("Not returning fetched records for partition {} since it is no longer assigned", part.partition);
-                    continue;
-                }
+                try {
+                    if (!subscriptions.isAssigned(part.partition)) {
+                        // this can happen when a rebalance happened before fetched records are returned to the consumer's poll call
+                        log.debug("Not returning fetched records for partition {} since it is no longer assigned", part.partition);
+                        continue;
+                    }
 
-                // note that the consumed position should always be available
-                // as long as the partition is still assigned
-                long consumed = subscriptions.consumed(part.partition);
-                if (!subscriptions.isFetchable(part.partition)) {
-                    // this can happen when a partition consumption paused before fetched records are returned to the consumer's poll call
-                    log.debug("Not returning fetched records for assigned partition {} since it is no longer fetchable", part.partition);
-
-                    // we also need to reset the fetch positions to pretend we did not fetch
-                    // this partition in the previous request at all
-                    subscriptions.fetched(part.partition, consumed);
-                } else if (part.fetchOffset == consumed) {
-                    List<ConsumerRecord<K, V>> records = drained.get(part.partition);
-                    if (records == null) {
-                        records = part.records;
-                        drained.put(part.partition, records);
+                    // note that the consumed position should always be available
+                    // as long as the partition is still assigned
+                    long consumed = subscriptions.consumed(part.partition);
+                    if (!subscriptions.isFetchable(part.partition)) {
+                        // this can happen when a partition consumption paused before fetched records are returned to the consumer's poll call
+                        log.debug("Not returning fetched records for assigned partition {} since it is no longer fetchable", part.partition);
+
+                        // we also need to reset the fetch positions to pretend we did not fetch
+                        // this partition in the previous request at all
+                        subscriptions.fetched(part.partition, consumed);
+                    } else if (part.fetchOffset == consumed) {
+                        List<ConsumerRecord<K, V>> records = drained.get(part.partition);
+                        if (records == null) {
+                            records = part.records;
+                            drained.put(part.partition, records);
+                        } else {
+                            records.addAll(part.records);
+                        }
+                        if (part.lifetime != null) {
+                            // the records still read from the fetched data until the next call
+                            this.returnedLifetimes.add(part.lifetime);
+                            this.returnedBytes += part.bytes;
+                            part.bytes = 0;
+                        }
+                        subscriptions.consumed(part.partition, part.records.get(part.records.size() - 1).offset() + 1);
                     } else {
-                        records.addAll(part.records);
+                        // these records aren't next in line based on the last consumed position, ignore them
+                        // they must be from an obsolete request
+                        log.debug("Ignoring fetched records for {} at offset {}", part.partition, part.fetchOffset);
                     }
-                    subscriptions.consumed(part.partition, part.records.get(part.records.size() - 1).offset() + 1);
-                } else {
-                    // these records aren't next in line based on the last consumed position, ignore them
-                    // they must be from an obsolete request
-                    log.debug("Ignoring fetched records for {} at offset {}", part.partition, part.fetchOffset);
+                } finally {
+                    // whichever way the records were dropped, the data not kept for the records returned goes back
+                    // to the pool
+                    this.memoryPool.release(part.bytes);
+                    part.bytes = 0;
                 }
             }
             this.records.clear();
@@ -386,67 +493,84 @@ public class Fetcher<K, V> {
     }
 
     /**
-     * Fetch a single offset before the given timestamp for the partition.
+     * Fetch a single offset before the given timestamp for each partition, with one request per partition leader.
      *
-     * @param topicPartition The partition that needs fetching offset.
-     * @param timestamp The timestamp for fetching offset.
-     * @return A response which can be polled to obtain the corresponding offset.
+     * @param timestamps The timestamps for fetching offsets of each partition.
+     * @return One response per request, which can be polled to obtain the corresponding offsets, and a failed
+     *         response for each partition whose leader is unknown.
      */
-    private RequestFuture<Long> sendListOffsetRequest(final TopicPartition topicPartition, long timestamp) {
-        Map<TopicPartition, ListOffsetRequest.PartitionData> partitions = new HashMap<TopicPartition, ListOffsetRequest.PartitionData>(1);
-        partitions.put(topicPartition, new ListOffsetRequest.PartitionData(timestamp, 1));
-        PartitionInfo info = metadata.fetch().partition(topicPartition);
-        if (info == null) {
-            metadata.add(topicPartition.topic());
-            log.debug("Partition {} is unknown for fetching offset, wait for metadata refresh", topicPartition);
-            return RequestFuture.staleMetadata();
-        } else if (info.leader() == null) {
-            log.debug("Leader for partition {} unavailable for fetching offset, wait for metadata refresh", topicPartition);
-            return RequestFuture.leaderNotAvailable();
-        } else {
-            Node node = info.leader();
-            ListOffsetRequest request = new ListOffsetRequest(-1, partitions);
-            return client.send(node, ApiKeys.LIST_OFFSETS, request)
-                    .compose(new RequestFutureAdapter<ClientResponse, Long>() {
+    private List<RequestFuture<Map<TopicPartition, Long>>> sendListOffsetRequests(Map<TopicPartition, Long> timestamps) {
+        List<RequestFuture<Map<TopicPartition, Long>>> futures = new ArrayList<>();
+        Map<Node, Map<TopicPartition, ListOffsetRequest.PartitionData>> partitionsByNode = new HashMap<>();
+        Cluster cluster = metadata.fetch();
+        for (Map.Entry<TopicPartition, Long> entry : timestamps.entrySet()) {
+            TopicPartition topicPartition = entry.getKey();
+            PartitionInfo info = cluster.partition(topicPartition);
+            if (info == null) {
+                metadata.add(topicPartition.topic());
+                log.debug("Partition {} is unknown for fetching offset, wait for metadata refresh", topicPartition);
+                futures.add(RequestFuture.<Map<TopicPartition, Long>>staleMetadata());
+            } else if (info.leader() == null) {
+                log.debug("Leader for partition {} unavailable for fetching offset, wait for metadata refresh", topicPartition);
+                futures.add(RequestFuture.<Map<TopicPartition, Long>>leaderNotAvailable());
+            } else {
+                Map<TopicPartition, ListOffsetRequest.PartitionData> partitions = partitionsByNode.get(info.leader());
+                if (partitions == null) {
+                    partitions = new HashMap<>();
+                    partitionsByNode.put(info.leader(), partitions);
+                }
+                partitions.put(topicPartition, new ListOffsetRequest.PartitionData(entry.getValue(), 1));
+            }
+        }
+
+        for (Map.Entry<Node, Map<TopicPartition, ListOffsetRequest.PartitionData>> entry : partitionsByNode.entrySet()) {
+            final Set<TopicPartition> partitions = entry.getValue().keySet();
+            ListOffsetRequest request = new ListOffsetRequest(-1, entry.getValue());
+            futures.add(client.send(entry.getKey(), ApiKeys.LIST_OFFSETS, request)
+                    .compose(new RequestFutureAdapter<ClientResponse, Map<TopicPartition, Long>>() {
                         @Override
-                        public void onSuccess(ClientResponse response, RequestFuture<Long> future) {
-                            handleListOffsetResponse(topicPartition, response, future);
+                        public void onSuccess(ClientResponse response, RequestFuture<Map<TopicPartition, Long>> future) {
+                            handleListOffsetResponse(partitions, response, future);
                         }
-                    });
+                    }));
         }
+        return futures;
     }
 
     /**
-     * Callback for the response of the list offset call above.
-     * @param topicPartition The partition that was fetched
+     * Callback for the response of the list offset call above. The response completes with the offsets of the
+     * partitions that had no error, so a partition whose leader moved does not fail the others sent to the same node.
+     * @param partitions The partitions that were fetched
      * @param clientResponse The response from the server.
      */
-    private void handleListOffsetResponse(TopicPartition topicPartition,
+    private void handleListOffsetResponse(Set<TopicPartition> partitions,
                                           ClientResponse clientResponse,
-                                          RequestFuture<Long> future) {
+                                          RequestFuture<Map<TopicPartition, Long>> future) {
         if (clientResponse.wasDisconnected()) {
             future.raise(new DisconnectException());
         } else {
             ListOffsetResponse lor = new ListOffsetResponse(clientResponse.responseBody());
-            short errorCode = lor.responseData().get(topicPartition).errorCode;
-            if (errorCode == Errors.NONE.code()) {
-                List<Long> offsets = lor.responseData().get(topicPartition).offsets;
-                if (offsets.size() != 1)
-                    throw new IllegalStateException("This should not happen.");
-                long offset = offsets.get(0);
-                log.debug("Fetched offset {} for partition {}", offset, topicPartition);
-
-                future.complete(offset);
-            } else if (errorCode == Errors.NOT_LEADER_FOR_PARTITION.code()
-                    || errorCode == Errors.UNKNOWN_TOPIC_OR_PARTITION.code()) {
-                log.warn("Attempt to fetch offsets for partition {} failed due to obsolete leadership information, retrying.",
-                        topicPartition);
-                future.raise(Errors.forCode(errorCode));
-            } else {
-                log.error("Attempt to fetch offsets for partition {} failed due to: {}",
-                        topicPartition, Errors.forCode(errorCode).exception().getMessage());
-                future.raise(new StaleMetadataException());
+            Map<TopicPartition, Long> offsets = new HashMap<>();
+            for (TopicPartition topicPartition : partitions) {
+                ListOffsetResponse.PartitionData partitionData = lor.responseData().get(topicPartition);
+                short errorCode = partitionData == null ? Errors.UNKNOWN_TOPIC_OR_PARTITION.code() : partitionData.errorCode;
+                if (errorCode == Errors.NONE.code()) {
+                    List<Long> partitionOffsets = partitionData.offsets;
+                    if (partitionOffsets.size() != 1)
+                        throw new IllegalStateException("This should not happen.");
+                    long offset = partitionOffsets.get(0);
+                    log.debug("Fetched offset {} for partition {}", offset, topicPartition);
+                    offsets.put(topicPartition, offset);
+                } else if (errorCode == Errors.NOT_LEADER_FOR_PARTITION.code()
+                        || errorCode == Errors.UNKNOWN_TOPIC_OR_PARTITION.code()) {
+                    log.warn("Attempt to fetch offsets for partition {} failed due to obsolete leadership information, retrying.",
+                            topicPartition);
+                } else {
+                    log.error("Attempt to fetch offsets for partition {} failed due to: {}",
+                            topicPartition, Errors.forCode(errorCode).exception().getMessage());
+                }
             }
+            future.complete(offsets);
         }
     }
 
@@ -454,39 +578,86 @@ public class Fetcher<K, V> {
      * Create fetch requests for all nodes for which we have assigned partitions
      * that have no existing requests in flight.
      */
-    private Map<Node, FetchRequest> createFetchRequests(Cluster cluster) {
-        // create the fetch info
-        Map<Node, Map<TopicPartition, FetchRequest.PartitionData>> fetchable = new HashMap<>();
+    private Map<Node, FetchRequest> createFetchRequests(Cluster cluster, long maxBufferedBytes) {
+        // group the partitions by leader, in their fetch order, which puts the partitions that got data last at the end
+        Map<Node, List<TopicPartition>> fetchable = new HashMap<>();
         for (TopicPartition partition : subscriptions.fetchablePartitions()) {
             Node node = cluster.leaderFor(partition);
             if (node == null) {
                 metadata.requestUpdate();
             } else if (this.client.pendingRequestCount(node) == 0) {
                 // if there is a leader and no in-flight requests, issue a new fetch
-                Map<TopicPartition, FetchRequest.PartitionData> fetch = fetchable.get(node);
-                if (fetch == null) {
-                    fetch = new HashMap<>();
-                    fetchable.put(node, fetch);
+                List<TopicPartition> partitions = fetchable.get(node);
+                if (partitions == null) {
+                    partitions = new ArrayList<>();
+                    fetchable.put(node, partitions);
                 }
-
-                long fetched = this.subscriptions.fetched(partition);
-                long consumed = this.subscriptions.consumed(partition);
-                // Only fetch data for partitions whose previously fetched data has been consumed
-                if (consumed == fetched)
-                    fetch.put(partition, new FetchRequest.PartitionData(fetched, this.fetchSize));
+                partitions.add(partition);
             }
         }
 
         // create the fetches
         Map<Node, FetchRequest> requests = new HashMap<>();
-        for (Map.Entry<Node, Map<TopicPartition, FetchRequest.PartitionData>> entry : fetchable.entrySet()) {
-            Node node = entry.getKey();
-            FetchRequest fetch = new FetchRequest(this.maxWaitMs, this.minBytes, entry.getValue());
-            requests.put(node, fetch);
+        for (Map.Entry<Node, List<TopicPartition>> entry : fetchable.entrySet()) {
+            long maxLag = maxLag(entry.getValue());
+            Map<TopicPartition, FetchRequest.PartitionData> fetch = new LinkedHashMap<>();
+            for (TopicPartition partition : entry.getValue()) {
+                long fetched = this.subscriptions.fetched(partition);
+                long consumed = this.subscriptions.consumed(partition);
+                int partitionFetchSize = partitionFetchSize(partition, maxLag);
+                // Only fetch data for partitions whose previously fetched data has been consumed, unless there is
+                // room to fetch ahead, and only as long as the fetch memory can take what the fetch may return. A lagging
+                // partition falls back to the usual fetch size rather than be left out.
+                boolean fetchAhead = consumed != fetched;
+                if (fetchAhead && this.memoryPool.used() + partitionFetchSize > maxBufferedBytes)
+                    partitionFetchSize = this.fetchSize;
+                if (fetchAhead && this.memoryPool.used() + partitionFetchSize > maxBufferedBytes)
+                    continue;
+                boolean reserved = this.memoryPool.tryReserve(partitionFetchSize);
+                if (!reserved && partitionFetchSize > this.fetchSize) {
+                    partitionFetchSize = this.fetchSize;
+                    reserved = this.memoryPool.tryReserve(partitionFetchSize);
+                }
+                if (reserved) {
+                    // the reservation is released when the fetch completes
+                    fetch.put(partition, new FetchRequest.PartitionData(fetched, partitionFetchSize));
+                } else {
+                    log.trace("Deferring the fetch of partition {} until fetch memory is released", partition);
+                }
+            }
+
+            // a node whose partitions all have fetched data left to return gets no (empty) fetch
+            if (fetch.isEmpty())
+                continue;
+            requests.put(entry.getKey(), new FetchRequest(this.maxWaitMs, this.minBytes, fetch));
         }
         return requests;
     }
 
+    private long maxLag(List<TopicPartition> partitions) {
+        long maxLag = 0;
+        if (this.fetchLagMultiplier > 1) {
+            for (TopicPartition partition : partitions) {
+                Long lag = this.subscriptions.partitionLag(partition);
+                if (lag != null)
+                    maxLag = Math.max(maxLag, lag);
+            }
+        }
+        return maxLag;
+    }
+
+    /**
+     * The fetch size for a partition, which grows with its lag from the configured fetch size for a partition that has
+     * caught up, to the lag multiplier times that for the partition lagging the most among those fetched together.
+     */
+    private int partitionFetchSize(TopicPartition partition, long maxLag) {
+        Long lag = this.subscriptions.partitionLag(partition);
+        if (this.fetchLagMultiplier <= 1 || lag == null || maxLag == 0)
+            return this.fetchSize;
+        double weight = 1.0 + (this.fetchLagMultiplier - 1) * ((double) lag / maxLag);
+        return (int) Math.min(Integer.MAX_VALUE, (long) (this.fetchSize * weight));
+    }
+
     /**
      * The callback for fetch completion
      */
@@ -510,11 +681,12 @@ public class Fetcher<K, V> {
                     long fetchOffset = request.fetchData().get(tp).offset;
 
                     // we are interested in this fetch only if the beginning offset matches the
-                    // current consumed position
+                    // current fetched position, which is the consumed position unless the partition
+                    // is fetched ahead
                     Long consumed = subscriptions.consumed(tp);
                     if (consumed == null) {
                         continue;
-                    } else if (consumed != fetchOffset) {
+                    } else if (subscriptions.fetched(tp) != fetchOffset) {
                         // the fetched position has gotten out of sync with the consumed position
                         // (which might happen when a rebalance occurs with a fetch in-flight),
                         // so we need to reset the fetch position so the next fetch is right
@@ -522,20 +694,28 @@ public class Fetcher<K, V> {
                         continue;
                     }
 
+                    this.subscriptions.highWatermark(tp, partition.highWatermark);
                     int bytes = 0;
                     ByteBuffer buffer = partition.recordSet;
                     MemoryRecords records = MemoryRecords.readableRecords(buffer);
                     List<ConsumerRecord<K, V>> parsed = new ArrayList<ConsumerRecord<K, V>>();
-                    for (LogEntry logEntry : records) {
-                        parsed.add(parseRecord(tp, logEntry));
+                    LazyRecordView.Lifetime lifetime = lazyDeserialization ? new LazyRecordView.Lifetime() : null;
+                    Iterator<LogEntry> entries = records.iterator(this.decompression);
+                    while (entries.hasNext()) {
+                        LogEntry logEntry = entries.next();
+                        parsed.add(parseRecord(tp, logEntry, lifetime));
                         bytes += logEntry.size();
                     }
 
                     if (!parsed.isEmpty()) {
                         ConsumerRecord<K, V> record = parsed.get(parsed.size() - 1);
                         this.subscriptions.fetched(tp, record.offset() + 1);
-                        this.records.add(new PartitionRecords<>(fetchOffset, tp, parsed));
+                        // the records keep the fetched data until they are returned
+                        this.records.add(new PartitionRecords<>(fetchOffset, tp, parsed, lifetime, buffer.limit()));
+                        this.memoryPool.add(buffer.limit());
                         this.sensors.recordsFetchLag.record(partition.highWatermark - record.offset());
+                        // the partitions that got data go to the back of the next fetches
+                        this.subscriptions.movePartitionToEnd(tp);
                     } else if (buffer.limit() > 0) {
                         // we did not read a single message from a non-empty buffer
                         // because that message's size is larger than fetch size, in this case
@@ -573,13 +753,19 @@ public class Fetcher<K, V> {
     }
 
     /**
-     * Parse the record entry, deserializing the key / value fields if necessary
+     * Parse the record entry, deserializing the key / value fields if necessary, or leaving them to be deserialized
+     * from the fetched data once they are accessed if it has a lifetime
      */
-    private ConsumerRecord<K, V> parseRecord(TopicPartition partition, LogEntry logEntry) {
+    private ConsumerRecord<K, V> parseRecord(TopicPartition partition, LogEntry logEntry, LazyRecordView.Lifetime lifetime) {
         if (this.checkCrcs)
             logEntry.record().ensureValid();
 
         long offset = logEntry.offset();
+        if (lifetime != null) {
+            LazyRecordView<K, V> view = new LazyRecordView<>(partition.topic(), logEntry.record(), this.keyDeserializer,
+                                                             this.valueDeserializer, lifetime);
+            return new ConsumerRecord<K, V>(partition.topic(), partition.partition(), offset, view);
+        }
         ByteBuffer keyBytes = logEntry.record().key();
         K key = keyBytes == null ? null : this.keyDeserializer.deserialize(partition.topic(), Utils.toArray(keyBytes));
         ByteBuffer valueBytes = logEntry.record().value();
@@ -592,11 +778,16 @@ public class Fetcher<K, V> {
         public long fetchOffset;
         public TopicPartition partition;
         public List<ConsumerRecord<K, V>> records;
+        public LazyRecordView.Lifetime lifetime;
+        public long bytes;
 
-        public PartitionRecords(long fetchOffset, TopicPartition partition, List<ConsumerRecord<K, V>> records) {
+        public PartitionRecords(long fetchOffset, TopicPartition partition, List<ConsumerRecord<K, V>> records,
+                                LazyRecordView.Lifetime lifetime, long bytes) {
             this.fetchOffset = fetchOffset;
             this.partition = partition;
             this.records = records;
+            this.lifetime = lifetime;
+            this.bytes = bytes;
         }
     }
 
@@ -669,6 +860,25 @@ public class Fetcher<K, V> {
                                                          this.metricGrpName,
                                                          "The maximum throttle time in ms",
                                                          tags), new Max());
+
+            Measurable usedBytes = new Measurable() {
+                public double measure(MetricConfig config, long now) {
+                    return memoryPool.used();
+                }
+            };
+            metrics.addMetric(new MetricName("fetch-memory-used-bytes",
+                this.metricGrpName,
+                "The memory taken by fetched data not returned yet and reserved for fetches in flight",
+                tags), usedBytes);
+            Measurable utilization = new Measurable() {
+                public double measure(MetricConfig config, long now) {
+                    return memoryPool.utilization();
+                }
+            };
+            metrics.addMetric(new MetricName("fetch-memory-pool-utilization",
+                this.metricGrpName,
+                "The fraction of the fetch buffer memory in use, 0 if it has no limit",
+                tags), utilization);
         }
 
         public void recordTopicFetchMetrics(String topic, int bytes, int records) {
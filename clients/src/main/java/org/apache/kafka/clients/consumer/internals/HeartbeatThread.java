@@ -0,0 +1,165 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more contributor license agreements. See the NOTICE
+ * file distributed with this work for additional information regarding copyright ownership. The ASF licenses this file
+ * to You under the Apache License, Version 2.0 (the "License"); you may not use this file except in compliance with the
+ * License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on
+ * an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.apache.kafka.clients.consumer.internals;
+
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+import org.apache.kafka.common.utils.KafkaThread;
+import org.apache.kafka.common.utils.Time;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Keeps the consumer in its group while the application processes the records a poll returned. Heartbeats otherwise
+ * only go out inside the consumer's calls, so processing that takes longer than the session timeout gets the consumer
+ * kicked out of the group, and the whole group rebalances.
+ * <p>
+ * A background thread sends the heartbeats whenever the application is not inside a consumer call, and polls the
+ * network client for their responses. It does not execute the consumer's other scheduled tasks, so offsets are still
+ * only committed automatically inside the consumer's calls. The processing timeout bounds how long the application may
+ * take between polls: once it passes, the thread leaves the group, so that the partitions of a consumer that is stuck
+ * go to the other members, and the consumer joins again with its next poll.
+ * <p>
+ * The application thread takes the lock the background thread polls under for the duration of each of its calls, so
+ * the two never use the consumer's state at the same time.
+ */
+public final class HeartbeatThread implements Runnable {
+
+    private static final Logger log = LoggerFactory.getLogger(HeartbeatThread.class);
+
+    // the application only interrupts the poll running when it takes the lock, and may then wait for the polls of the
+    // background threads ahead of it on the lock, so no poll may block for long
+    private static final long POLL_TIMEOUT_MS = 100;
+
+    private final ConsumerNetworkClient client;
+    private final AbstractCoordinator coordinator;
+    private final Time time;
+    private final long processingTimeoutMs;
+    private final ReentrantLock lock;
+    private final Condition released;
+    private final Thread thread;
+    private volatile boolean closed = false;
+    // guarded by the lock
+    private long lastPoll;
+    private boolean processingTimedOut = false;
+    private RuntimeException failure;
+
+    /**
+     * Create the heartbeat thread and start it
+     *
+     * @param client The consumer network client
+     * @param coordinator The coordinator to heartbeat for
+     * @param time The time
+     * @param processingTimeoutMs The longest the application may take between polls before the consumer leaves the group
+     * @param clientId The client id, to name the background thread
+     * @param lock The lock the background thread polls under, which should be fair and shared with the consumer's other
+     *        background threads
+     */
+    public HeartbeatThread(ConsumerNetworkClient client, AbstractCoordinator coordinator, Time time,
+                           long processingTimeoutMs, String clientId, ReentrantLock lock) {
+        this.client = client;
+        this.coordinator = coordinator;
+        this.time = time;
+        this.processingTimeoutMs = processingTimeoutMs;
+        this.lock = lock;
+        this.released = lock.newCondition();
+        this.lastPoll = time.milliseconds();
+        this.thread = new KafkaThread("kafka-consumer-heartbeat-thread" + (clientId.length() > 0 ? " | " + clientId : ""), this, true);
+        this.thread.start();
+    }
+
+    /**
+     * Stop the background thread from using the consumer until {@link #resume()}, waiting for its current poll to
+     * return. Calls may nest.
+     */
+    public void pause() {
+        if (!lock.tryLock()) {
+            client.interruptPoll();
+            lock.lock();
+        }
+    }
+
+    /**
+     * Let the background thread use the consumer again after {@link #pause()}
+     */
+    public void resume() {
+        released.signal();
+        lock.unlock();
+    }
+
+    /**
+     * Record that the application polled, which starts its processing time anew. Must be called while paused.
+     */
+    public void polled() {
+        this.lastPoll = time.milliseconds();
+        this.processingTimedOut = false;
+    }
+
+    /**
+     * Throw the exception the background thread ran into, if any, which the application has not seen yet. Must be
+     * called while paused.
+     */
+    public void maybeThrowFailure() {
+        RuntimeException e = this.failure;
+        if (e != null) {
+            this.failure = null;
+            throw e;
+        }
+    }
+
+    /**
+     * Stop the background thread. Must be called while paused; the thread exits once it gets the lock next.
+     */
+    public void close() {
+        this.closed = true;
+    }
+
+    @Override
+    public void run() {
+        log.debug("Starting the consumer heartbeat thread.");
+        while (true) {
+            lock.lock();
+            try {
+                if (closed)
+                    break;
+                long now = time.milliseconds();
+                long processingTime = now - lastPoll;
+                if (failure == null && !processingTimedOut && processingTime > processingTimeoutMs) {
+                    log.warn("The application has not polled for {} ms, more than the processing timeout of {} ms, " +
+                            "so the consumer is leaving the group until it polls again", processingTime, processingTimeoutMs);
+                    coordinator.requestLeaveGroup();
+                    client.pollNoWakeup(0, false);
+                    processingTimedOut = true;
+                }
+
+                if (failure != null || processingTimedOut) {
+                    // there is nothing to do until the application is back
+                    released.await();
+                } else {
+                    long timeToNextHeartbeat = coordinator.pollHeartbeat(now);
+                    long timeout = Math.min(timeToNextHeartbeat, processingTimeoutMs - processingTime);
+                    client.pollNoWakeup(Math.min(timeout, POLL_TIMEOUT_MS), false);
+                }
+            } catch (InterruptedException e) {
+                break;
+            } catch (RuntimeException e) {
+                log.debug("Heartbeating failed, leaving the exception for the next poll", e);
+                failure = e;
+            } finally {
+                lock.unlock();
+            }
+        }
+        log.debug("The consumer heartbeat thread has stopped.");
+    }
+}
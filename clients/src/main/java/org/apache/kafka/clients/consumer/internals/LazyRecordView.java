@@ -0,0 +1,113 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more contributor license agreements. See the NOTICE
+ * file distributed with this work for additional information regarding copyright ownership. The ASF licenses this file
+ * to You under the Apache License, Version 2.0 (the "License"); you may not use this file except in compliance with the
+ * License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on
+ * an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.apache.kafka.clients.consumer.internals;
+
+import java.nio.ByteBuffer;
+
+import org.apache.kafka.clients.consumer.RecordView;
+import org.apache.kafka.common.record.Record;
+import org.apache.kafka.common.serialization.BufferDeserializer;
+import org.apache.kafka.common.serialization.Deserializer;
+import org.apache.kafka.common.utils.Utils;
+
+/**
+ * The key and value of a fetched record, read from the fetched data only once they are first accessed. A
+ * {@link BufferDeserializer} reads them straight from that data; any other deserializer gets a copy of their bytes.
+ * <p>
+ * The fetched data is only valid until the consumer's next poll, so a key or value that has not been accessed by then
+ * can no longer be.
+ *
+ * @param <K> The type of the key
+ * @param <V> The type of the value
+ */
+public final class LazyRecordView<K, V> implements RecordView<K, V> {
+
+    private final String topic;
+    private final Record record;
+    private final Deserializer<K> keyDeserializer;
+    private final Deserializer<V> valueDeserializer;
+    private final Lifetime lifetime;
+    private K key;
+    private V value;
+    private boolean keyRead;
+    private boolean valueRead;
+
+    public LazyRecordView(String topic,
+                          Record record,
+                          Deserializer<K> keyDeserializer,
+                          Deserializer<V> valueDeserializer,
+                          Lifetime lifetime) {
+        this.topic = topic;
+        this.record = record;
+        this.keyDeserializer = keyDeserializer;
+        this.valueDeserializer = valueDeserializer;
+        this.lifetime = lifetime;
+    }
+
+    @Override
+    public K key() {
+        if (!keyRead) {
+            lifetime.ensureValid();
+            key = deserialize(keyDeserializer, record.key());
+            keyRead = true;
+        }
+        return key;
+    }
+
+    @Override
+    public V value() {
+        if (!valueRead) {
+            lifetime.ensureValid();
+            value = deserialize(valueDeserializer, record.value());
+            valueRead = true;
+        }
+        return value;
+    }
+
+    @Override
+    public boolean keyDeserialized() {
+        return keyRead;
+    }
+
+    @Override
+    public boolean valueDeserialized() {
+        return valueRead;
+    }
+
+    private <T> T deserialize(Deserializer<T> deserializer, ByteBuffer bytes) {
+        if (bytes == null)
+            return null;
+        if (deserializer instanceof BufferDeserializer)
+            return ((BufferDeserializer<T>) deserializer).deserialize(topic, bytes);
+        return deserializer.deserialize(topic, Utils.toArray(bytes));
+    }
+
+    /**
+     * How long the fetched data the views of some records are over stays valid
+     */
+    public static final class Lifetime {
+        private volatile boolean expired = false;
+
+        /**
+         * Mark the fetched data as no longer valid
+         */
+        public void expire() {
+            this.expired = true;
+        }
+
+        private void ensureValid() {
+            if (expired)
+                throw new IllegalStateException("The key or value of a lazily deserialized record was accessed after the next poll");
+        }
+    }
+}
@@ -0,0 +1,163 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more contributor license agreements. See the NOTICE
+ * file distributed with this work for additional information regarding copyright ownership. The ASF licenses this file
+ * to You under the Apache License, Version 2.0 (the "License"); you may not use this file except in compliance with the
+ * License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on
+ * an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.apache.kafka.clients.consumer.internals;
+
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+import org.apache.kafka.clients.Metadata;
+import org.apache.kafka.common.utils.KafkaThread;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Keeps fetching while the application processes the records a poll returned. Fetches otherwise only make progress
+ * inside the consumer's calls, so a response that arrives while the application is busy waits for the next poll to
+ * be read, and the fetch after it waits for that response.
+ * <p>
+ * A background thread polls the network client whenever the application is not inside a consumer call, and sends
+ * fetches, including ahead of the records that have not been returned yet as long as the buffered data stays within
+ * the configured number of bytes. It does not execute the consumer's other scheduled tasks, so offsets are only
+ * committed automatically, and heartbeats only sent, inside the consumer's calls: committing from the background would
+ * commit records the application is still processing, and heartbeating would hide an application that is stuck.
+ * <p>
+ * The application thread takes the lock the background thread polls under for the duration of each of its calls, so
+ * the two never use the consumer's state at the same time.
+ */
+public final class Prefetcher implements Runnable {
+
+    private static final Logger log = LoggerFactory.getLogger(Prefetcher.class);
+
+    private static final long POLL_TIMEOUT_MS = 100;
+
+    private final ConsumerNetworkClient client;
+    private final Fetcher<?, ?> fetcher;
+    private final Metadata metadata;
+    private final long maxBufferedBytes;
+    private final ReentrantLock lock;
+    private final Condition released;
+    private final Thread thread;
+    private volatile boolean closed = false;
+    private RuntimeException failure;
+
+    /**
+     * Create the prefetcher and start its background thread
+     *
+     * @param client The consumer network client
+     * @param fetcher The fetcher
+     * @param metadata The metadata
+     * @param maxBufferedBytes The most data to buffer by fetching ahead
+     * @param clientId The client id, to name the background thread
+     */
+    public Prefetcher(ConsumerNetworkClient client, Fetcher<?, ?> fetcher, Metadata metadata, long maxBufferedBytes,
+                      String clientId) {
+        // fair, so the application gets the lock as soon as the background thread's current poll returns
+        this(client, fetcher, metadata, maxBufferedBytes, clientId, new ReentrantLock(true));
+    }
+
+    /**
+     * Create the prefetcher and start its background thread, which polls under a lock shared with the consumer's other
+     * background threads, so that only one of them uses the consumer at a time
+     *
+     * @param client The consumer network client
+     * @param fetcher The fetcher
+     * @param metadata The metadata
+     * @param maxBufferedBytes The most data to buffer by fetching ahead
+     * @param clientId The client id, to name the background thread
+     * @param lock The lock the background thread polls under, which should be fair
+     */
+    public Prefetcher(ConsumerNetworkClient client, Fetcher<?, ?> fetcher, Metadata metadata, long maxBufferedBytes,
+                      String clientId, ReentrantLock lock) {
+        this.client = client;
+        this.fetcher = fetcher;
+        this.metadata = metadata;
+        this.maxBufferedBytes = maxBufferedBytes;
+        this.lock = lock;
+        this.released = lock.newCondition();
+        this.thread = new KafkaThread("kafka-consumer-prefetch-thread" + (clientId.length() > 0 ? " | " + clientId : ""), this, true);
+        this.thread.start();
+    }
+
+    /**
+     * The most data to buffer by fetching ahead
+     */
+    public long maxBufferedBytes() {
+        return maxBufferedBytes;
+    }
+
+    /**
+     * Stop the background thread from using the consumer until {@link #resume()}, waiting for its current poll to
+     * return. Calls may nest.
+     */
+    public void pause() {
+        if (!lock.tryLock()) {
+            client.interruptPoll();
+            lock.lock();
+        }
+    }
+
+    /**
+     * Let the background thread use the consumer again after {@link #pause()}
+     */
+    public void resume() {
+        released.signal();
+        lock.unlock();
+    }
+
+    /**
+     * Throw the exception the background thread ran into, if any, which the application has not seen yet. Must be
+     * called while paused.
+     */
+    public void maybeThrowFailure() {
+        RuntimeException e = this.failure;
+        if (e != null) {
+            this.failure = null;
+            throw e;
+        }
+    }
+
+    /**
+     * Stop the background thread. Must be called while paused; the thread exits once it gets the lock next.
+     */
+    public void close() {
+        this.closed = true;
+    }
+
+    @Override
+    public void run() {
+        log.debug("Starting the consumer prefetch thread.");
+        while (true) {
+            lock.lock();
+            try {
+                if (closed)
+                    break;
+                if (failure == null)
+                    fetcher.initFetches(metadata.fetch(), maxBufferedBytes);
+                if (failure != null || client.pendingRequestCount() == 0) {
+                    // there is nothing to receive until the application is back, or there is an exception for it
+                    released.await();
+                } else {
+                    client.pollNoWakeup(POLL_TIMEOUT_MS, false);
+                }
+            } catch (InterruptedException e) {
+                break;
+            } catch (RuntimeException e) {
+                log.debug("Prefetching failed, leaving the exception for the next poll", e);
+                failure = e;
+            } finally {
+                lock.unlock();
+            }
+        }
+        log.debug("The consumer prefetch thread has stopped.");
+    }
+}
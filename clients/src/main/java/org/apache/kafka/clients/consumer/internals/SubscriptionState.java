@@ -21,6 +21,8 @@ import java.util.Collection;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
@@ -40,11 +42,13 @@ import java.util.regex.Pattern;
  * used. You can also query the pause state independently with {@link #isPaused(TopicPartition)}.
  *
  * Note that pause state as well as fetch/consumed positions are not preserved when partition
- * assignment is changed whether directly by the user or through a group rebalance.
+ * assignment is changed whether directly by the user or through a group rebalance, except that
+ * {@link #assignFromSubscribed(Collection, boolean)} can keep the positions of the partitions
+ * that stay assigned.
  *
  * This class also maintains a cache of the latest commit position for each of the assigned
  * partitions. This is updated through {@link #committed(TopicPartition, OffsetAndMetadata)} and can be used
- * to set the initial fetch position (e.g. {@link Fetcher#resetOffset(TopicPartition)}.
+ * to set the initial fetch position (e.g. {@link Fetcher#updateFetchPositions(Set)}.
  */
 public class SubscriptionState {
 
@@ -60,7 +64,7 @@ public class SubscriptionState {
     /* the list of partitions the user has requested */
     private final Set<TopicPartition> userAssignment;
 
-    /* the list of partitions currently assigned */
+    /* the list of partitions currently assigned, in the order they are fetched */
     private final Map<TopicPartition, TopicPartitionState> assignment;
 
     /* do we need to request a partition assignment from the coordinator? */
@@ -82,7 +86,7 @@ public class SubscriptionState {
         this.defaultResetStrategy = defaultResetStrategy;
         this.subscription = new HashSet<>();
         this.userAssignment = new HashSet<>();
-        this.assignment = new HashMap<>();
+        this.assignment = new LinkedHashMap<>();
         this.groupSubscription = new HashSet<>();
         this.needsPartitionAssignment = false;
         this.needsFetchCommittedOffsets = true; // initialize to true for the consumers to fetch offset upon starting up
@@ -159,12 +163,34 @@ public class SubscriptionState {
      * note this is different from {@link #assignFromUser(Collection)} which directly set the assignment from user inputs
      */
     public void assignFromSubscribed(Collection<TopicPartition> assignments) {
+        assignFromSubscribed(assignments, false);
+    }
+
+    /**
+     * Change the assignment to the specified partitions returned from the coordinator. If the state of the
+     * partitions that stay assigned is kept, their committed offsets and consumed positions are not lost and only
+     * the committed offsets of the newly assigned partitions need to be fetched. Their fetch positions are kept as
+     * well, since the records the fetcher has buffered for them beyond the consumed positions are still returned.
+     * @param assignments The partitions assigned to this consumer
+     * @param keepAssignedState Whether the partitions that were assigned before keep their state
+     */
+    public void assignFromSubscribed(Collection<TopicPartition> assignments, boolean keepAssignedState) {
         for (TopicPartition tp : assignments)
             if (!this.subscription.contains(tp.topic()))
                 throw new IllegalArgumentException("Assigned partition " + tp + " for non-subscribed topic.");
+        Map<TopicPartition, TopicPartitionState> previous = new HashMap<>(this.assignment);
         this.assignment.clear();
-        for (TopicPartition tp: assignments)
-            addAssignedPartition(tp);
+        for (TopicPartition tp: assignments) {
+            TopicPartitionState state = previous.get(tp);
+            if (keepAssignedState && state != null) {
+                state.keep();
+                this.assignment.put(tp, state);
+            } else {
+                addAssignedPartition(tp);
+                if (keepAssignedState)
+                    this.assignment.get(tp).needsFetchCommitted = true;
+            }
+        }
         this.needsPartitionAssignment = false;
     }
 
@@ -242,23 +268,64 @@ public class SubscriptionState {
     }
 
     public boolean refreshCommitsNeeded() {
-        return this.needsFetchCommittedOffsets;
+        return !commitsToRefresh().isEmpty();
+    }
+
+    /**
+     * @return The assigned partitions whose committed offsets need to be fetched from the coordinator
+     */
+    public Set<TopicPartition> commitsToRefresh() {
+        if (this.needsFetchCommittedOffsets)
+            return this.assignment.keySet();
+        Set<TopicPartition> partitions = new HashSet<>();
+        for (Map.Entry<TopicPartition, TopicPartitionState> entry : this.assignment.entrySet())
+            if (entry.getValue().needsFetchCommitted)
+                partitions.add(entry.getKey());
+        return partitions;
     }
 
     public void commitsRefreshed() {
         this.needsFetchCommittedOffsets = false;
+        for (TopicPartitionState state : this.assignment.values())
+            state.needsFetchCommitted = false;
     }
 
     public void seek(TopicPartition tp, long offset) {
         assignedState(tp).seek(offset);
     }
 
+    /**
+     * Move the partition behind all other assigned partitions, so that the next fetches put it last. Moving the
+     * partitions that just got data keeps the partitions at the front from starving the others when a fetch response
+     * is limited in size.
+     */
+    public void movePartitionToEnd(TopicPartition tp) {
+        TopicPartitionState state = this.assignment.remove(tp);
+        if (state != null)
+            this.assignment.put(tp, state);
+    }
+
+    public void highWatermark(TopicPartition tp, long highWatermark) {
+        assignedState(tp).highWatermark = highWatermark;
+    }
+
+    /**
+     * @return The number of messages between the fetch position and the high watermark of the last fetch, or null if
+     *         no fetch has returned the high watermark yet
+     */
+    public Long partitionLag(TopicPartition tp) {
+        TopicPartitionState state = assignedState(tp);
+        if (state.highWatermark == null || state.fetched == null)
+            return null;
+        return Math.max(0L, state.highWatermark - state.fetched);
+    }
+
     public Set<TopicPartition> assignedPartitions() {
         return this.assignment.keySet();
     }
 
     public Set<TopicPartition> fetchablePartitions() {
-        Set<TopicPartition> fetchable = new HashSet<>();
+        Set<TopicPartition> fetchable = new LinkedHashSet<>();
         for (Map.Entry<TopicPartition, TopicPartitionState> entry : assignment.entrySet()) {
             if (entry.getValue().isFetchable())
                 fetchable.add(entry.getKey());
@@ -359,6 +426,8 @@ public class SubscriptionState {
         private Long consumed;   // offset exposed to the user
         private Long fetched;    // current fetch position
         private OffsetAndMetadata committed;  // last committed position
+        private boolean needsFetchCommitted; // whether the committed position has to be fetched for this partition
+        private Long highWatermark; // the high watermark returned by the last fetch
 
         private boolean hasValidPosition; // whether we have valid consumed and fetched positions
         private boolean paused;  // whether this partition has been paused by the user
@@ -370,6 +439,8 @@ public class SubscriptionState {
             this.consumed = null;
             this.fetched = null;
             this.committed = null;
+            this.needsFetchCommitted = false;
+            this.highWatermark = null;
             this.awaitingReset = false;
             this.hasValidPosition = false;
             this.resetStrategy = null;
@@ -407,6 +478,10 @@ public class SubscriptionState {
             this.committed = offset;
         }
 
+        private void keep() {
+            this.paused = false;
+        }
+
         private void pause() {
             this.paused = true;
         }
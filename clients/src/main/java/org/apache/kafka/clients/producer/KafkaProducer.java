@@ -21,10 +21,13 @@ import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.atomic.AtomicReference;
 
 import org.apache.kafka.clients.ClientUtils;
+import org.apache.kafka.clients.KafkaClient;
 import org.apache.kafka.clients.Metadata;
 import org.apache.kafka.clients.NetworkClient;
+import org.apache.kafka.clients.producer.internals.DefaultPartitioner;
 import org.apache.kafka.clients.producer.internals.RecordAccumulator;
 import org.apache.kafka.clients.producer.internals.Sender;
+import org.apache.kafka.clients.producer.internals.SerializedRecordField;
 import org.apache.kafka.common.Cluster;
 import org.apache.kafka.common.KafkaException;
 import org.apache.kafka.common.Metric;
@@ -45,9 +48,12 @@ import org.apache.kafka.common.metrics.MetricsReporter;
 import org.apache.kafka.common.metrics.Sensor;
 import org.apache.kafka.common.network.Selector;
 import org.apache.kafka.common.network.ChannelBuilder;
+import org.apache.kafka.common.record.ByteArrayRecordField;
 import org.apache.kafka.common.record.CompressionType;
 import org.apache.kafka.common.record.Record;
+import org.apache.kafka.common.record.RecordField;
 import org.apache.kafka.common.record.Records;
+import org.apache.kafka.common.serialization.InPlaceSerializer;
 import org.apache.kafka.common.serialization.Serializer;
 import org.apache.kafka.common.utils.AppInfoParser;
 import org.apache.kafka.common.utils.KafkaThread;
@@ -128,6 +134,8 @@ public class KafkaProducer<K, V> implements Producer<K, V> {
 
     private String clientId;
     private final Partitioner partitioner;
+    private final boolean partitionerUsesValue;
+    private final DefaultPartitioner stickyPartitioner;
     private final int maxRequestSize;
     private final long totalMemorySize;
     private final Metadata metadata;
@@ -195,8 +203,16 @@ public class KafkaProducer<K, V> implements Producer<K, V> {
              keySerializer, valueSerializer);
     }
 
-    @SuppressWarnings("unchecked")
     private KafkaProducer(ProducerConfig config, Serializer<K> keySerializer, Serializer<V> valueSerializer) {
+        this(config, keySerializer, valueSerializer, null, null);
+    }
+
+    /**
+     * Create a producer with the given metadata and network client rather than bootstrapping its own, for testing.
+     */
+    @SuppressWarnings("unchecked")
+    KafkaProducer(ProducerConfig config, Serializer<K> keySerializer, Serializer<V> valueSerializer,
+                  Metadata metadata, KafkaClient kafkaClient) {
         try {
             log.trace("Starting the Kafka producer");
             Map<String, Object> userProvidedConfigs = config.originals();
@@ -214,8 +230,13 @@ public class KafkaProducer<K, V> implements Producer<K, V> {
             reporters.add(new JmxReporter(JMX_PREFIX));
             this.metrics = new Metrics(metricConfig, reporters, time);
             this.partitioner = config.getConfiguredInstance(ProducerConfig.PARTITIONER_CLASS_CONFIG, Partitioner.class);
+            // the default partitioner only looks at the serialized key
+            this.partitionerUsesValue = this.partitioner.getClass() != DefaultPartitioner.class;
+            this.stickyPartitioner = this.partitioner instanceof DefaultPartitioner && ((DefaultPartitioner) this.partitioner).sticky() ?
+                (DefaultPartitioner) this.partitioner : null;
             long retryBackoffMs = config.getLong(ProducerConfig.RETRY_BACKOFF_MS_CONFIG);
-            this.metadata = new Metadata(retryBackoffMs, config.getLong(ProducerConfig.METADATA_MAX_AGE_CONFIG));
+            this.metadata = metadata != null ? metadata :
+                new Metadata(retryBackoffMs, config.getLong(ProducerConfig.METADATA_MAX_AGE_CONFIG));
             this.maxRequestSize = config.getInt(ProducerConfig.MAX_REQUEST_SIZE_CONFIG);
             this.totalMemorySize = config.getLong(ProducerConfig.BUFFER_MEMORY_CONFIG);
             this.compressionType = CompressionType.forName(config.getString(ProducerConfig.COMPRESSION_TYPE_CONFIG));
@@ -260,24 +281,32 @@ public class KafkaProducer<K, V> implements Producer<K, V> {
             metricTags.put("client-id", clientId);
             this.accumulator = new RecordAccumulator(config.getInt(ProducerConfig.BATCH_SIZE_CONFIG),
                     this.totalMemorySize,
+                    config.getLong(ProducerConfig.BUFFER_MEMORY_PER_TOPIC_CONFIG),
+                    config.getInt(ProducerConfig.BUFFER_POOL_SIZE_CLASSES_CONFIG),
+                    config.getBoolean(ProducerConfig.BUFFER_POOL_DIRECT_CONFIG),
                     this.compressionType,
+                    config.getInt(ProducerConfig.COMPRESSION_THREADS_CONFIG),
                     config.getLong(ProducerConfig.LINGER_MS_CONFIG),
                     retryBackoffMs,
                     metrics,
                     time,
                     metricTags);
             List<InetSocketAddress> addresses = ClientUtils.parseAndValidateAddresses(config.getList(ProducerConfig.BOOTSTRAP_SERVERS_CONFIG));
-            this.metadata.update(Cluster.bootstrap(addresses), time.milliseconds());
-            ChannelBuilder channelBuilder = ClientUtils.createChannelBuilder(config.values());
-            NetworkClient client = new NetworkClient(
-                    new Selector(config.getLong(ProducerConfig.CONNECTIONS_MAX_IDLE_MS_CONFIG), this.metrics, time, "producer", metricTags, channelBuilder),
-                    this.metadata,
-                    clientId,
-                    config.getInt(ProducerConfig.MAX_IN_FLIGHT_REQUESTS_PER_CONNECTION),
-                    config.getLong(ProducerConfig.RECONNECT_BACKOFF_MS_CONFIG),
-                    config.getInt(ProducerConfig.SEND_BUFFER_CONFIG),
-                    config.getInt(ProducerConfig.RECEIVE_BUFFER_CONFIG),
-                    this.requestTimeoutMs, time);
+            if (metadata == null)
+                this.metadata.update(Cluster.bootstrap(addresses), time.milliseconds());
+            KafkaClient client = kafkaClient;
+            if (client == null) {
+                ChannelBuilder channelBuilder = ClientUtils.createChannelBuilder(config.values());
+                client = new NetworkClient(
+                        new Selector(config.getLong(ProducerConfig.CONNECTIONS_MAX_IDLE_MS_CONFIG), this.metrics, time, "producer", metricTags, channelBuilder),
+                        this.metadata,
+                        clientId,
+                        config.getInt(ProducerConfig.MAX_IN_FLIGHT_REQUESTS_PER_CONNECTION),
+                        config.getLong(ProducerConfig.RECONNECT_BACKOFF_MS_CONFIG),
+                        config.getInt(ProducerConfig.SEND_BUFFER_CONFIG),
+                        config.getInt(ProducerConfig.RECEIVE_BUFFER_CONFIG),
+                        this.requestTimeoutMs, time);
+            }
             this.sender = new Sender(client,
                     this.metadata,
                     this.accumulator,
@@ -287,7 +316,9 @@ public class KafkaProducer<K, V> implements Producer<K, V> {
                     this.metrics,
                     new SystemTime(),
                     clientId,
-                    this.requestTimeoutMs);
+                    this.requestTimeoutMs,
+                    config.getBoolean(ProducerConfig.LINGER_ADAPTIVE_CONFIG),
+                    config.getBoolean(ProducerConfig.QUOTA_PACING_CONFIG));
             String ioThreadName = "kafka-producer-network-thread" + (clientId.length() > 0 ? " | " + clientId : "");
             this.ioThread = new KafkaThread(ioThreadName, this.sender, true);
             this.ioThread.start();
@@ -411,32 +442,32 @@ public class KafkaProducer<K, V> implements Producer<K, V> {
             // first make sure the metadata for the topic is available
             long startTime = time.milliseconds();
             waitOnMetadata(record.topic(), this.maxBlockTimeMs);
-            byte[] serializedKey;
-            try {
-                serializedKey = keySerializer.serialize(record.topic(), record.key());
-            } catch (ClassCastException cce) {
-                throw new SerializationException("Can't convert key of class " + record.key().getClass().getName() +
-                        " to class " + producerConfig.getClass(ProducerConfig.KEY_SERIALIZER_CLASS_CONFIG).getName() +
-                        " specified in key.serializer");
-            }
+            // keys and values are only serialized to byte arrays if the partitioner may need them, otherwise
+            // serializers that support it write them straight into the batch the record is appended to
+            boolean partitioned = record.partition() != null;
+            RecordField serializedKey = serializeKey(record, partitioned);
             checkMaybeGetRemainingTime(startTime);
-            byte[] serializedValue;
-            try {
-                serializedValue = valueSerializer.serialize(record.topic(), record.value());
-            } catch (ClassCastException cce) {
-                throw new SerializationException("Can't convert value of class " + record.value().getClass().getName() +
-                        " to class " + producerConfig.getClass(ProducerConfig.VALUE_SERIALIZER_CLASS_CONFIG).getName() +
-                        " specified in value.serializer");
-            }
+            RecordField serializedValue = serializeValue(record, partitioned || !partitionerUsesValue);
             checkMaybeGetRemainingTime(startTime);
-            int partition = partition(record, serializedKey, serializedValue, metadata.fetch());
+            Cluster cluster = metadata.fetch();
+            int partition = partition(record, bytes(serializedKey), bytes(serializedValue), cluster);
             checkMaybeGetRemainingTime(startTime);
             int serializedSize = Records.LOG_OVERHEAD + Record.recordSize(serializedKey, serializedValue);
             ensureValidRecordSize(serializedSize);
             TopicPartition tp = new TopicPartition(record.topic(), partition);
             log.trace("Sending record {} with callback {} to topic {} partition {}", record, callback, record.topic(), partition);
             long remainingTime = checkMaybeGetRemainingTime(startTime);
-            RecordAccumulator.RecordAppendResult result = accumulator.append(tp, serializedKey, serializedValue, callback, remainingTime);
+            // a record the partitioner stuck to a partition is moved to another one rather than starting a new batch
+            boolean abortOnNewBatch = stickyPartitioner != null && !partitioned && serializedKey == null;
+            RecordAccumulator.RecordAppendResult result = accumulator.append(tp, serializedKey, serializedValue, callback, remainingTime, abortOnNewBatch);
+            if (result.abortForNewBatch) {
+                int prevPartition = partition;
+                stickyPartitioner.onNewBatch(record.topic(), cluster, prevPartition);
+                partition = partition(record, null, bytes(serializedValue), cluster);
+                tp = new TopicPartition(record.topic(), partition);
+                log.trace("Retrying append of record {} to topic {} partition {} instead of partition {}", record, record.topic(), partition, prevPartition);
+                result = accumulator.append(tp, serializedKey, serializedValue, callback, remainingTime, false);
+            }
             if (result.batchIsFull || result.newBatchCreated) {
                 log.trace("Waking up the sender since topic {} partition {} is either full or getting a new batch", record.topic(), partition);
                 this.sender.wakeup();
@@ -464,6 +495,172 @@ public class KafkaProducer<K, V> implements Producer<K, V> {
         }
     }
 
+    /**
+     * Asynchronously send a collection of records, which may be for any number of topics and partitions, and invoke
+     * the provided callback as they are acknowledged.
+     * <p>
+     * This is meant for applications that already batch records themselves and send them at a high rate. The records
+     * are grouped by partition, and each group is appended to the partition's batches in one pass, with a future and
+     * a callback for each batch rather than for each record, and the sender is woken up at most once for the call.
+     * Records for the same partition keep the order they have in the collection.
+     * <p>
+     * Instead of a future for every record, one future is returned for each batch the records were appended to. It
+     * completes once the batch has been acknowledged, with the metadata of the last of the records appended to that
+     * batch, and the callback is invoked once for each of them. A future that completes successfully means all the
+     * records sent to the partition up to that offset have been written.
+     * <p>
+     * Every record is serialized, partitioned and checked before any of them is appended, so if one of them fails with
+     * an {@link ApiException} none of them are sent and a single failed future is returned. If appending fails once
+     * some of the records have been appended, for example because the producer is closed or interrupted, those records
+     * are still sent: the futures for them are returned, followed by a single future failed with the exception for
+     * the records that were not appended, and the callback is invoked with the exception once for the latter. If the
+     * exception is an {@link InterruptException} the thread's interrupt status is set.
+     *
+     * @param records The records to send
+     * @param callback A user-supplied callback to execute when the records of a batch have been acknowledged by the
+     *        server (null indicates no callback)
+     * @return One future for each batch the records were appended to, followed by a failed future if only some of
+     *         them were appended
+     *
+     * @throws InterruptException If the thread is interrupted while blocked
+     * @throws SerializationException If a key or value is not a valid object given the configured serializers
+     * @throws BufferExhaustedException If <code>block.on.buffer.full=false</code> and the buffer is full.
+     */
+    public List<Future<RecordMetadata>> send(Collection<ProducerRecord<K, V>> records, Callback callback) {
+        try {
+            long startTime = time.milliseconds();
+            Map<TopicPartition, RecordGroup> groups = new LinkedHashMap<TopicPartition, RecordGroup>();
+            String topic = null;
+            Cluster cluster = null;
+            for (ProducerRecord<K, V> record : records) {
+                if (!record.topic().equals(topic)) {
+                    topic = record.topic();
+                    waitOnMetadata(topic, checkMaybeGetRemainingTime(startTime));
+                    cluster = metadata.fetch();
+                }
+                boolean partitioned = record.partition() != null;
+                RecordField serializedKey = serializeKey(record, partitioned);
+                RecordField serializedValue = serializeValue(record, partitioned || !partitionerUsesValue);
+                int partition = partition(record, bytes(serializedKey), bytes(serializedValue), cluster);
+                ensureValidRecordSize(Records.LOG_OVERHEAD + Record.recordSize(serializedKey, serializedValue));
+                TopicPartition tp = new TopicPartition(topic, partition);
+                RecordGroup group = groups.get(tp);
+                if (group == null) {
+                    group = new RecordGroup(cluster);
+                    groups.put(tp, group);
+                }
+                group.keys.add(serializedKey);
+                group.values.add(serializedValue);
+                group.sticky |= stickyPartitioner != null && !partitioned && serializedKey == null;
+            }
+            long remainingTime = checkMaybeGetRemainingTime(startTime);
+
+            List<Future<RecordMetadata>> futures = new ArrayList<Future<RecordMetadata>>(groups.size());
+            boolean wakeup = false;
+            try {
+                for (Map.Entry<TopicPartition, RecordGroup> entry : groups.entrySet()) {
+                    TopicPartition tp = entry.getKey();
+                    RecordGroup group = entry.getValue();
+                    log.trace("Sending {} records with callback {} to topic {} partition {}", group.keys.size(), callback, tp.topic(), tp.partition());
+                    List<RecordAccumulator.RecordAppendResult> results = new ArrayList<RecordAccumulator.RecordAppendResult>(1);
+                    try {
+                        accumulator.appendAll(tp, group.keys, group.values, callback, remainingTime, results);
+                    } finally {
+                        boolean newBatchCreated = false;
+                        for (RecordAccumulator.RecordAppendResult result : results) {
+                            futures.add(result.future);
+                            wakeup |= result.batchIsFull || result.newBatchCreated;
+                            newBatchCreated |= result.newBatchCreated;
+                        }
+                        // as with single sends, the partitioner moves on from a partition it stuck to once it gets a new batch
+                        if (group.sticky && newBatchCreated)
+                            stickyPartitioner.onNewBatch(tp.topic(), group.cluster, tp.partition());
+                    }
+                }
+            } catch (Exception e) {
+                if (futures.isEmpty())
+                    throw e;
+                // the records appended before the failure are sent all the same
+                return failRemaining(futures, e, callback);
+            } finally {
+                if (wakeup) {
+                    log.trace("Waking up the sender since batches are either full or getting created");
+                    this.sender.wakeup();
+                }
+            }
+            return futures;
+        } catch (ApiException e) {
+            log.debug("Exception occurred during message send:", e);
+            if (callback != null)
+                callback.onCompletion(null, e);
+            this.errors.record();
+            return Collections.<Future<RecordMetadata>>singletonList(new FutureFailure(e));
+        } catch (InterruptedException e) {
+            this.errors.record();
+            throw new InterruptException(e);
+        } catch (BufferExhaustedException e) {
+            this.errors.record();
+            this.metrics.sensor("buffer-exhausted-records").record();
+            throw e;
+        } catch (KafkaException e) {
+            this.errors.record();
+            throw e;
+        }
+    }
+
+    /**
+     * Complete a bulk send that failed after some of its records were appended, adding a failed future for the records
+     * that were not appended to the futures of those that were
+     */
+    private List<Future<RecordMetadata>> failRemaining(List<Future<RecordMetadata>> futures, Exception e, Callback callback) {
+        log.debug("Exception occurred during message send, after some of the records were appended:", e);
+        Exception exception = e instanceof InterruptedException ? new InterruptException((InterruptedException) e) : e;
+        if (e instanceof BufferExhaustedException)
+            this.metrics.sensor("buffer-exhausted-records").record();
+        if (callback != null)
+            callback.onCompletion(null, exception);
+        this.errors.record();
+        futures.add(new FutureFailure(exception));
+        return futures;
+    }
+
+    private RecordField serializeKey(ProducerRecord<K, V> record, boolean inPlace) {
+        try {
+            return serialize(keySerializer, record.topic(), record.key(), inPlace);
+        } catch (ClassCastException cce) {
+            throw new SerializationException("Can't convert key of class " + record.key().getClass().getName() +
+                    " to class " + producerConfig.getClass(ProducerConfig.KEY_SERIALIZER_CLASS_CONFIG).getName() +
+                    " specified in key.serializer");
+        }
+    }
+
+    private RecordField serializeValue(ProducerRecord<K, V> record, boolean inPlace) {
+        try {
+            return serialize(valueSerializer, record.topic(), record.value(), inPlace);
+        } catch (ClassCastException cce) {
+            throw new SerializationException("Can't convert value of class " + record.value().getClass().getName() +
+                    " to class " + producerConfig.getClass(ProducerConfig.VALUE_SERIALIZER_CLASS_CONFIG).getName() +
+                    " specified in value.serializer");
+        }
+    }
+
+    /**
+     * Serialize a key or value, in place if the serializer supports it and the bytes are not needed for partitioning
+     */
+    @SuppressWarnings("unchecked")
+    private static <T> RecordField serialize(Serializer<T> serializer, String topic, T data, boolean inPlace) {
+        if (inPlace && serializer instanceof InPlaceSerializer && ((InPlaceSerializer<T>) serializer).serializesInPlace())
+            return SerializedRecordField.create((InPlaceSerializer<T>) serializer, topic, data);
+        return ByteArrayRecordField.wrap(serializer.serialize(topic, data));
+    }
+
+    /**
+     * The bytes of a key or value serialized to a byte array, or null if it is to be serialized in place
+     */
+    private static byte[] bytes(RecordField field) {
+        return ByteArrayRecordField.isByteArray(field) ? ByteArrayRecordField.bytes(field) : null;
+    }
+
     /**
      * Wait for cluster metadata including partitions for the given topic to be available.
      * @param topic The topic we want metadata for
@@ -698,6 +895,21 @@ public class KafkaProducer<K, V> implements Producer<K, V> {
         return remainingTime;
     }
 
+    /**
+     * The serialized records of a bulk send that go to the same partition
+     */
+    private static final class RecordGroup {
+        final Cluster cluster;
+        final List<RecordField> keys = new ArrayList<RecordField>();
+        final List<RecordField> values = new ArrayList<RecordField>();
+        // whether any of the records was put on the partition by the sticky partitioner
+        boolean sticky = false;
+
+        RecordGroup(Cluster cluster) {
+            this.cluster = cluster;
+        }
+    }
+
     private static class FutureFailure implements Future<RecordMetadata> {
 
         private final ExecutionException exception;
@@ -79,6 +79,26 @@ public class ProducerConfig extends AbstractConfig {
                                                     + "not all memory the producer uses is used for buffering. Some additional memory will be used for compression (if "
                                                     + "compression is enabled) as well as for maintaining in-flight requests.";
 
+    /** <code>buffer.memory.per.topic</code> */
+    public static final String BUFFER_MEMORY_PER_TOPIC_CONFIG = "buffer.memory.per.topic";
+    private static final String BUFFER_MEMORY_PER_TOPIC_DOC = "The most bytes of buffer memory the records of a single topic can hold, or 0 (the default) for no limit other than "
+                                                              + "<code>buffer.memory</code>. Once a topic holds this much, sends to it block as they would on a full "
+                                                              + "buffer while sends to other topics go on, so a topic whose records pile up cannot hold up every other "
+                                                              + "topic. A topic can always hold a single batch, however large.";
+
+    /** <code>buffer.pool.size.classes</code> */
+    public static final String BUFFER_POOL_SIZE_CLASSES_CONFIG = "buffer.pool.size.classes";
+    private static final String BUFFER_POOL_SIZE_CLASSES_DOC = "The number of buffer sizes the producer keeps free lists of buffers for, so that they can be reused rather than "
+                                                               + "reallocated. The smallest size is <code>batch.size</code> and each following one is twice as large. A buffer "
+                                                               + "allocated for a record larger than <code>batch.size</code> is rounded up to the next of these sizes, so that "
+                                                               + "producers sending large records do not have to allocate a new buffer for each of them.";
+
+    /** <code>buffer.pool.direct</code> */
+    public static final String BUFFER_POOL_DIRECT_CONFIG = "buffer.pool.direct";
+    private static final String BUFFER_POOL_DIRECT_DOC = "Whether the buffers the producer keeps for reuse are allocated off-heap. This takes the buffered records "
+                                                         + "out of the garbage collected heap, but the memory counted by <code>buffer.memory</code> is then held "
+                                                         + "outside of it and limited by <code>-XX:MaxDirectMemorySize</code>.";
+
     /** <code>acks</code> */
     public static final String ACKS_CONFIG = "acks";
     private static final String ACKS_DOC = "The number of acknowledgments the producer requires the leader to have received before considering a request complete. This controls the "
@@ -119,6 +139,20 @@ public class ProducerConfig extends AbstractConfig {
                                                 + "specified time waiting for more records to show up. This setting defaults to 0 (i.e. no delay). Setting <code>linger.ms=5</code>, "
                                                 + "for example, would have the effect of reducing the number of requests sent but would add up to 5ms of latency to records sent in the absense of load.";
 
+    /** <code>linger.adaptive</code> */
+    public static final String LINGER_ADAPTIVE_CONFIG = "linger.adaptive";
+    private static final String LINGER_ADAPTIVE_DOC = "When enabled, <code>linger.ms</code> is the longest the producer waits for more records before sending a batch "
+                                                      + "rather than a fixed delay. Records for a broker with no requests in flight are sent at once. Otherwise "
+                                                      + "they wait about as long as the broker's requests have recently taken to complete, but only if more "
+                                                      + "records for the partition are expected to arrive in that time.";
+
+    /** <code>quota.pacing</code> */
+    public static final String QUOTA_PACING_CONFIG = "quota.pacing";
+    private static final String QUOTA_PACING_DOC = "When enabled, the producer sends a broker only one produce request at a time for as long as the broker "
+                                                   + "reports a throttle time for its produce requests. The broker holds back the response to a throttled "
+                                                   + "request for the throttle time, so further requests would only wait in flight. Records for the broker "
+                                                   + "keep accumulating in the meantime and go out in fewer, larger requests.";
+
     /** <code>client.id</code> */
     public static final String CLIENT_ID_CONFIG = CommonClientConfigs.CLIENT_ID_CONFIG;
 
@@ -160,6 +194,14 @@ public class ProducerConfig extends AbstractConfig {
     private static final String COMPRESSION_TYPE_DOC = "The compression type for all data generated by the producer. The default is none (i.e. no compression). Valid " + " values are <code>none</code>, <code>gzip</code>, <code>snappy</code>, or <code>lz4</code>. "
                                                        + "Compression is of full batches of data, so the efficacy of batching will also impact the compression ratio (more batching means better compression).";
 
+    /** <code>compression.threads</code> */
+    public static final String COMPRESSION_THREADS_CONFIG = "compression.threads";
+    private static final String COMPRESSION_THREADS_DOC = "The number of background threads that compress batches once they are ready to send. When this is zero (the default), "
+                                                          + "records are compressed as they are appended, on the thread calling <code>send()</code>. Otherwise records are "
+                                                          + "appended to batches uncompressed, so <code>send()</code> does not wait on the compression codec, and "
+                                                          + "<code>batch.size</code> then bounds the size of a batch before it is compressed. A batch that compression "
+                                                          + "would not make any smaller is sent uncompressed.";
+
     /** <code>metrics.sample.window.ms</code> */
     public static final String METRICS_SAMPLE_WINDOW_MS_CONFIG = CommonClientConfigs.METRICS_SAMPLE_WINDOW_MS_CONFIG;
 
@@ -190,6 +232,13 @@ public class ProducerConfig extends AbstractConfig {
     public static final String PARTITIONER_CLASS_CONFIG = "partitioner.class";
     private static final String PARTITIONER_CLASS_DOC = "Partitioner class that implements the <code>Partitioner</code> interface.";
 
+    /** <code>partitioner.sticky</code> */
+    public static final String PARTITIONER_STICKY_CONFIG = "partitioner.sticky";
+    private static final String PARTITIONER_STICKY_DOC = "Whether the default partitioner sends records without a key to the same partition until the batch for "
+                                                         + "that partition is full or has been sent, and then moves on to another partition, rather than sending "
+                                                         + "each record to the next partition in turn. Sticking to one partition fills batches faster, so topics "
+                                                         + "with many partitions get fewer and larger requests.";
+
     /** <code>max.block.ms</code> */
     public static final String MAX_BLOCK_MS_CONFIG = "max.block.ms";
     private static final String MAX_BLOCK_MS_DOC = "The configuration controls how long {@link KafkaProducer#send()} and {@link KafkaProducer#partitionsFor} will block."
@@ -213,9 +262,12 @@ public class ProducerConfig extends AbstractConfig {
                                         Importance.HIGH,
                                         ACKS_DOC)
                                 .define(COMPRESSION_TYPE_CONFIG, Type.STRING, "none", Importance.HIGH, COMPRESSION_TYPE_DOC)
+                                .define(COMPRESSION_THREADS_CONFIG, Type.INT, 0, atLeast(0), Importance.LOW, COMPRESSION_THREADS_DOC)
                                 .define(BATCH_SIZE_CONFIG, Type.INT, 16384, atLeast(0), Importance.MEDIUM, BATCH_SIZE_DOC)
                                 .define(TIMEOUT_CONFIG, Type.INT, 30 * 1000, atLeast(0), Importance.MEDIUM, TIMEOUT_DOC)
                                 .define(LINGER_MS_CONFIG, Type.LONG, 0, atLeast(0L), Importance.MEDIUM, LINGER_MS_DOC)
+                                .define(LINGER_ADAPTIVE_CONFIG, Type.BOOLEAN, false, Importance.LOW, LINGER_ADAPTIVE_DOC)
+                                .define(QUOTA_PACING_CONFIG, Type.BOOLEAN, false, Importance.LOW, QUOTA_PACING_DOC)
                                 .define(CLIENT_ID_CONFIG, Type.STRING, "", Importance.MEDIUM, CommonClientConfigs.CLIENT_ID_DOC)
                                 .define(SEND_BUFFER_CONFIG, Type.INT, 128 * 1024, atLeast(0), Importance.MEDIUM, CommonClientConfigs.SEND_BUFFER_DOC)
                                 .define(RECEIVE_BUFFER_CONFIG, Type.INT, 32 * 1024, atLeast(0), Importance.MEDIUM, CommonClientConfigs.RECEIVE_BUFFER_DOC)
@@ -226,6 +278,9 @@ public class ProducerConfig extends AbstractConfig {
                                         Importance.MEDIUM,
                                         MAX_REQUEST_SIZE_DOC)
                                 .define(BLOCK_ON_BUFFER_FULL_CONFIG, Type.BOOLEAN, false, Importance.LOW, BLOCK_ON_BUFFER_FULL_DOC)
+                                .define(BUFFER_MEMORY_PER_TOPIC_CONFIG, Type.LONG, 0L, atLeast(0L), Importance.LOW, BUFFER_MEMORY_PER_TOPIC_DOC)
+                                .define(BUFFER_POOL_SIZE_CLASSES_CONFIG, Type.INT, 1, atLeast(1), Importance.LOW, BUFFER_POOL_SIZE_CLASSES_DOC)
+                                .define(BUFFER_POOL_DIRECT_CONFIG, Type.BOOLEAN, false, Importance.LOW, BUFFER_POOL_DIRECT_DOC)
                                 .define(RECONNECT_BACKOFF_MS_CONFIG, Type.LONG, 50L, atLeast(0L), Importance.LOW, CommonClientConfigs.RECONNECT_BACKOFF_MS_DOC)
                                 .define(METRIC_REPORTER_CLASSES_CONFIG, Type.LIST, "", Importance.LOW, CommonClientConfigs.METRIC_REPORTER_CLASSES_DOC)
                                 .define(RETRY_BACKOFF_MS_CONFIG, Type.LONG, 100L, atLeast(0L), Importance.LOW, CommonClientConfigs.RETRY_BACKOFF_MS_DOC)
@@ -279,6 +334,7 @@ public class ProducerConfig extends AbstractConfig {
                                         Type.CLASS,
                                         DefaultPartitioner.class.getName(),
                                         Importance.MEDIUM, PARTITIONER_CLASS_DOC)
+                                .define(PARTITIONER_STICKY_CONFIG, Type.BOOLEAN, false, Importance.LOW, PARTITIONER_STICKY_DOC)
 
                                 // security support
                                 .define(CommonClientConfigs.SECURITY_PROTOCOL_CONFIG,
@@ -0,0 +1,145 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more contributor license agreements. See the NOTICE
+ * file distributed with this work for additional information regarding copyright ownership. The ASF licenses this file
+ * to You under the Apache License, Version 2.0 (the "License"); you may not use this file except in compliance with the
+ * License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on
+ * an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.apache.kafka.clients.producer.internals;
+
+import java.nio.ByteBuffer;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.kafka.common.MetricName;
+import org.apache.kafka.common.metrics.Metrics;
+import org.apache.kafka.common.metrics.Sensor;
+import org.apache.kafka.common.metrics.stats.Avg;
+import org.apache.kafka.common.metrics.stats.Max;
+import org.apache.kafka.common.record.CompressionRateEstimate;
+import org.apache.kafka.common.record.CompressionType;
+import org.apache.kafka.common.utils.Time;
+import org.apache.kafka.common.utils.Utils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A small pool of threads that compress whole batches once they are ready to be sent, so that records can be appended
+ * to batches uncompressed and without waiting on the compression codec.
+ * <p>
+ * Each thread compresses into a scratch buffer of its own and copies the result back over the batch's buffer, so a
+ * batch keeps exactly the memory it was allocated from the buffer pool. A batch that compression would not make any
+ * smaller is sent uncompressed.
+ */
+public final class BatchCompressor {
+
+    private static final Logger log = LoggerFactory.getLogger(BatchCompressor.class);
+
+    private final CompressionType type;
+    private final int batchSize;
+    private final Time time;
+    private final ExecutorService executor;
+    private final ThreadLocal<ByteBuffer> scratch;
+    private final Sensor compressionTimeSensor;
+    private volatile Runnable onCompressed;
+
+    /**
+     * Create a new batch compressor
+     *
+     * @param type The compression codec for the batches
+     * @param numThreads The number of compression threads
+     * @param batchSize The batch size, which is the largest scratch buffer each thread keeps between batches
+     * @param metrics The metrics
+     * @param time The time instance to use
+     * @param metricGrpName The metric group name
+     * @param metricTags additional key/value attributes of the metric
+     */
+    public BatchCompressor(CompressionType type,
+                           int numThreads,
+                           int batchSize,
+                           Metrics metrics,
+                           Time time,
+                           String metricGrpName,
+                           Map<String, String> metricTags) {
+        this.type = type;
+        this.batchSize = batchSize;
+        this.time = time;
+        this.executor = Executors.newFixedThreadPool(numThreads, new ThreadFactory() {
+            public Thread newThread(Runnable runnable) {
+                return Utils.newThread("kafka-producer-compression-thread", runnable, true);
+            }
+        });
+        this.scratch = new ThreadLocal<ByteBuffer>();
+        this.compressionTimeSensor = metrics.sensor("batch-compression-time");
+        MetricName metricName = new MetricName("batch-compression-time-avg", metricGrpName, "The average time in ms the compression threads take to compress a batch.", metricTags);
+        this.compressionTimeSensor.add(metricName, new Avg());
+        metricName = new MetricName("batch-compression-time-max", metricGrpName, "The maximum time in ms the compression threads have taken to compress a batch.", metricTags);
+        this.compressionTimeSensor.add(metricName, new Max());
+    }
+
+    /**
+     * Run the given callback every time the compression threads are done with a batch
+     */
+    public void onCompressed(Runnable callback) {
+        this.onCompressed = callback;
+    }
+
+    /**
+     * Hand a closed batch to the compression threads
+     *
+     * @param batch The batch
+     * @param rateEstimate The compression rate estimate to update with the rate the batch is compressed at
+     */
+    public void compress(final RecordBatch batch, final CompressionRateEstimate rateEstimate) {
+        batch.setCompressionStarted();
+        executor.execute(new Runnable() {
+            public void run() {
+                try {
+                    long start = time.nanoseconds();
+                    batch.records.compress(type, rateEstimate, scratchFor(batch.records.initialCapacity()));
+                    compressionTimeSensor.record((time.nanoseconds() - start) / 1000000.0);
+                } catch (Exception e) {
+                    log.error("Error compressing batch for topic-partition {}, sending it uncompressed:", batch.topicPartition, e);
+                } finally {
+                    batch.setCompressionDone();
+                    Runnable callback = onCompressed;
+                    if (callback != null)
+                        callback.run();
+                }
+            }
+        });
+    }
+
+    private ByteBuffer scratchFor(int size) {
+        ByteBuffer buffer = scratch.get();
+        if (buffer != null && buffer.capacity() >= size)
+            return buffer;
+        buffer = ByteBuffer.allocate(size);
+        // batches larger than the batch size only hold a single oversized record, so their buffers are not kept
+        if (size <= batchSize)
+            scratch.set(buffer);
+        return buffer;
+    }
+
+    /**
+     * Stop the compression threads, waiting for the batches they are compressing to finish. Batches that were handed
+     * to them but not started on are left uncompressed.
+     */
+    public void close() {
+        executor.shutdownNow();
+        try {
+            executor.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            log.warn("Interrupted while waiting for the compression threads to stop");
+            Thread.currentThread().interrupt();
+        }
+    }
+}
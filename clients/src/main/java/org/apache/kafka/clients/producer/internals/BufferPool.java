@@ -19,13 +19,19 @@ package org.apache.kafka.clients.producer.internals;
 import java.nio.ByteBuffer;
 import java.util.ArrayDeque;
 import java.util.Deque;
+import java.util.LinkedHashMap;
 import java.util.Map;
+import java.util.concurrent.ConcurrentLinkedDeque;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.concurrent.locks.Condition;
 import java.util.concurrent.locks.ReentrantLock;
 
 import org.apache.kafka.common.MetricName;
 import org.apache.kafka.common.errors.TimeoutException;
+import org.apache.kafka.common.metrics.Measurable;
+import org.apache.kafka.common.metrics.MetricConfig;
 import org.apache.kafka.common.metrics.Metrics;
 import org.apache.kafka.common.metrics.Sensor;
 import org.apache.kafka.common.metrics.stats.Rate;
@@ -36,7 +42,12 @@ import org.apache.kafka.common.utils.Time;
  * A pool of ByteBuffers kept under a given memory limit. This class is fairly specific to the needs of the producer. In
  * particular it has the following properties:
  * <ol>
- * <li>There is a special "poolable size" and buffers of this size are kept in a free list and recycled
+ * <li>There are a number of "size classes", starting at the "poolable size" and doubling from there. A buffer request
+ * at least as large as the poolable size is rounded up to the smallest size class that fits it, and buffers of each
+ * size class are kept in a free list of their own and recycled. Larger requests are allocated exactly and not recycled.
+ * <li>Pooled buffers can optionally be allocated off-heap, since they are allocated once and then reused.
+ * <li>Taking a buffer from a free list, returning one to it, and allocating while there is enough unallocated memory
+ * do not take any lock. The lock is only needed when a thread has to free up pooled memory or block for memory.
  * <li>It is fair. That is all memory is given to the longest waiting thread until it has sufficient memory. This
  * prevents starvation or deadlock when a thread asks for a large chunk of memory and needs to block until multiple
  * buffers are deallocated.
@@ -46,16 +57,18 @@ public final class BufferPool {
 
     private final long totalMemory;
     private final int poolableSize;
+    private final boolean direct;
+    private final SizeClass[] sizeClasses;
     private final ReentrantLock lock;
-    private final Deque<ByteBuffer> free;
     private final Deque<Condition> waiters;
-    private long availableMemory;
+    private volatile int numWaiters;
+    private final AtomicLong availableMemory;
     private final Metrics metrics;
     private final Time time;
     private final Sensor waitTime;
 
     /**
-     * Create a new buffer pool
+     * Create a new buffer pool with a single size class of heap buffers
      * 
      * @param memory The maximum amount of memory that this buffer pool can allocate
      * @param poolableSize The buffer size to cache in the free list rather than deallocating
@@ -65,12 +78,32 @@ public final class BufferPool {
      * @param metricTags additional key/val attributes for metrics
      */
     public BufferPool(long memory, int poolableSize, Metrics metrics, Time time , String metricGrpName , Map<String, String> metricTags) {
+        this(memory, poolableSize, 1, false, metrics, time, metricGrpName, metricTags);
+    }
+
+    /**
+     * Create a new buffer pool
+     *
+     * @param memory The maximum amount of memory that this buffer pool can allocate
+     * @param poolableSize The smallest buffer size to cache in a free list rather than deallocating
+     * @param numSizeClasses The number of size classes to keep free lists for, each twice the size of the previous one
+     * @param direct Whether pooled buffers should be allocated off-heap
+     * @param metrics instance of Metrics
+     * @param time time instance
+     * @param metricGrpName logical group name for metrics
+     * @param metricTags additional key/val attributes for metrics
+     */
+    public BufferPool(long memory, int poolableSize, int numSizeClasses, boolean direct, Metrics metrics, Time time,
+                      String metricGrpName, Map<String, String> metricTags) {
+        if (numSizeClasses < 1)
+            throw new IllegalArgumentException("The buffer pool needs at least one size class");
         this.poolableSize = poolableSize;
+        this.direct = direct;
         this.lock = new ReentrantLock();
-        this.free = new ArrayDeque<ByteBuffer>();
         this.waiters = new ArrayDeque<Condition>();
+        this.numWaiters = 0;
         this.totalMemory = memory;
-        this.availableMemory = memory;
+        this.availableMemory = new AtomicLong(memory);
         this.metrics = metrics;
         this.time = time;
         this.waitTime = this.metrics.sensor("bufferpool-wait-time");
@@ -79,11 +112,22 @@ public final class BufferPool {
                                                "The fraction of time an appender waits for space allocation.",
                                                metricTags);
         this.waitTime.add(metricName, new Rate(TimeUnit.NANOSECONDS));
+
+        // a poolable size of zero only has the one size class, and no size class may overflow an int
+        int maxSizeClasses = 1;
+        while (poolableSize > 0 && maxSizeClasses < numSizeClasses && ((long) poolableSize << maxSizeClasses) <= Integer.MAX_VALUE)
+            maxSizeClasses++;
+        this.sizeClasses = new SizeClass[maxSizeClasses];
+        for (int i = 0; i < maxSizeClasses; i++)
+            this.sizeClasses[i] = new SizeClass(poolableSize << i, metricGrpName, metricTags);
     }
 
     /**
      * Allocate a buffer of the given size. This method blocks if there is not enough memory and the buffer pool
      * is configured with blocking mode.
+     * <p>
+     * The returned buffer may have a larger capacity than requested if the size is rounded up to a size class; callers
+     * should deallocate it with its capacity.
      * 
      * @param size The buffer size to allocate in bytes
      * @param maxTimeToBlock The maximum time in milliseconds to block for buffer memory to be available
@@ -99,110 +143,212 @@ public final class BufferPool {
                                                + this.totalMemory
                                                + " on memory allocations.");
 
+        SizeClass sizeClass = sizeClassFor(size);
+        int capacity = sizeClass == null ? size : sizeClass.size;
+
+        // check if we have a free buffer of the right size pooled, or enough unallocated memory to allocate one
+        // without having to free up pooled memory of the other size classes, unless there are threads waiting in line
+        if (this.numWaiters == 0) {
+            if (sizeClass != null) {
+                ByteBuffer buffer = sizeClass.poll();
+                if (buffer != null) {
+                    sizeClass.allocations.record();
+                    return buffer;
+                }
+            }
+            if (tryReserve(capacity))
+                return allocateBuffer(capacity, sizeClass);
+        }
+
         this.lock.lock();
         try {
-            // check if we have a free buffer of the right size pooled
-            if (size == poolableSize && !this.free.isEmpty())
-                return this.free.pollFirst();
-
             // now check if the request is immediately satisfiable with the
             // memory on hand or if we need to block
-            int freeListSize = this.free.size() * this.poolableSize;
-            if (this.availableMemory + freeListSize >= size) {
+            if (this.waiters.isEmpty() && sizeClass != null) {
+                ByteBuffer buffer = sizeClass.poll();
+                if (buffer != null) {
+                    sizeClass.allocations.record();
+                    return buffer;
+                }
+            }
+            if (this.waiters.isEmpty() && this.availableMemory.get() + pooledMemory() >= capacity) {
                 // we have enough unallocated or pooled memory to immediately
                 // satisfy the request
-                freeUp(size);
-                this.availableMemory -= size;
-                lock.unlock();
-                return ByteBuffer.allocate(size);
-            } else {
-                // we are out of memory and will have to block
-                int accumulated = 0;
-                ByteBuffer buffer = null;
-                Condition moreMemory = this.lock.newCondition();
-                this.waiters.addLast(moreMemory);
+                freeUp(capacity);
+                if (tryReserve(capacity)) {
+                    lock.unlock();
+                    return allocateBuffer(capacity, sizeClass);
+                }
+            }
+
+            // we are out of memory and will have to block
+            int accumulated = 0;
+            ByteBuffer buffer = null;
+            Condition moreMemory = this.lock.newCondition();
+            this.waiters.addLast(moreMemory);
+            // deallocations that did not see this waiter have already returned their memory, so it is checked for
+            // below before blocking
+            this.numWaiters = this.waiters.size();
+            long remainingTimeToBlockNs = TimeUnit.MILLISECONDS.toNanos(maxTimeToBlock);
+            try {
                 // loop over and over until we have a buffer or have reserved
                 // enough memory to allocate one
-                while (accumulated < size) {
-                    long startWait = time.nanoseconds();
-                    if (!moreMemory.await(maxTimeToBlock, TimeUnit.MILLISECONDS))
+                while (true) {
+                    // only the thread at the head of the line takes memory, otherwise the waiters could each hold
+                    // part of what they need and none of them would ever get all of it
+                    if (this.waiters.peekFirst() == moreMemory) {
+                        // check if we can satisfy this request from the free list,
+                        // otherwise allocate memory
+                        if (accumulated == 0 && sizeClass != null && (buffer = sizeClass.poll()) != null) {
+                            // just grab a buffer from the free list
+                            accumulated = capacity;
+                        } else {
+                            // we'll need to allocate memory, but we may only get
+                            // part of what we need on this iteration
+                            freeUp(capacity - accumulated);
+                            accumulated += reserveUpTo(capacity - accumulated);
+                        }
+                        if (accumulated >= capacity)
+                            break;
+                    }
+
+                    if (remainingTimeToBlockNs <= 0)
                         throw new TimeoutException("Failed to allocate memory within the configured max blocking time");
+                    long startWait = time.nanoseconds();
+                    remainingTimeToBlockNs = moreMemory.awaitNanos(remainingTimeToBlockNs);
                     long endWait = time.nanoseconds();
                     this.waitTime.record(endWait - startWait, time.milliseconds());
-
-                    // check if we can satisfy this request from the free list,
-                    // otherwise allocate memory
-                    if (accumulated == 0 && size == this.poolableSize && !this.free.isEmpty()) {
-                        // just grab a buffer from the free list
-                        buffer = this.free.pollFirst();
-                        accumulated = size;
-                    } else {
-                        // we'll need to allocate memory, but we may only get
-                        // part of what we need on this iteration
-                        freeUp(size - accumulated);
-                        int got = (int) Math.min(size - accumulated, this.availableMemory);
-                        this.availableMemory -= got;
-                        accumulated += got;
-                    }
                 }
-
+            } catch (InterruptedException e) {
+                this.availableMemory.addAndGet(accumulated);
+                throw e;
+            } catch (RuntimeException e) {
+                // give back what we have accumulated so far so it is not lost to the pool
+                this.availableMemory.addAndGet(accumulated);
+                throw e;
+            } finally {
                 // remove the condition for this thread to let the next thread
                 // in line start getting memory
-                Condition removed = this.waiters.removeFirst();
-                if (removed != moreMemory)
-                    throw new IllegalStateException("Wrong condition: this shouldn't happen.");
+                this.waiters.remove(moreMemory);
+                this.numWaiters = this.waiters.size();
 
                 // signal any additional waiters if there is more memory left
                 // over for them
-                if (this.availableMemory > 0 || !this.free.isEmpty()) {
+                if (this.availableMemory.get() > 0 || pooledMemory() > 0) {
                     if (!this.waiters.isEmpty())
                         this.waiters.peekFirst().signal();
                 }
-
-                // unlock and return the buffer
-                lock.unlock();
-                if (buffer == null)
-                    return ByteBuffer.allocate(size);
-                else
-                    return buffer;
             }
+
+            // unlock and return the buffer
+            lock.unlock();
+            if (buffer == null)
+                return allocateBuffer(capacity, sizeClass);
+            sizeClass.allocations.record();
+            return buffer;
         } finally {
             if (lock.isHeldByCurrentThread())
                 lock.unlock();
         }
     }
 
+    /**
+     * Get the smallest size class that can hold a buffer of the given size, or null if the size is smaller than the
+     * poolable size or larger than the largest size class (or the total memory)
+     */
+    private SizeClass sizeClassFor(int size) {
+        if (size < this.poolableSize)
+            return null;
+        for (SizeClass sizeClass : this.sizeClasses) {
+            if (size <= sizeClass.size)
+                return sizeClass.size <= this.totalMemory ? sizeClass : null;
+        }
+        return null;
+    }
+
+    /**
+     * Get the size class that a buffer of exactly the given size was allocated from, or null if there is none
+     */
+    private SizeClass sizeClassOf(int size) {
+        for (SizeClass sizeClass : this.sizeClasses) {
+            if (size == sizeClass.size)
+                return sizeClass;
+        }
+        return null;
+    }
+
+    private ByteBuffer allocateBuffer(int capacity, SizeClass sizeClass) {
+        if (sizeClass == null)
+            return ByteBuffer.allocate(capacity);
+        sizeClass.allocations.record();
+        sizeClass.newAllocations.record();
+        return this.direct ? ByteBuffer.allocateDirect(capacity) : ByteBuffer.allocate(capacity);
+    }
+
+    /**
+     * Take the given amount of unallocated memory if there is enough of it
+     */
+    private boolean tryReserve(int size) {
+        while (true) {
+            long available = this.availableMemory.get();
+            if (available < size)
+                return false;
+            if (this.availableMemory.compareAndSet(available, available - size))
+                return true;
+        }
+    }
+
+    /**
+     * Take as much of the given amount of unallocated memory as there is
+     */
+    private int reserveUpTo(int size) {
+        while (true) {
+            long available = this.availableMemory.get();
+            int got = (int) Math.min(size, available);
+            if (this.availableMemory.compareAndSet(available, available - got))
+                return got;
+        }
+    }
+
     /**
      * Attempt to ensure we have at least the requested number of bytes of memory for allocation by deallocating pooled
-     * buffers (if needed)
+     * buffers (if needed), starting with the largest size class
      */
     private void freeUp(int size) {
-        while (!this.free.isEmpty() && this.availableMemory < size)
-            this.availableMemory += this.free.pollLast().capacity();
+        for (int i = this.sizeClasses.length - 1; i >= 0 && this.availableMemory.get() < size; i--) {
+            SizeClass sizeClass = this.sizeClasses[i];
+            ByteBuffer buffer;
+            while (this.availableMemory.get() < size && (buffer = sizeClass.pollLast()) != null)
+                this.availableMemory.addAndGet(buffer.capacity());
+        }
     }
 
     /**
-     * Return buffers to the pool. If they are of the poolable size add them to the free list, otherwise just mark the
-     * memory as free.
+     * Return buffers to the pool. If they are of one of the size classes add them to its free list, otherwise just
+     * mark the memory as free.
      * 
      * @param buffer The buffer to return
      * @param size The size of the buffer to mark as deallocated, note that this maybe smaller than buffer.capacity
      *             since the buffer may re-allocate itself during in-place compression
      */
     public void deallocate(ByteBuffer buffer, int size) {
-        lock.lock();
-        try {
-            if (size == this.poolableSize && size == buffer.capacity()) {
-                buffer.clear();
-                this.free.add(buffer);
-            } else {
-                this.availableMemory += size;
+        SizeClass sizeClass = size == buffer.capacity() && buffer.isDirect() == this.direct ? sizeClassOf(size) : null;
+        if (sizeClass != null) {
+            buffer.clear();
+            sizeClass.add(buffer);
+        } else {
+            this.availableMemory.addAndGet(size);
+        }
+        // a thread that starts waiting after this check will find the memory returned above before it blocks
+        if (this.numWaiters > 0) {
+            lock.lock();
+            try {
+                Condition moreMem = this.waiters.peekFirst();
+                if (moreMem != null)
+                    moreMem.signal();
+            } finally {
+                lock.unlock();
             }
-            Condition moreMem = this.waiters.peekFirst();
-            if (moreMem != null)
-                moreMem.signal();
-        } finally {
-            lock.unlock();
         }
     }
 
@@ -211,43 +357,38 @@ public final class BufferPool {
     }
 
     /**
-     * the total free memory both unallocated and in the free list
+     * The memory held in the free lists of all size classes
+     */
+    private long pooledMemory() {
+        long pooled = 0;
+        for (SizeClass sizeClass : this.sizeClasses)
+            pooled += sizeClass.freeMemory();
+        return pooled;
+    }
+
+    /**
+     * the total free memory both unallocated and in the free lists
      */
     public long availableMemory() {
-        lock.lock();
-        try {
-            return this.availableMemory + this.free.size() * this.poolableSize;
-        } finally {
-            lock.unlock();
-        }
+        return this.availableMemory.get() + pooledMemory();
     }
 
     /**
-     * Get the unallocated memory (not in the free list or in use)
+     * Get the unallocated memory (not in the free lists or in use)
      */
     public long unallocatedMemory() {
-        lock.lock();
-        try {
-            return this.availableMemory;
-        } finally {
-            lock.unlock();
-        }
+        return this.availableMemory.get();
     }
 
     /**
      * The number of threads blocked waiting on memory
      */
     public int queued() {
-        lock.lock();
-        try {
-            return this.waiters.size();
-        } finally {
-            lock.unlock();
-        }
+        return this.numWaiters;
     }
 
     /**
-     * The buffer size that will be retained in the free list after use
+     * The smallest buffer size that will be retained in a free list after use
      */
     public int poolableSize() {
         return this.poolableSize;
@@ -259,4 +400,62 @@ public final class BufferPool {
     public long totalMemory() {
         return this.totalMemory;
     }
-}
\ No newline at end of file
+
+    /**
+     * The free list and metrics of buffers of one size
+     */
+    private final class SizeClass {
+        final int size;
+        final Deque<ByteBuffer> free;
+        final AtomicInteger freeCount;
+        final Sensor allocations;
+        final Sensor newAllocations;
+
+        SizeClass(int size, String metricGrpName, Map<String, String> metricTags) {
+            this.size = size;
+            this.free = new ConcurrentLinkedDeque<ByteBuffer>();
+            this.freeCount = new AtomicInteger(0);
+
+            Map<String, String> tags = new LinkedHashMap<String, String>(metricTags);
+            tags.put("buffer-size", Integer.toString(size));
+            this.allocations = metrics.sensor("bufferpool-allocations-" + size);
+            MetricName metricName = new MetricName("bufferpool-allocation-rate", metricGrpName,
+                                                   "The number of buffers of this size allocated per second.", tags);
+            this.allocations.add(metricName, new Rate());
+            this.newAllocations = metrics.sensor("bufferpool-new-allocations-" + size);
+            metricName = new MetricName("bufferpool-new-allocation-rate", metricGrpName,
+                                        "The number of buffers of this size per second that could not be taken from the free list and had to be created.", tags);
+            this.newAllocations.add(metricName, new Rate());
+            metricName = new MetricName("bufferpool-free-bytes", metricGrpName,
+                                        "The memory held in the free list for buffers of this size.", tags);
+            metrics.addMetric(metricName, new Measurable() {
+                public double measure(MetricConfig config, long now) {
+                    return freeMemory();
+                }
+            });
+        }
+
+        ByteBuffer poll() {
+            ByteBuffer buffer = this.free.pollFirst();
+            if (buffer != null)
+                this.freeCount.decrementAndGet();
+            return buffer;
+        }
+
+        ByteBuffer pollLast() {
+            ByteBuffer buffer = this.free.pollLast();
+            if (buffer != null)
+                this.freeCount.decrementAndGet();
+            return buffer;
+        }
+
+        void add(ByteBuffer buffer) {
+            this.free.addLast(buffer);
+            this.freeCount.incrementAndGet();
+        }
+
+        long freeMemory() {
+            return (long) Math.max(this.freeCount.get(), 0) * this.size;
+        }
+    }
+}
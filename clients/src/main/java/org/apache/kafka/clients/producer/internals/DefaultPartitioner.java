@@ -19,9 +19,12 @@ package org.apache.kafka.clients.producer.internals;
 import java.util.List;
 import java.util.Map;
 import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 import java.util.concurrent.atomic.AtomicInteger;
 
 import org.apache.kafka.clients.producer.Partitioner;
+import org.apache.kafka.clients.producer.ProducerConfig;
 import org.apache.kafka.common.Cluster;
 import org.apache.kafka.common.PartitionInfo;
 import org.apache.kafka.common.utils.Utils;
@@ -31,11 +34,15 @@ import org.apache.kafka.common.utils.Utils;
  * <ul>
  * <li>If a partition is specified in the record, use it
  * <li>If no partition is specified but a key is present choose a partition based on a hash of the key
- * <li>If no partition or key is present choose a partition in a round-robin fashion
+ * <li>If no partition or key is present choose a partition in a round-robin fashion, or if
+ * <code>partitioner.sticky</code> is enabled keep choosing the same partition until the producer needs a new batch
+ * for it, see {@link #onNewBatch(String, Cluster, int)}
  */
 public class DefaultPartitioner implements Partitioner {
 
     private final AtomicInteger counter = new AtomicInteger(new Random().nextInt());
+    private final ConcurrentMap<String, Integer> stickyPartitions = new ConcurrentHashMap<String, Integer>();
+    private boolean sticky = false;
 
     /**
      * A cheap way to deterministically convert a number to a positive value. When the input is
@@ -53,7 +60,20 @@ public class DefaultPartitioner implements Partitioner {
         return number & 0x7fffffff;
     }
 
-    public void configure(Map<String, ?> configs) {}
+    public void configure(Map<String, ?> configs) {
+        Object stickyValue = configs.get(ProducerConfig.PARTITIONER_STICKY_CONFIG);
+        if (stickyValue instanceof Boolean)
+            sticky = (Boolean) stickyValue;
+        else if (stickyValue != null)
+            sticky = Boolean.parseBoolean(stickyValue.toString().trim());
+    }
+
+    /**
+     * Whether records without a key stick to one partition until the producer needs a new batch for it
+     */
+    public boolean sticky() {
+        return sticky;
+    }
 
     /**
      * Compute the partition for the given record.
@@ -68,7 +88,10 @@ public class DefaultPartitioner implements Partitioner {
     public int partition(String topic, Object key, byte[] keyBytes, Object value, byte[] valueBytes, Cluster cluster) {
         List<PartitionInfo> partitions = cluster.partitionsForTopic(topic);
         int numPartitions = partitions.size();
-        if (keyBytes == null) {
+        if (keyBytes == null && sticky) {
+            Integer partition = stickyPartitions.get(topic);
+            return partition != null ? partition : nextStickyPartition(topic, cluster, -1);
+        } else if (keyBytes == null) {
             int nextValue = counter.getAndIncrement();
             List<PartitionInfo> availablePartitions = cluster.availablePartitionsForTopic(topic);
             if (availablePartitions.size() > 0) {
@@ -84,6 +107,45 @@ public class DefaultPartitioner implements Partitioner {
         }
     }
 
+    /**
+     * Called by the producer when a record without a key could not be added to the batch of the partition it was
+     * given, so that the records that follow go to another partition. The record is then partitioned again.
+     *
+     * @param topic The topic name
+     * @param cluster The current cluster metadata
+     * @param prevPartition The partition the record was given
+     */
+    public void onNewBatch(String topic, Cluster cluster, int prevPartition) {
+        if (sticky)
+            nextStickyPartition(topic, cluster, prevPartition);
+    }
+
+    private int nextStickyPartition(String topic, Cluster cluster, int prevPartition) {
+        Integer oldPartition = stickyPartitions.get(topic);
+        // another thread may have moved on from the previous partition already
+        if (oldPartition != null && oldPartition != prevPartition)
+            return oldPartition;
+
+        int newPartition;
+        List<PartitionInfo> availablePartitions = cluster.availablePartitionsForTopic(topic);
+        if (availablePartitions.size() > 1) {
+            do {
+                int part = DefaultPartitioner.toPositive(counter.getAndIncrement()) % availablePartitions.size();
+                newPartition = availablePartitions.get(part).partition();
+            } while (newPartition == prevPartition);
+        } else if (availablePartitions.size() == 1) {
+            newPartition = availablePartitions.get(0).partition();
+        } else {
+            // no partitions are available, give a non-available partition
+            newPartition = DefaultPartitioner.toPositive(counter.getAndIncrement()) % cluster.partitionsForTopic(topic).size();
+        }
+
+        boolean updated = oldPartition == null ?
+            stickyPartitions.putIfAbsent(topic, newPartition) == null :
+            stickyPartitions.replace(topic, oldPartition, newPartition);
+        return updated ? newPartition : stickyPartitions.get(topic);
+    }
+
     public void close() {}
 
 }
@@ -17,16 +17,18 @@ import org.apache.kafka.clients.producer.Callback;
 import org.apache.kafka.common.Cluster;
 import org.apache.kafka.common.MetricName;
 import org.apache.kafka.common.Node;
-import org.apache.kafka.common.PartitionInfo;
 import org.apache.kafka.common.TopicPartition;
 import org.apache.kafka.common.metrics.Measurable;
 import org.apache.kafka.common.metrics.MetricConfig;
 import org.apache.kafka.common.metrics.Metrics;
 import org.apache.kafka.common.metrics.Sensor;
 import org.apache.kafka.common.metrics.stats.Rate;
+import org.apache.kafka.common.record.ByteArrayRecordField;
+import org.apache.kafka.common.record.CompressionRateEstimate;
 import org.apache.kafka.common.record.CompressionType;
 import org.apache.kafka.common.record.MemoryRecords;
 import org.apache.kafka.common.record.Record;
+import org.apache.kafka.common.record.RecordField;
 import org.apache.kafka.common.record.Records;
 import org.apache.kafka.common.utils.CopyOnWriteMap;
 import org.apache.kafka.common.utils.Time;
@@ -35,15 +37,20 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.nio.ByteBuffer;
-import java.util.ArrayDeque;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.Deque;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Queue;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.concurrent.ConcurrentMap;
 import java.util.concurrent.atomic.AtomicInteger;
 
@@ -53,6 +60,18 @@ import java.util.concurrent.atomic.AtomicInteger;
  * <p>
  * The accumulator uses a bounded amount of memory and append calls will block when that memory is exhausted, unless
  * this behavior is explicitly disabled.
+ * <p>
+ * When records are not compressed, appends to the last batch of a partition reserve their space in the batch without
+ * taking the lock on the partition's deque; the lock is only taken to roll a new batch. Compressed batches are written
+ * through a single compression stream, so every append to them is made under the lock.
+ * <p>
+ * The accumulator keeps track of the partitions that have batches, so the work the sender does to find and drain ready
+ * batches grows with the number of partitions records are being sent to rather than with the number of partitions the
+ * producer has ever sent records to.
+ * <p>
+ * Alternatively compressed batches can be filled like uncompressed ones and handed to a {@link BatchCompressor} once
+ * they are ready to send, so that appends need neither the lock nor the compression codec. Such a batch is only
+ * drained once the compression threads are done with it.
  */
 public final class RecordAccumulator {
 
@@ -64,12 +83,25 @@ public final class RecordAccumulator {
     private final AtomicInteger appendsInProgress;
     private final int batchSize;
     private final CompressionType compression;
+    private final BatchCompressor batchCompressor;
+    // the compression rate estimates batches of each topic are sized with
+    private final ConcurrentMap<String, CompressionRateEstimate> rateEstimates;
     private final long lingerMs;
     private final long retryBackoffMs;
     private final BufferPool free;
+    private final TopicMemoryLimits topicMemory;
     private final Time time;
+    private final Metrics metrics;
+    private final Map<String, String> metricTags;
     private final ConcurrentMap<TopicPartition, Deque<RecordBatch>> batches;
+    // the partitions whose deques may hold batches, so that the sender need not look at every partition it has ever
+    // accumulated records for; only used by the sender thread, which removes the partitions it finds empty
+    private final Set<TopicPartition> partitionsWithBatches;
+    // the partitions whose deques have had a batch added to them while empty, for the sender thread to pick up
+    private final Queue<TopicPartition> newPartitionsWithBatches;
     private final IncompleteRecordBatches incomplete;
+    // the rate records arrive for each partition at, only used by the sender thread
+    private final Map<TopicPartition, FillRate> fillRates;
 
 
     /**
@@ -95,6 +127,43 @@ public final class RecordAccumulator {
                              Metrics metrics,
                              Time time,
                              Map<String, String> metricTags) {
+        this(batchSize, totalSize, 0L, 1, false, compression, 0, lingerMs, retryBackoffMs, metrics, time, metricTags);
+    }
+
+    /**
+     * Create a new record accumulator
+     *
+     * @param batchSize The size to use when allocating {@link org.apache.kafka.common.record.MemoryRecords} instances
+     * @param totalSize The maximum memory the record accumulator can use.
+     * @param maxTopicMemory The maximum memory the batches of a single topic can hold, or 0 for no limit other than
+     *        the total memory
+     * @param bufferPoolSizeClasses The number of buffer sizes, starting at the batch size and doubling from there, that
+     *        the buffer pool keeps free lists for
+     * @param bufferPoolDirect Whether the pooled buffers should be allocated off-heap
+     * @param compression The compression codec for the records
+     * @param compressionThreads The number of threads to compress batches on once they are ready to send, or 0 to
+     *        compress records as they are appended
+     * @param lingerMs An artificial delay time to add before declaring a records instance that isn't full ready for
+     *        sending. This allows time for more records to arrive. Setting a non-zero lingerMs will trade off some
+     *        latency for potentially better throughput due to more batching (and hence fewer, larger requests).
+     * @param retryBackoffMs An artificial delay time to retry the produce request upon receiving an error. This avoids
+     *        exhausting all retries in a short period of time.
+     * @param metrics The metrics
+     * @param time The time instance to use
+     * @param metricTags additional key/value attributes of the metric
+     */
+    public RecordAccumulator(int batchSize,
+                             long totalSize,
+                             long maxTopicMemory,
+                             int bufferPoolSizeClasses,
+                             boolean bufferPoolDirect,
+                             CompressionType compression,
+                             int compressionThreads,
+                             long lingerMs,
+                             long retryBackoffMs,
+                             Metrics metrics,
+                             Time time,
+                             Map<String, String> metricTags) {
         this.drainIndex = 0;
         this.closed = false;
         this.flushesInProgress = new AtomicInteger(0);
@@ -104,10 +173,19 @@ public final class RecordAccumulator {
         this.lingerMs = lingerMs;
         this.retryBackoffMs = retryBackoffMs;
         this.batches = new CopyOnWriteMap<TopicPartition, Deque<RecordBatch>>();
+        this.partitionsWithBatches = new LinkedHashSet<TopicPartition>();
+        this.newPartitionsWithBatches = new ConcurrentLinkedQueue<TopicPartition>();
         String metricGrpName = "producer-metrics";
-        this.free = new BufferPool(totalSize, batchSize, metrics, time , metricGrpName , metricTags);
+        this.free = new BufferPool(totalSize, batchSize, bufferPoolSizeClasses, bufferPoolDirect, metrics, time, metricGrpName, metricTags);
+        this.topicMemory = new TopicMemoryLimits(maxTopicMemory, metrics, metricTags);
         this.incomplete = new IncompleteRecordBatches();
+        this.batchCompressor = compression != CompressionType.NONE && compressionThreads > 0 ?
+            new BatchCompressor(compression, compressionThreads, batchSize, metrics, time, metricGrpName, metricTags) : null;
+        this.fillRates = new HashMap<TopicPartition, FillRate>();
+        this.rateEstimates = new ConcurrentHashMap<String, CompressionRateEstimate>();
         this.time = time;
+        this.metrics = metrics;
+        this.metricTags = metricTags;
         registerMetrics(metrics, metricGrpName, metricTags);
     }
 
@@ -146,6 +224,8 @@ public final class RecordAccumulator {
      * <p>
      * The append result will contain the future metadata, and flag for whether the appended batch is full or a new batch is created
      * <p>
+     * For uncompressed records this first tries to append to the last batch of the partition without locking its deque.
+     * <p>
      *
      * @param tp The topic/partition to which this record is being sent
      * @param key The key for the record
@@ -154,6 +234,38 @@ public final class RecordAccumulator {
      * @param maxTimeToBlock The maximum time in milliseconds to block for buffer memory to be available
      */
     public RecordAppendResult append(TopicPartition tp, byte[] key, byte[] value, Callback callback, long maxTimeToBlock) throws InterruptedException {
+        return append(tp, ByteArrayRecordField.wrap(key), ByteArrayRecordField.wrap(value), callback, maxTimeToBlock);
+    }
+
+    /**
+     * Add a record with a key and value that are serialized straight into the batch it is appended to, return the
+     * append result
+     *
+     * @param tp The topic/partition to which this record is being sent
+     * @param key The key for the record, or null if there is none
+     * @param value The value for the record, or null if there is none
+     * @param callback The user-supplied callback to execute when the request is complete
+     * @param maxTimeToBlock The maximum time in milliseconds to block for buffer memory to be available
+     * @see #append(TopicPartition, byte[], byte[], Callback, long)
+     */
+    public RecordAppendResult append(TopicPartition tp, RecordField key, RecordField value, Callback callback, long maxTimeToBlock) throws InterruptedException {
+        return append(tp, key, value, callback, maxTimeToBlock, false);
+    }
+
+    /**
+     * Add a record with a key and value that are serialized straight into the batch it is appended to, return the
+     * append result
+     *
+     * @param tp The topic/partition to which this record is being sent
+     * @param key The key for the record, or null if there is none
+     * @param value The value for the record, or null if there is none
+     * @param callback The user-supplied callback to execute when the request is complete
+     * @param maxTimeToBlock The maximum time in milliseconds to block for buffer memory to be available
+     * @param abortOnNewBatch Whether to return without appending the record if it does not fit in the last batch of
+     *        the partition, so that the caller can pick another partition before a new batch is created for it
+     */
+    public RecordAppendResult append(TopicPartition tp, RecordField key, RecordField value, Callback callback, long maxTimeToBlock,
+                                     boolean abortOnNewBatch) throws InterruptedException {
         // We keep track of the number of appending thread to make sure we do not miss batches in
         // abortIncompleteBatches().
         appendsInProgress.incrementAndGet();
@@ -162,19 +274,33 @@ public final class RecordAccumulator {
                 throw new IllegalStateException("Cannot send after the producer is closed.");
             // check if we have an in-progress batch
             Deque<RecordBatch> dq = dequeFor(tp);
+            if (concurrentAppends()) {
+                // the deque can be peeked without its lock; a batch that has been drained or expired in the meantime
+                // is closed and will refuse the append
+                RecordBatch last = dq.peekLast();
+                if (last != null) {
+                    FutureRecordMetadata future = last.tryAppend(key, value, callback, time.milliseconds());
+                    if (future != null)
+                        return new RecordAppendResult(future, dq.peekFirst() != last || last.records.isFull(), false);
+                }
+            }
             synchronized (dq) {
                 RecordBatch last = dq.peekLast();
                 if (last != null) {
                     FutureRecordMetadata future = last.tryAppend(key, value, callback, time.milliseconds());
                     if (future != null)
-                        return new RecordAppendResult(future, dq.size() > 1 || last.records.isFull(), false);
+                        return new RecordAppendResult(future, dq.peekFirst() != last || last.records.isFull(), false);
                 }
             }
 
+            // the caller would rather move to another partition than start a new batch for this one
+            if (abortOnNewBatch)
+                return new RecordAppendResult(null, false, false, true);
+
             // we don't have an in-progress record batch try to allocate a new batch
             int size = Math.max(this.batchSize, Records.LOG_OVERHEAD + Record.recordSize(key, value));
             log.trace("Allocating a new {} byte message buffer for topic {} partition {}", size, tp.topic(), tp.partition());
-            ByteBuffer buffer = free.allocate(size, maxTimeToBlock);
+            ByteBuffer buffer = allocate(tp.topic(), size, maxTimeToBlock);
             synchronized (dq) {
                 // Need to check if producer is closed again after grabbing the dequeue lock.
                 if (closed)
@@ -184,23 +310,168 @@ public final class RecordAccumulator {
                     FutureRecordMetadata future = last.tryAppend(key, value, callback, time.milliseconds());
                     if (future != null) {
                         // Somebody else found us a batch, return the one we waited for! Hopefully this doesn't happen often...
-                        free.deallocate(buffer);
-                        return new RecordAppendResult(future, dq.size() > 1 || last.records.isFull(), false);
+                        deallocate(tp.topic(), buffer, buffer.capacity());
+                        return new RecordAppendResult(future, dq.peekFirst() != last || last.records.isFull(), false);
                     }
                 }
-                MemoryRecords records = MemoryRecords.emptyRecords(buffer, compression, this.batchSize);
+                MemoryRecords records = concurrentAppends() ?
+                    MemoryRecords.emptyConcurrentRecords(buffer, this.batchSize) :
+                    MemoryRecords.emptyRecords(buffer, compression, this.batchSize, rateEstimateFor(tp.topic()));
                 RecordBatch batch = new RecordBatch(tp, records, time.milliseconds());
-                FutureRecordMetadata future = Utils.notNull(batch.tryAppend(key, value, callback, time.milliseconds()));
+                FutureRecordMetadata future;
+                try {
+                    future = Utils.notNull(batch.tryAppend(key, value, callback, time.milliseconds()));
+                } catch (RuntimeException e) {
+                    deallocate(tp.topic(), buffer, buffer.capacity());
+                    throw e;
+                }
 
+                if (dq.isEmpty())
+                    newPartitionsWithBatches.add(tp);
                 dq.addLast(batch);
                 incomplete.add(batch);
-                return new RecordAppendResult(future, dq.size() > 1 || batch.records.isFull(), true);
+                return new RecordAppendResult(future, dq.peekFirst() != batch || batch.records.isFull(), true);
             }
         } finally {
             appendsInProgress.decrementAndGet();
         }
     }
 
+    /**
+     * Add a group of records for the same partition to the accumulator, adding an append result for each batch they
+     * were appended to to the given list
+     * <p>
+     * The records are appended in order under a single acquisition of the lock on the partition's deque, and again for
+     * each new batch they need. Rather than a future and a callback for every record, each batch gets a single future,
+     * for the last of the records appended to it, and the callback is invoked once for that future.
+     *
+     * @param tp The topic/partition to which the records are being sent
+     * @param keys The keys of the records, entries may be null
+     * @param values The values of the records, entries may be null
+     * @param callback The user-supplied callback to execute when the records of a batch are complete
+     * @param maxTimeToBlock The maximum time in milliseconds to block for buffer memory to be available
+     * @param results The list to add the append results to; if appending fails part way through, it holds the results
+     *        for the records that were appended before the failure, which are sent all the same
+     */
+    public void appendAll(TopicPartition tp, List<RecordField> keys, List<RecordField> values, Callback callback,
+                          long maxTimeToBlock, List<RecordAppendResult> results) throws InterruptedException {
+        appendsInProgress.incrementAndGet();
+        try {
+            if (closed)
+                throw new IllegalStateException("Cannot send after the producer is closed.");
+            Deque<RecordBatch> dq = dequeFor(tp);
+            int next = 0;
+            synchronized (dq) {
+                RecordBatch last = dq.peekLast();
+                if (last != null)
+                    next = appendUntracked(dq, last, keys, values, next, callback, false, results);
+            }
+            while (next < keys.size()) {
+                int size = Math.max(this.batchSize, Records.LOG_OVERHEAD + Record.recordSize(keys.get(next), values.get(next)));
+                log.trace("Allocating a new {} byte message buffer for topic {} partition {}", size, tp.topic(), tp.partition());
+                ByteBuffer buffer = allocate(tp.topic(), size, maxTimeToBlock);
+                synchronized (dq) {
+                    if (closed) {
+                        deallocate(tp.topic(), buffer, buffer.capacity());
+                        throw new IllegalStateException("Cannot send after the producer is closed.");
+                    }
+                    RecordBatch last = dq.peekLast();
+                    int appended = last == null ? next : appendUntracked(dq, last, keys, values, next, callback, false, results);
+                    if (appended > next) {
+                        // somebody else started a new batch in the meantime
+                        deallocate(tp.topic(), buffer, buffer.capacity());
+                        next = appended;
+                        continue;
+                    }
+                    MemoryRecords records = concurrentAppends() ?
+                        MemoryRecords.emptyConcurrentRecords(buffer, this.batchSize) :
+                        MemoryRecords.emptyRecords(buffer, compression, this.batchSize, rateEstimateFor(tp.topic()));
+                    RecordBatch batch = new RecordBatch(tp, records, time.milliseconds());
+                    int resultCount = results.size();
+                    try {
+                        next = appendUntracked(dq, batch, keys, values, next, callback, true, results);
+                    } finally {
+                        // the batch only goes on the deque once it holds a record, so that one whose first record
+                        // fails is freed rather than left there empty
+                        if (results.size() > resultCount) {
+                            if (dq.isEmpty())
+                                newPartitionsWithBatches.add(tp);
+                            dq.addLast(batch);
+                            incomplete.add(batch);
+                        } else {
+                            deallocate(tp.topic(), buffer, buffer.capacity());
+                        }
+                    }
+                }
+            }
+        } finally {
+            appendsInProgress.decrementAndGet();
+        }
+    }
+
+    /**
+     * Append records from the given index on to the batch until one does not fit, adding an append result for them if
+     * any were appended. Must be called under the lock on the deque, and for a new batch before it is added to the
+     * deque. Return the index of the first record not appended.
+     */
+    private int appendUntracked(Deque<RecordBatch> dq, RecordBatch batch, List<RecordField> keys, List<RecordField> values, int from,
+                                Callback callback, boolean newBatch, List<RecordAppendResult> results) {
+        long now = time.milliseconds();
+        int next = from;
+        int lastOffset = -1;
+        try {
+            while (next < keys.size()) {
+                int offset = batch.tryAppendUntracked(keys.get(next), values.get(next), now);
+                if (offset < 0)
+                    break;
+                lastOffset = offset;
+                next++;
+            }
+        } finally {
+            // the records appended before one that fails are tracked all the same
+            if (next > from) {
+                // a new batch will be the last one on the deque, so it is only the first if the deque is empty
+                boolean first = newBatch ? dq.isEmpty() : dq.peekFirst() == batch;
+                boolean batchIsFull = !first || next < keys.size() || batch.records.isFull();
+                results.add(new RecordAppendResult(batch.track(lastOffset, callback), batchIsFull, newBatch));
+            }
+        }
+        return next;
+    }
+
+    /**
+     * Get the compression rate estimate for the given topic, creating it if necessary. Compressibility varies a lot
+     * more between topics than between batches of the same topic, so each topic has an estimate of its own rather
+     * than sharing the one for the compression type.
+     */
+    private CompressionRateEstimate rateEstimateFor(String topic) {
+        CompressionRateEstimate estimate = this.rateEstimates.get(topic);
+        if (estimate != null)
+            return estimate;
+        estimate = new CompressionRateEstimate(compression);
+        CompressionRateEstimate previous = this.rateEstimates.putIfAbsent(topic, estimate);
+        if (previous != null)
+            return previous;
+
+        Map<String, String> topicTags = new LinkedHashMap<String, String>(metricTags);
+        topicTags.put("topic", topic);
+        MetricName metricName = new MetricName("compression-rate-estimate", "producer-topic-metrics", "The compression rate the producer currently expects batches of the topic to have, which decides how many records a batch can take.", topicTags);
+        final CompressionRateEstimate registered = estimate;
+        metrics.addMetric(metricName, new Measurable() {
+            public double measure(MetricConfig config, long now) {
+                return registered.rate();
+            }
+        });
+        return estimate;
+    }
+
+    /**
+     * Whether appends are written to batches uncompressed and may be made without the lock on the partition's deque
+     */
+    private boolean concurrentAppends() {
+        return compression == CompressionType.NONE || batchCompressor != null;
+    }
+
     /**
      * Abort the batches that have been sitting in RecordAccumulator for more than the configured requestTimeout
      * due to metadata being unavailable
@@ -208,9 +479,10 @@ public final class RecordAccumulator {
     public List<RecordBatch> abortExpiredBatches(int requestTimeout, Cluster cluster, long now) {
         List<RecordBatch> expiredBatches = new ArrayList<RecordBatch>();
         int count = 0;
-        for (Map.Entry<TopicPartition, Deque<RecordBatch>> entry : this.batches.entrySet()) {
-            TopicPartition topicAndPartition = entry.getKey();
-            Deque<RecordBatch> dq = entry.getValue();
+        Iterator<TopicPartition> partitionIterator = partitionsWithBatches().iterator();
+        while (partitionIterator.hasNext()) {
+            TopicPartition topicAndPartition = partitionIterator.next();
+            Deque<RecordBatch> dq = this.batches.get(topicAndPartition);
             synchronized (dq) {
                 // iterate over the batches and expire them if they have stayed in accumulator for more than requestTimeOut
                 Iterator<RecordBatch> batchIterator = dq.iterator();
@@ -231,6 +503,8 @@ public final class RecordAccumulator {
                         }
                     }
                 }
+                if (dq.isEmpty())
+                    partitionIterator.remove();
             }
         }
         if (expiredBatches.size() > 0)
@@ -249,6 +523,8 @@ public final class RecordAccumulator {
         batch.setRetry();
         Deque<RecordBatch> deque = dequeFor(batch.topicPartition);
         synchronized (deque) {
+            if (deque.isEmpty())
+                newPartitionsWithBatches.add(batch.topicPartition);
             deque.addFirst(batch);
         }
     }
@@ -267,33 +543,63 @@ public final class RecordAccumulator {
      * immediately considered ready).
      * <li>The accumulator has been closed
      * </ol>
+     * If batches are compressed by the compression threads, a sendable batch is handed to them instead and its
+     * partition is ready once they are done with it.
      */
     public ReadyCheckResult ready(Cluster cluster, long nowMs) {
+        return ready(cluster, nowMs, null);
+    }
+
+    /**
+     * Get a list of nodes whose partitions are ready to be sent, lingering for at most as long as given for each node
+     * rather than always for linger.ms.
+     * <p>
+     * A partition lingers for the time given for its leader, or linger.ms if that is less (or no time is given for the
+     * leader), but not at all if less than one more record is expected to arrive for it in that time.
+     *
+     * @param cluster The current cluster metadata
+     * @param nowMs The current unix time in milliseconds
+     * @param nodeLingerMs The longest the partitions of each node should linger for, by node id, or null to linger
+     *        for linger.ms
+     * @see #ready(Cluster, long)
+     */
+    public ReadyCheckResult ready(Cluster cluster, long nowMs, Map<String, Long> nodeLingerMs) {
         Set<Node> readyNodes = new HashSet<Node>();
         long nextReadyCheckDelayMs = Long.MAX_VALUE;
         boolean unknownLeadersExist = false;
+        long effectiveLingerMs = -1;
 
         boolean exhausted = this.free.queued() > 0;
-        for (Map.Entry<TopicPartition, Deque<RecordBatch>> entry : this.batches.entrySet()) {
-            TopicPartition part = entry.getKey();
-            Deque<RecordBatch> deque = entry.getValue();
+        Iterator<TopicPartition> partitionIterator = partitionsWithBatches().iterator();
+        while (partitionIterator.hasNext()) {
+            TopicPartition part = partitionIterator.next();
+            Deque<RecordBatch> deque = this.batches.get(part);
 
             Node leader = cluster.leaderFor(part);
             if (leader == null) {
                 unknownLeadersExist = true;
-            } else if (!readyNodes.contains(leader)) {
+            } else if (!readyNodes.contains(leader) || batchCompressor != null) {
                 synchronized (deque) {
                     RecordBatch batch = deque.peekFirst();
-                    if (batch != null) {
+                    if (batch == null) {
+                        // the deque has been emptied since the partition was added
+                        partitionIterator.remove();
+                    } else {
                         boolean backingOff = batch.attempts > 0 && batch.lastAttemptMs + retryBackoffMs > nowMs;
                         long waitedTimeMs = nowMs - batch.lastAttemptMs;
+                        long lingerMs = nodeLingerMs == null ? this.lingerMs : lingerMsFor(part, leader, nodeLingerMs);
+                        if (!backingOff)
+                            effectiveLingerMs = Math.max(effectiveLingerMs, lingerMs);
                         long timeToWaitMs = backingOff ? retryBackoffMs : lingerMs;
                         long timeLeftMs = Math.max(timeToWaitMs - waitedTimeMs, 0);
-                        boolean full = deque.size() > 1 || batch.records.isFull();
+                        boolean full = deque.peekLast() != batch || batch.records.isFull();
                         boolean expired = waitedTimeMs >= timeToWaitMs;
                         boolean sendable = full || expired || exhausted || closed || flushInProgress();
                         if (sendable && !backingOff) {
-                            readyNodes.add(leader);
+                            if (awaitingCompression(batch))
+                                compressFullBatches(deque);
+                            else
+                                readyNodes.add(leader);
                         } else {
                             // Note that this results in a conservative estimate since an un-sendable partition may have
                             // a leader that will later be found to have sendable data. However, this is good enough
@@ -305,26 +611,66 @@ public final class RecordAccumulator {
             }
         }
 
-        return new ReadyCheckResult(readyNodes, nextReadyCheckDelayMs, unknownLeadersExist);
+        return new ReadyCheckResult(readyNodes, nextReadyCheckDelayMs, unknownLeadersExist, effectiveLingerMs);
+    }
+
+    /**
+     * Whether the batch still has to be compressed before it can be drained
+     */
+    private boolean awaitingCompression(RecordBatch batch) {
+        return batchCompressor != null && !batch.compressionDone();
+    }
+
+    /**
+     * Hand the first batch of the deque, which is ready to send, and any batches behind it that are full already to the
+     * compression threads. The sender is woken up when they are done with each of them.
+     */
+    private void compressFullBatches(Deque<RecordBatch> deque) {
+        RecordBatch last = deque.peekLast();
+        for (RecordBatch batch : deque) {
+            if (batch == last && batch != deque.peekFirst() && !batch.records.isFull())
+                break;
+            if (!batch.compressionStarted()) {
+                batch.close();
+                batchCompressor.compress(batch, rateEstimateFor(batch.topicPartition.topic()));
+            }
+        }
+    }
+
+    /**
+     * Run the given callback every time a batch has been compressed by the compression threads, which may make its
+     * partition ready to send
+     */
+    public void onBatchCompressed(Runnable callback) {
+        if (batchCompressor != null)
+            batchCompressor.onCompressed(callback);
+    }
+
+    private long lingerMsFor(TopicPartition tp, Node leader, Map<String, Long> nodeLingerMs) {
+        Long nodeLinger = nodeLingerMs.get(leader.idString());
+        long lingerMs = nodeLinger == null ? this.lingerMs : Math.min(this.lingerMs, nodeLinger);
+        // lingering only pays off if more records are expected to join the batch in the meantime
+        FillRate fillRate = fillRates.get(tp);
+        if (fillRate == null || fillRate.recordsPerMs * lingerMs < 1)
+            return 0;
+        return lingerMs;
     }
 
     /**
      * @return Whether there is any unsent record in the accumulator.
      */
     public boolean hasUnsent() {
-        for (Map.Entry<TopicPartition, Deque<RecordBatch>> entry : this.batches.entrySet()) {
-            Deque<RecordBatch> deque = entry.getValue();
-            synchronized (deque) {
-                if (deque.size() > 0)
-                    return true;
-            }
+        for (TopicPartition tp : partitionsWithBatches()) {
+            if (!this.batches.get(tp).isEmpty())
+                return true;
         }
         return false;
     }
 
     /**
      * Drain all the data for the given nodes and collate them into a list of batches that will fit within the specified
-     * size on a per-node basis. This method attempts to avoid choosing the same topic-node over and over.
+     * size on a per-node basis. This method attempts to avoid choosing the same topic-node over and over. A partition
+     * may have several batches in the list, in the order they are to be sent.
      * 
      * @param cluster The current cluster metadata
      * @param nodes The list of node to drain
@@ -336,34 +682,48 @@ public final class RecordAccumulator {
         if (nodes.isEmpty())
             return Collections.emptyMap();
 
+        // only the partitions that have batches are looked at, rather than every partition of the nodes
+        Map<Integer, List<TopicPartition>> partsByNode = new HashMap<Integer, List<TopicPartition>>();
+        for (TopicPartition tp : partitionsWithBatches()) {
+            Node leader = cluster.leaderFor(tp);
+            if (leader != null && nodes.contains(leader)) {
+                List<TopicPartition> parts = partsByNode.get(leader.id());
+                if (parts == null) {
+                    parts = new ArrayList<TopicPartition>();
+                    partsByNode.put(leader.id(), parts);
+                }
+                parts.add(tp);
+            }
+        }
+
         Map<Integer, List<RecordBatch>> batches = new HashMap<Integer, List<RecordBatch>>();
         for (Node node : nodes) {
             int size = 0;
-            List<PartitionInfo> parts = cluster.partitionsForNode(node.id());
+            List<TopicPartition> parts = partsByNode.get(node.id());
             List<RecordBatch> ready = new ArrayList<RecordBatch>();
+            if (parts == null) {
+                batches.put(node.id(), ready);
+                continue;
+            }
             /* to make starvation less likely this loop doesn't start at 0 */
             int start = drainIndex = drainIndex % parts.size();
             do {
-                PartitionInfo part = parts.get(drainIndex);
-                Deque<RecordBatch> deque = dequeFor(new TopicPartition(part.topic(), part.partition()));
+                TopicPartition tp = parts.get(drainIndex);
+                Deque<RecordBatch> deque = this.batches.get(tp);
                 if (deque != null) {
                     synchronized (deque) {
                         RecordBatch first = deque.peekFirst();
                         if (first != null) {
                             boolean backoff = first.attempts > 0 && first.lastAttemptMs + retryBackoffMs > now;
-                            // Only drain the batch if it is not during backoff period.
-                            if (!backoff) {
+                            // Only drain the batch if it is not during backoff period, and once it has been compressed
+                            if (!backoff && !awaitingCompression(first)) {
                                 if (size + first.records.sizeInBytes() > maxSize && !ready.isEmpty()) {
                                     // there is a rare case that a single batch size is larger than the request size due
                                     // to compression; in this case we will still eventually send this batch in a single
                                     // request
                                     break;
                                 } else {
-                                    RecordBatch batch = deque.pollFirst();
-                                    batch.records.close();
-                                    size += batch.records.sizeInBytes();
-                                    ready.add(batch);
-                                    batch.drainedMs = now;
+                                    size += drainFirst(tp, deque, ready, now);
                                 }
                             }
                         }
@@ -371,20 +731,103 @@ public final class RecordAccumulator {
                 }
                 this.drainIndex = (this.drainIndex + 1) % parts.size();
             } while (start != drainIndex);
+
+            // the room left in the request is filled with the batches that are backlogged behind the ones just
+            // drained, so a partition that has fallen behind catches up faster than a batch per request. They follow
+            // the first batch of their partition in the list, which keeps them in order.
+            int drainedPartitions = ready.size();
+            for (int i = 0; i < drainedPartitions && size < maxSize; i++) {
+                TopicPartition tp = ready.get(i).topicPartition;
+                Deque<RecordBatch> deque = this.batches.get(tp);
+                synchronized (deque) {
+                    RecordBatch next = deque.peekFirst();
+                    while (next != null && isBacklogged(deque, next, now) && size + next.records.sizeInBytes() <= maxSize) {
+                        size += drainFirst(tp, deque, ready, now);
+                        next = deque.peekFirst();
+                    }
+                }
+            }
             batches.put(node.id(), ready);
         }
         return batches;
     }
 
+    /**
+     * Take the first batch of the partition's deque, which must be locked, and add it to the drained batches
+     *
+     * @return The size of the batch
+     */
+    private int drainFirst(TopicPartition tp, Deque<RecordBatch> deque, List<RecordBatch> ready, long now) {
+        RecordBatch batch = deque.pollFirst();
+        if (deque.isEmpty())
+            this.partitionsWithBatches.remove(tp);
+        batch.close();
+        ready.add(batch);
+        batch.drainedMs = now;
+        if (batch.attempts == 0)
+            updateFillRate(batch, now);
+        return batch.records.sizeInBytes();
+    }
+
+    /**
+     * Whether the batch, the first of its deque after an earlier batch of the partition was drained, can go in the
+     * same request: it is full, or another batch is behind it, and it is neither backing off nor awaiting compression
+     */
+    private boolean isBacklogged(Deque<RecordBatch> deque, RecordBatch batch, long now) {
+        boolean backoff = batch.attempts > 0 && batch.lastAttemptMs + retryBackoffMs > now;
+        boolean complete = batch != deque.peekLast() || batch.records.isFull();
+        return complete && !backoff && !awaitingCompression(batch);
+    }
+
+    /**
+     * Update the rate records arrive for the partition of a batch that is drained for the first time at. The records
+     * of the batch have arrived since the previous batch of the partition was drained.
+     */
+    private void updateFillRate(RecordBatch batch, long now) {
+        FillRate fillRate = fillRates.get(batch.topicPartition);
+        if (fillRate == null) {
+            fillRate = new FillRate();
+            fillRates.put(batch.topicPartition, fillRate);
+        }
+        long since = fillRate.lastDrainMs < 0 ? batch.createdMs : Math.min(fillRate.lastDrainMs, batch.createdMs);
+        double recordsPerMs = batch.recordCount / (double) Math.max(now - since, 1);
+        fillRate.recordsPerMs = fillRate.lastDrainMs < 0 ? recordsPerMs :
+            FillRate.WEIGHT * recordsPerMs + (1 - FillRate.WEIGHT) * fillRate.recordsPerMs;
+        fillRate.lastDrainMs = now;
+    }
+
+    /**
+     * Forget the fill rate of the partitions that are no longer in the given cluster. Only called by the sender thread.
+     */
+    public void forgetFillRates(Cluster cluster) {
+        for (Iterator<TopicPartition> iter = fillRates.keySet().iterator(); iter.hasNext(); ) {
+            if (cluster.partition(iter.next()) == null)
+                iter.remove();
+        }
+    }
+
+    /**
+     * Get the partitions whose deques may hold batches, after adding the ones that have been given a batch since the
+     * last call. A partition whose deque is found to be empty may only be removed while holding the lock on the deque,
+     * since a batch added to it afterwards adds the partition again.
+     */
+    private Set<TopicPartition> partitionsWithBatches() {
+        TopicPartition tp;
+        while ((tp = this.newPartitionsWithBatches.poll()) != null)
+            this.partitionsWithBatches.add(tp);
+        return this.partitionsWithBatches;
+    }
+
     /**
      * Get the deque for the given topic-partition, creating it if necessary. Since new topics will only be added rarely
-     * we copy-on-write the hashmap
+     * we copy-on-write the hashmap. The deque is only modified while holding its lock, but it is a concurrent deque so
+     * that appends can peek at the last batch without the lock.
      */
     private Deque<RecordBatch> dequeFor(TopicPartition tp) {
         Deque<RecordBatch> d = this.batches.get(tp);
         if (d != null)
             return d;
-        this.batches.putIfAbsent(tp, new ArrayDeque<RecordBatch>());
+        this.batches.putIfAbsent(tp, new ConcurrentLinkedDeque<RecordBatch>());
         return this.batches.get(tp);
     }
 
@@ -393,7 +836,42 @@ public final class RecordAccumulator {
      */
     public void deallocate(RecordBatch batch) {
         incomplete.remove(batch);
-        free.deallocate(batch.records.buffer(), batch.records.initialCapacity());
+        deallocate(batch.topicPartition.topic(), batch.records.buffer(), batch.records.initialCapacity());
+    }
+
+    /**
+     * Allocate a buffer for a new batch of the topic, within both the memory left to the topic and the total memory
+     */
+    private ByteBuffer allocate(String topic, int size, long maxTimeToBlock) throws InterruptedException {
+        long start = time.nanoseconds();
+        long remainingTimeToBlock = topicMemory.reserve(topic, size, maxTimeToBlock);
+        ByteBuffer buffer;
+        try {
+            buffer = free.allocate(size, remainingTimeToBlock);
+        } catch (InterruptedException e) {
+            topicMemory.release(topic, size);
+            throw e;
+        } catch (RuntimeException e) {
+            topicMemory.release(topic, size);
+            throw e;
+        }
+        // the buffer pool may have rounded the size up to one of its size classes
+        if (buffer.capacity() != size)
+            topicMemory.add(topic, buffer.capacity() - size);
+        topicMemory.recordAllocationTime(topic, time.nanoseconds() - start, time.milliseconds());
+        return buffer;
+    }
+
+    private void deallocate(String topic, ByteBuffer buffer, int size) {
+        free.deallocate(buffer, size);
+        topicMemory.release(topic, size);
+    }
+
+    /**
+     * The memory held by the batches of the topic
+     */
+    long heldMemory(String topic) {
+        return topicMemory.heldMemory(topic);
     }
     
     /**
@@ -443,6 +921,8 @@ public final class RecordAccumulator {
         // batch appended by the last appending thread.
         abortBatches();
         this.batches.clear();
+        this.partitionsWithBatches.clear();
+        this.newPartitionsWithBatches.clear();
     }
 
     /**
@@ -453,13 +933,21 @@ public final class RecordAccumulator {
             Deque<RecordBatch> dq = dequeFor(batch.topicPartition);
             // Close the batch before aborting
             synchronized (dq) {
-                batch.records.close();
+                batch.close();
             }
             batch.done(-1L, new IllegalStateException("Producer is closed forcefully."));
             deallocate(batch);
         }
     }
 
+    /**
+     * Stop the compression threads, if any, waiting for the batches they are compressing to finish
+     */
+    public void closeCompression() {
+        if (batchCompressor != null)
+            batchCompressor.close();
+    }
+
     /**
      * Close this accumulator and force all the record buffers to be drained
      */
@@ -474,11 +962,17 @@ public final class RecordAccumulator {
         public final FutureRecordMetadata future;
         public final boolean batchIsFull;
         public final boolean newBatchCreated;
+        public final boolean abortForNewBatch;
 
         public RecordAppendResult(FutureRecordMetadata future, boolean batchIsFull, boolean newBatchCreated) {
+            this(future, batchIsFull, newBatchCreated, false);
+        }
+
+        public RecordAppendResult(FutureRecordMetadata future, boolean batchIsFull, boolean newBatchCreated, boolean abortForNewBatch) {
             this.future = future;
             this.batchIsFull = batchIsFull;
             this.newBatchCreated = newBatchCreated;
+            this.abortForNewBatch = abortForNewBatch;
         }
     }
 
@@ -489,13 +983,29 @@ public final class RecordAccumulator {
         public final Set<Node> readyNodes;
         public final long nextReadyCheckDelayMs;
         public final boolean unknownLeadersExist;
+        public final long effectiveLingerMs;
 
         public ReadyCheckResult(Set<Node> readyNodes, long nextReadyCheckDelayMs, boolean unknownLeadersExist) {
+            this(readyNodes, nextReadyCheckDelayMs, unknownLeadersExist, -1);
+        }
+
+        public ReadyCheckResult(Set<Node> readyNodes, long nextReadyCheckDelayMs, boolean unknownLeadersExist, long effectiveLingerMs) {
             this.readyNodes = readyNodes;
             this.nextReadyCheckDelayMs = nextReadyCheckDelayMs;
             this.unknownLeadersExist = unknownLeadersExist;
+            this.effectiveLingerMs = effectiveLingerMs;
         }
     }
+
+    /*
+     * The rate records arrive for a partition at, as a moving average over the batches drained for it
+     */
+    private static final class FillRate {
+        private static final double WEIGHT = 0.3;
+
+        long lastDrainMs = -1;
+        double recordsPerMs = 0;
+    }
     
     /*
      * A threadsafe helper class to hold RecordBatches that haven't been ack'd yet
@@ -13,7 +13,12 @@
 package org.apache.kafka.clients.producer.internals;
 
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import org.apache.kafka.clients.producer.Callback;
 import org.apache.kafka.clients.producer.RecordMetadata;
@@ -21,18 +26,28 @@ import org.apache.kafka.common.TopicPartition;
 import org.apache.kafka.common.errors.TimeoutException;
 import org.apache.kafka.common.record.MemoryRecords;
 import org.apache.kafka.common.record.Record;
+import org.apache.kafka.common.record.RecordField;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 /**
  * A batch of records that is or will be sent.
  * 
- * This class is not thread safe and external synchronization must be used when modifying it
+ * Appends are thread safe if the underlying records accept concurrent appends (see
+ * {@link MemoryRecords#emptyConcurrentRecords(java.nio.ByteBuffer, int)}); otherwise external synchronization must be
+ * used when modifying it. The record count and max record size are only set once the batch is closed.
  */
 public final class RecordBatch {
 
     private static final Logger log = LoggerFactory.getLogger(RecordBatch.class);
 
+    private static final Comparator<Thunk> THUNK_ORDER = new Comparator<Thunk>() {
+        @Override
+        public int compare(Thunk t1, Thunk t2) {
+            return Long.compare(t1.future.relativeOffset(), t2.future.relativeOffset());
+        }
+    };
+
     public int recordCount = 0;
     public int maxRecordSize = 0;
     public volatile int attempts = 0;
@@ -42,9 +57,16 @@ public final class RecordBatch {
     public final MemoryRecords records;
     public final TopicPartition topicPartition;
     public final ProduceRequestResult produceFuture;
-    public long lastAppendTime;
+    public volatile long lastAppendTime;
+    private final AtomicInteger appendedMaxRecordSize;
+    private final AtomicInteger appendsCompleted;
+    private final Queue<Thunk> appendedThunks;
     private final List<Thunk> thunks;
     private boolean retry;
+    // for batches compressed by the compression threads once they are ready to send, whether they have been handed to
+    // those threads and whether the threads are done with them
+    private volatile boolean compressionStarted;
+    private volatile boolean compressionDone;
 
     public RecordBatch(TopicPartition tp, MemoryRecords records, long now) {
         this.createdMs = now;
@@ -52,6 +74,9 @@ public final class RecordBatch {
         this.records = records;
         this.topicPartition = tp;
         this.produceFuture = new ProduceRequestResult();
+        this.appendedMaxRecordSize = new AtomicInteger(0);
+        this.appendsCompleted = new AtomicInteger(0);
+        this.appendedThunks = new ConcurrentLinkedQueue<Thunk>();
         this.thunks = new ArrayList<Thunk>();
         this.lastAppendTime = createdMs;
         this.retry = false;
@@ -63,17 +88,83 @@ public final class RecordBatch {
      * @return The RecordSend corresponding to this record or null if there isn't sufficient room.
      */
     public FutureRecordMetadata tryAppend(byte[] key, byte[] value, Callback callback, long now) {
-        if (!this.records.hasRoomFor(key, value)) {
+        int relativeOffset = this.records.tryAppend(0L, key, value);
+        if (relativeOffset < 0)
+            return null;
+        return appended(relativeOffset, Record.recordSize(key, value), callback, now);
+    }
+
+    /**
+     * Append the record with a key and value that write themselves into the record set and return the relative
+     * offset within that record set
+     *
+     * @return The RecordSend corresponding to this record or null if there isn't sufficient room.
+     */
+    public FutureRecordMetadata tryAppend(RecordField key, RecordField value, Callback callback, long now) {
+        int relativeOffset = this.records.tryAppend(0L, key, value);
+        if (relativeOffset < 0)
             return null;
-        } else {
-            this.records.append(0L, key, value);
-            this.maxRecordSize = Math.max(this.maxRecordSize, Record.recordSize(key, value));
-            this.lastAppendTime = now;
-            FutureRecordMetadata future = new FutureRecordMetadata(this.produceFuture, this.recordCount);
-            if (callback != null)
-                thunks.add(new Thunk(callback, future));
-            this.recordCount++;
-            return future;
+        return appended(relativeOffset, Record.recordSize(key, value), callback, now);
+    }
+
+    /**
+     * Append the record without creating a future or registering a callback for it, for records whose completion is
+     * tracked for a group of them with {@link #track(int, Callback)}
+     *
+     * @return The relative offset of the record or -1 if there isn't sufficient room.
+     */
+    public int tryAppendUntracked(RecordField key, RecordField value, long now) {
+        int relativeOffset = this.records.tryAppend(0L, key, value);
+        if (relativeOffset < 0)
+            return -1;
+        updateMaxRecordSize(Record.recordSize(key, value));
+        this.lastAppendTime = now;
+        this.appendsCompleted.incrementAndGet();
+        return relativeOffset;
+    }
+
+    /**
+     * Create the future, and register the callback, for the records appended with
+     * {@link #tryAppendUntracked(RecordField, RecordField, long)} up to and including the one at the given relative
+     * offset. This must be called before the batch is closed.
+     */
+    public FutureRecordMetadata track(int relativeOffset, Callback callback) {
+        FutureRecordMetadata future = new FutureRecordMetadata(this.produceFuture, relativeOffset);
+        if (callback != null)
+            appendedThunks.add(new Thunk(callback, future));
+        return future;
+    }
+
+    private FutureRecordMetadata appended(int relativeOffset, int size, Callback callback, long now) {
+        updateMaxRecordSize(size);
+        this.lastAppendTime = now;
+        FutureRecordMetadata future = new FutureRecordMetadata(this.produceFuture, relativeOffset);
+        if (callback != null)
+            appendedThunks.add(new Thunk(callback, future));
+        this.appendsCompleted.incrementAndGet();
+        return future;
+    }
+
+    private void updateMaxRecordSize(int size) {
+        int max = this.appendedMaxRecordSize.get();
+        while (size > max && !this.appendedMaxRecordSize.compareAndSet(max, size))
+            max = this.appendedMaxRecordSize.get();
+    }
+
+    /**
+     * Close the batch for further appends, waiting for any in-progress concurrent appends to finish
+     */
+    public void close() {
+        this.records.close();
+        this.recordCount = this.records.numRecords();
+        // the records may already be written while their appends are still registering callbacks
+        while (this.appendsCompleted.get() < this.recordCount)
+            Thread.yield();
+        this.maxRecordSize = this.appendedMaxRecordSize.get();
+        if (this.thunks.isEmpty() && !this.appendedThunks.isEmpty()) {
+            // concurrent appends may have queued their callbacks out of order, but they must fire in offset order
+            this.thunks.addAll(this.appendedThunks);
+            Collections.sort(this.thunks, THUNK_ORDER);
         }
     }
 
@@ -130,9 +221,12 @@ public final class RecordBatch {
      */
     public boolean maybeExpire(int requestTimeout, long now, long lingerMs) {
         boolean expire = false;
+        // a batch being compressed still belongs to the compression threads
+        if (this.compressionStarted && !this.compressionDone)
+            return false;
         if ((this.records.isFull() && requestTimeout < (now - this.lastAppendTime)) || requestTimeout < (now - (this.lastAttemptMs + lingerMs))) {
             expire = true;
-            this.records.close();
+            this.close();
             this.done(-1L, new TimeoutException("Batch Expired"));
         }
 
@@ -152,4 +246,32 @@ public final class RecordBatch {
     public void setRetry() {
         this.retry = true;
     }
+
+    /**
+     * Returns if the batch has been handed to the compression threads
+     */
+    public boolean compressionStarted() {
+        return this.compressionStarted;
+    }
+
+    /**
+     * Mark the batch as handed to the compression threads
+     */
+    public void setCompressionStarted() {
+        this.compressionStarted = true;
+    }
+
+    /**
+     * Returns if the compression threads are done with the batch
+     */
+    public boolean compressionDone() {
+        return this.compressionDone;
+    }
+
+    /**
+     * Mark the compression threads as done with the batch, whether or not they compressed it
+     */
+    public void setCompressionDone() {
+        this.compressionDone = true;
+    }
 }
\ No newline at end of file
@@ -15,10 +15,12 @@ package org.apache.kafka.clients.producer.internals;
 import java.nio.ByteBuffer;
 import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Iterator;
 import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 
 import org.apache.kafka.clients.ClientRequest;
 import org.apache.kafka.clients.ClientResponse;
@@ -57,6 +59,9 @@ public class Sender implements Runnable {
 
     private static final Logger log = LoggerFactory.getLogger(Sender.class);
 
+    /* record sets smaller than this are copied into the produce request, the rest are written out from the batches */
+    private static final int MIN_GATHERED_RECORDS_SIZE = 1024;
+
     /* the state of each nodes connection */
     private final KafkaClient client;
 
@@ -93,6 +98,21 @@ public class Sender implements Runnable {
     /* the max time to wait for the server to respond to the request*/
     private final int requestTimeout;
 
+    /* whether to linger only while a node has requests in flight, see RecordAccumulator.ready() */
+    private final boolean adaptiveLinger;
+
+    /* the moving average of the produce request latency of each node */
+    private final Map<String, Double> produceLatencyMs;
+
+    /* whether to send a node only one produce request at a time while it reports being throttled */
+    private final boolean quotaPacing;
+
+    /* the nodes whose last produce response reported a throttle time */
+    private final Set<String> throttledNodes;
+
+    /* the cluster the per node state was last pruned against */
+    private Cluster prunedCluster;
+
     public Sender(KafkaClient client,
                   Metadata metadata,
                   RecordAccumulator accumulator,
@@ -103,6 +123,21 @@ public class Sender implements Runnable {
                   Time time,
                   String clientId,
                   int requestTimeout) {
+        this(client, metadata, accumulator, maxRequestSize, acks, retries, metrics, time, clientId, requestTimeout, false, false);
+    }
+
+    public Sender(KafkaClient client,
+                  Metadata metadata,
+                  RecordAccumulator accumulator,
+                  int maxRequestSize,
+                  short acks,
+                  int retries,
+                  Metrics metrics,
+                  Time time,
+                  String clientId,
+                  int requestTimeout,
+                  boolean adaptiveLinger,
+                  boolean quotaPacing) {
         this.client = client;
         this.accumulator = accumulator;
         this.metadata = metadata;
@@ -114,6 +149,16 @@ public class Sender implements Runnable {
         this.clientId = clientId;
         this.sensors = new SenderMetrics(metrics);
         this.requestTimeout = requestTimeout;
+        this.adaptiveLinger = adaptiveLinger;
+        this.produceLatencyMs = new HashMap<String, Double>();
+        this.quotaPacing = quotaPacing;
+        this.throttledNodes = new HashSet<String>();
+        // batches compressed off the sender thread may become ready to send while it is blocked polling
+        this.accumulator.onBatchCompressed(new Runnable() {
+            public void run() {
+                wakeup();
+            }
+        });
     }
 
     /**
@@ -143,6 +188,7 @@ public class Sender implements Runnable {
                 log.error("Uncaught error in kafka producer I/O thread: ", e);
             }
         }
+        this.accumulator.closeCompression();
         if (forceClose) {
             // We need to fail all the incomplete batches and wake up the threads waiting on
             // the futures.
@@ -165,8 +211,12 @@ public class Sender implements Runnable {
      */
     public void run(long now) {
         Cluster cluster = metadata.fetch();
+        if (cluster != this.prunedCluster)
+            forgetDepartedNodes(cluster);
         // get the list of partitions with data ready to send
-        RecordAccumulator.ReadyCheckResult result = this.accumulator.ready(cluster, now);
+        RecordAccumulator.ReadyCheckResult result = this.accumulator.ready(cluster, now, adaptiveLinger ? nodeLingerMs(cluster) : null);
+        if (result.effectiveLingerMs >= 0)
+            this.sensors.effectiveLingerSensor.record(result.effectiveLingerMs, now);
 
         // if there are any partitions whose leaders are not known yet, force metadata update
         if (result.unknownLeadersExist)
@@ -177,7 +227,11 @@ public class Sender implements Runnable {
         long notReadyTimeout = Long.MAX_VALUE;
         while (iter.hasNext()) {
             Node node = iter.next();
-            if (!this.client.ready(node, now)) {
+            if (isThrottled(node)) {
+                // leave the node's batches to grow until the response the throttled broker is holding back arrives,
+                // which wakes up the poll
+                iter.remove();
+            } else if (!this.client.ready(node, now)) {
                 iter.remove();
                 notReadyTimeout = Math.min(notReadyTimeout, this.client.connectionDelay(node, now));
             }
@@ -216,6 +270,50 @@ public class Sender implements Runnable {
         this.client.poll(pollTimeout, now);
     }
 
+    /**
+     * Whether the given node reported being throttled and still has a produce request in flight
+     */
+    private boolean isThrottled(Node node) {
+        return this.throttledNodes.contains(node.idString()) && this.client.inFlightRequestCount(node.idString()) > 0;
+    }
+
+    /**
+     * Forget what was learnt about the nodes and partitions that are no longer in the cluster, so that the state does
+     * not grow as brokers come and go
+     */
+    private void forgetDepartedNodes(Cluster cluster) {
+        for (Iterator<String> iter = this.produceLatencyMs.keySet().iterator(); iter.hasNext(); ) {
+            if (cluster.nodeById(Integer.parseInt(iter.next())) == null)
+                iter.remove();
+        }
+        for (Iterator<String> iter = this.throttledNodes.iterator(); iter.hasNext(); ) {
+            if (cluster.nodeById(Integer.parseInt(iter.next())) == null)
+                iter.remove();
+        }
+        this.accumulator.forgetFillRates(cluster);
+        this.prunedCluster = cluster;
+    }
+
+    /**
+     * The longest the partitions of each node should linger for. There is no point in holding back records for a
+     * node with no requests in flight, otherwise they can wait about as long as the requests in flight are expected
+     * to take to complete.
+     */
+    private Map<String, Long> nodeLingerMs(Cluster cluster) {
+        Map<String, Long> lingers = new HashMap<String, Long>();
+        for (Node node : cluster.nodes()) {
+            String nodeId = node.idString();
+            if (this.client.inFlightRequestCount(nodeId) == 0) {
+                lingers.put(nodeId, 0L);
+            } else {
+                Double latency = this.produceLatencyMs.get(nodeId);
+                if (latency != null)
+                    lingers.put(nodeId, (long) Math.ceil(latency));
+            }
+        }
+        return lingers;
+    }
+
     /**
      * Start closing the sender (won't actually complete until all data is sent out)
      */
@@ -236,14 +334,14 @@ public class Sender implements Runnable {
     /**
      * Handle a produce response
      */
-    private void handleProduceResponse(ClientResponse response, Map<TopicPartition, RecordBatch> batches, long now) {
+    private void handleProduceResponse(ClientResponse response, Map<TopicPartition, List<RecordBatch>> batches, long now) {
         int correlationId = response.request().request().header().correlationId();
         if (response.wasDisconnected()) {
             log.trace("Cancelled request {} due to node {} being disconnected", response, response.request()
                                                                                                   .request()
                                                                                                   .destination());
-            for (RecordBatch batch : batches.values())
-                completeBatch(batch, Errors.NETWORK_EXCEPTION, -1L, correlationId, now);
+            for (List<RecordBatch> partitionBatches : batches.values())
+                completeBatches(partitionBatches, Errors.NETWORK_EXCEPTION, -1L, correlationId, now);
         } else {
             log.trace("Received produce response from node {} with correlation id {}",
                       response.request().request().destination(),
@@ -256,30 +354,72 @@ public class Sender implements Runnable {
                     TopicPartition tp = entry.getKey();
                     ProduceResponse.PartitionResponse partResp = entry.getValue();
                     Errors error = Errors.forCode(partResp.errorCode);
-                    RecordBatch batch = batches.get(tp);
-                    completeBatch(batch, error, partResp.baseOffset, correlationId, now);
+                    completeBatches(batches.get(tp), error, partResp.baseOffset, correlationId, now);
                 }
                 this.sensors.recordLatency(response.request().request().destination(), response.requestLatencyMs());
+                updateProduceLatency(response.request().request().destination(), response.requestLatencyMs());
                 this.sensors.recordThrottleTime(response.request().request().destination(),
                                                 produceResponse.getThrottleTime());
+                // a throttled broker holds back each response for the throttle time, so requests sent to it meanwhile
+                // would only pile up in flight; while it reports throttling it is sent one request at a time
+                if (quotaPacing && produceResponse.getThrottleTime() > 0)
+                    this.throttledNodes.add(response.request().request().destination());
+                else
+                    this.throttledNodes.remove(response.request().request().destination());
             } else {
                 // this is the acks = 0 case, just complete all requests
-                for (RecordBatch batch : batches.values())
-                    completeBatch(batch, Errors.NONE, -1L, correlationId, now);
+                for (List<RecordBatch> partitionBatches : batches.values())
+                    completeBatches(partitionBatches, Errors.NONE, -1L, correlationId, now);
+            }
+        }
+    }
+
+    private void updateProduceLatency(String node, long latency) {
+        Double average = this.produceLatencyMs.get(node);
+        this.produceLatencyMs.put(node, average == null ? latency : 0.3 * latency + 0.7 * average);
+    }
+
+    /**
+     * Complete or retry the batches of records sent to a partition, in the order they were sent in. The records of each
+     * batch follow those of the batch before it, so its base offset is past them.
+     *
+     * @param batches The record batches of the partition
+     * @param error The error (or null if none)
+     * @param baseOffset The base offset assigned to the records of the first batch if successful
+     * @param correlationId The correlation id for the request
+     * @param now The current POSIX time stamp in milliseconds
+     */
+    private void completeBatches(List<RecordBatch> batches, Errors error, long baseOffset, long correlationId, long now) {
+        List<RecordBatch> retries = null;
+        long offset = baseOffset;
+        for (RecordBatch batch : batches) {
+            if (!completeBatch(batch, error, offset, correlationId, now)) {
+                if (retries == null)
+                    retries = new ArrayList<RecordBatch>(batches.size());
+                retries.add(batch);
             }
+            if (offset >= 0)
+                offset += batch.recordCount;
+        }
+        if (retries != null) {
+            // each batch goes back to the front of the partition's queue, so the last one goes back first
+            for (int i = retries.size() - 1; i >= 0; i--)
+                this.accumulator.reenqueue(retries.get(i), now);
         }
     }
 
     /**
-     * Complete or retry the given batch of records.
+     * Complete the given batch of records, unless it is to be retried.
      * 
      * @param batch The record batch
      * @param error The error (or null if none)
      * @param baseOffset The base offset assigned to the records if successful
      * @param correlationId The correlation id for the request
      * @param now The current POSIX time stamp in milliseconds
+     * @return false if the batch is to be retried, in which case the caller must reenqueue it
      */
-    private void completeBatch(RecordBatch batch, Errors error, long baseOffset, long correlationId, long now) {
+    private boolean completeBatch(RecordBatch batch, Errors error, long baseOffset, long correlationId, long now) {
+        boolean completed = true;
         if (error != Errors.NONE && canRetry(batch, error)) {
             // retry
             log.warn("Got error produce response with correlation id {} on topic-partition {}, retrying ({} attempts left). Error: {}",
@@ -287,8 +427,8 @@ public class Sender implements Runnable {
                      batch.topicPartition,
                      this.retries - batch.attempts - 1,
                      error);
-            this.accumulator.reenqueue(batch, now);
             this.sensors.recordRetries(batch.topicPartition.topic(), batch.recordCount);
+            completed = false;
         } else if (error == Errors.TOPIC_AUTHORIZATION_FAILED) {
             batch.done(baseOffset, new TopicAuthorizationException(batch.topicPartition.topic()));
         } else {
@@ -300,6 +440,7 @@ public class Sender implements Runnable {
         }
         if (error.exception() instanceof InvalidMetadataException)
             metadata.requestUpdate();
+        return completed;
     }
 
     /**
@@ -323,17 +464,24 @@ public class Sender implements Runnable {
      * Create a produce request from the given record batches
      */
     private ClientRequest produceRequest(long now, int destination, short acks, int timeout, List<RecordBatch> batches) {
-        Map<TopicPartition, ByteBuffer> produceRecordsByPartition = new HashMap<TopicPartition, ByteBuffer>(batches.size());
-        final Map<TopicPartition, RecordBatch> recordsByPartition = new HashMap<TopicPartition, RecordBatch>(batches.size());
+        Map<TopicPartition, ByteBuffer[]> produceRecordsByPartition = new HashMap<TopicPartition, ByteBuffer[]>(batches.size());
+        final Map<TopicPartition, List<RecordBatch>> recordsByPartition = new HashMap<TopicPartition, List<RecordBatch>>(batches.size());
         for (RecordBatch batch : batches) {
             TopicPartition tp = batch.topicPartition;
-            produceRecordsByPartition.put(tp, batch.records.buffer());
-            recordsByPartition.put(tp, batch);
+            List<RecordBatch> partitionBatches = recordsByPartition.get(tp);
+            if (partitionBatches == null) {
+                partitionBatches = new ArrayList<RecordBatch>(1);
+                recordsByPartition.put(tp, partitionBatches);
+            }
+            partitionBatches.add(batch);
         }
-        ProduceRequest request = new ProduceRequest(acks, timeout, produceRecordsByPartition);
+        for (Map.Entry<TopicPartition, List<RecordBatch>> entry : recordsByPartition.entrySet())
+            produceRecordsByPartition.put(entry.getKey(), recordSet(entry.getValue()));
+        ProduceRequest request = ProduceRequest.fromRecordSets(acks, timeout, produceRecordsByPartition);
         RequestSend send = new RequestSend(Integer.toString(destination),
                                            this.client.nextRequestHeader(ApiKeys.PRODUCE),
-                                           request.toStruct());
+                                           request.toStruct(),
+                                           MIN_GATHERED_RECORDS_SIZE);
         RequestCompletionHandler callback = new RequestCompletionHandler() {
             public void onComplete(ClientResponse response) {
                 handleProduceResponse(response, recordsByPartition, time.milliseconds());
@@ -342,6 +490,17 @@ public class Sender implements Runnable {
         return new ClientRequest(now, acks != 0, send, callback);
     }
 
+    /**
+     * The record set to send for the batches of a partition. A request carries one record set per partition, so that
+     * of a backlogged partition is made up of the buffers of its batches, which are written out one after the other.
+     */
+    private static ByteBuffer[] recordSet(List<RecordBatch> batches) {
+        ByteBuffer[] buffers = new ByteBuffer[batches.size()];
+        for (int i = 0; i < buffers.length; i++)
+            buffers[i] = batches.get(i).records.buffer();
+        return buffers;
+    }
+
     /**
      * Wake up the selector associated with this send thread
      */
@@ -364,6 +523,7 @@ public class Sender implements Runnable {
         public final Sensor compressionRateSensor;
         public final Sensor maxRecordSizeSensor;
         public final Sensor produceThrottleTimeSensor;
+        public final Sensor effectiveLingerSensor;
 
         public SenderMetrics(Metrics metrics) {
             this.metrics = metrics;
@@ -399,6 +559,12 @@ public class Sender implements Runnable {
             m = new MetricName("produce-throttle-time-max", metricGrpName, "The maximum throttle time in ms", metricTags);
             this.produceThrottleTimeSensor.add(m, new Max());
 
+            this.effectiveLingerSensor = metrics.sensor("effective-linger");
+            m = new MetricName("effective-linger-ms-avg", metricGrpName, "The average of the longest time in ms a partition with records waiting was allowed to linger for, which is linger.ms unless linger.adaptive is enabled.", metricTags);
+            this.effectiveLingerSensor.add(m, new Avg());
+            m = new MetricName("effective-linger-ms-max", metricGrpName, "The maximum time in ms a partition with records waiting was allowed to linger for.", metricTags);
+            this.effectiveLingerSensor.add(m, new Max());
+
             this.recordsPerRequestSensor = metrics.sensor("records-per-request");
             m = new MetricName("record-send-rate", metricGrpName, "The average number of records sent per second.", metricTags);
             this.recordsPerRequestSensor.add(m, new Rate());
@@ -0,0 +1,60 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more contributor license agreements. See the NOTICE
+ * file distributed with this work for additional information regarding copyright ownership. The ASF licenses this file
+ * to You under the Apache License, Version 2.0 (the "License"); you may not use this file except in compliance with the
+ * License. You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on
+ * an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.apache.kafka.clients.producer.internals;
+
+import java.nio.ByteBuffer;
+
+import org.apache.kafka.common.record.RecordField;
+import org.apache.kafka.common.serialization.InPlaceSerializer;
+
+/**
+ * A key or value that its {@link InPlaceSerializer} writes straight into the batch the record is appended to
+ */
+public final class SerializedRecordField<T> implements RecordField {
+
+    private final InPlaceSerializer<T> serializer;
+    private final String topic;
+    private final T data;
+    private final int size;
+
+    private SerializedRecordField(InPlaceSerializer<T> serializer, String topic, T data, int size) {
+        this.serializer = serializer;
+        this.topic = topic;
+        this.data = data;
+        this.size = size;
+    }
+
+    /**
+     * Create a field for the given data, or return null if the serializer would serialize it to null
+     */
+    public static <T> RecordField create(InPlaceSerializer<T> serializer, String topic, T data) {
+        int size = serializer.serializedSize(topic, data);
+        return size < 0 ? null : new SerializedRecordField<T>(serializer, topic, data, size);
+    }
+
+    @Override
+    public int sizeInBytes() {
+        return size;
+    }
+
+    @Override
+    public void writeTo(ByteBuffer buffer) {
+        serializer.serializeInto(topic, data, buffer);
+    }
+
+    @Override
+    public String toString() {
+        return "SerializedRecordField(serializer=" + serializer.getClass().getName() + ", size=" + size + ")";
+    }
+
+}
@@ -0,0 +1,165 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more contributor license agreements. See the NOTICE
+ * file distributed with this work for additional information regarding copyright ownership. The ASF licenses this file
+ * to You under the Apache License, Version 2.0 (the "License"); you may not use this file except in compliance with the
+ * License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on
+ * an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.apache.kafka.clients.producer.internals;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+import org.apache.kafka.common.MetricName;
+import org.apache.kafka.common.errors.TimeoutException;
+import org.apache.kafka.common.metrics.Measurable;
+import org.apache.kafka.common.metrics.MetricConfig;
+import org.apache.kafka.common.metrics.Metrics;
+import org.apache.kafka.common.metrics.Sensor;
+import org.apache.kafka.common.metrics.stats.Rate;
+
+/**
+ * Keeps track of the buffer memory held by the batches of each topic and, if a limit is set, bounds it. A topic whose
+ * batches pile up, because it is hot or its leaders are slow, then blocks appends to itself once it holds the limit
+ * rather than taking all of the buffer memory and blocking appends to every other topic until it drains.
+ * <p>
+ * The memory each topic holds and the time appends to it spend allocating memory are registered as topic metrics.
+ */
+public final class TopicMemoryLimits {
+
+    private final long maxTopicMemory;
+    private final ConcurrentMap<String, TopicMemory> topics;
+    private final Metrics metrics;
+    private final Map<String, String> metricTags;
+
+    /**
+     * Create the topic memory limits
+     *
+     * @param maxTopicMemory The most memory the batches of a single topic may hold, or 0 for no limit
+     * @param metrics The metrics
+     * @param metricTags additional key/value attributes of the metrics
+     */
+    public TopicMemoryLimits(long maxTopicMemory, Metrics metrics, Map<String, String> metricTags) {
+        this.maxTopicMemory = maxTopicMemory;
+        this.topics = new ConcurrentHashMap<String, TopicMemory>();
+        this.metrics = metrics;
+        this.metricTags = metricTags;
+    }
+
+    /**
+     * Reserve memory for a buffer of the given size for the topic, blocking while that would take the topic over its
+     * limit. A topic that holds no memory can always reserve it, so a record larger than the limit can still be sent.
+     *
+     * @param topic The topic
+     * @param size The size of the buffer
+     * @param maxTimeToBlock The maximum time in milliseconds to block for the topic to release memory
+     * @return The part of the maximum time to block that is left
+     * @throws InterruptedException If the thread is interrupted while blocked
+     * @throws TimeoutException If the topic did not release enough memory in time
+     */
+    public long reserve(String topic, int size, long maxTimeToBlock) throws InterruptedException {
+        TopicMemory memory = memoryFor(topic);
+        if (this.maxTopicMemory <= 0) {
+            memory.held.addAndGet(size);
+            return maxTimeToBlock;
+        }
+        long remainingTimeToBlockNs = TimeUnit.MILLISECONDS.toNanos(maxTimeToBlock);
+        memory.lock.lock();
+        try {
+            while (memory.held.get() > 0 && memory.held.get() + size > this.maxTopicMemory) {
+                if (remainingTimeToBlockNs <= 0)
+                    throw new TimeoutException("Failed to allocate memory for topic " + topic + " within the configured max blocking time");
+                remainingTimeToBlockNs = memory.released.awaitNanos(remainingTimeToBlockNs);
+            }
+            memory.held.addAndGet(size);
+        } finally {
+            memory.lock.unlock();
+        }
+        return Math.max(0, TimeUnit.NANOSECONDS.toMillis(remainingTimeToBlockNs));
+    }
+
+    /**
+     * Add to the memory held by the topic without checking its limit, for when a buffer turned out larger than the
+     * memory reserved for it
+     */
+    public void add(String topic, int size) {
+        memoryFor(topic).held.addAndGet(size);
+    }
+
+    /**
+     * Release memory held by the topic
+     */
+    public void release(String topic, int size) {
+        TopicMemory memory = memoryFor(topic);
+        memory.held.addAndGet(-size);
+        if (this.maxTopicMemory > 0) {
+            memory.lock.lock();
+            try {
+                memory.released.signalAll();
+            } finally {
+                memory.lock.unlock();
+            }
+        }
+    }
+
+    /**
+     * Record the time an append to the topic spent getting the memory for a new batch
+     */
+    public void recordAllocationTime(String topic, long ns, long nowMs) {
+        memoryFor(topic).allocationTime.record(ns, nowMs);
+    }
+
+    /**
+     * The memory held by the batches of the topic
+     */
+    public long heldMemory(String topic) {
+        TopicMemory memory = this.topics.get(topic);
+        return memory == null ? 0 : memory.held.get();
+    }
+
+    private TopicMemory memoryFor(String topic) {
+        TopicMemory memory = this.topics.get(topic);
+        if (memory != null)
+            return memory;
+        // getting the sensor again for the same topic returns the same one
+        memory = new TopicMemory(metrics.sensor("topic." + topic + ".bufferpool-wait-time"));
+        TopicMemory previous = this.topics.putIfAbsent(topic, memory);
+        if (previous != null)
+            return previous;
+
+        Map<String, String> topicTags = new LinkedHashMap<String, String>(metricTags);
+        topicTags.put("topic", topic);
+        MetricName metricName = new MetricName("buffer-held-bytes", "producer-topic-metrics", "The amount of buffer memory the batches of the topic hold.", topicTags);
+        final AtomicLong held = memory.held;
+        metrics.addMetric(metricName, new Measurable() {
+            public double measure(MetricConfig config, long now) {
+                return held.get();
+            }
+        });
+        metricName = new MetricName("bufferpool-wait-ratio", "producer-topic-metrics", "The fraction of time appenders to the topic spend getting buffer memory for new batches, which is mostly time waiting for it.", topicTags);
+        memory.allocationTime.add(metricName, new Rate(TimeUnit.NANOSECONDS));
+        return memory;
+    }
+
+    private static final class TopicMemory {
+        final AtomicLong held = new AtomicLong(0);
+        final ReentrantLock lock = new ReentrantLock();
+        final Condition released = lock.newCondition();
+        final Sensor allocationTime;
+
+        TopicMemory(Sensor allocationTime) {
+            this.allocationTime = allocationTime;
+        }
+    }
+}
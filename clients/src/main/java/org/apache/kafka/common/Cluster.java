@@ -24,7 +24,7 @@ public final class Cluster {
 
     private final List<Node> nodes;
     private final Set<String> unauthorizedTopics;
-    private final Map<TopicPartition, PartitionInfo> partitionsByTopicPartition;
+    private final Map<String, PartitionInfo[]> partitionsByNumber;
     private final Map<String, List<PartitionInfo>> partitionsByTopic;
     private final Map<String, List<PartitionInfo>> availablePartitionsByTopic;
     private final Map<Integer, List<PartitionInfo>> partitionsByNode;
@@ -47,11 +47,6 @@ public final class Cluster {
         for (Node node: nodes)
             this.nodesById.put(node.id(), node);
 
-        // index the partitions by topic/partition for quick lookup
-        this.partitionsByTopicPartition = new HashMap<>(partitions.size());
-        for (PartitionInfo p : partitions)
-            this.partitionsByTopicPartition.put(new TopicPartition(p.topic(), p.partition()), p);
-
         // index the partitions by topic and node respectively, and make the lists
         // unmodifiable so we can hand them out in user-facing apis without risk
         // of the client modifying the contents
@@ -73,10 +68,20 @@ public final class Cluster {
         }
         this.partitionsByTopic = new HashMap<>(partsForTopic.size());
         this.availablePartitionsByTopic = new HashMap<>(partsForTopic.size());
+        this.partitionsByNumber = new HashMap<>(partsForTopic.size());
         for (Map.Entry<String, List<PartitionInfo>> entry : partsForTopic.entrySet()) {
             String topic = entry.getKey();
             List<PartitionInfo> partitionList = entry.getValue();
             this.partitionsByTopic.put(topic, Collections.unmodifiableList(partitionList));
+            // index the partitions of the topic by their number, so looking one up on the send path takes a single
+            // lookup of the topic
+            int maxPartition = -1;
+            for (PartitionInfo part : partitionList)
+                maxPartition = Math.max(maxPartition, part.partition());
+            PartitionInfo[] byNumber = new PartitionInfo[maxPartition + 1];
+            for (PartitionInfo part : partitionList)
+                byNumber[part.partition()] = part;
+            this.partitionsByNumber.put(topic, byNumber);
             List<PartitionInfo> availablePartitions = new ArrayList<>();
             for (PartitionInfo part : partitionList) {
                 if (part.leader() != null)
@@ -133,7 +138,7 @@ public final class Cluster {
      * @return The node that is the leader for this topic-partition, or null if there is currently no leader
      */
     public Node leaderFor(TopicPartition topicPartition) {
-        PartitionInfo info = partitionsByTopicPartition.get(topicPartition);
+        PartitionInfo info = partition(topicPartition);
         if (info == null)
             return null;
         else
@@ -146,7 +151,11 @@ public final class Cluster {
      * @return The metadata about the given topic and partition
      */
     public PartitionInfo partition(TopicPartition topicPartition) {
-        return partitionsByTopicPartition.get(topicPartition);
+        PartitionInfo[] partitions = this.partitionsByNumber.get(topicPartition.topic());
+        int partition = topicPartition.partition();
+        if (partitions == null || partition < 0 || partition >= partitions.length)
+            return null;
+        return partitions[partition];
     }
 
     /**
@@ -200,7 +209,10 @@ public final class Cluster {
 
     @Override
     public String toString() {
-        return "Cluster(nodes = " + this.nodes + ", partitions = " + this.partitionsByTopicPartition.values() + ")";
+        List<PartitionInfo> partitions = new ArrayList<>();
+        for (List<PartitionInfo> topicPartitions : this.partitionsByTopic.values())
+            partitions.addAll(topicPartitions);
+        return "Cluster(nodes = " + this.nodes + ", partitions = " + partitions + ")";
     }
 
 }
@@ -13,7 +13,9 @@
 package org.apache.kafka.common.protocol.types;
 
 import java.nio.ByteBuffer;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.List;
 
 /**
  * A record that can be serialized and deserialized according to a pre-defined schema
@@ -147,16 +149,25 @@ public class Struct {
     }
 
     public ByteBuffer getBytes(Field field) {
-        Object result = get(field);
-        if (result instanceof byte[])
-            return ByteBuffer.wrap((byte[]) result);
-        return (ByteBuffer) result;
+        return toByteBuffer(get(field));
     }
 
     public ByteBuffer getBytes(String name) {
-        Object result = get(name);
+        return toByteBuffer(get(name));
+    }
+
+    private static ByteBuffer toByteBuffer(Object result) {
         if (result instanceof byte[])
             return ByteBuffer.wrap((byte[]) result);
+        if (result instanceof ByteBuffer[]) {
+            // a value set as several buffers is copied into one
+            ByteBuffer[] buffers = (ByteBuffer[]) result;
+            ByteBuffer buffer = ByteBuffer.allocate(Type.remaining(buffers));
+            for (ByteBuffer part : buffers)
+                buffer.put(part.duplicate());
+            buffer.flip();
+            return buffer;
+        }
         return (ByteBuffer) result;
     }
 
@@ -272,6 +283,100 @@ public class Struct {
         return new ByteBuffer[] {buffer};
     }
 
+    /**
+     * Create a sequence of byte buffers containing the serialized form of the values in this struct, in which the
+     * contents of bytes fields of at least the given size are not copied but referenced as buffers of their own (one
+     * for each buffer of a field set to a ByteBuffer[]). The rest of the struct is written to a single buffer the other
+     * returned buffers are slices of, so the whole can be written out with one gathering write.
+     *
+     * @param minGatheredSize The size from which the contents of a bytes field are referenced rather than copied
+     */
+    public ByteBuffer[] toBytes(int minGatheredSize) {
+        ByteBuffer framing = ByteBuffer.allocate(sizeOf() - gatheredSize(this.schema, this, minGatheredSize));
+        List<ByteBuffer> gathered = new ArrayList<ByteBuffer>();
+        List<Integer> cuts = new ArrayList<Integer>();
+        writeGathering(this.schema, this, framing, gathered, cuts, minGatheredSize);
+        ByteBuffer[] buffers = new ByteBuffer[2 * gathered.size() + 1];
+        int start = 0;
+        for (int i = 0; i < gathered.size(); i++) {
+            buffers[2 * i] = slice(framing, start, cuts.get(i));
+            buffers[2 * i + 1] = gathered.get(i);
+            start = cuts.get(i);
+        }
+        buffers[buffers.length - 1] = slice(framing, start, framing.position());
+        return buffers;
+    }
+
+    private static ByteBuffer slice(ByteBuffer buffer, int start, int end) {
+        ByteBuffer slice = buffer.duplicate();
+        slice.limit(end);
+        slice.position(start);
+        return slice.slice();
+    }
+
+    private static int gatheredSize(Type type, Object value, int minGatheredSize) {
+        if (type instanceof Schema) {
+            Struct struct = (Struct) value;
+            int size = 0;
+            for (Field field : struct.schema.fields())
+                size += gatheredSize(field.type, struct.get(field), minGatheredSize);
+            return size;
+        } else if (type instanceof ArrayOf) {
+            Type elementType = ((ArrayOf) type).type();
+            int size = 0;
+            for (Object element : (Object[]) value)
+                size += gatheredSize(elementType, element, minGatheredSize);
+            return size;
+        } else if (type == Type.BYTES && value instanceof ByteBuffer) {
+            int size = ((ByteBuffer) value).remaining();
+            return size >= minGatheredSize ? size : 0;
+        } else if (type == Type.BYTES && value instanceof ByteBuffer[]) {
+            int size = Type.remaining((ByteBuffer[]) value);
+            return size >= minGatheredSize ? size : 0;
+        } else {
+            return 0;
+        }
+    }
+
+    /**
+     * Write the given value to the framing buffer, except for the contents of the gathered bytes fields, which are
+     * collected along with the position in the framing buffer they go after
+     */
+    private static void writeGathering(Type type, Object value, ByteBuffer framing, List<ByteBuffer> gathered,
+                                       List<Integer> cuts, int minGatheredSize) {
+        if (type instanceof Schema) {
+            Struct struct = (Struct) value;
+            for (Field field : struct.schema.fields()) {
+                try {
+                    Object fieldValue = field.type.validate(struct.get(field));
+                    writeGathering(field.type, fieldValue, framing, gathered, cuts, minGatheredSize);
+                } catch (Exception e) {
+                    throw new SchemaException("Error writing field '" + field.name + "': " +
+                                              (e.getMessage() == null ? e.getClass().getName() : e.getMessage()));
+                }
+            }
+        } else if (type instanceof ArrayOf) {
+            Object[] elements = (Object[]) value;
+            framing.putInt(elements.length);
+            for (Object element : elements)
+                writeGathering(((ArrayOf) type).type(), element, framing, gathered, cuts, minGatheredSize);
+        } else if (type == Type.BYTES && value instanceof ByteBuffer && ((ByteBuffer) value).remaining() >= minGatheredSize) {
+            ByteBuffer bytes = (ByteBuffer) value;
+            framing.putInt(bytes.remaining());
+            gathered.add(bytes.duplicate());
+            cuts.add(framing.position());
+        } else if (type == Type.BYTES && value instanceof ByteBuffer[] && Type.remaining((ByteBuffer[]) value) >= minGatheredSize) {
+            ByteBuffer[] buffers = (ByteBuffer[]) value;
+            framing.putInt(Type.remaining(buffers));
+            for (ByteBuffer bytes : buffers) {
+                gathered.add(bytes.duplicate());
+                cuts.add(framing.position());
+            }
+        } else {
+            type.write(framing, value);
+        }
+    }
+
     @Override
     public String toString() {
         StringBuilder b = new StringBuilder();
@@ -289,7 +394,9 @@ public class Struct {
                         b.append(',');
                 }
                 b.append(']');
-            } else
+            } else if (this.values[i] instanceof ByteBuffer[])
+                b.append(Arrays.toString((ByteBuffer[]) this.values[i]));
+            else
                 b.append(this.values[i]);
             if (i < this.values.length - 1)
                 b.append(',');
@@ -208,9 +208,20 @@ public abstract class Type {
         }
     };
 
+    /**
+     * A sequence of bytes, which may be given as a ByteBuffer or as a ByteBuffer[] whose buffers are written one after
+     * the other. It is always read as a single ByteBuffer.
+     */
     public static final Type BYTES = new Type() {
         @Override
         public void write(ByteBuffer buffer, Object o) {
+            if (o instanceof ByteBuffer[]) {
+                ByteBuffer[] args = (ByteBuffer[]) o;
+                buffer.putInt(remaining(args));
+                for (ByteBuffer arg : args)
+                    buffer.put(arg.duplicate());
+                return;
+            }
             ByteBuffer arg = (ByteBuffer) o;
             int pos = arg.position();
             buffer.putInt(arg.remaining());
@@ -229,6 +240,8 @@ public abstract class Type {
 
         @Override
         public int sizeOf(Object o) {
+            if (o instanceof ByteBuffer[])
+                return 4 + remaining((ByteBuffer[]) o);
             ByteBuffer buffer = (ByteBuffer) o;
             return 4 + buffer.remaining();
         }
@@ -239,12 +252,22 @@ public abstract class Type {
         }
 
         @Override
-        public ByteBuffer validate(Object item) {
-            if (item instanceof ByteBuffer)
-                return (ByteBuffer) item;
+        public Object validate(Object item) {
+            if (item instanceof ByteBuffer || item instanceof ByteBuffer[])
+                return item;
             else
-                throw new SchemaException(item + " is not a java.nio.ByteBuffer.");
+                throw new SchemaException(item + " is not a java.nio.ByteBuffer or java.nio.ByteBuffer[].");
         }
     };
 
+    /**
+     * The total number of bytes remaining in the given buffers
+     */
+    public static int remaining(ByteBuffer[] buffers) {
+        int size = 0;
+        for (ByteBuffer buffer : buffers)
+            size += buffer.remaining();
+        return size;
+    }
+
 }
@@ -0,0 +1,69 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.kafka.common.record;
+
+import java.nio.ByteBuffer;
+
+/**
+ * A record field for a key or value that has already been serialized to a byte array
+ */
+public final class ByteArrayRecordField implements RecordField {
+
+    private final byte[] bytes;
+
+    private ByteArrayRecordField(byte[] bytes) {
+        this.bytes = bytes;
+    }
+
+    /**
+     * Wrap the given bytes, or return null for a null byte array
+     */
+    public static RecordField wrap(byte[] bytes) {
+        return bytes == null ? null : new ByteArrayRecordField(bytes);
+    }
+
+    /**
+     * Get the bytes of the given field if it is null or wraps a byte array
+     *
+     * @throws IllegalArgumentException if the field does not wrap a byte array
+     */
+    public static byte[] bytes(RecordField field) {
+        if (field == null)
+            return null;
+        if (!(field instanceof ByteArrayRecordField))
+            throw new IllegalArgumentException("Record field " + field + " is not a byte array");
+        return ((ByteArrayRecordField) field).bytes;
+    }
+
+    /**
+     * Check if the given field is null or wraps a byte array
+     */
+    public static boolean isByteArray(RecordField field) {
+        return field == null || field instanceof ByteArrayRecordField;
+    }
+
+    @Override
+    public int sizeInBytes() {
+        return bytes.length;
+    }
+
+    @Override
+    public void writeTo(ByteBuffer buffer) {
+        buffer.put(bytes);
+    }
+
+}
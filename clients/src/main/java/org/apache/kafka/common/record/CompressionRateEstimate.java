@@ -0,0 +1,56 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.kafka.common.record;
+
+/**
+ * A running estimate of the rate a compression codec compresses some data at, that is the compressed size over the
+ * uncompressed size. A {@link Compressor} uses it to estimate how much of its buffer has been written, and feeds the
+ * rate it actually achieved back into it when it is closed.
+ * <p>
+ * Concurrent updates may overwrite one another, which only loses a sample.
+ */
+public final class CompressionRateEstimate {
+
+    private static final float DAMPING_FACTOR = 0.9f;
+
+    private volatile float rate;
+
+    /**
+     * Create an estimate starting out at the default rate of the given compression type
+     */
+    public CompressionRateEstimate(CompressionType type) {
+        this(type.rate);
+    }
+
+    public CompressionRateEstimate(float rate) {
+        this.rate = rate;
+    }
+
+    /**
+     * The current estimate
+     */
+    public float rate() {
+        return this.rate;
+    }
+
+    /**
+     * Move the estimate towards a rate that was just observed
+     */
+    public void update(float observedRate) {
+        this.rate = this.rate * DAMPING_FACTOR + observedRate * (1 - DAMPING_FACTOR);
+    }
+}
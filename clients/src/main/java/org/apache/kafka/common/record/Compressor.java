@@ -30,32 +30,47 @@ import java.util.zip.GZIPOutputStream;
 
 public class Compressor {
 
-    static private final float COMPRESSION_RATE_DAMPING_FACTOR = 0.9f;
     static private final float COMPRESSION_RATE_ESTIMATION_FACTOR = 1.05f;
     static private final int COMPRESSION_DEFAULT_BUFFER_SIZE = 1024;
 
-    private static final float[] TYPE_TO_RATE;
+    // the estimates shared by all compressors that are not given one of their own
+    private static final CompressionRateEstimate[] TYPE_TO_RATE;
 
     static {
         int maxTypeId = -1;
         for (CompressionType type : CompressionType.values())
             maxTypeId = Math.max(maxTypeId, type.id);
-        TYPE_TO_RATE = new float[maxTypeId + 1];
+        TYPE_TO_RATE = new CompressionRateEstimate[maxTypeId + 1];
         for (CompressionType type : CompressionType.values()) {
-            TYPE_TO_RATE[type.id] = type.rate;
+            TYPE_TO_RATE[type.id] = new CompressionRateEstimate(type);
         }
     }
 
     private final CompressionType type;
+    private final CompressionRateEstimate rateEstimate;
     private final DataOutputStream appendStream;
     private final ByteBufferOutputStream bufferStream;
     private final int initPos;
+    private ByteBuffer recordBuffer;
 
     public long writtenUncompressed;
     public long numRecords;
 
     public Compressor(ByteBuffer buffer, CompressionType type, int blockSize) {
+        this(buffer, type, blockSize, TYPE_TO_RATE[type.id]);
+    }
+
+    /**
+     * Create a compressor that estimates the size of its output with the given estimate, rather than the one shared by
+     * all compressors of the compression type, and updates it when it is closed
+     */
+    public Compressor(ByteBuffer buffer, CompressionType type, CompressionRateEstimate rateEstimate) {
+        this(buffer, type, COMPRESSION_DEFAULT_BUFFER_SIZE, rateEstimate);
+    }
+
+    private Compressor(ByteBuffer buffer, CompressionType type, int blockSize, CompressionRateEstimate rateEstimate) {
         this.type = type;
+        this.rateEstimate = rateEstimate;
         this.initPos = buffer.position();
 
         this.numRecords = 0;
@@ -117,8 +132,7 @@ public class Compressor {
 
             // update the compression ratio
             float compressionRate = (float) buffer.position() / this.writtenUncompressed;
-            TYPE_TO_RATE[type.id] = TYPE_TO_RATE[type.id] * COMPRESSION_RATE_DAMPING_FACTOR +
-                compressionRate * (1 - COMPRESSION_RATE_DAMPING_FACTOR);
+            rateEstimate.update(compressionRate);
         }
     }
 
@@ -177,6 +191,50 @@ public class Compressor {
         putRecord(key, value, CompressionType.NONE, 0, -1);
     }
 
+    /**
+     * Put a log entry for a record whose key and value write themselves. The record is written to a buffer kept by
+     * this compressor first, since its checksum has to be written to the underlying stream ahead of it; this also means
+     * nothing reaches the stream if the key or value fails to write itself.
+     */
+    public void putEntry(long offset, RecordField key, RecordField value) {
+        int size = Record.recordSize(key, value);
+        if (ByteArrayRecordField.isByteArray(key) && ByteArrayRecordField.isByteArray(value)) {
+            putLong(offset);
+            putInt(size);
+            putRecord(ByteArrayRecordField.bytes(key), ByteArrayRecordField.bytes(value));
+            return;
+        }
+
+        if (recordBuffer == null || recordBuffer.capacity() < size)
+            recordBuffer = ByteBuffer.allocate(Math.max(size, COMPRESSION_DEFAULT_BUFFER_SIZE));
+        recordBuffer.clear();
+        Record.write(recordBuffer, key, value);
+        recordBuffer.flip();
+        putLong(offset);
+        putInt(size);
+        put(recordBuffer);
+    }
+
+    /**
+     * Put log entries that have already been written out uncompressed, counting them as the given number of records
+     */
+    public void putRecords(ByteBuffer entries, int count) {
+        int size = entries.remaining();
+        if (entries.hasArray()) {
+            put(entries.array(), entries.arrayOffset() + entries.position(), size);
+        } else {
+            ByteBuffer source = entries.duplicate();
+            byte[] chunk = new byte[Math.min(size, COMPRESSION_DEFAULT_BUFFER_SIZE)];
+            while (source.hasRemaining()) {
+                int length = Math.min(chunk.length, source.remaining());
+                source.get(chunk, 0, length);
+                put(chunk, 0, length);
+            }
+        }
+        numRecords += count;
+        writtenUncompressed += size;
+    }
+
     private void putRecord(final long crc, final byte attributes, final byte[] key, final byte[] value, final int valueOffset, final int valueSize) {
         Record.write(this, crc, attributes, key, value, valueOffset, valueSize);
     }
@@ -195,7 +253,7 @@ public class Compressor {
             return bufferStream.buffer().position();
         } else {
             // estimate the written bytes to the underlying byte buffer based on uncompressed written bytes
-            return (long) (writtenUncompressed * TYPE_TO_RATE[type.id] * COMPRESSION_RATE_ESTIMATION_FACTOR);
+            return (long) (writtenUncompressed * rateEstimate.rate() * COMPRESSION_RATE_ESTIMATION_FACTOR);
         }
     }
 
@@ -237,6 +295,10 @@ public class Compressor {
     }
 
     static public DataInputStream wrapForInput(ByteBufferInputStream buffer, CompressionType type) {
+        return wrapForInput(buffer, type, null);
+    }
+
+    static public DataInputStream wrapForInput(ByteBufferInputStream buffer, CompressionType type, DecompressionContext context) {
         try {
             switch (type) {
                 case NONE:
@@ -258,8 +320,8 @@ public class Compressor {
                     // dynamically load LZ4 class to avoid runtime dependency
                     try {
                         Class<?> inputStreamClass = Class.forName("org.apache.kafka.common.record.KafkaLZ4BlockInputStream");
-                        InputStream stream = (InputStream) inputStreamClass.getConstructor(InputStream.class)
-                            .newInstance(buffer);
+                        InputStream stream = (InputStream) inputStreamClass.getConstructor(InputStream.class, DecompressionContext.class)
+                            .newInstance(buffer, context);
                         return new DataInputStream(stream);
                     } catch (Exception e) {
                         throw new KafkaException(e);
@@ -0,0 +1,76 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more contributor license agreements. See the NOTICE
+ * file distributed with this work for additional information regarding copyright ownership. The ASF licenses this file
+ * to You under the Apache License, Version 2.0 (the "License"); you may not use this file except in compliance with the
+ * License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on
+ * an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.apache.kafka.common.record;
+
+import java.util.EnumMap;
+import java.util.Map;
+
+/**
+ * Buffers that the deep iteration of compressed records reuses from one wrapper message to the next, and from one set
+ * of records to the next, instead of allocating them again for each wrapper.
+ * <p>
+ * The working buffers of the decompression streams are kept per codec. The buffer the inner records are decompressed
+ * into is only reused if the context is created to do so, in which case a record read through the context is only
+ * valid until the iterator moves on to the next one, so it must be copied out of before then.
+ * <p>
+ * A context may only be used by one thread, and for one iteration at a time.
+ */
+public final class DecompressionContext {
+
+    private final boolean reuseRecordBuffer;
+    private final Map<CompressionType, byte[][]> codecBuffers;
+    private byte[] recordBuffer;
+
+    /**
+     * Create a context
+     *
+     * @param reuseRecordBuffer Whether to decompress each record into the same buffer, rather than a new one
+     */
+    public DecompressionContext(boolean reuseRecordBuffer) {
+        this.reuseRecordBuffer = reuseRecordBuffer;
+        this.codecBuffers = new EnumMap<CompressionType, byte[][]>(CompressionType.class);
+    }
+
+    /**
+     * Get a working buffer for a decompression stream of the codec, which is the same one every time as long as it is
+     * large enough
+     *
+     * @param type The codec
+     * @param index Which of the buffers the stream uses
+     * @param size The least size of the buffer
+     */
+    public byte[] codecBuffer(CompressionType type, int index, int size) {
+        byte[][] buffers = this.codecBuffers.get(type);
+        if (buffers == null || buffers.length <= index) {
+            byte[][] grown = new byte[index + 1][];
+            if (buffers != null)
+                System.arraycopy(buffers, 0, grown, 0, buffers.length);
+            buffers = grown;
+            this.codecBuffers.put(type, buffers);
+        }
+        if (buffers[index] == null || buffers[index].length < size)
+            buffers[index] = new byte[size];
+        return buffers[index];
+    }
+
+    /**
+     * Get the array to decompress a record of the given size into
+     */
+    byte[] recordBuffer(int size) {
+        if (!this.reuseRecordBuffer)
+            return new byte[size];
+        if (this.recordBuffer == null || this.recordBuffer.length < size)
+            this.recordBuffer = new byte[size];
+        return this.recordBuffer;
+    }
+}
@@ -66,13 +66,30 @@ public final class KafkaLZ4BlockInputStream extends FilterInputStream {
      * @throws IOException
      */
     public KafkaLZ4BlockInputStream(InputStream in) throws IOException {
+        this(in, null);
+    }
+
+    /**
+     * Create a new {@link InputStream} that will decompress data using the LZ4 algorithm, with the block buffers of the
+     * given context if there is one.
+     * 
+     * @param in The stream to decompress
+     * @param context The context to take the block buffers from, or null to allocate them
+     * @throws IOException
+     */
+    public KafkaLZ4BlockInputStream(InputStream in, DecompressionContext context) throws IOException {
         super(in);
         decompressor = LZ4Factory.fastestInstance().safeDecompressor();
         checksum = XXHashFactory.fastestInstance().hash32();
         readHeader();
         maxBlockSize = bd.getBlockMaximumSize();
-        buffer = new byte[maxBlockSize];
-        compressedBuffer = new byte[maxBlockSize];
+        if (context == null) {
+            buffer = new byte[maxBlockSize];
+            compressedBuffer = new byte[maxBlockSize];
+        } else {
+            buffer = context.codecBuffer(CompressionType.LZ4, 0, maxBlockSize);
+            compressedBuffer = context.codecBuffer(CompressionType.LZ4, 1, maxBlockSize);
+        }
         bufferOffset = 0;
         bufferSize = 0;
         finished = false;
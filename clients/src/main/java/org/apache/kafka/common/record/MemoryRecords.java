@@ -17,6 +17,8 @@ import java.io.EOFException;
 import java.io.IOException;
 import java.nio.ByteBuffer;
 import java.util.Iterator;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 import org.apache.kafka.common.KafkaException;
 import org.apache.kafka.common.utils.AbstractIterator;
@@ -28,6 +30,12 @@ public class MemoryRecords implements Records {
 
     private final static int WRITE_LIMIT_FOR_READABLE_ONLY = -1;
 
+    private final static long RESERVATIONS_CLOSED = 1L << 63;
+
+    // for records accepting concurrent appends, a buffer of each appending thread that records with a key or value
+    // writing itself are written to before space is reserved for them, so a record that fails to write takes no space
+    private final static ThreadLocal<ByteBuffer> RECORD_SCRATCH = new ThreadLocal<ByteBuffer>();
+
     // the compressor used for appends-only
     private final Compressor compressor;
 
@@ -43,22 +51,61 @@ public class MemoryRecords implements Records {
     // indicate if the memory records is writable or not (i.e. used for appends or read-only)
     private boolean writable;
 
+    // for records accepting concurrent appends, the number of records (bits 32-62) and the write position (low 32 bits)
+    // reserved so far, with the top bit set once no more space can be reserved; null if appends must be synchronized
+    // externally
+    private final AtomicLong reserved;
+
+    // the number of reserved records that have been completely written, for records accepting concurrent appends
+    private final AtomicInteger written;
+
+    // the compression rate of records created for appends, fixed when they are closed; -1 while they are writable
+    private double compressionRate = -1;
+
+    // whether the records have been compressed in place after they were closed
+    private boolean compressedInPlace = false;
+
     // Construct a writable memory records
-    private MemoryRecords(ByteBuffer buffer, CompressionType type, boolean writable, int writeLimit) {
+    private MemoryRecords(ByteBuffer buffer, CompressionType type, CompressionRateEstimate rateEstimate, boolean writable,
+                          int writeLimit, boolean concurrent) {
         this.writable = writable;
         this.writeLimit = writeLimit;
         this.initialCapacity = buffer.capacity();
         if (this.writable) {
             this.buffer = null;
-            this.compressor = new Compressor(buffer, type);
+            this.compressor = rateEstimate == null ? new Compressor(buffer, type) : new Compressor(buffer, type, rateEstimate);
         } else {
             this.buffer = buffer;
             this.compressor = null;
         }
+        if (concurrent) {
+            this.reserved = new AtomicLong(buffer.position());
+            this.written = new AtomicInteger(0);
+        } else {
+            this.reserved = null;
+            this.written = null;
+        }
     }
 
     public static MemoryRecords emptyRecords(ByteBuffer buffer, CompressionType type, int writeLimit) {
-        return new MemoryRecords(buffer, type, true, writeLimit);
+        return new MemoryRecords(buffer, type, null, true, writeLimit, false);
+    }
+
+    /**
+     * Create an empty records instance whose compressor estimates how much of the buffer it has written with the given
+     * compression rate estimate, such as one kept for the topic the records are for, and updates it when it is closed
+     */
+    public static MemoryRecords emptyRecords(ByteBuffer buffer, CompressionType type, int writeLimit, CompressionRateEstimate rateEstimate) {
+        return new MemoryRecords(buffer, type, rateEstimate, true, writeLimit, false);
+    }
+
+    /**
+     * Create an empty uncompressed records instance that multiple threads can append to through
+     * {@link #tryAppend(long, byte[], byte[])} without external synchronization. Each append reserves its space in
+     * the buffer with a compare-and-set and then writes the record into it, so the buffer is never expanded.
+     */
+    public static MemoryRecords emptyConcurrentRecords(ByteBuffer buffer, int writeLimit) {
+        return new MemoryRecords(buffer, CompressionType.NONE, null, true, writeLimit, true);
     }
 
     public static MemoryRecords emptyRecords(ByteBuffer buffer, CompressionType type) {
@@ -67,7 +114,7 @@ public class MemoryRecords implements Records {
     }
 
     public static MemoryRecords readableRecords(ByteBuffer buffer) {
-        return new MemoryRecords(buffer, CompressionType.NONE, false, WRITE_LIMIT_FOR_READABLE_ONLY);
+        return new MemoryRecords(buffer, CompressionType.NONE, null, false, WRITE_LIMIT_FOR_READABLE_ONLY, false);
     }
 
     /**
@@ -76,6 +123,8 @@ public class MemoryRecords implements Records {
     public void append(long offset, Record record) {
         if (!writable)
             throw new IllegalStateException("Memory records is not writable");
+        if (reserved != null)
+            throw new IllegalStateException("Memory records accepting concurrent appends must be appended with tryAppend");
 
         int size = record.size();
         compressor.putLong(offset);
@@ -91,6 +140,8 @@ public class MemoryRecords implements Records {
     public void append(long offset, byte[] key, byte[] value) {
         if (!writable)
             throw new IllegalStateException("Memory records is not writable");
+        if (reserved != null)
+            throw new IllegalStateException("Memory records accepting concurrent appends must be appended with tryAppend");
 
         int size = Record.recordSize(key, value);
         compressor.putLong(offset);
@@ -99,6 +150,147 @@ public class MemoryRecords implements Records {
         compressor.recordWritten(size + Records.LOG_OVERHEAD);
     }
 
+    /**
+     * Append a new record and offset to the buffer, with a key and value that write themselves into it
+     */
+    public void append(long offset, RecordField key, RecordField value) {
+        if (!writable)
+            throw new IllegalStateException("Memory records is not writable");
+        if (reserved != null)
+            throw new IllegalStateException("Memory records accepting concurrent appends must be appended with tryAppend");
+
+        int size = Record.recordSize(key, value);
+        compressor.putEntry(offset, key, value);
+        compressor.recordWritten(size + Records.LOG_OVERHEAD);
+    }
+
+    /**
+     * Append a new record and offset to the buffer if there is room for it.
+     *
+     * For records created with {@link #emptyConcurrentRecords(ByteBuffer, int)} this may be called by several threads
+     * at once; otherwise the caller must synchronize appends externally.
+     *
+     * @return The index of the record within this record set, or -1 if there was no room for it or the records are
+     *         no longer writable
+     */
+    public int tryAppend(long offset, byte[] key, byte[] value) {
+        int size = Record.recordSize(key, value);
+        if (reserved == null) {
+            if (!writable || !hasRoomFor(size))
+                return -1;
+            int index = (int) compressor.numRecordsWritten();
+            append(offset, key, value);
+            return index;
+        }
+
+        long reservation = reserve(size);
+        if (reservation < 0)
+            return -1;
+        try {
+            Record.write(entryBuffer(reservation, offset, size), key, value, CompressionType.NONE, 0, -1);
+        } finally {
+            // count the record even if writing it failed so that close() does not wait for it forever
+            written.incrementAndGet();
+        }
+        return reservedCount(reservation);
+    }
+
+    /**
+     * Append a new record and offset to the buffer if there is room for it, with a key and value that write
+     * themselves into it. If writing them fails, the record is not appended and takes no space in the buffer, so the
+     * records appended before and after it are unaffected.
+     *
+     * @return The index of the record within this record set, or -1 if there was no room for it or the records are
+     *         no longer writable
+     * @see #tryAppend(long, byte[], byte[])
+     */
+    public int tryAppend(long offset, RecordField key, RecordField value) {
+        if (ByteArrayRecordField.isByteArray(key) && ByteArrayRecordField.isByteArray(value))
+            return tryAppend(offset, ByteArrayRecordField.bytes(key), ByteArrayRecordField.bytes(value));
+
+        int size = Record.recordSize(key, value);
+        if (reserved == null) {
+            if (!writable || !hasRoomFor(size))
+                return -1;
+            int index = (int) compressor.numRecordsWritten();
+            append(offset, key, value);
+            return index;
+        }
+
+        if (!hasRoomFor(size))
+            return -1;
+        // a reserved entry cannot be taken back out of the buffer once later records have reserved theirs, so the
+        // record is written before its space is reserved and then copied there
+        ByteBuffer record = recordScratch(size);
+        Record.write(record, key, value);
+        record.flip();
+        long reservation = reserve(size);
+        if (reservation < 0)
+            return -1;
+        try {
+            entryBuffer(reservation, offset, size).put(record);
+        } finally {
+            written.incrementAndGet();
+        }
+        return reservedCount(reservation);
+    }
+
+    /**
+     * The calling thread's buffer to write a record of the given size to before it is appended
+     */
+    private ByteBuffer recordScratch(int recordSize) {
+        ByteBuffer buffer = RECORD_SCRATCH.get();
+        if (buffer == null || buffer.capacity() < recordSize) {
+            buffer = ByteBuffer.allocate(recordSize);
+            // a record larger than the write limit is alone in its batch, so its buffer is not kept
+            if (recordSize <= this.writeLimit)
+                RECORD_SCRATCH.set(buffer);
+        }
+        buffer.clear();
+        return buffer;
+    }
+
+    /**
+     * Reserve space for a log entry of a record of the given size
+     *
+     * @return The reservation the entry was made after, or -1 if there was no room for it
+     */
+    private long reserve(int recordSize) {
+        int entrySize = Records.LOG_OVERHEAD + recordSize;
+        long current;
+        do {
+            current = reserved.get();
+            if ((current & RESERVATIONS_CLOSED) != 0 || reservedPosition(current) + entrySize > limit(current))
+                return -1;
+        } while (!reserved.compareAndSet(current, ((long) (reservedCount(current) + 1) << 32) | (reservedPosition(current) + entrySize)));
+        return current;
+    }
+
+    /**
+     * Write the offset and size of a log entry at the position reserved for it, returning the buffer to write the
+     * record to
+     */
+    private ByteBuffer entryBuffer(long reservation, long offset, int recordSize) {
+        ByteBuffer target = compressor.buffer().duplicate();
+        target.position(reservedPosition(reservation));
+        target.putLong(offset);
+        target.putInt(recordSize);
+        return target;
+    }
+
+    private int limit(long reservation) {
+        // the first record is accepted as long as it fits in the buffer, as in hasRoomFor()
+        return reservedCount(reservation) == 0 ? this.initialCapacity : this.writeLimit;
+    }
+
+    private static int reservedCount(long reservation) {
+        return (int) ((reservation & ~RESERVATIONS_CLOSED) >>> 32);
+    }
+
+    private static int reservedPosition(long reservation) {
+        return (int) reservation;
+    }
+
     /**
      * Check if we have room for a new record containing the given key/value pair
      *
@@ -112,12 +304,25 @@ public class MemoryRecords implements Records {
      * to accept this single record.
      */
     public boolean hasRoomFor(byte[] key, byte[] value) {
+        return hasRoomFor(Record.recordSize(key, value));
+    }
+
+    private boolean hasRoomFor(int recordSize) {
+        if (reserved != null) {
+            long current = reserved.get();
+            return (current & RESERVATIONS_CLOSED) == 0 &&
+                limit(current) >= reservedPosition(current) + Records.LOG_OVERHEAD + recordSize;
+        }
         return this.writable && this.compressor.numRecordsWritten() == 0 ?
-            this.initialCapacity >= Records.LOG_OVERHEAD + Record.recordSize(key, value) :
-            this.writeLimit >= this.compressor.estimatedBytesWritten() + Records.LOG_OVERHEAD + Record.recordSize(key, value);
+            this.initialCapacity >= Records.LOG_OVERHEAD + recordSize :
+            this.writeLimit >= this.compressor.estimatedBytesWritten() + Records.LOG_OVERHEAD + recordSize;
     }
 
     public boolean isFull() {
+        if (reserved != null) {
+            long current = reserved.get();
+            return (current & RESERVATIONS_CLOSED) != 0 || this.writeLimit <= reservedPosition(current);
+        }
         return !this.writable || this.writeLimit <= this.compressor.estimatedBytesWritten();
     }
 
@@ -126,8 +331,20 @@ public class MemoryRecords implements Records {
      */
     public void close() {
         if (writable) {
+            if (reserved != null) {
+                // stop further reservations and wait for the appends that already reserved space to finish writing
+                long current = reserved.get();
+                while (!reserved.compareAndSet(current, current | RESERVATIONS_CLOSED))
+                    current = reserved.get();
+                while (written.get() < reservedCount(current))
+                    Thread.yield();
+                compressor.buffer().position(reservedPosition(current));
+            }
+
             // close the compressor to fill-in wrapper message metadata if necessary
             compressor.close();
+            // the rate can no longer be computed from the buffer position once the buffer has been flipped
+            compressionRate = compressor.compressionRate();
 
             // flip the underlying buffer to be ready for reads
             buffer = compressor.buffer();
@@ -138,11 +355,58 @@ public class MemoryRecords implements Records {
         }
     }
 
+    /**
+     * Compress the records of a closed, uncompressed record set that was created for appends. The records are
+     * compressed into the given scratch buffer and then copied back over the buffer of this record set, so it needs no
+     * more memory than it was created with.
+     *
+     * @return Whether the records were compressed. They are left as they are if compressing them would not make them
+     *         any smaller.
+     */
+    public boolean compress(CompressionType type, ByteBuffer scratch) {
+        return compress(type, null, scratch);
+    }
+
+    /**
+     * Compress the records of a closed, uncompressed record set in place, updating the given compression rate estimate
+     * with the rate achieved
+     *
+     * @see #compress(CompressionType, ByteBuffer)
+     */
+    public boolean compress(CompressionType type, CompressionRateEstimate rateEstimate, ByteBuffer scratch) {
+        if (writable || compressor == null)
+            throw new IllegalStateException("Only closed records created for appends can be compressed");
+        if (compressedInPlace)
+            throw new IllegalStateException("The records have already been compressed");
+        int count = numRecords();
+        if (type == CompressionType.NONE || count == 0)
+            return false;
+
+        scratch.clear();
+        Compressor compressed = rateEstimate == null ? new Compressor(scratch, type) : new Compressor(scratch, type, rateEstimate);
+        compressed.putRecords(buffer.duplicate(), count);
+        compressed.close();
+        // the compressor moves to a bigger buffer of its own if the scratch buffer is too small
+        ByteBuffer result = compressed.buffer();
+        if (result.position() >= buffer.limit())
+            return false;
+
+        this.compressionRate = compressed.compressionRate();
+        this.compressedInPlace = true;
+        result.flip();
+        buffer.clear();
+        buffer.put(result);
+        buffer.flip();
+        return true;
+    }
+
     /**
      * The size of this record set
      */
     public int sizeInBytes() {
-        if (writable) {
+        if (writable && reserved != null) {
+            return reservedPosition(reserved.get());
+        } else if (writable) {
             return compressor.buffer().position();
         } else {
             return compressor.buffer().limit();
@@ -153,12 +417,26 @@ public class MemoryRecords implements Records {
      * The compression rate of this record set
      */
     public double compressionRate() {
-        if (compressor == null)
+        if (compressionRate >= 0)
+            return compressionRate;
+        else if (compressor == null)
             return 1.0;
         else
             return compressor.compressionRate();
     }
 
+    /**
+     * The number of records appended to this record set, for records created for appends
+     */
+    public int numRecords() {
+        if (reserved != null)
+            return reservedCount(reserved.get());
+        else if (compressor != null)
+            return (int) compressor.numRecordsWritten();
+        else
+            throw new IllegalStateException("The number of records is only tracked for records created for appends");
+    }
+
     /**
      * Return the capacity of the initial buffer, for writable records
      * it may be different from the current buffer's capacity
@@ -179,12 +457,22 @@ public class MemoryRecords implements Records {
 
     @Override
     public Iterator<LogEntry> iterator() {
+        return iterator(null);
+    }
+
+    /**
+     * Get an iterator over the records, decompressing the records of compressed wrapper messages with the buffers of the
+     * given context
+     *
+     * @param context The decompression context, or null to allocate new buffers
+     */
+    public Iterator<LogEntry> iterator(DecompressionContext context) {
         if (writable) {
             // flip on a duplicate buffer for reading
-            return new RecordsIterator((ByteBuffer) this.buffer.duplicate().flip(), CompressionType.NONE, false);
+            return new RecordsIterator((ByteBuffer) this.buffer.duplicate().flip(), CompressionType.NONE, false, context);
         } else {
             // do not need to flip for non-writable buffer
-            return new RecordsIterator(this.buffer.duplicate(), CompressionType.NONE, false);
+            return new RecordsIterator(this.buffer.duplicate(), CompressionType.NONE, false, context);
         }
     }
     
@@ -212,13 +500,19 @@ public class MemoryRecords implements Records {
         private final DataInputStream stream;
         private final CompressionType type;
         private final boolean shallow;
+        private final DecompressionContext context;
         private RecordsIterator innerIter;
 
         public RecordsIterator(ByteBuffer buffer, CompressionType type, boolean shallow) {
+            this(buffer, type, shallow, null);
+        }
+
+        public RecordsIterator(ByteBuffer buffer, CompressionType type, boolean shallow, DecompressionContext context) {
             this.type = type;
             this.buffer = buffer;
             this.shallow = shallow;
-            this.stream = Compressor.wrapForInput(new ByteBufferInputStream(this.buffer), type);
+            this.context = context;
+            this.stream = Compressor.wrapForInput(new ByteBufferInputStream(this.buffer), type, context);
         }
 
         /*
@@ -248,6 +542,10 @@ public class MemoryRecords implements Records {
                             return allDone();
                         buffer.position(newPos);
                         rec.limit(size);
+                    } else if (context != null) {
+                        byte[] recordBuffer = context.recordBuffer(size);
+                        stream.readFully(recordBuffer, 0, size);
+                        rec = ByteBuffer.wrap(recordBuffer, 0, size).slice();
                     } else {
                         byte[] recordBuffer = new byte[size];
                         stream.readFully(recordBuffer, 0, size);
@@ -265,7 +563,7 @@ public class MemoryRecords implements Records {
                         // since we assume nested compression is not allowed, the deep iterator
                         // would not try to further decompress underlying messages
                         ByteBuffer value = entry.record().value();
-                        innerIter = new RecordsIterator(value, compression, true);
+                        innerIter = new RecordsIterator(value, compression, true, context);
                         return innerIter.next();
                     }
                 } catch (EOFException e) {
@@ -17,8 +17,9 @@
 package org.apache.kafka.common.record;
 
 import java.nio.ByteBuffer;
+import java.util.zip.Checksum;
 
-import org.apache.kafka.common.utils.Crc32;
+import org.apache.kafka.common.utils.Checksums;
 import org.apache.kafka.common.utils.Utils;
 
 
@@ -140,6 +141,39 @@ public final class Record {
         }
     }
 
+    /**
+     * Write an uncompressed record whose key and value write themselves into the buffer, and fill in its checksum
+     * from what they wrote
+     */
+    public static void write(ByteBuffer buffer, RecordField key, RecordField value) {
+        int start = buffer.position();
+        buffer.position(start + MAGIC_OFFSET);
+        buffer.put(CURRENT_MAGIC_VALUE);
+        buffer.put(computeAttributes(CompressionType.NONE));
+        writeField(buffer, key);
+        writeField(buffer, value);
+        long crc = computeChecksum(buffer, start + MAGIC_OFFSET, buffer.position() - start - MAGIC_OFFSET);
+        buffer.putInt(start + CRC_OFFSET, (int) (crc & 0xffffffffL));
+    }
+
+    private static void writeField(ByteBuffer buffer, RecordField field) {
+        if (field == null) {
+            buffer.putInt(-1);
+        } else {
+            int size = field.sizeInBytes();
+            buffer.putInt(size);
+            int start = buffer.position();
+            field.writeTo(buffer);
+            if (buffer.position() - start != size)
+                throw new IllegalStateException("Record field " + field + " wrote " + (buffer.position() - start)
+                                                + " bytes but its size is " + size);
+        }
+    }
+
+    public static int recordSize(RecordField key, RecordField value) {
+        return recordSize(key == null ? 0 : key.sizeInBytes(), value == null ? 0 : value.sizeInBytes());
+    }
+
     public static int recordSize(byte[] key, byte[] value) {
         return recordSize(key == null ? 0 : key.length, value == null ? 0 : value.length);
     }
@@ -163,8 +197,8 @@ public final class Record {
      * Compute the checksum of the record from the record contents
      */
     public static long computeChecksum(ByteBuffer buffer, int position, int size) {
-        Crc32 crc = new Crc32();
-        crc.update(buffer.array(), buffer.arrayOffset() + position, size);
+        Checksum crc = Checksums.crc32();
+        Checksums.update(crc, buffer, position, size);
         return crc.getValue();
     }
 
@@ -172,7 +206,7 @@ public final class Record {
      * Compute the checksum of the record from the attributes, key and value payloads
      */
     public static long computeChecksum(byte[] key, byte[] value, CompressionType type, int valueOffset, int valueSize) {
-        Crc32 crc = new Crc32();
+        Checksum crc = Checksums.crc32();
         crc.update(CURRENT_MAGIC_VALUE);
         byte attributes = 0;
         if (type.id > 0)
@@ -180,17 +214,17 @@ public final class Record {
         crc.update(attributes);
         // update for the key
         if (key == null) {
-            crc.updateInt(-1);
+            Checksums.updateInt(crc, -1);
         } else {
-            crc.updateInt(key.length);
+            Checksums.updateInt(crc, key.length);
             crc.update(key, 0, key.length);
         }
         // update for the value
         if (value == null) {
-            crc.updateInt(-1);
+            Checksums.updateInt(crc, -1);
         } else {
             int size = valueSize >= 0 ? valueSize : (value.length - valueOffset);
-            crc.updateInt(size);
+            Checksums.updateInt(crc, size);
             crc.update(value, valueOffset, size);
         }
         return crc.getValue();
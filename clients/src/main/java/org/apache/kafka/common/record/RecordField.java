@@ -0,0 +1,37 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.kafka.common.record;
+
+import java.nio.ByteBuffer;
+
+/**
+ * The serialized key or value of a record, which writes itself into the buffer the record is appended to instead of
+ * being handed over as a byte array. A null key or value is given as a null field.
+ */
+public interface RecordField {
+
+    /**
+     * The number of bytes {@link #writeTo(ByteBuffer)} writes
+     */
+    public int sizeInBytes();
+
+    /**
+     * Write the field at the position of the buffer, advancing it by exactly {@link #sizeInBytes()} bytes
+     */
+    public void writeTo(ByteBuffer buffer);
+
+}
@@ -44,37 +44,74 @@ public class ProduceRequest extends AbstractRequest {
 
     private final short acks;
     private final int timeout;
-    private final Map<TopicPartition, ByteBuffer> partitionRecords;
+    // read back from the struct when first asked for, for requests created from record sets made up of several buffers
+    private Map<TopicPartition, ByteBuffer> partitionRecords;
 
     public ProduceRequest(short acks, int timeout, Map<TopicPartition, ByteBuffer> partitionRecords) {
-        super(new Struct(CURRENT_SCHEMA));
-        Map<String, Map<Integer, ByteBuffer>> recordsByTopic = CollectionUtils.groupDataByTopic(partitionRecords);
+        super(toStruct(acks, timeout, partitionRecords));
+        this.acks = acks;
+        this.timeout = timeout;
+        this.partitionRecords = partitionRecords;
+    }
+
+    private ProduceRequest(short acks, int timeout, Struct struct) {
+        super(struct);
+        this.acks = acks;
+        this.timeout = timeout;
+        this.partitionRecords = null;
+    }
+
+    public ProduceRequest(Struct struct) {
+        super(struct);
+        partitionRecords = partitionRecords(struct);
+        acks = struct.getShort(ACKS_KEY_NAME);
+        timeout = struct.getInt(TIMEOUT_KEY_NAME);
+    }
+
+    /**
+     * Create a produce request in which the record set of a partition may be made up of several buffers. Sent with a
+     * gathering {@link RequestSend}, the buffers are written out one after the other rather than being copied into a
+     * single record set first.
+     */
+    public static ProduceRequest fromRecordSets(short acks, int timeout, Map<TopicPartition, ByteBuffer[]> recordSets) {
+        return new ProduceRequest(acks, timeout, toStruct(acks, timeout, recordSets));
+    }
+
+    private static <T> Struct toStruct(short acks, int timeout, Map<TopicPartition, T> recordSets) {
+        Struct struct = new Struct(CURRENT_SCHEMA);
+        Map<String, Map<Integer, T>> recordsByTopic = CollectionUtils.groupDataByTopic(recordSets);
         struct.set(ACKS_KEY_NAME, acks);
         struct.set(TIMEOUT_KEY_NAME, timeout);
         List<Struct> topicDatas = new ArrayList<Struct>(recordsByTopic.size());
-        for (Map.Entry<String, Map<Integer, ByteBuffer>> entry : recordsByTopic.entrySet()) {
+        for (Map.Entry<String, Map<Integer, T>> entry : recordsByTopic.entrySet()) {
             Struct topicData = struct.instance(TOPIC_DATA_KEY_NAME);
             topicData.set(TOPIC_KEY_NAME, entry.getKey());
             List<Struct> partitionArray = new ArrayList<Struct>();
-            for (Map.Entry<Integer, ByteBuffer> partitionEntry : entry.getValue().entrySet()) {
-                ByteBuffer buffer = partitionEntry.getValue().duplicate();
+            for (Map.Entry<Integer, T> partitionEntry : entry.getValue().entrySet()) {
                 Struct part = topicData.instance(PARTITION_DATA_KEY_NAME)
                                        .set(PARTITION_KEY_NAME, partitionEntry.getKey())
-                                       .set(RECORD_SET_KEY_NAME, buffer);
+                                       .set(RECORD_SET_KEY_NAME, duplicate(partitionEntry.getValue()));
                 partitionArray.add(part);
             }
             topicData.set(PARTITION_DATA_KEY_NAME, partitionArray.toArray());
             topicDatas.add(topicData);
         }
         struct.set(TOPIC_DATA_KEY_NAME, topicDatas.toArray());
-        this.acks = acks;
-        this.timeout = timeout;
-        this.partitionRecords = partitionRecords;
+        return struct;
     }
 
-    public ProduceRequest(Struct struct) {
-        super(struct);
-        partitionRecords = new HashMap<TopicPartition, ByteBuffer>();
+    private static Object duplicate(Object recordSet) {
+        if (recordSet instanceof ByteBuffer)
+            return ((ByteBuffer) recordSet).duplicate();
+        ByteBuffer[] buffers = (ByteBuffer[]) recordSet;
+        ByteBuffer[] duplicates = new ByteBuffer[buffers.length];
+        for (int i = 0; i < buffers.length; i++)
+            duplicates[i] = buffers[i].duplicate();
+        return duplicates;
+    }
+
+    private static Map<TopicPartition, ByteBuffer> partitionRecords(Struct struct) {
+        Map<TopicPartition, ByteBuffer> partitionRecords = new HashMap<TopicPartition, ByteBuffer>();
         for (Object topicDataObj : struct.getArray(TOPIC_DATA_KEY_NAME)) {
             Struct topicData = (Struct) topicDataObj;
             String topic = topicData.getString(TOPIC_KEY_NAME);
@@ -85,8 +122,7 @@ public class ProduceRequest extends AbstractRequest {
                 partitionRecords.put(new TopicPartition(topic, partition), records);
             }
         }
-        acks = struct.getShort(ACKS_KEY_NAME);
-        timeout = struct.getInt(TIMEOUT_KEY_NAME);
+        return partitionRecords;
     }
 
     @Override
@@ -97,7 +133,7 @@ public class ProduceRequest extends AbstractRequest {
 
         Map<TopicPartition, ProduceResponse.PartitionResponse> responseMap = new HashMap<TopicPartition, ProduceResponse.PartitionResponse>();
 
-        for (Map.Entry<TopicPartition, ByteBuffer> entry : partitionRecords.entrySet()) {
+        for (Map.Entry<TopicPartition, ByteBuffer> entry : partitionRecords().entrySet()) {
             responseMap.put(entry.getKey(), new ProduceResponse.PartitionResponse(Errors.forException(e).code(), ProduceResponse.INVALID_OFFSET));
         }
 
@@ -119,6 +155,8 @@ public class ProduceRequest extends AbstractRequest {
     }
 
     public Map<TopicPartition, ByteBuffer> partitionRecords() {
+        if (partitionRecords == null)
+            partitionRecords = partitionRecords(struct);
         return partitionRecords;
     }
 
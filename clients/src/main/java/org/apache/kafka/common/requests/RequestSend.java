@@ -31,6 +31,21 @@ public class RequestSend extends NetworkSend {
         this.body = body;
     }
 
+    /**
+     * Create a send for a request whose bytes fields of at least the given size are written out straight from the
+     * buffers they are set to rather than being copied into the serialized request
+     *
+     * @param destination The node the request is sent to
+     * @param header The request header
+     * @param body The request body
+     * @param minGatheredSize The size from which the contents of a bytes field are not copied
+     */
+    public RequestSend(String destination, RequestHeader header, Struct body, int minGatheredSize) {
+        super(destination, serializeGathering(header, body, minGatheredSize));
+        this.header = header;
+        this.body = body;
+    }
+
     private static ByteBuffer serialize(RequestHeader header, Struct body) {
         ByteBuffer buffer = ByteBuffer.allocate(header.sizeOf() + body.sizeOf());
         header.writeTo(buffer);
@@ -39,6 +54,16 @@ public class RequestSend extends NetworkSend {
         return buffer;
     }
 
+    private static ByteBuffer[] serializeGathering(RequestHeader header, Struct body, int minGatheredSize) {
+        ByteBuffer[] bodyBuffers = body.toBytes(minGatheredSize);
+        ByteBuffer[] buffers = new ByteBuffer[bodyBuffers.length + 1];
+        buffers[0] = ByteBuffer.allocate(header.sizeOf());
+        header.writeTo(buffers[0]);
+        buffers[0].rewind();
+        System.arraycopy(bodyBuffers, 0, buffers, 1, bodyBuffers.length);
+        return buffers;
+    }
+
     public RequestHeader header() {
         return this.header;
     }
@@ -0,0 +1,35 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more contributor license agreements. See the NOTICE
+ * file distributed with this work for additional information regarding copyright ownership. The ASF licenses this file
+ * to You under the Apache License, Version 2.0 (the "License"); you may not use this file except in compliance with the
+ * License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on
+ * an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.apache.kafka.common.serialization;
+
+import java.nio.ByteBuffer;
+
+/**
+ * A {@link Deserializer} that can also read an object straight from a buffer. A consumer that deserializes lazily uses
+ * this to read keys and values from the fetched data without copying each of them into a byte array first.
+ *
+ * @param <T> Type to be deserialized into.
+ */
+public interface BufferDeserializer<T> extends Deserializer<T> {
+
+    /**
+     * Deserialize the bytes between the position and the limit of the buffer, which are those
+     * {@link #deserialize(String, byte[])} would be given. The buffer is a view of fetched data that is only valid until
+     * the consumer's next poll, so an object that refers to it rather than copying from it is only valid until then too.
+     *
+     * @param topic topic associated with the data
+     * @param data the serialized bytes, never null; its position may be changed
+     * @return deserialized typed data
+     */
+    public T deserialize(String topic, ByteBuffer data);
+}
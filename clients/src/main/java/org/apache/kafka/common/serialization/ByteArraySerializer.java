@@ -13,9 +13,10 @@
 
 package org.apache.kafka.common.serialization;
 
+import java.nio.ByteBuffer;
 import java.util.Map;
 
-public class ByteArraySerializer implements Serializer<byte[]> {
+public class ByteArraySerializer implements InPlaceSerializer<byte[]> {
 
     @Override
     public void configure(Map<String, ?> configs, boolean isKey) {
@@ -27,6 +28,21 @@ public class ByteArraySerializer implements Serializer<byte[]> {
         return data;
     }
 
+    @Override
+    public boolean serializesInPlace() {
+        return true;
+    }
+
+    @Override
+    public int serializedSize(String topic, byte[] data) {
+        return data == null ? -1 : data.length;
+    }
+
+    @Override
+    public void serializeInto(String topic, byte[] data, ByteBuffer buffer) {
+        buffer.put(data);
+    }
+
     @Override
     public void close() {
         // nothing to do
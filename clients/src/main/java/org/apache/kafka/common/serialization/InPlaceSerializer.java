@@ -0,0 +1,52 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more contributor license agreements. See the NOTICE
+ * file distributed with this work for additional information regarding copyright ownership. The ASF licenses this file
+ * to You under the Apache License, Version 2.0 (the "License"); you may not use this file except in compliance with the
+ * License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on
+ * an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.apache.kafka.common.serialization;
+
+import java.nio.ByteBuffer;
+
+/**
+ * A {@link Serializer} that can also write the serialized form of an object straight into a buffer once it has said
+ * how large it will be. The producer uses this to write keys and values into the batch they are appended to without
+ * creating a byte array for each of them.
+ *
+ * @param <T> Type to be serialized from.
+ */
+public interface InPlaceSerializer<T> extends Serializer<T> {
+
+    /**
+     * @return whether writing data in place with {@link #serializedSize(String, Object)} and
+     *         {@link #serializeInto(String, Object, ByteBuffer)} is cheaper than {@link #serialize(String, Object)} for
+     *         this serializer as it is configured; if not, the producer calls serialize() instead
+     */
+    public boolean serializesInPlace();
+
+    /**
+     * @param topic topic associated with data
+     * @param data typed data
+     * @return the length of the byte array {@link #serialize(String, Object)} would return for the data, or -1 if it
+     *         would return null
+     */
+    public int serializedSize(String topic, T data);
+
+    /**
+     * Write the bytes {@link #serialize(String, Object)} would return for the data at the position of the buffer,
+     * advancing it by exactly {@link #serializedSize(String, Object)} bytes. This is only called for data with a
+     * serialized size of at least zero. If it fails, the record is not appended and the send fails with the exception,
+     * while the records appended to the same batch are still sent.
+     *
+     * @param topic topic associated with data
+     * @param data typed data
+     * @param buffer the buffer to write to, with at least serializedSize() bytes remaining
+     */
+    public void serializeInto(String topic, T data, ByteBuffer buffer);
+}
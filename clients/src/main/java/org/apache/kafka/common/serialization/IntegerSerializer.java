@@ -12,9 +12,10 @@
  */
 package org.apache.kafka.common.serialization;
 
+import java.nio.ByteBuffer;
 import java.util.Map;
 
-public class IntegerSerializer implements Serializer<Integer> {
+public class IntegerSerializer implements InPlaceSerializer<Integer> {
 
     public void configure(Map<String, ?> configs, boolean isKey) {
         // nothing to do
@@ -32,6 +33,18 @@ public class IntegerSerializer implements Serializer<Integer> {
         };
     }
 
+    public boolean serializesInPlace() {
+        return true;
+    }
+
+    public int serializedSize(String topic, Integer data) {
+        return data == null ? -1 : 4;
+    }
+
+    public void serializeInto(String topic, Integer data, ByteBuffer buffer) {
+        buffer.putInt(data);
+    }
+
     public void close() {
         // nothing to do
     }
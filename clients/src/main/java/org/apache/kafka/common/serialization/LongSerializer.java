@@ -12,9 +12,10 @@
  */
 package org.apache.kafka.common.serialization;
 
+import java.nio.ByteBuffer;
 import java.util.Map;
 
-public class LongSerializer implements Serializer<Long> {
+public class LongSerializer implements InPlaceSerializer<Long> {
 
     public void configure(Map<String, ?> configs, boolean isKey) {
         // nothing to do
@@ -36,6 +37,18 @@ public class LongSerializer implements Serializer<Long> {
         };
     }
 
+    public boolean serializesInPlace() {
+        return true;
+    }
+
+    public int serializedSize(String topic, Long data) {
+        return data == null ? -1 : 8;
+    }
+
+    public void serializeInto(String topic, Long data, ByteBuffer buffer) {
+        buffer.putLong(data);
+    }
+
     public void close() {
         // nothing to do
     }
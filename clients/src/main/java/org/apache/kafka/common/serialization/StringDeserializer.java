@@ -15,13 +15,14 @@ package org.apache.kafka.common.serialization;
 import org.apache.kafka.common.errors.SerializationException;
 
 import java.io.UnsupportedEncodingException;
+import java.nio.ByteBuffer;
 import java.util.Map;
 
 /**
  *  String encoding defaults to UTF8 and can be customized by setting the property key.deserializer.encoding,
  *  value.deserializer.encoding or deserializer.encoding. The first two take precedence over the last.
  */
-public class StringDeserializer implements Deserializer<String> {
+public class StringDeserializer implements BufferDeserializer<String> {
     private String encoding = "UTF8";
 
     @Override
@@ -46,6 +47,19 @@ public class StringDeserializer implements Deserializer<String> {
         }
     }
 
+    @Override
+    public String deserialize(String topic, ByteBuffer data) {
+        try {
+            if (data.hasArray())
+                return new String(data.array(), data.arrayOffset() + data.position(), data.remaining(), encoding);
+            byte[] bytes = new byte[data.remaining()];
+            data.get(bytes);
+            return new String(bytes, encoding);
+        } catch (UnsupportedEncodingException e) {
+            throw new SerializationException("Error when deserializing byte[] to string due to unsupported encoding " + encoding);
+        }
+    }
+
     @Override
     public void close() {
         // nothing to do
@@ -15,13 +15,15 @@ package org.apache.kafka.common.serialization;
 import org.apache.kafka.common.errors.SerializationException;
 
 import java.io.UnsupportedEncodingException;
+import java.nio.ByteBuffer;
 import java.util.Map;
 
 /**
  *  String encoding defaults to UTF8 and can be customized by setting the property key.serializer.encoding,
  *  value.serializer.encoding or serializer.encoding. The first two take precedence over the last.
+ *  Strings are only serialized in place with UTF8, since other encodings would have to encode them to find their size.
  */
-public class StringSerializer implements Serializer<String> {
+public class StringSerializer implements InPlaceSerializer<String> {
     private String encoding = "UTF8";
 
     @Override
@@ -46,6 +48,74 @@ public class StringSerializer implements Serializer<String> {
         }
     }
 
+    @Override
+    public boolean serializesInPlace() {
+        return isUtf8();
+    }
+
+    @Override
+    public int serializedSize(String topic, String data) {
+        if (data == null)
+            return -1;
+        if (!isUtf8())
+            return serialize(topic, data).length;
+
+        int size = 0;
+        int length = data.length();
+        for (int i = 0; i < length; i++) {
+            char c = data.charAt(i);
+            if (c < 0x80) {
+                size += 1;
+            } else if (c < 0x800) {
+                size += 2;
+            } else if (Character.isHighSurrogate(c) && i + 1 < length && Character.isLowSurrogate(data.charAt(i + 1))) {
+                size += 4;
+                i++;
+            } else if (Character.isSurrogate(c)) {
+                // unpaired surrogates are replaced with '?', as String.getBytes() does
+                size += 1;
+            } else {
+                size += 3;
+            }
+        }
+        return size;
+    }
+
+    @Override
+    public void serializeInto(String topic, String data, ByteBuffer buffer) {
+        if (!isUtf8()) {
+            buffer.put(serialize(topic, data));
+            return;
+        }
+
+        int length = data.length();
+        for (int i = 0; i < length; i++) {
+            char c = data.charAt(i);
+            if (c < 0x80) {
+                buffer.put((byte) c);
+            } else if (c < 0x800) {
+                buffer.put((byte) (0xc0 | (c >> 6)));
+                buffer.put((byte) (0x80 | (c & 0x3f)));
+            } else if (Character.isHighSurrogate(c) && i + 1 < length && Character.isLowSurrogate(data.charAt(i + 1))) {
+                int codePoint = Character.toCodePoint(c, data.charAt(++i));
+                buffer.put((byte) (0xf0 | (codePoint >> 18)));
+                buffer.put((byte) (0x80 | ((codePoint >> 12) & 0x3f)));
+                buffer.put((byte) (0x80 | ((codePoint >> 6) & 0x3f)));
+                buffer.put((byte) (0x80 | (codePoint & 0x3f)));
+            } else if (Character.isSurrogate(c)) {
+                buffer.put((byte) '?');
+            } else {
+                buffer.put((byte) (0xe0 | (c >> 12)));
+                buffer.put((byte) (0x80 | ((c >> 6) & 0x3f)));
+                buffer.put((byte) (0x80 | (c & 0x3f)));
+            }
+        }
+    }
+
+    private boolean isUtf8() {
+        return "UTF8".equalsIgnoreCase(encoding) || "UTF-8".equalsIgnoreCase(encoding);
+    }
+
     @Override
     public void close() {
         // nothing to do
@@ -0,0 +1,123 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more contributor license agreements. See the NOTICE
+ * file distributed with this work for additional information regarding copyright ownership. The ASF licenses this file
+ * to You under the Apache License, Version 2.0 (the "License"); you may not use this file except in compliance with the
+ * License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on
+ * an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.apache.kafka.common.utils;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.nio.ByteBuffer;
+import java.util.zip.CRC32;
+import java.util.zip.Checksum;
+
+/**
+ * Creates the CRC32 checksums of records.
+ * <p>
+ * Since Java 8 the JVM compiles {@link CRC32} to the CPU's CRC instructions where it has them, which is several times
+ * faster than the table driven {@link Crc32} on all but the smallest inputs, and it can checksum a direct buffer
+ * without copying it. Its {@link ByteBuffer} overload, which only exists since Java 8, is looked up when this class is
+ * loaded, and the JDK implementation is used if it is found. Otherwise, as on Java 7 where {@link CRC32} goes through
+ * JNI for every update, {@link Crc32} is used.
+ * <p>
+ * The implementation can be chosen with the system property {@value #CRC32_IMPL_PROPERTY}, set to {@value #JDK} or
+ * {@value #PURE_JAVA}.
+ */
+public final class Checksums {
+
+    public static final String CRC32_IMPL_PROPERTY = "kafka.crc32.impl";
+    public static final String JDK = "jdk";
+    public static final String PURE_JAVA = "pure-java";
+
+    private static final MethodHandle UPDATE_BYTE_BUFFER = byteBufferUpdate();
+    private static final boolean USE_JDK = useJdk(System.getProperty(CRC32_IMPL_PROPERTY));
+
+    private Checksums() {
+    }
+
+    /**
+     * Create a CRC32 checksum of the chosen implementation
+     */
+    public static Checksum crc32() {
+        return USE_JDK ? new CRC32() : new Crc32();
+    }
+
+    /**
+     * The name of the chosen CRC32 implementation, {@value #JDK} or {@value #PURE_JAVA}
+     */
+    public static String crc32Impl() {
+        return USE_JDK ? JDK : PURE_JAVA;
+    }
+
+    /**
+     * Update the checksum with a region of the buffer, without changing the position or limit of the buffer
+     *
+     * @param checksum The checksum to update
+     * @param buffer The buffer
+     * @param position The position in the buffer the region starts at
+     * @param size The size of the region
+     */
+    public static void update(Checksum checksum, ByteBuffer buffer, int position, int size) {
+        if (buffer.hasArray()) {
+            checksum.update(buffer.array(), buffer.arrayOffset() + position, size);
+        } else if (UPDATE_BYTE_BUFFER != null && checksum instanceof CRC32) {
+            ByteBuffer region = buffer.duplicate();
+            region.limit(position + size);
+            region.position(position);
+            try {
+                UPDATE_BYTE_BUFFER.invokeExact((CRC32) checksum, region);
+            } catch (RuntimeException e) {
+                throw e;
+            } catch (Throwable t) {
+                throw new IllegalStateException("Failed to update the checksum", t);
+            }
+        } else {
+            byte[] bytes = new byte[size];
+            ByteBuffer source = buffer.duplicate();
+            source.position(position);
+            source.get(bytes);
+            checksum.update(bytes, 0, size);
+        }
+    }
+
+    /**
+     * Update the checksum with the four bytes of the integer, most significant first
+     */
+    public static void updateInt(Checksum checksum, int input) {
+        if (checksum instanceof Crc32) {
+            ((Crc32) checksum).updateInt(input);
+        } else {
+            checksum.update((byte) (input >> 24));
+            checksum.update((byte) (input >> 16));
+            checksum.update((byte) (input >> 8));
+            checksum.update((byte) input /* >> 0 */);
+        }
+    }
+
+    static boolean useJdk(String impl) {
+        if (JDK.equals(impl))
+            return true;
+        else if (PURE_JAVA.equals(impl))
+            return false;
+        return UPDATE_BYTE_BUFFER != null;
+    }
+
+    private static MethodHandle byteBufferUpdate() {
+        try {
+            return MethodHandles.publicLookup().findVirtual(CRC32.class, "update",
+                                                            MethodType.methodType(void.class, ByteBuffer.class));
+        } catch (NoSuchMethodException e) {
+            return null;
+        } catch (IllegalAccessException e) {
+            return null;
+        }
+    }
+}
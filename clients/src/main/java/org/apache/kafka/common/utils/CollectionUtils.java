@@ -15,7 +15,7 @@ package org.apache.kafka.common.utils;
 import org.apache.kafka.common.TopicPartition;
 
 import java.util.ArrayList;
-import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 
@@ -24,16 +24,16 @@ public class CollectionUtils {
      * group data by topic
      * @param data Data to be partitioned
      * @param <T> Partition data type
-     * @return partitioned data
+     * @return partitioned data, keeping the order of the topics and partitions in the given data
      */
     public static <T> Map<String, Map<Integer, T>> groupDataByTopic(Map<TopicPartition, T> data) {
-        Map<String, Map<Integer, T>> dataByTopic = new HashMap<String, Map<Integer, T>>();
+        Map<String, Map<Integer, T>> dataByTopic = new LinkedHashMap<String, Map<Integer, T>>();
         for (Map.Entry<TopicPartition, T> entry: data.entrySet()) {
             String topic = entry.getKey().topic();
             int partition = entry.getKey().partition();
             Map<Integer, T> topicData = dataByTopic.get(topic);
             if (topicData == null) {
-                topicData = new HashMap<Integer, T>();
+                topicData = new LinkedHashMap<Integer, T>();
                 dataByTopic.put(topic, topicData);
             }
             topicData.put(partition, entry.getValue());
@@ -44,10 +44,10 @@ public class CollectionUtils {
     /**
      * group partitions by topic
      * @param partitions
-     * @return partitions per topic
+     * @return partitions per topic, keeping the order of the given partitions
      */
     public static Map<String, List<Integer>> groupDataByTopic(List<TopicPartition> partitions) {
-        Map<String, List<Integer>> partitionsByTopic = new HashMap<String, List<Integer>>();
+        Map<String, List<Integer>> partitionsByTopic = new LinkedHashMap<String, List<Integer>>();
         for (TopicPartition tp: partitions) {
             String topic = tp.topic();
             List<Integer> topicData = partitionsByTopic.get(topic);
@@ -22,6 +22,7 @@ import java.util.concurrent.atomic.AtomicReference;
 import org.apache.kafka.common.Cluster;
 import org.apache.kafka.common.Node;
 import org.apache.kafka.common.PartitionInfo;
+import org.apache.kafka.common.TopicPartition;
 import org.apache.kafka.common.errors.TimeoutException;
 import org.apache.kafka.test.TestUtils;
 import org.junit.After;
@@ -138,6 +139,50 @@ public class MetadataTest {
         metadata.needMetadataForAllTopics(false);
     }
 
+    @Test
+    public void testConcurrentAdd() throws Exception {
+        final int threads = 4;
+        final int topicsPerThread = 100;
+        Thread[] adders = new Thread[threads];
+        for (int i = 0; i < threads; i++) {
+            final int thread = i;
+            adders[i] = new Thread() {
+                public void run() {
+                    for (int j = 0; j < topicsPerThread; j++) {
+                        String topic = "topic-" + thread + "-" + j;
+                        metadata.add(topic);
+                        if (!metadata.containsTopic(topic))
+                            backgroundError.set("Added topic " + topic + " is missing");
+                    }
+                }
+            };
+            adders[i].start();
+        }
+        for (Thread adder : adders)
+            adder.join();
+        assertEquals("No added topic should be lost", threads * topicsPerThread, metadata.topics().size());
+    }
+
+    @Test
+    public void testPartitionLookup() {
+        Node node = new Node(0, "host1", 1000);
+        metadata.update(new Cluster(
+                Collections.singletonList(node),
+                Arrays.asList(
+                    new PartitionInfo("topic", 0, node, null, null),
+                    new PartitionInfo("topic", 2, null, null, null)),
+                Collections.<String>emptySet()),
+            100);
+        Cluster cluster = metadata.fetch();
+        assertEquals(node, cluster.leaderFor(new TopicPartition("topic", 0)));
+        assertNull(cluster.leaderFor(new TopicPartition("topic", 2)));
+        assertNotNull(cluster.partition(new TopicPartition("topic", 2)));
+        assertNull(cluster.partition(new TopicPartition("topic", 1)));
+        assertNull(cluster.partition(new TopicPartition("topic", 3)));
+        assertNull(cluster.partition(new TopicPartition("topic", -1)));
+        assertNull(cluster.partition(new TopicPartition("other", 0)));
+    }
+
     @Test
     public void testListenerGetsNotifiedOfUpdate() {
         long time = 0;
@@ -0,0 +1,233 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more contributor license agreements. See the NOTICE
+ * file distributed with this work for additional information regarding copyright ownership. The ASF licenses this file
+ * to You under the Apache License, Version 2.0 (the "License"); you may not use this file except in compliance with the
+ * License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on
+ * an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.apache.kafka.clients.consumer;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.kafka.common.KafkaException;
+import org.apache.kafka.common.TopicPartition;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class ParallelRecordProcessorTest {
+
+    private final TopicPartition tp0 = new TopicPartition("test", 0);
+    private final TopicPartition tp1 = new TopicPartition("test", 1);
+    private MockConsumer<String, String> consumer = new MockConsumer<String, String>(OffsetResetStrategy.EARLIEST);
+    private ParallelRecordProcessor<String, String> processor;
+
+    @Before
+    public void setup() {
+        consumer.assign(Arrays.asList(tp0, tp1));
+        Map<TopicPartition, Long> beginningOffsets = new HashMap<>();
+        beginningOffsets.put(tp0, 0L);
+        beginningOffsets.put(tp1, 0L);
+        consumer.updateBeginningOffsets(beginningOffsets);
+    }
+
+    @After
+    public void teardown() {
+        if (processor != null)
+            processor.close();
+    }
+
+    @Test
+    public void testOrderPerKey() {
+        final ConcurrentMap<String, List<Long>> processed = new ConcurrentHashMap<>();
+        processor = new ParallelRecordProcessor<>(consumer, new RecordHandler<String, String>() {
+            @Override
+            public void handle(ConsumerRecord<String, String> record) {
+                String key = record.partition() + "-" + record.key();
+                processed.putIfAbsent(key, new ArrayList<Long>());
+                List<Long> offsets = processed.get(key);
+                synchronized (offsets) {
+                    offsets.add(record.offset());
+                }
+            }
+        }, 4, ParallelRecordProcessor.Ordering.KEY, 1000);
+
+        for (long offset = 0; offset < 100; offset++) {
+            consumer.addRecord(new ConsumerRecord<String, String>("test", 0, offset, "key" + offset % 7, "value"));
+            consumer.addRecord(new ConsumerRecord<String, String>("test", 1, offset, "key" + offset % 5, "value"));
+        }
+        assertEquals(200, processor.poll(0));
+        processor.awaitProcessed();
+
+        assertEquals(12, processed.size());
+        for (List<Long> offsets : processed.values()) {
+            for (int i = 1; i < offsets.size(); i++)
+                assertTrue("The records with the same key should be processed in order", offsets.get(i - 1) < offsets.get(i));
+        }
+        processor.commitSync();
+        assertEquals(100L, consumer.committed(tp0).offset());
+        assertEquals(100L, consumer.committed(tp1).offset());
+    }
+
+    @Test
+    public void testCommitStopsAtUnprocessedRecord() throws Exception {
+        final CountDownLatch release = new CountDownLatch(1);
+        final AtomicInteger count = new AtomicInteger();
+        processor = new ParallelRecordProcessor<>(consumer, new RecordHandler<String, String>() {
+            @Override
+            public void handle(ConsumerRecord<String, String> record) throws Exception {
+                if (record.offset() == 5)
+                    release.await();
+                count.incrementAndGet();
+            }
+        }, 2, ParallelRecordProcessor.Ordering.KEY, 1000);
+
+        // the blocked record has a key that goes to the other worker, so the records after it are still processed
+        for (long offset = 0; offset < 10; offset++)
+            consumer.addRecord(new ConsumerRecord<String, String>("test", 0, offset, offset == 5 ? "a" : "b", "value"));
+        processor.poll(0);
+        long deadline = System.currentTimeMillis() + 5000;
+        while (count.get() < 9 && System.currentTimeMillis() < deadline)
+            Thread.sleep(1);
+        assertEquals(9, count.get());
+
+        assertEquals(5L, processor.processedOffsets().get(tp0).offset());
+        processor.commitSync();
+        assertEquals(5L, consumer.committed(tp0).offset());
+
+        release.countDown();
+        processor.awaitProcessed();
+        processor.commitSync();
+        assertEquals(10L, consumer.committed(tp0).offset());
+    }
+
+    @Test
+    public void testPauseWhileRecordsPending() throws Exception {
+        final CountDownLatch release = new CountDownLatch(1);
+        processor = new ParallelRecordProcessor<>(consumer, new RecordHandler<String, String>() {
+            @Override
+            public void handle(ConsumerRecord<String, String> record) throws Exception {
+                release.await();
+            }
+        }, 2, ParallelRecordProcessor.Ordering.PARTITION, 4);
+
+        for (long offset = 0; offset < 4; offset++)
+            consumer.addRecord(new ConsumerRecord<String, String>("test", 0, offset, "key", "value"));
+        consumer.addRecord(new ConsumerRecord<String, String>("test", 1, 0L, "key", "value"));
+        processor.poll(0);
+        assertTrue("The partition with too many records pending should be paused", consumer.paused().contains(tp0));
+        assertFalse(consumer.paused().contains(tp1));
+
+        release.countDown();
+        processor.awaitProcessed();
+        processor.poll(0);
+        assertTrue("The partition should be resumed once its records are processed", consumer.paused().isEmpty());
+    }
+
+    @Test
+    public void testFailedRecord() {
+        processor = new ParallelRecordProcessor<>(consumer, new RecordHandler<String, String>() {
+            @Override
+            public void handle(ConsumerRecord<String, String> record) {
+                if (record.offset() == 3)
+                    throw new IllegalArgumentException("Cannot process record");
+            }
+        }, 1, ParallelRecordProcessor.Ordering.PARTITION, 1000);
+
+        for (long offset = 0; offset < 10; offset++)
+            consumer.addRecord(new ConsumerRecord<String, String>("test", 0, offset, "key", "value"));
+        processor.poll(0);
+        try {
+            processor.awaitProcessed();
+            fail("The failure should be raised");
+        } catch (KafkaException e) {
+            assertTrue(e.getCause() instanceof IllegalArgumentException);
+        }
+        assertEquals("Records after the failed one should not count as processed",
+                     3L, processor.processedOffsets().get(tp0).offset());
+    }
+
+    @Test
+    public void testCloseFinishesRecordInProgress() throws Exception {
+        final CountDownLatch started = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        final AtomicInteger handled = new AtomicInteger(0);
+        processor = new ParallelRecordProcessor<>(consumer, new RecordHandler<String, String>() {
+            @Override
+            public void handle(ConsumerRecord<String, String> record) throws Exception {
+                started.countDown();
+                release.await();
+                handled.incrementAndGet();
+            }
+        }, 1, ParallelRecordProcessor.Ordering.PARTITION, 1000);
+
+        for (long offset = 0; offset < 3; offset++)
+            consumer.addRecord(new ConsumerRecord<String, String>("test", 0, offset, "key", "value"));
+        processor.poll(0);
+        started.await();
+
+        Thread closer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                processor.close();
+            }
+        });
+        closer.start();
+        closer.join(100);
+        assertTrue("Closing should wait for the record in progress", closer.isAlive());
+        release.countDown();
+        closer.join();
+        assertEquals("Only the record in progress should have been processed, without being interrupted", 1, handled.get());
+        assertEquals(1L, processor.processedOffsets().get(tp0).offset());
+    }
+
+    @Test
+    public void testWorkerThreadNamesDifferAcrossProcessors() throws Exception {
+        final CountDownLatch handled = new CountDownLatch(2);
+        final Set<String> threadNames = Collections.synchronizedSet(new HashSet<String>());
+        RecordHandler<String, String> handler = new RecordHandler<String, String>() {
+            @Override
+            public void handle(ConsumerRecord<String, String> record) {
+                threadNames.add(Thread.currentThread().getName());
+                handled.countDown();
+            }
+        };
+        MockConsumer<String, String> otherConsumer = new MockConsumer<String, String>(OffsetResetStrategy.EARLIEST);
+        otherConsumer.assign(Arrays.asList(tp0));
+        otherConsumer.updateBeginningOffsets(Collections.singletonMap(tp0, 0L));
+        processor = new ParallelRecordProcessor<>(consumer, handler, 1, ParallelRecordProcessor.Ordering.PARTITION, 1000);
+        ParallelRecordProcessor<String, String> other = new ParallelRecordProcessor<>(otherConsumer, handler, 1,
+                ParallelRecordProcessor.Ordering.PARTITION, 1000);
+        try {
+            consumer.addRecord(new ConsumerRecord<String, String>("test", 0, 0L, "key", "value"));
+            otherConsumer.addRecord(new ConsumerRecord<String, String>("test", 0, 0L, "key", "value"));
+            processor.poll(0);
+            other.poll(0);
+            handled.await();
+        } finally {
+            other.close();
+        }
+        assertEquals("Each processor should name its worker threads differently", 2, threadNames.size());
+    }
+}
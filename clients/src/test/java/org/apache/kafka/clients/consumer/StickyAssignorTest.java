@@ -0,0 +1,187 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more contributor license agreements. See the NOTICE
+ * file distributed with this work for additional information regarding copyright ownership. The ASF licenses this file
+ * to You under the Apache License, Version 2.0 (the "License"); you may not use this file except in compliance with the
+ * License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on
+ * an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.apache.kafka.clients.consumer;
+
+import org.apache.kafka.clients.consumer.internals.PartitionAssignor;
+import org.apache.kafka.common.Cluster;
+import org.apache.kafka.common.Node;
+import org.apache.kafka.common.PartitionInfo;
+import org.apache.kafka.common.TopicPartition;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class StickyAssignorTest {
+
+    private StickyAssignor assignor = new StickyAssignor();
+
+    @Test
+    public void testOneConsumerOneTopic() {
+        String topic = "topic";
+        String consumerId = "consumer";
+
+        Map<String, Integer> partitionsPerTopic = new HashMap<>();
+        partitionsPerTopic.put(topic, 3);
+
+        Map<String, List<TopicPartition>> assignment = assignor.assign(partitionsPerTopic,
+                Collections.singletonMap(consumerId, topics(topic)));
+        assertEquals(Arrays.asList(tp(topic, 0), tp(topic, 1), tp(topic, 2)), assignment.get(consumerId));
+    }
+
+    @Test
+    public void testAddingConsumerMovesFewestPartitions() {
+        String topic = "topic";
+        Map<String, Integer> partitionsPerTopic = Collections.singletonMap(topic, 6);
+        Map<String, List<String>> subscriptions = new HashMap<>();
+        subscriptions.put("consumer0", topics(topic));
+        subscriptions.put("consumer1", topics(topic));
+        subscriptions.put("consumer2", topics(topic));
+
+        Map<String, List<TopicPartition>> previous = new HashMap<>();
+        previous.put("consumer0", Arrays.asList(tp(topic, 0), tp(topic, 1), tp(topic, 2)));
+        previous.put("consumer1", Arrays.asList(tp(topic, 3), tp(topic, 4), tp(topic, 5)));
+
+        Map<String, List<TopicPartition>> assignment = assignor.assign(partitionsPerTopic, subscriptions, previous);
+        assertEquals(Arrays.asList(tp(topic, 0), tp(topic, 1)), assignment.get("consumer0"));
+        assertEquals(Arrays.asList(tp(topic, 3), tp(topic, 4)), assignment.get("consumer1"));
+        assertEquals(Arrays.asList(tp(topic, 2), tp(topic, 5)), assignment.get("consumer2"));
+    }
+
+    @Test
+    public void testRemovingConsumerMovesOnlyItsPartitions() {
+        String topic = "topic";
+        Map<String, Integer> partitionsPerTopic = Collections.singletonMap(topic, 6);
+        Map<String, List<String>> subscriptions = new HashMap<>();
+        subscriptions.put("consumer0", topics(topic));
+        subscriptions.put("consumer2", topics(topic));
+
+        Map<String, List<TopicPartition>> previous = new HashMap<>();
+        previous.put("consumer0", Arrays.asList(tp(topic, 0), tp(topic, 1)));
+        previous.put("consumer1", Arrays.asList(tp(topic, 2), tp(topic, 3)));
+        previous.put("consumer2", Arrays.asList(tp(topic, 4), tp(topic, 5)));
+
+        Map<String, List<TopicPartition>> assignment = assignor.assign(partitionsPerTopic, subscriptions, previous);
+        assertEquals(Arrays.asList(tp(topic, 0), tp(topic, 1), tp(topic, 2)), assignment.get("consumer0"));
+        assertEquals(Arrays.asList(tp(topic, 4), tp(topic, 5), tp(topic, 3)), assignment.get("consumer2"));
+    }
+
+    @Test
+    public void testPartitionClaimedTwiceStaysWithOneConsumer() {
+        String topic = "topic";
+        Map<String, Integer> partitionsPerTopic = Collections.singletonMap(topic, 2);
+        Map<String, List<String>> subscriptions = new HashMap<>();
+        subscriptions.put("consumer0", topics(topic));
+        subscriptions.put("consumer1", topics(topic));
+
+        Map<String, List<TopicPartition>> previous = new HashMap<>();
+        previous.put("consumer0", Arrays.asList(tp(topic, 0), tp(topic, 1)));
+        previous.put("consumer1", Arrays.asList(tp(topic, 1)));
+
+        Map<String, List<TopicPartition>> assignment = assignor.assign(partitionsPerTopic, subscriptions, previous);
+        assertEquals(Arrays.asList(tp(topic, 0)), assignment.get("consumer0"));
+        assertEquals(Arrays.asList(tp(topic, 1)), assignment.get("consumer1"));
+    }
+
+    @Test
+    public void testBalancedWithMixedSubscriptions() {
+        Map<String, Integer> partitionsPerTopic = new HashMap<>();
+        partitionsPerTopic.put("t0", 4);
+        partitionsPerTopic.put("t1", 2);
+        Map<String, List<String>> subscriptions = new HashMap<>();
+        subscriptions.put("consumer0", topics("t0"));
+        subscriptions.put("consumer1", topics("t0", "t1"));
+        subscriptions.put("consumer2", topics("t1"));
+
+        // all partitions start on the consumer that subscribes to both topics
+        Map<String, List<TopicPartition>> previous = new HashMap<>();
+        previous.put("consumer1", Arrays.asList(tp("t0", 0), tp("t0", 1), tp("t0", 2), tp("t0", 3), tp("t1", 0), tp("t1", 1)));
+
+        Map<String, List<TopicPartition>> assignment = assignor.assign(partitionsPerTopic, subscriptions, previous);
+        assertEquals(2, assignment.get("consumer0").size());
+        assertEquals(2, assignment.get("consumer1").size());
+        assertEquals(2, assignment.get("consumer2").size());
+        for (TopicPartition partition : assignment.get("consumer0"))
+            assertEquals("t0", partition.topic());
+        for (TopicPartition partition : assignment.get("consumer2"))
+            assertEquals("t1", partition.topic());
+    }
+
+    @Test
+    public void testLargeGroupMovesFewPartitionsWhenConsumerJoins() {
+        String topic = "topic";
+        Map<String, Integer> partitionsPerTopic = Collections.singletonMap(topic, 500);
+        Map<String, List<String>> subscriptions = new HashMap<>();
+        for (int i = 0; i < 50; i++)
+            subscriptions.put("consumer" + i, topics(topic));
+        Map<String, List<TopicPartition>> before = assignor.assign(partitionsPerTopic, subscriptions);
+
+        subscriptions.put("consumer50", topics(topic));
+        Map<String, List<TopicPartition>> after = assignor.assign(partitionsPerTopic, subscriptions, before);
+
+        int moved = 0;
+        Set<TopicPartition> all = new HashSet<>();
+        for (Map.Entry<String, List<TopicPartition>> entry : after.entrySet()) {
+            assertTrue(entry.getValue().size() == 9 || entry.getValue().size() == 10);
+            all.addAll(entry.getValue());
+            List<TopicPartition> previous = before.get(entry.getKey());
+            for (TopicPartition partition : entry.getValue()) {
+                if (previous == null || !previous.contains(partition))
+                    moved++;
+            }
+        }
+        assertEquals(500, all.size());
+        assertEquals("Only the partitions of the new consumer should move", after.get("consumer50").size(), moved);
+    }
+
+    @Test
+    public void testPreviousAssignmentInSubscriptionUserData() {
+        String topic = "topic";
+        Node node = new Node(0, "localhost", 9092);
+        List<PartitionInfo> partitions = new ArrayList<>();
+        for (int i = 0; i < 4; i++)
+            partitions.add(new PartitionInfo(topic, i, node, new Node[] {node}, new Node[] {node}));
+        Cluster cluster = new Cluster(Collections.singletonList(node), partitions, Collections.<String>emptySet());
+
+        StickyAssignor member0 = new StickyAssignor();
+        StickyAssignor member1 = new StickyAssignor();
+        member0.onAssignment(new PartitionAssignor.Assignment(Arrays.asList(tp(topic, 3), tp(topic, 1))));
+        member1.onAssignment(new PartitionAssignor.Assignment(Arrays.asList(tp(topic, 0), tp(topic, 2))));
+        Map<String, PartitionAssignor.Subscription> subscriptions = new HashMap<>();
+        subscriptions.put("consumer0", member0.subscription(Collections.singleton(topic)));
+        subscriptions.put("consumer1", member1.subscription(Collections.singleton(topic)));
+
+        Map<String, PartitionAssignor.Assignment> assignment = assignor.assign(cluster, subscriptions);
+        assertEquals(new HashSet<>(Arrays.asList(tp(topic, 3), tp(topic, 1))),
+                     new HashSet<>(assignment.get("consumer0").partitions()));
+        assertEquals(new HashSet<>(Arrays.asList(tp(topic, 0), tp(topic, 2))),
+                     new HashSet<>(assignment.get("consumer1").partitions()));
+    }
+
+    private static List<String> topics(String... topics) {
+        return Arrays.asList(topics);
+    }
+
+    private static TopicPartition tp(String topic, int partition) {
+        return new TopicPartition(topic, partition);
+    }
+}
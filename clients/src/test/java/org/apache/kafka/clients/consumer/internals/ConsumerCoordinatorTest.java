@@ -17,6 +17,7 @@
 package org.apache.kafka.clients.consumer.internals;
 
 import org.apache.kafka.clients.ClientRequest;
+import org.apache.kafka.clients.ClientResponse;
 import org.apache.kafka.clients.Metadata;
 import org.apache.kafka.clients.MockClient;
 import org.apache.kafka.clients.consumer.ConsumerRebalanceListener;
@@ -30,8 +31,10 @@ import org.apache.kafka.common.TopicPartition;
 import org.apache.kafka.common.errors.ApiException;
 import org.apache.kafka.common.errors.DisconnectException;
 import org.apache.kafka.common.errors.GroupAuthorizationException;
+import org.apache.kafka.common.errors.InterruptException;
 import org.apache.kafka.common.errors.OffsetMetadataTooLarge;
 import org.apache.kafka.common.metrics.Metrics;
+import org.apache.kafka.common.protocol.ApiKeys;
 import org.apache.kafka.common.protocol.Errors;
 import org.apache.kafka.common.protocol.types.Struct;
 import org.apache.kafka.common.requests.GroupCoordinatorResponse;
@@ -45,7 +48,9 @@ import org.apache.kafka.common.requests.OffsetCommitResponse;
 import org.apache.kafka.common.requests.OffsetFetchResponse;
 import org.apache.kafka.common.requests.SyncGroupRequest;
 import org.apache.kafka.common.requests.SyncGroupResponse;
+import org.apache.kafka.common.serialization.ByteArrayDeserializer;
 import org.apache.kafka.common.utils.MockTime;
+import org.apache.kafka.common.utils.Time;
 import org.apache.kafka.test.TestUtils;
 import org.junit.After;
 import org.junit.Before;
@@ -56,10 +61,12 @@ import java.util.Arrays;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.ReentrantLock;
 
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
@@ -423,6 +430,97 @@ public class ConsumerCoordinatorTest {
         assertEquals(OffsetCommitRequest.DEFAULT_GENERATION_ID, coordinator.generation);
     }
 
+    @Test
+    public void testHeartbeatThread() throws InterruptedException {
+        long processingTimeoutMs = 100;
+
+        subscriptions.subscribe(Arrays.asList(topicName), rebalanceListener);
+        subscriptions.needReassignment();
+
+        client.prepareResponse(consumerMetadataResponse(node, Errors.NONE.code()));
+        coordinator.ensureCoordinatorKnown();
+
+        client.prepareResponse(joinGroupFollowerResponse(1, "consumer", "leader", Errors.NONE.code()));
+        client.prepareResponse(syncGroupResponse(Arrays.asList(tp), Errors.NONE.code()));
+        coordinator.ensurePartitionAssignment();
+
+        HeartbeatThread heartbeatThread = new HeartbeatThread(consumerClient, coordinator, time, processingTimeoutMs,
+                "", new ReentrantLock(true));
+        try {
+            // the thread heartbeats while the application is busy
+            heartbeatThread.pause();
+            time.sleep(heartbeatIntervalMs);
+            heartbeatThread.resume();
+            awaitRequest(heartbeatThread, ApiKeys.HEARTBEAT);
+            client.respond(heartbeatResponse(Errors.NONE.code()));
+            assertFalse(coordinator.needRejoin());
+            heartbeatThread.resume();
+
+            // and leaves the group once the application takes longer than the processing timeout
+            heartbeatThread.pause();
+            time.sleep(processingTimeoutMs + 1);
+            heartbeatThread.resume();
+            awaitRequest(heartbeatThread, ApiKeys.LEAVE_GROUP);
+            assertTrue(coordinator.needRejoin());
+            assertEquals(JoinGroupRequest.UNKNOWN_MEMBER_ID, coordinator.memberId);
+            heartbeatThread.maybeThrowFailure();
+            heartbeatThread.resume();
+        } finally {
+            heartbeatThread.pause();
+            heartbeatThread.close();
+            heartbeatThread.resume();
+        }
+    }
+
+    @Test
+    public void testPauseWithBackgroundThreads() throws InterruptedException {
+        // a client that blocks in poll for the whole timeout unless woken up, like the network client
+        BlockingClient client = new BlockingClient(time);
+        client.setNode(node);
+        ConsumerNetworkClient consumerClient = new ConsumerNetworkClient(client, metadata, time, 100);
+        Metrics metrics = new Metrics(time);
+        ConsumerCoordinator coordinator = new ConsumerCoordinator(consumerClient, groupId, 30000, 10000, assignors,
+                metadata, subscriptions, metrics, "consumer" + groupId, metricTags, time, retryBackoffMs,
+                defaultOffsetCommitCallback, autoCommitEnabled, autoCommitIntervalMs);
+        Fetcher<byte[], byte[]> fetcher = new Fetcher<byte[], byte[]>(consumerClient, 1, 0, 1000, true,
+                new ByteArrayDeserializer(), new ByteArrayDeserializer(), metadata, subscriptions, metrics,
+                "consumer" + groupId, metricTags, time, retryBackoffMs);
+        subscriptions.assignFromUser(Arrays.asList(tp));
+        subscriptions.seek(tp, 0);
+
+        // the application is inside a call while the background threads start, so both of them wait for the lock,
+        // the prefetcher first
+        ReentrantLock lock = new ReentrantLock(true);
+        lock.lock();
+        Prefetcher prefetcher = new Prefetcher(consumerClient, fetcher, metadata, 1000, "", lock);
+        awaitQueueLength(lock, 1);
+        HeartbeatThread heartbeatThread = new HeartbeatThread(consumerClient, coordinator, time, 60000, "", lock);
+        awaitQueueLength(lock, 2);
+        try {
+            // the prefetcher sends a fetch and polls for it, with the heartbeat thread next in line for the lock
+            lock.unlock();
+            Thread.sleep(20);
+
+            // the application interrupts the prefetcher's poll, but the heartbeat thread gets the lock first
+            long start = System.currentTimeMillis();
+            prefetcher.pause();
+            heartbeatThread.pause();
+            long elapsed = System.currentTimeMillis() - start;
+            assertEquals(1, client.inFlightRequestCount());
+            assertTrue("Taking the lock took " + elapsed + " ms", elapsed < 1000);
+            heartbeatThread.resume();
+            prefetcher.resume();
+        } finally {
+            prefetcher.pause();
+            heartbeatThread.pause();
+            prefetcher.close();
+            heartbeatThread.close();
+            heartbeatThread.resume();
+            prefetcher.resume();
+            metrics.close();
+        }
+    }
+
     @Test(expected = KafkaException.class)
     public void testUnexpectedErrorOnSyncGroup() {
         final String consumerId = "consumer";
@@ -575,6 +673,45 @@ public class ConsumerCoordinatorTest {
         assertEquals(Collections.singleton(tp), rebalanceListener.assigned);
     }
 
+    @Test
+    public void testRejoinGroupKeepsAssignedState() {
+        TopicPartition tp1 = new TopicPartition(topicName, 1);
+        subscriptions.subscribe(Arrays.asList(topicName), rebalanceListener);
+        subscriptions.needReassignment();
+
+        client.prepareResponse(consumerMetadataResponse(node, Errors.NONE.code()));
+        coordinator.ensureCoordinatorKnown();
+
+        client.prepareResponse(joinGroupFollowerResponse(1, "consumer", "leader", Errors.NONE.code()));
+        client.prepareResponse(syncGroupResponse(Arrays.asList(tp), Errors.NONE.code()));
+        coordinator.ensurePartitionAssignment();
+        client.prepareResponse(offsetFetchResponse(tp, Errors.NONE.code(), "", 100L));
+        coordinator.refreshCommittedOffsetsIfNeeded();
+        subscriptions.seek(tp, 100L);
+        subscriptions.consumed(tp, 150L);
+
+        // the consumer stays in the group for the next generation, so it keeps the state of the partition it had
+        subscriptions.needReassignment();
+        client.prepareResponse(joinGroupFollowerResponse(2, "consumer", "leader", Errors.NONE.code()));
+        client.prepareResponse(syncGroupResponse(Arrays.asList(tp, tp1), Errors.NONE.code()));
+        coordinator.ensurePartitionAssignment();
+
+        assertEquals(Collections.singleton(tp1), subscriptions.commitsToRefresh());
+        assertEquals(100L, subscriptions.committed(tp).offset());
+        assertEquals(150L, (long) subscriptions.consumed(tp));
+        assertTrue(subscriptions.isFetchable(tp));
+
+        // a consumer that missed a generation does not know who owned its partitions in the meantime
+        subscriptions.needReassignment();
+        client.prepareResponse(joinGroupFollowerResponse(4, "consumer", "leader", Errors.NONE.code()));
+        client.prepareResponse(syncGroupResponse(Arrays.asList(tp, tp1), Errors.NONE.code()));
+        coordinator.ensurePartitionAssignment();
+
+        assertEquals(new HashSet<>(Arrays.asList(tp, tp1)), subscriptions.commitsToRefresh());
+        assertNull(subscriptions.committed(tp));
+        assertFalse(subscriptions.isFetchable(tp));
+    }
+
     @Test
     public void testDisconnectInJoin() {
         subscriptions.subscribe(Arrays.asList(topicName), rebalanceListener);
@@ -861,6 +998,31 @@ public class ConsumerCoordinatorTest {
         assertEquals(null, subscriptions.committed(tp));
     }
 
+    /**
+     * Wait until the heartbeat thread has sent a request of the given type, returning with the thread paused
+     */
+    private void awaitRequest(HeartbeatThread heartbeatThread, ApiKeys apiKey) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 15000;
+        while (true) {
+            heartbeatThread.pause();
+            for (ClientRequest request : client.requests()) {
+                if (request.request().header().apiKey() == apiKey.id)
+                    return;
+            }
+            heartbeatThread.resume();
+            assertTrue("Timed out waiting for a " + apiKey + " request", System.currentTimeMillis() < deadline);
+            Thread.sleep(1);
+        }
+    }
+
+    private void awaitQueueLength(ReentrantLock lock, int length) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 15000;
+        while (lock.getQueueLength() < length) {
+            assertTrue("Timed out waiting for threads to queue on the lock", System.currentTimeMillis() < deadline);
+            Thread.sleep(1);
+        }
+    }
+
     private Struct consumerMetadataResponse(Node node, short error) {
         GroupCoordinatorResponse response = new GroupCoordinatorResponse(error, node);
         return response.toStruct();
@@ -945,4 +1107,34 @@ public class ConsumerCoordinatorTest {
         }
 
     }
+
+    private static class BlockingClient extends MockClient {
+        private boolean wokenUp = false;
+
+        public BlockingClient(Time time) {
+            super(time);
+        }
+
+        @Override
+        public synchronized List<ClientResponse> poll(long timeoutMs, long now) {
+            long deadline = System.currentTimeMillis() + timeoutMs;
+            long remaining = timeoutMs;
+            try {
+                while (!wokenUp && remaining > 0) {
+                    wait(remaining);
+                    remaining = deadline - System.currentTimeMillis();
+                }
+            } catch (InterruptedException e) {
+                throw new InterruptException(e);
+            }
+            wokenUp = false;
+            return super.poll(timeoutMs, now);
+        }
+
+        @Override
+        public synchronized void wakeup() {
+            wokenUp = true;
+            notifyAll();
+        }
+    }
 }
@@ -37,11 +37,13 @@ import org.apache.kafka.common.protocol.Errors;
 import org.apache.kafka.common.protocol.types.Struct;
 import org.apache.kafka.common.record.CompressionType;
 import org.apache.kafka.common.record.MemoryRecords;
+import org.apache.kafka.common.requests.FetchRequest;
 import org.apache.kafka.common.requests.FetchResponse;
 import org.apache.kafka.common.requests.ListOffsetRequest;
 import org.apache.kafka.common.requests.ListOffsetResponse;
 import org.apache.kafka.common.requests.MetadataResponse;
 import org.apache.kafka.common.serialization.ByteArrayDeserializer;
+import org.apache.kafka.common.serialization.StringDeserializer;
 import org.apache.kafka.common.utils.MockTime;
 import org.apache.kafka.test.TestUtils;
 import org.junit.After;
@@ -49,13 +51,17 @@ import org.junit.Before;
 import org.junit.Test;
 
 import java.nio.ByteBuffer;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
@@ -128,6 +134,156 @@ public class FetcherTest {
         }
     }
 
+    @Test
+    public void testFetchAhead() {
+        MemoryRecords moreRecords = MemoryRecords.emptyRecords(ByteBuffer.allocate(1024), CompressionType.NONE);
+        moreRecords.append(4L, "key".getBytes(), "value-4".getBytes());
+        moreRecords.append(5L, "key".getBytes(), "value-5".getBytes());
+        moreRecords.close();
+        subscriptions.assignFromUser(Arrays.asList(tp));
+        subscriptions.seek(tp, 0);
+        long maxBufferedBytes = this.records.sizeInBytes() + fetchSize;
+
+        fetcher.initFetches(cluster, maxBufferedBytes);
+        client.prepareResponse(fetchResponse(this.records.buffer(), Errors.NONE.code(), 100L, 0));
+        consumerClient.poll(0);
+
+        fetcher.initFetches(cluster);
+        assertEquals("Without room to fetch ahead, nothing should be fetched before the records are returned",
+                0, consumerClient.pendingRequestCount());
+        fetcher.initFetches(cluster, maxBufferedBytes - 1);
+        assertEquals("A fetch that could take the buffered data over the limit should not be sent",
+                0, consumerClient.pendingRequestCount());
+        fetcher.initFetches(cluster, maxBufferedBytes);
+        assertEquals(1, consumerClient.pendingRequestCount());
+        client.prepareResponse(fetchResponse(moreRecords.buffer(), Errors.NONE.code(), 100L, 0));
+        consumerClient.poll(0);
+
+        List<ConsumerRecord<byte[], byte[]>> records = fetcher.fetchedRecords().get(tp);
+        assertEquals("The records fetched ahead should follow the others", 5, records.size());
+        assertEquals(5L, records.get(4).offset());
+        assertEquals(6L, (long) subscriptions.consumed(tp));
+        assertEquals(6L, (long) subscriptions.fetched(tp));
+    }
+
+    @Test
+    public void testPrefetcher() throws Exception {
+        subscriptions.assignFromUser(Arrays.asList(tp));
+        subscriptions.seek(tp, 0);
+        // the background thread starts fetching right away
+        client.prepareResponse(fetchResponse(this.records.buffer(), Errors.NONE.code(), 100L, 0));
+        final AtomicBoolean taskRun = new AtomicBoolean(false);
+        consumerClient.schedule(new DelayedTask() {
+            @Override
+            public void run(long now) {
+                taskRun.set(true);
+            }
+        }, time.milliseconds());
+        Prefetcher prefetcher = new Prefetcher(consumerClient, fetcher, metadata, fetchSize, "");
+
+        // the background thread fetches while the consumer is not in use
+        List<ConsumerRecord<byte[], byte[]>> records = null;
+        long deadline = System.currentTimeMillis() + 5000;
+        while (records == null && System.currentTimeMillis() < deadline) {
+            prefetcher.pause();
+            try {
+                prefetcher.maybeThrowFailure();
+                records = fetcher.fetchedRecords().get(tp);
+            } finally {
+                prefetcher.resume();
+            }
+            Thread.sleep(1);
+        }
+        assertEquals("The records should have been fetched in the background", 3, records.size());
+        assertFalse("Scheduled tasks should only run inside consumer calls", taskRun.get());
+
+        prefetcher.pause();
+        try {
+            prefetcher.close();
+        } finally {
+            prefetcher.resume();
+        }
+    }
+
+    @Test
+    public void testFetchMemoryPool() {
+        Cluster cluster = TestUtils.singletonCluster(topicName, 2);
+        metadata.update(cluster, time.milliseconds());
+        TopicPartition tp1 = new TopicPartition(topicName, 1);
+        Metrics metrics = new Metrics(time);
+        try {
+            Fetcher<byte[], byte[]> fetcher = new Fetcher<byte[], byte[]>(consumerClient, minBytes, maxWaitMs, fetchSize,
+                    true, false, fetchSize, 1, new ByteArrayDeserializer(), new ByteArrayDeserializer(), metadata,
+                    subscriptions, metrics, "consumer" + groupId, metricTags, time, retryBackoffMs);
+            KafkaMetric utilization = metrics.metrics().get(new MetricName("fetch-memory-pool-utilization", metricGroup, "", metricTags));
+            subscriptions.assignFromUser(Arrays.asList(tp, tp1));
+            subscriptions.seek(tp, 0);
+            subscriptions.seek(tp1, 0);
+
+            fetcher.initFetches(cluster);
+            consumerClient.poll(0);
+            Set<TopicPartition> fetched = new FetchRequest(client.requests().peek().request().body()).fetchData().keySet();
+            assertEquals("Only one partition fetch should fit in the fetch memory", 1, fetched.size());
+            assertEquals(1.0, utilization.value(), EPSILON);
+            TopicPartition partition = fetched.iterator().next();
+            client.respond(new FetchResponse(Collections.singletonMap(partition,
+                    new FetchResponse.PartitionData(Errors.NONE.code(), 100L, this.records.buffer())), 0).toStruct());
+            consumerClient.poll(0);
+            assertEquals("The fetched data should keep its part of the memory",
+                    (double) this.records.sizeInBytes() / fetchSize, utilization.value(), EPSILON);
+
+            fetcher.initFetches(cluster);
+            assertEquals("No partition should be fetched while the fetched data holds the memory",
+                    0, consumerClient.pendingRequestCount());
+            assertEquals(3, fetcher.fetchedRecords().get(partition).size());
+            assertEquals(0.0, utilization.value(), EPSILON);
+
+            fetcher.initFetches(cluster);
+            consumerClient.poll(0);
+            assertEquals(1, new FetchRequest(client.requests().peek().request().body()).fetchData().size());
+        } finally {
+            metrics.close();
+        }
+    }
+
+    @Test
+    public void testLazyDeserialization() {
+        Metrics metrics = new Metrics(time);
+        try {
+            Fetcher<String, String> fetcher = new Fetcher<String, String>(consumerClient, minBytes, maxWaitMs, fetchSize,
+                    true, true, 0L, 1, new StringDeserializer(), new StringDeserializer(), metadata, subscriptions, metrics,
+                    "consumer" + groupId, metricTags, time, retryBackoffMs);
+            subscriptions.assignFromUser(Arrays.asList(tp));
+            subscriptions.seek(tp, 0);
+
+            fetcher.initFetches(cluster);
+            client.prepareResponse(fetchResponse(this.records.buffer(), Errors.NONE.code(), 100L, 0));
+            consumerClient.poll(0);
+            List<ConsumerRecord<String, String>> records = fetcher.fetchedRecords().get(tp);
+            assertEquals(3, records.size());
+            assertEquals("key", records.get(0).key());
+            assertEquals("value-1", records.get(0).value());
+            assertEquals("key", records.get(1).key());
+
+            // the next poll
+            fetcher.initFetches(cluster);
+            consumerClient.poll(0);
+            fetcher.fetchedRecords();
+            assertEquals("A value accessed before should still be there", "value-1", records.get(0).value());
+            try {
+                records.get(1).value();
+                fail("A value first accessed after the next poll should not be deserialized");
+            } catch (IllegalStateException e) {
+                // expected
+            }
+            assertEquals("A record should print without deserializing what has not been accessed",
+                    "ConsumerRecord(topic = test, partition = 0, offset = 2, key = key, value = <not deserialized>)",
+                    records.get(1).toString());
+        } finally {
+            metrics.close();
+        }
+    }
+
     @Test
     public void testFetchNonContinuousRecords() {
         // if we are fetching from a compacted topic, there may be gaps in the returned records
@@ -210,6 +366,48 @@ public class FetcherTest {
         assertTrue(fetcher.fetchedRecords().isEmpty());
     }
 
+    @Test
+    public void testFetchMemoryReleasedForRevokedPartition() {
+        KafkaMetric used = metrics.metrics().get(new MetricName("fetch-memory-used-bytes", metricGroup, "", metricTags));
+        subscriptions.subscribe(Arrays.asList(topicName), listener);
+        subscriptions.assignFromSubscribed(Arrays.asList(tp));
+        subscriptions.seek(tp, 0);
+
+        fetcher.initFetches(cluster);
+        client.prepareResponse(fetchResponse(this.records.buffer(), Errors.NONE.code(), 100L, 0));
+        consumerClient.poll(0);
+        assertEquals(this.records.sizeInBytes(), used.value(), EPSILON);
+
+        // the partition is revoked while its fetched data is buffered
+        subscriptions.assignFromSubscribed(Collections.<TopicPartition>emptyList());
+        assertTrue(fetcher.fetchedRecords().isEmpty());
+        assertEquals("The dropped data should give its memory back", 0.0, used.value(), EPSILON);
+    }
+
+    @Test
+    public void testFetchBufferedBeforeRejoinKeepingAssignment() {
+        subscriptions.subscribe(Arrays.asList(topicName), listener);
+        subscriptions.assignFromSubscribed(Arrays.asList(tp));
+        subscriptions.seek(tp, 0);
+
+        fetcher.initFetches(cluster);
+        client.prepareResponse(fetchResponse(this.records.buffer(), Errors.NONE.code(), 100L, 0));
+        consumerClient.poll(0);
+
+        // the consumer rejoins and keeps the partition while its fetched records are still buffered
+        subscriptions.needReassignment();
+        subscriptions.assignFromSubscribed(Arrays.asList(tp), true);
+        assertEquals(3, fetcher.fetchedRecords().get(tp).size());
+        assertEquals(4L, (long) subscriptions.consumed(tp));
+        assertEquals(4L, (long) subscriptions.fetched(tp));
+
+        // the partition goes on being fetched from where the buffered records ended
+        fetcher.initFetches(cluster);
+        consumerClient.poll(0);
+        assertEquals(1, client.requests().size());
+        assertEquals(4L, new FetchRequest(client.requests().peek().request().body()).fetchData().get(tp).offset);
+    }
+
     @Test
     public void testInFlightFetchOnPausedPartition() {
         subscriptions.assignFromUser(Arrays.asList(tp));
@@ -394,6 +592,96 @@ public class FetcherTest {
         assertEquals(5, (long) subscriptions.consumed(tp));
     }
 
+    @Test
+    public void testFetchOrderRotatesPartitionsWithData() {
+        Cluster cluster = TestUtils.singletonCluster(topicName, 2);
+        metadata.update(cluster, time.milliseconds());
+        TopicPartition tp1 = new TopicPartition(topicName, 1);
+        subscriptions.assignFromUser(Arrays.asList(tp, tp1));
+        subscriptions.seek(tp, 0);
+        subscriptions.seek(tp1, 0);
+
+        fetcher.initFetches(cluster);
+        consumerClient.poll(0);
+        List<TopicPartition> order = new ArrayList<>(new FetchRequest(client.requests().peek().request().body()).fetchData().keySet());
+        TopicPartition first = order.get(0);
+        client.respond(new FetchResponse(Collections.singletonMap(first,
+                new FetchResponse.PartitionData(Errors.NONE.code(), 100L, this.records.buffer())), 0).toStruct());
+        consumerClient.poll(0);
+        fetcher.fetchedRecords();
+
+        fetcher.initFetches(cluster);
+        consumerClient.poll(0);
+        List<TopicPartition> nextOrder = new ArrayList<>(new FetchRequest(client.requests().peek().request().body()).fetchData().keySet());
+        assertEquals("The partition that got data should be fetched last", Arrays.asList(order.get(1), first), nextOrder);
+    }
+
+    @Test
+    public void testFetchSizeWeightedByLag() {
+        Cluster cluster = TestUtils.singletonCluster(topicName, 2);
+        metadata.update(cluster, time.milliseconds());
+        TopicPartition tp1 = new TopicPartition(topicName, 1);
+        Metrics metrics = new Metrics(time);
+        try {
+            Fetcher<byte[], byte[]> fetcher = new Fetcher<byte[], byte[]>(consumerClient, minBytes, maxWaitMs, fetchSize,
+                    true, false, 0L, 3, new ByteArrayDeserializer(), new ByteArrayDeserializer(), metadata,
+                    subscriptions, metrics, "consumer" + groupId, metricTags, time, retryBackoffMs);
+            subscriptions.assignFromUser(Arrays.asList(tp, tp1));
+            subscriptions.seek(tp, 0);
+            subscriptions.seek(tp1, 0);
+
+            fetcher.initFetches(cluster);
+            consumerClient.poll(0);
+            for (FetchRequest.PartitionData partitionData : new FetchRequest(client.requests().peek().request().body()).fetchData().values())
+                assertEquals("Without a known lag every partition gets the same fetch size", fetchSize, partitionData.maxBytes);
+
+            // tp lags 100 messages behind after this fetch, and tp1 has caught up
+            Map<TopicPartition, FetchResponse.PartitionData> responseData = new HashMap<>();
+            responseData.put(tp, new FetchResponse.PartitionData(Errors.NONE.code(), 104L, this.records.buffer()));
+            responseData.put(tp1, new FetchResponse.PartitionData(Errors.NONE.code(), 0L, ByteBuffer.allocate(0)));
+            client.respond(new FetchResponse(responseData, 0).toStruct());
+            consumerClient.poll(0);
+            fetcher.fetchedRecords();
+
+            fetcher.initFetches(cluster);
+            consumerClient.poll(0);
+            Map<TopicPartition, FetchRequest.PartitionData> fetchData = new FetchRequest(client.requests().peek().request().body()).fetchData();
+            assertEquals(3 * fetchSize, fetchData.get(tp).maxBytes);
+            assertEquals(fetchSize, fetchData.get(tp1).maxBytes);
+        } finally {
+            metrics.close();
+        }
+    }
+
+    @Test
+    public void testUpdateFetchPositionsBatchedByLeader() {
+        Cluster cluster = TestUtils.singletonCluster(topicName, 2);
+        metadata.update(cluster, time.milliseconds());
+        final TopicPartition tp1 = new TopicPartition(topicName, 1);
+        subscriptions.assignFromUser(Arrays.asList(tp, tp1));
+        subscriptions.needOffsetReset(tp1, OffsetResetStrategy.LATEST);
+
+        Map<TopicPartition, ListOffsetResponse.PartitionData> partitionData = new HashMap<>();
+        partitionData.put(tp, new ListOffsetResponse.PartitionData(Errors.NONE.code(), Arrays.asList(5L)));
+        partitionData.put(tp1, new ListOffsetResponse.PartitionData(Errors.NONE.code(), Arrays.asList(10L)));
+        client.prepareResponse(new MockClient.RequestMatcher() {
+            @Override
+            public boolean matches(ClientRequest request) {
+                // both partitions have the same leader, so they should be looked up with a single request
+                ListOffsetRequest req = new ListOffsetRequest(request.request().body());
+                return req.offsetData().size() == 2
+                        && req.offsetData().get(tp).timestamp == ListOffsetRequest.EARLIEST_TIMESTAMP
+                        && req.offsetData().get(tp1).timestamp == ListOffsetRequest.LATEST_TIMESTAMP;
+            }
+        }, new ListOffsetResponse(partitionData).toStruct());
+
+        fetcher.updateFetchPositions(new HashSet<>(Arrays.asList(tp, tp1)));
+        assertTrue(subscriptions.isFetchable(tp));
+        assertTrue(subscriptions.isFetchable(tp1));
+        assertEquals(5, (long) subscriptions.fetched(tp));
+        assertEquals(10, (long) subscriptions.fetched(tp1));
+    }
+
     @Test
     public void testGetAllTopics() throws InterruptedException {
         // sending response before request, as getTopicMetadata is a blocking call
@@ -93,6 +93,31 @@ public class SubscriptionStateTest {
         assertEquals(Collections.singleton(tp1), state.assignedPartitions());
     }
 
+    @Test
+    public void keepAssignedStateOnReassignment() {
+        state.subscribe(Arrays.asList(topic), rebalanceListener);
+        state.assignFromSubscribed(asList(tp0));
+        state.committed(tp0, new OffsetAndMetadata(5));
+        state.seek(tp0, 5);
+        state.consumed(tp0, 7);
+        state.fetched(tp0, 10);
+        state.commitsRefreshed();
+
+        state.assignFromSubscribed(asList(tp0, tp1), true);
+        assertTrue(state.isFetchable(tp0));
+        assertEquals(5L, state.committed(tp0).offset());
+        assertEquals(7L, (long) state.consumed(tp0));
+        assertEquals("The fetch position should be kept", 10L, (long) state.fetched(tp0));
+        assertFalse(state.isFetchable(tp1));
+        assertEquals(Collections.singleton(tp1), state.commitsToRefresh());
+
+        state.commitsRefreshed();
+        assertFalse(state.refreshCommitsNeeded());
+        state.assignFromSubscribed(asList(tp0, tp1));
+        assertFalse(state.isFetchable(tp0));
+        assertEquals(null, state.committed(tp0));
+    }
+
     @Test
     public void partitionPause() {
         state.assignFromUser(Arrays.asList(tp0));
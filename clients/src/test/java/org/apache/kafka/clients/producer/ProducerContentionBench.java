@@ -0,0 +1,106 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more contributor license agreements. See the NOTICE
+ * file distributed with this work for additional information regarding copyright ownership. The ASF licenses this file
+ * to You under the Apache License, Version 2.0 (the "License"); you may not use this file except in compliance with the
+ * License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on
+ * an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.apache.kafka.clients.producer;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Properties;
+
+import org.apache.kafka.clients.ClientRequest;
+import org.apache.kafka.clients.Metadata;
+import org.apache.kafka.clients.MockClient;
+import org.apache.kafka.common.Cluster;
+import org.apache.kafka.common.Node;
+import org.apache.kafka.common.PartitionInfo;
+import org.apache.kafka.common.serialization.ByteArraySerializer;
+import org.apache.kafka.common.utils.SystemTime;
+import org.apache.kafka.common.utils.Time;
+
+/**
+ * Drives {@link KafkaProducer#send(ProducerRecord)} from many threads against a few partitions to measure contention on
+ * the append path. Requests are completed by a {@link MockClient} as soon as they are sent, so no broker is needed.
+ * <p>
+ * Usage: ProducerContentionBench num_threads num_partitions records_per_thread record_size [compression_type]
+ */
+public class ProducerContentionBench {
+
+    private static final String TOPIC = "bench";
+
+    public static void main(String[] args) throws Exception {
+        final int numThreads = Integer.parseInt(args[0]);
+        int numPartitions = Integer.parseInt(args[1]);
+        final int numRecords = Integer.parseInt(args[2]);
+        int recordSize = Integer.parseInt(args[3]);
+        String compression = args.length > 4 ? args[4] : "none";
+
+        Time time = new SystemTime();
+        Node node = new Node(0, "localhost", 9092);
+        List<PartitionInfo> partitions = new ArrayList<PartitionInfo>();
+        for (int i = 0; i < numPartitions; i++)
+            partitions.add(new PartitionInfo(TOPIC, i, node, new Node[] {node}, new Node[] {node}));
+        Metadata metadata = new Metadata();
+        metadata.add(TOPIC);
+        metadata.update(new Cluster(Collections.singletonList(node), partitions, Collections.<String>emptySet()), time.milliseconds());
+
+        Properties props = new Properties();
+        props.put(ProducerConfig.BOOTSTRAP_SERVERS_CONFIG, "localhost:9092");
+        props.put(ProducerConfig.ACKS_CONFIG, "0");
+        props.put(ProducerConfig.COMPRESSION_TYPE_CONFIG, compression);
+        ByteArraySerializer serializer = new ByteArraySerializer();
+        ProducerConfig config = new ProducerConfig(ProducerConfig.addSerializerToConfig(props, serializer, serializer));
+        final KafkaProducer<byte[], byte[]> producer =
+            new KafkaProducer<byte[], byte[]>(config, serializer, serializer, metadata, new ImmediateClient(time));
+
+        final byte[] value = new byte[recordSize];
+        List<Thread> threads = new ArrayList<Thread>();
+        for (int i = 0; i < numThreads; i++) {
+            threads.add(new Thread() {
+                public void run() {
+                    for (int i = 0; i < numRecords; i++)
+                        producer.send(new ProducerRecord<byte[], byte[]>(TOPIC, null, value));
+                }
+            });
+        }
+
+        long start = System.nanoTime();
+        for (Thread t : threads)
+            t.start();
+        for (Thread t : threads)
+            t.join();
+        producer.flush();
+        long elapsed = System.nanoTime() - start;
+        producer.close();
+
+        long total = (long) numThreads * numRecords;
+        System.out.println(String.format("%d threads sent %d records of %d bytes to %d partitions in %.1f ms: %.1f records/sec, %.1f ns per record.",
+                                         numThreads, total, recordSize, numPartitions, elapsed / 1000000.0,
+                                         total * 1000000000.0 / elapsed, elapsed / (double) total));
+    }
+
+    /**
+     * A mock client that completes each request as soon as it is sent, as the network client does for acks=0
+     */
+    private static class ImmediateClient extends MockClient {
+
+        public ImmediateClient(Time time) {
+            super(time);
+        }
+
+        @Override
+        public void send(ClientRequest request, long now) {
+            super.send(request, now);
+            respond(null);
+        }
+    }
+}
@@ -150,6 +150,73 @@ public class BufferPoolTest {
         }
     }
 
+    /**
+     * Test that a thread that times out waiting for memory gives back what it had accumulated
+     */
+    @Test
+    public void testBlockTimeoutReturnsMemory() throws Exception {
+        BufferPool pool = new BufferPool(2, 1, metrics, time, metricGroup, metricTags);
+        ByteBuffer buffer = pool.allocate(1, maxBlockTimeMs);
+        try {
+            pool.allocate(2, 10);
+            fail("The buffer allocated more memory than its maximum value 2");
+        } catch (TimeoutException e) {
+            // this is good
+        }
+        assertEquals("Nobody should be waiting any more", 0, pool.queued());
+        pool.deallocate(buffer);
+        assertEquals("All memory should be available", 2, pool.availableMemory());
+        pool.deallocate(pool.allocate(2, maxBlockTimeMs));
+    }
+
+    /**
+     * Test that buffers are rounded up to their size class and recycled in its free list
+     */
+    @Test
+    public void testSizeClasses() throws Exception {
+        long totalMemory = 64 * 1024;
+        int size = 1024;
+        BufferPool pool = new BufferPool(totalMemory, size, 3, false, metrics, time, metricGroup, metricTags);
+        ByteBuffer buffer = pool.allocate(size + 1, maxBlockTimeMs);
+        assertEquals("Buffer should be rounded up to the next size class.", 2 * size, buffer.capacity());
+        assertEquals("Unallocated memory should have shrunk by the size class", totalMemory - 2 * size, pool.unallocatedMemory());
+        pool.deallocate(buffer);
+        assertEquals("All memory should be available", totalMemory, pool.availableMemory());
+        assertEquals("But now some is on the free list", totalMemory - 2 * size, pool.unallocatedMemory());
+        assertSame("The pooled buffer should be reused.", buffer, pool.allocate(2 * size, maxBlockTimeMs));
+        pool.deallocate(buffer);
+
+        ByteBuffer large = pool.allocate(4 * size + 1, maxBlockTimeMs);
+        assertEquals("Buffers larger than the largest size class are allocated exactly.", 4 * size + 1, large.capacity());
+        pool.deallocate(large);
+        ByteBuffer small = pool.allocate(size - 1, maxBlockTimeMs);
+        assertEquals("Buffers smaller than the poolable size are allocated exactly.", size - 1, small.capacity());
+        pool.deallocate(small);
+        assertEquals("Non-standard sizes didn't go to the free list.", totalMemory - 2 * size, pool.unallocatedMemory());
+
+        // taking all the unallocated memory frees up the pooled buffer
+        buffer = pool.allocate((int) totalMemory, maxBlockTimeMs);
+        assertEquals(0, pool.availableMemory());
+        pool.deallocate(buffer);
+        assertEquals("All memory should be unallocated", totalMemory, pool.unallocatedMemory());
+    }
+
+    /**
+     * Test that pooled buffers can be allocated off-heap
+     */
+    @Test
+    public void testDirectBuffers() throws Exception {
+        BufferPool pool = new BufferPool(64 * 1024, 1024, 2, true, metrics, time, metricGroup, metricTags);
+        ByteBuffer buffer = pool.allocate(1024, maxBlockTimeMs);
+        assertTrue("Pooled buffers should be direct.", buffer.isDirect());
+        pool.deallocate(buffer);
+        assertSame("The pooled buffer should be reused.", buffer, pool.allocate(1024, maxBlockTimeMs));
+        pool.deallocate(buffer);
+        pool.allocate(2048, maxBlockTimeMs);
+        pool.deallocate(ByteBuffer.allocate(2048));
+        assertTrue("A heap buffer should not be put in a direct pool.", pool.allocate(2048, maxBlockTimeMs).isDirect());
+    }
+
     /**
      * This test creates lots of threads that hammer on the pool
      */
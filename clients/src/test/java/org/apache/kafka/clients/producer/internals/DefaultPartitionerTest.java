@@ -20,6 +20,7 @@ import java.util.Collections;
 import java.util.List;
 
 import org.apache.kafka.clients.producer.Partitioner;
+import org.apache.kafka.clients.producer.ProducerConfig;
 import org.apache.kafka.common.Cluster;
 import org.apache.kafka.common.Node;
 import org.apache.kafka.common.PartitionInfo;
@@ -61,4 +62,23 @@ public class DefaultPartitionerTest {
         }
         assertEquals("The distribution between two available partitions should be even", countForPart0, countForPart2);
     }
+
+    @Test
+    public void testStickyPartitionForKeylessRecords() {
+        DefaultPartitioner partitioner = new DefaultPartitioner();
+        partitioner.configure(Collections.singletonMap(ProducerConfig.PARTITIONER_STICKY_CONFIG, "true"));
+        int part = partitioner.partition("test", null, null, null, null, cluster);
+        assertTrue("We should never choose a leader-less node", part == 0 || part == 2);
+        for (int i = 0; i < 10; i++)
+            assertEquals("Keyless records should stick to one partition", part, partitioner.partition("test", null, null, null, null, cluster));
+
+        partitioner.onNewBatch("test", cluster, part);
+        int next = partitioner.partition("test", null, null, null, null, cluster);
+        assertEquals("A new batch should move keyless records to the other available partition", part == 0 ? 2 : 0, next);
+        partitioner.onNewBatch("test", cluster, part);
+        assertEquals("A new batch for a partition that is no longer used should not move them again", next,
+                     partitioner.partition("test", null, null, null, null, cluster));
+        assertEquals("Keyed records are still hashed", this.partitioner.partition("test", null, keyBytes, null, null, cluster),
+                     partitioner.partition("test", null, keyBytes, null, null, cluster));
+    }
 }
@@ -0,0 +1,102 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more contributor license agreements. See the NOTICE
+ * file distributed with this work for additional information regarding copyright ownership. The ASF licenses this file
+ * to You under the Apache License, Version 2.0 (the "License"); you may not use this file except in compliance with the
+ * License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on
+ * an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.apache.kafka.clients.producer.internals;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.kafka.common.Cluster;
+import org.apache.kafka.common.Node;
+import org.apache.kafka.common.PartitionInfo;
+import org.apache.kafka.common.TopicPartition;
+import org.apache.kafka.common.metrics.Metrics;
+import org.apache.kafka.common.record.CompressionType;
+import org.apache.kafka.common.utils.SystemTime;
+import org.apache.kafka.common.utils.Time;
+
+/**
+ * Measures the cost of a sender iteration, that is {@link RecordAccumulator#ready(Cluster, long)} followed by
+ * {@link RecordAccumulator#drain(Cluster, java.util.Set, int, long)}, as the number of partitions grows while only a
+ * few of them receive records. Every partition is sent a record once up front, as a long-running producer would have.
+ * <p>
+ * Usage: ReadyPartitionsBench num_partitions active_partitions iterations [num_nodes]
+ */
+public class ReadyPartitionsBench {
+
+    private static final String TOPIC = "bench";
+
+    public static void main(String[] args) throws Exception {
+        int numPartitions = Integer.parseInt(args[0]);
+        int activePartitions = Integer.parseInt(args[1]);
+        int iterations = Integer.parseInt(args[2]);
+        int numNodes = args.length > 3 ? Integer.parseInt(args[3]) : 3;
+
+        Time time = new SystemTime();
+        List<Node> nodes = new ArrayList<Node>();
+        for (int i = 0; i < numNodes; i++)
+            nodes.add(new Node(i, "localhost", 9092 + i));
+        List<PartitionInfo> partitions = new ArrayList<PartitionInfo>();
+        for (int i = 0; i < numPartitions; i++) {
+            Node leader = nodes.get(i % numNodes);
+            partitions.add(new PartitionInfo(TOPIC, i, leader, new Node[] {leader}, new Node[] {leader}));
+        }
+        Cluster cluster = new Cluster(nodes, partitions, Collections.<String>emptySet());
+        Map<String, String> metricTags = new LinkedHashMap<String, String>();
+        Metrics metrics = new Metrics(time);
+        RecordAccumulator accum = new RecordAccumulator(1024, 64 * 1024 * 1024L, CompressionType.NONE, 0L, 100L, metrics, time, metricTags);
+
+        byte[] value = new byte[10];
+        for (int i = 0; i < numPartitions; i++)
+            accum.append(new TopicPartition(TOPIC, i), null, value, null, 0);
+        sendAll(accum, cluster, time);
+
+        long ready = 0;
+        long drained = 0;
+        long start = System.nanoTime();
+        for (int i = 0; i < iterations; i++) {
+            for (int p = 0; p < activePartitions; p++)
+                accum.append(new TopicPartition(TOPIC, (i * activePartitions + p) % numPartitions), null, value, null, 0);
+            long now = time.milliseconds();
+            RecordAccumulator.ReadyCheckResult result = accum.ready(cluster, now);
+            ready += result.readyNodes.size();
+            for (List<RecordBatch> batches : accum.drain(cluster, result.readyNodes, Integer.MAX_VALUE, now).values()) {
+                for (RecordBatch batch : batches) {
+                    batch.done(0L, null);
+                    accum.deallocate(batch);
+                    drained++;
+                }
+            }
+        }
+        long elapsed = System.nanoTime() - start;
+        metrics.close();
+
+        System.out.println(String.format("%d partitions, %d active: %d iterations in %.1f ms, %.1f us per iteration (%d ready nodes, %d batches drained).",
+                                         numPartitions, activePartitions, iterations, elapsed / 1000000.0,
+                                         elapsed / 1000.0 / iterations, ready, drained));
+    }
+
+    private static void sendAll(RecordAccumulator accum, Cluster cluster, Time time) {
+        while (accum.hasUnsent()) {
+            long now = time.milliseconds();
+            for (List<RecordBatch> batches : accum.drain(cluster, accum.ready(cluster, now).readyNodes, Integer.MAX_VALUE, now).values()) {
+                for (RecordBatch batch : batches) {
+                    batch.done(0L, null);
+                    accum.deallocate(batch);
+                }
+            }
+        }
+    }
+}
@@ -14,31 +14,45 @@ package org.apache.kafka.clients.producer.internals;
 
 import static java.util.Arrays.asList;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
 import static org.junit.Assert.assertTrue;
 import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.fail;
 
 import java.nio.ByteBuffer;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
+import java.util.HashSet;
 import java.util.Iterator;
 import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Random;
 import java.util.Set;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicInteger;
 
 import org.apache.kafka.clients.producer.Callback;
 import org.apache.kafka.clients.producer.RecordMetadata;
 import org.apache.kafka.common.Cluster;
+import org.apache.kafka.common.MetricName;
 import org.apache.kafka.common.Node;
 import org.apache.kafka.common.PartitionInfo;
 import org.apache.kafka.common.TopicPartition;
+import org.apache.kafka.common.errors.SerializationException;
+import org.apache.kafka.common.errors.TimeoutException;
 import org.apache.kafka.common.metrics.Metrics;
+import org.apache.kafka.common.record.ByteArrayRecordField;
 import org.apache.kafka.common.record.CompressionType;
 import org.apache.kafka.common.record.LogEntry;
+import org.apache.kafka.common.record.MemoryRecords;
 import org.apache.kafka.common.record.Record;
+import org.apache.kafka.common.record.RecordField;
 import org.apache.kafka.common.record.Records;
+import org.apache.kafka.common.serialization.InPlaceSerializer;
+import org.apache.kafka.common.serialization.StringSerializer;
 import org.apache.kafka.common.utils.MockTime;
 import org.apache.kafka.common.utils.SystemTime;
 import org.apache.kafka.common.utils.Time;
@@ -97,6 +111,418 @@ public class RecordAccumulatorTest {
         assertFalse("No more records", iter.hasNext());
     }
 
+    @Test
+    public void testAppendSerializedInPlace() throws Exception {
+        StringSerializer serializer = new StringSerializer();
+        for (CompressionType compression : CompressionType.values()) {
+            RecordAccumulator accum = new RecordAccumulator(1024, 10 * 1024, compression, 0L, 100L, new Metrics(time), time, metricTags);
+            for (String str : Arrays.asList("value", "\u20ac\ud83d\ude00"))
+                accum.append(tp1, SerializedRecordField.create(serializer, topic, "key"), SerializedRecordField.create(serializer, topic, str), null, maxBlockTimeMs);
+            accum.append(tp1, null, SerializedRecordField.create(serializer, topic, null), null, maxBlockTimeMs);
+            List<RecordBatch> batches = accum.drain(cluster, Collections.singleton(node1), Integer.MAX_VALUE, 0).get(node1.id());
+            assertEquals(1, batches.size());
+
+            Iterator<LogEntry> iter = batches.get(0).records.iterator();
+            for (String str : Arrays.asList("value", "\u20ac\ud83d\ude00")) {
+                Record record = iter.next().record();
+                record.ensureValid();
+                assertEquals("Keys should match", ByteBuffer.wrap(serializer.serialize(topic, "key")), record.key());
+                assertEquals("Values should match", ByteBuffer.wrap(serializer.serialize(topic, str)), record.value());
+            }
+            Record record = iter.next().record();
+            record.ensureValid();
+            assertNull("Key should be null", record.key());
+            assertNull("Value should be null", record.value());
+            assertFalse("No more records", iter.hasNext());
+        }
+    }
+
+    @Test
+    public void testAbortOnNewBatch() throws Exception {
+        RecordAccumulator accum = new RecordAccumulator(1024, 10 * 1024, CompressionType.NONE, 10L, 100L, metrics, time, metricTags);
+        RecordField keyField = ByteArrayRecordField.wrap(key);
+        RecordField valueField = ByteArrayRecordField.wrap(value);
+        RecordAccumulator.RecordAppendResult result = accum.append(tp1, keyField, valueField, null, maxBlockTimeMs, true);
+        assertTrue("There is no batch to append to yet", result.abortForNewBatch);
+        assertNull(result.future);
+        assertFalse("No batch should have been created", accum.hasUnsent());
+
+        result = accum.append(tp1, keyField, valueField, null, maxBlockTimeMs, false);
+        assertTrue(result.newBatchCreated);
+        int appends = 1024 / msgSize;
+        for (int i = 1; i < appends; i++)
+            assertFalse(accum.append(tp1, keyField, valueField, null, maxBlockTimeMs, true).abortForNewBatch);
+        result = accum.append(tp1, keyField, valueField, null, maxBlockTimeMs, true);
+        assertTrue("The record does not fit in the full batch", result.abortForNewBatch);
+        List<RecordBatch> batches = accum.drain(cluster, Collections.singleton(node1), Integer.MAX_VALUE, 0).get(node1.id());
+        assertEquals("Only the full batch should be there", 1, batches.size());
+        assertEquals(appends, batches.get(0).recordCount);
+    }
+
+    @Test
+    public void testAppendAll() throws Exception {
+        RecordAccumulator accum = new RecordAccumulator(1024, 10 * 1024, CompressionType.NONE, 10L, 100L, metrics, time, metricTags);
+        int appends = 1024 / msgSize;
+        List<RecordField> keys = new ArrayList<RecordField>();
+        List<RecordField> values = new ArrayList<RecordField>();
+        for (int i = 0; i < appends + 3; i++) {
+            keys.add(ByteArrayRecordField.wrap(key));
+            values.add(ByteArrayRecordField.wrap(value));
+        }
+        final AtomicInteger callbacks = new AtomicInteger(0);
+        Callback callback = new Callback() {
+            public void onCompletion(RecordMetadata metadata, Exception exception) {
+                callbacks.incrementAndGet();
+            }
+        };
+        List<RecordAccumulator.RecordAppendResult> results = new ArrayList<RecordAccumulator.RecordAppendResult>();
+        accum.appendAll(tp1, keys, values, callback, maxBlockTimeMs, results);
+        assertEquals("The records should fill one batch and start another", 2, results.size());
+        assertTrue(results.get(0).batchIsFull);
+        assertTrue(results.get(1).newBatchCreated);
+
+        List<RecordBatch> batches = accum.drain(cluster, Collections.singleton(node1), Integer.MAX_VALUE, 0).get(node1.id());
+        assertEquals(1, batches.size());
+        assertEquals(appends, batches.get(0).recordCount);
+        batches.get(0).done(100L, null);
+        assertEquals("The callback should be invoked once for the batch", 1, callbacks.get());
+        assertEquals("The future should be for the last record of the batch", 100L + appends - 1, results.get(0).future.get().offset());
+        assertFalse(results.get(1).future.isDone());
+
+        time.sleep(10);
+        batches = accum.drain(cluster, accum.ready(cluster, time.milliseconds()).readyNodes, Integer.MAX_VALUE, time.milliseconds()).get(node1.id());
+        assertEquals(3, batches.get(0).recordCount);
+        batches.get(0).done(200L, null);
+        assertEquals(2, callbacks.get());
+        assertEquals(202L, results.get(1).future.get().offset());
+    }
+
+    @Test
+    public void testAppendAllFailsPartWay() throws Exception {
+        RecordAccumulator accum = new RecordAccumulator(1024, 10 * 1024, CompressionType.GZIP, 0L, 100L, metrics, time, metricTags);
+        RecordField failing = new RecordField() {
+            @Override
+            public int sizeInBytes() {
+                return 1;
+            }
+
+            @Override
+            public void writeTo(ByteBuffer buffer) {
+                throw new SerializationException("Failed to serialize");
+            }
+        };
+        List<RecordField> keys = asList(ByteArrayRecordField.wrap(key), ByteArrayRecordField.wrap(key), null);
+        List<RecordField> values = asList(ByteArrayRecordField.wrap(value), ByteArrayRecordField.wrap(value), failing);
+        List<RecordAccumulator.RecordAppendResult> results = new ArrayList<RecordAccumulator.RecordAppendResult>();
+        try {
+            accum.appendAll(tp1, keys, values, null, maxBlockTimeMs, results);
+            fail("The last record should have failed to serialize");
+        } catch (SerializationException e) {
+            // expected
+        }
+        assertEquals("The records appended before the failure should have a result", 1, results.size());
+
+        List<RecordBatch> batches = accum.drain(cluster, Collections.singleton(node1), Integer.MAX_VALUE, 0).get(node1.id());
+        assertEquals(1, batches.size());
+        assertEquals(2, batches.get(0).recordCount);
+        batches.get(0).done(100L, null);
+        assertEquals(101L, results.get(0).future.get().offset());
+    }
+
+    @Test
+    public void testAppendAllFailsOnNewBatch() throws Exception {
+        InPlaceSerializer<String> failingSerializer = new InPlaceSerializer<String>() {
+            @Override
+            public void configure(Map<String, ?> configs, boolean isKey) {}
+
+            @Override
+            public byte[] serialize(String topic, String data) {
+                throw new SerializationException("Failed to serialize");
+            }
+
+            @Override
+            public boolean serializesInPlace() {
+                return true;
+            }
+
+            @Override
+            public int serializedSize(String topic, String data) {
+                return data.length();
+            }
+
+            @Override
+            public void serializeInto(String topic, String data, ByteBuffer buffer) {
+                throw new SerializationException("Failed to serialize");
+            }
+
+            @Override
+            public void close() {}
+        };
+
+        for (CompressionType compression : asList(CompressionType.NONE, CompressionType.GZIP)) {
+            RecordAccumulator accum = new RecordAccumulator(1024, 10 * 1024, 2 * 1024, 1, false, compression, 0, 10L, 100L,
+                                                            new Metrics(time), time, metricTags);
+            List<RecordField> keys = Collections.singletonList(null);
+            List<RecordField> values = Collections.<RecordField>singletonList(SerializedRecordField.create(failingSerializer, topic, "value"));
+            List<RecordAccumulator.RecordAppendResult> results = new ArrayList<RecordAccumulator.RecordAppendResult>();
+            try {
+                accum.appendAll(tp1, keys, values, null, maxBlockTimeMs, results);
+                fail("The serializer should have failed");
+            } catch (SerializationException e) {
+                // expected
+            }
+            assertTrue(results.isEmpty());
+            assertEquals("The batch the record failed to go into should have been freed", 0L, accum.heldMemory(topic));
+            assertFalse("No empty batch should be left queued", accum.hasUnsent());
+
+            accum.appendAll(tp1, asList(ByteArrayRecordField.wrap(key)), asList(ByteArrayRecordField.wrap(value)), null,
+                            maxBlockTimeMs, results);
+            List<RecordBatch> batches = accum.drain(cluster, Collections.singleton(node1), Integer.MAX_VALUE, 0).get(node1.id());
+            assertEquals(1, batches.size());
+            assertEquals(1, batches.get(0).recordCount);
+        }
+    }
+
+    @Test
+    public void testMemoryPerTopic() throws Exception {
+        RecordAccumulator accum = new RecordAccumulator(1024, 10 * 1024, 2 * 1024, 1, false, CompressionType.NONE, 0, 10L, 100L, metrics, time, metricTags);
+        TopicPartition other = new TopicPartition("other", 0);
+        int appends = 1024 / msgSize;
+        for (int i = 0; i < 2 * appends; i++)
+            accum.append(tp1, key, value, null, 0);
+        assertEquals(2 * 1024L, accum.heldMemory(topic));
+        try {
+            accum.append(tp2, key, value, null, 0);
+            fail("The topic should be at its limit");
+        } catch (TimeoutException e) {
+            // this is good
+        }
+        accum.append(other, key, value, null, 0);
+        assertEquals("Other topics should still get memory", 1024L, accum.heldMemory("other"));
+
+        List<RecordBatch> batches = accum.drain(cluster, Collections.singleton(node1), Integer.MAX_VALUE, 0).get(node1.id());
+        for (RecordBatch batch : batches)
+            accum.deallocate(batch);
+        assertEquals(1024L, accum.heldMemory(topic));
+        accum.append(tp2, key, value, null, 0);
+        assertEquals(2 * 1024L, accum.heldMemory(topic));
+    }
+
+    @Test
+    public void testCompressionThreads() throws Exception {
+        RecordAccumulator accum = new RecordAccumulator(1024, 10 * 1024, 0L, 1, false, CompressionType.GZIP, 1, 0L, 100L, metrics, time, metricTags);
+        final Semaphore compressed = new Semaphore(0);
+        accum.onBatchCompressed(new Runnable() {
+            public void run() {
+                compressed.release();
+            }
+        });
+        int appends = 1024 / msgSize;
+        for (int i = 0; i < appends + 1; i++)
+            accum.append(tp1, key, value, null, maxBlockTimeMs);
+        assertEquals("No partitions should be ready before their batches are compressed", 0, accum.ready(cluster, time.milliseconds()).readyNodes.size());
+        assertTrue("The full batch should be compressed", compressed.tryAcquire(5, TimeUnit.SECONDS));
+        assertEquals("Our partition's leader should be ready", Collections.singleton(node1), accum.ready(cluster, time.milliseconds()).readyNodes);
+
+        List<RecordBatch> batches = accum.drain(cluster, Collections.singleton(node1), Integer.MAX_VALUE, 0).get(node1.id());
+        assertEquals(1, batches.size());
+        RecordBatch batch = batches.get(0);
+        assertTrue("The batch should have shrunk", batch.records.sizeInBytes() < appends * msgSize);
+        Record wrapper = new MemoryRecords.RecordsIterator(batch.records.buffer(), CompressionType.NONE, true).next().record();
+        wrapper.ensureValid();
+        assertEquals(CompressionType.GZIP, wrapper.compressionType());
+        Iterator<LogEntry> iter = batch.records.iterator();
+        for (int i = 0; i < appends; i++) {
+            LogEntry entry = iter.next();
+            assertEquals("Keys should match", ByteBuffer.wrap(key), entry.record().key());
+            assertEquals("Values should match", ByteBuffer.wrap(value), entry.record().value());
+        }
+        assertFalse("No more records", iter.hasNext());
+        accum.deallocate(batch);
+
+        assertEquals(0, accum.ready(cluster, time.milliseconds()).readyNodes.size());
+        assertTrue("The last batch should be compressed", compressed.tryAcquire(5, TimeUnit.SECONDS));
+        batches = accum.drain(cluster, Collections.singleton(node1), Integer.MAX_VALUE, 0).get(node1.id());
+        assertEquals(1, batches.size());
+        assertEquals("A single record does not shrink and should be left uncompressed", CompressionType.NONE,
+                     new MemoryRecords.RecordsIterator(batches.get(0).records.buffer(), CompressionType.NONE, true).next().record().compressionType());
+        accum.deallocate(batches.get(0));
+        accum.closeCompression();
+        MetricName available = new MetricName("buffer-available-bytes", "producer-metrics", "", metricTags);
+        assertEquals("All memory should be returned to the pool", 10 * 1024, metrics.metrics().get(available).value(), 0.0);
+    }
+
+    @Test
+    public void testOnlyPartitionsWithBatchesAreVisited() throws Exception {
+        RecordAccumulator accum = new RecordAccumulator(1024, 10 * 1024, CompressionType.NONE, 0L, 100L, metrics, time, metricTags);
+        accum.append(tp1, key, value, null, maxBlockTimeMs);
+        Set<Node> nodes = new HashSet<Node>(Arrays.asList(node1, node2));
+        Map<Integer, List<RecordBatch>> drained = accum.drain(cluster, nodes, Integer.MAX_VALUE, time.milliseconds());
+        assertEquals(1, drained.get(node1.id()).size());
+        assertEquals("A node without batches should drain nothing", 0, drained.get(node2.id()).size());
+        assertFalse(accum.hasUnsent());
+        assertEquals(0, accum.ready(cluster, time.milliseconds()).readyNodes.size());
+
+        // a batch put back for a retry makes its partition visited again
+        RecordBatch batch = drained.get(node1.id()).get(0);
+        accum.reenqueue(batch, time.milliseconds());
+        assertTrue(accum.hasUnsent());
+        time.sleep(100L);
+        assertEquals(Collections.singleton(node1), accum.ready(cluster, time.milliseconds()).readyNodes);
+        drained = accum.drain(cluster, Collections.singleton(node1), Integer.MAX_VALUE, time.milliseconds());
+        assertEquals(Collections.singletonList(batch), drained.get(node1.id()));
+        assertFalse(accum.hasUnsent());
+    }
+
+    @Test
+    public void testCompressionRateEstimatePerTopic() throws Exception {
+        TopicPartition blobs = new TopicPartition("blobs", 0);
+        Cluster cluster = new Cluster(Arrays.asList(node1), Arrays.asList(part1, new PartitionInfo(blobs.topic(), 0, node1, null, null)),
+                                      Collections.<String>emptySet());
+        RecordAccumulator accum = new RecordAccumulator(1024, 10 * 1024, CompressionType.GZIP, 0L, 100L, metrics, time, metricTags);
+        Random random = new Random(0);
+        for (int i = 0; i < 5; i++) {
+            byte[] blob = new byte[100];
+            random.nextBytes(blob);
+            accum.append(tp1, key, new byte[100], null, maxBlockTimeMs);
+            accum.append(blobs, key, blob, null, maxBlockTimeMs);
+        }
+        List<RecordBatch> batches = accum.drain(cluster, Collections.singleton(node1), Integer.MAX_VALUE, 0).get(node1.id());
+        assertEquals(2, batches.size());
+
+        double compressible = metrics.metrics().get(rateEstimateMetric(topic)).value();
+        double incompressible = metrics.metrics().get(rateEstimateMetric(blobs.topic())).value();
+        assertTrue("The estimate should fall for a compressible topic", compressible < CompressionType.GZIP.rate);
+        assertTrue("The estimate should rise for an incompressible topic", incompressible > CompressionType.GZIP.rate);
+        for (RecordBatch batch : batches) {
+            double expected = batch.topicPartition.equals(tp1) ? compressible : incompressible;
+            assertEquals("The batch should have moved the estimate a tenth of the way to its compression rate",
+                         expected, 0.9 * CompressionType.GZIP.rate + 0.1 * batch.records.compressionRate(), 0.001);
+        }
+    }
+
+    private MetricName rateEstimateMetric(String topic) {
+        Map<String, String> tags = new LinkedHashMap<String, String>(metricTags);
+        tags.put("topic", topic);
+        return new MetricName("compression-rate-estimate", "producer-topic-metrics", "", tags);
+    }
+
+    @Test
+    public void testAdaptiveLinger() throws Exception {
+        long lingerMs = 100L;
+        RecordAccumulator accum = new RecordAccumulator(1024, 10 * 1024, CompressionType.NONE, lingerMs, 100L, metrics, time, metricTags);
+        Map<String, Long> idle = Collections.singletonMap(node1.idString(), 0L);
+        Map<String, Long> busy = Collections.singletonMap(node1.idString(), 50L);
+
+        accum.append(tp1, key, value, null, maxBlockTimeMs);
+        RecordAccumulator.ReadyCheckResult result = accum.ready(cluster, time.milliseconds(), busy);
+        assertEquals("Without records arriving for the partition it should not linger", Collections.singleton(node1), result.readyNodes);
+        assertEquals(0, result.effectiveLingerMs);
+
+        // records arrive at 10 per ms
+        accum.drain(cluster, Collections.singleton(node1), Integer.MAX_VALUE, time.milliseconds());
+        for (int i = 0; i < 10; i++)
+            accum.append(tp1, key, value, null, maxBlockTimeMs);
+        time.sleep(1);
+        accum.drain(cluster, Collections.singleton(node1), Integer.MAX_VALUE, time.milliseconds());
+
+        accum.append(tp1, key, value, null, maxBlockTimeMs);
+        result = accum.ready(cluster, time.milliseconds(), busy);
+        assertEquals("The partition should linger while the node is busy", 0, result.readyNodes.size());
+        assertEquals(50, result.nextReadyCheckDelayMs);
+        assertEquals(50, result.effectiveLingerMs);
+        assertEquals("The partition should not linger for an idle node", Collections.singleton(node1),
+                     accum.ready(cluster, time.milliseconds(), idle).readyNodes);
+        assertEquals("The partition should linger for linger.ms at most", lingerMs,
+                     accum.ready(cluster, time.milliseconds(), Collections.singletonMap(node1.idString(), 500L)).nextReadyCheckDelayMs);
+        assertEquals("The partition should linger for linger.ms without adaptive lingering", lingerMs,
+                     accum.ready(cluster, time.milliseconds()).nextReadyCheckDelayMs);
+    }
+
+    @Test
+    public void testForgetFillRates() throws Exception {
+        RecordAccumulator accum = new RecordAccumulator(1024, 10 * 1024, CompressionType.NONE, 100L, 100L, metrics, time, metricTags);
+        Map<String, Long> busy = Collections.singletonMap(node1.idString(), 50L);
+        accum.append(tp1, key, value, null, maxBlockTimeMs);
+        accum.drain(cluster, Collections.singleton(node1), Integer.MAX_VALUE, time.milliseconds());
+        for (int i = 0; i < 10; i++)
+            accum.append(tp1, key, value, null, maxBlockTimeMs);
+        time.sleep(1);
+        accum.drain(cluster, Collections.singleton(node1), Integer.MAX_VALUE, time.milliseconds());
+
+        accum.append(tp1, key, value, null, maxBlockTimeMs);
+        accum.forgetFillRates(cluster);
+        assertEquals("The fill rate of a partition still in the cluster should be kept", 0,
+                     accum.ready(cluster, time.milliseconds(), busy).readyNodes.size());
+        accum.forgetFillRates(new Cluster(Arrays.asList(node1, node2), Arrays.asList(part2, part3), Collections.<String>emptySet()));
+        assertEquals("The fill rate of a partition no longer in the cluster should be forgotten", Collections.singleton(node1),
+                     accum.ready(cluster, time.milliseconds(), busy).readyNodes);
+    }
+
+    @Test
+    public void testAppendSerializedInPlaceFails() throws Exception {
+        StringSerializer serializer = new StringSerializer();
+        InPlaceSerializer<String> failingSerializer = new InPlaceSerializer<String>() {
+            @Override
+            public void configure(Map<String, ?> configs, boolean isKey) {}
+
+            @Override
+            public byte[] serialize(String topic, String data) {
+                throw new SerializationException("Failed to serialize");
+            }
+
+            @Override
+            public boolean serializesInPlace() {
+                return true;
+            }
+
+            @Override
+            public int serializedSize(String topic, String data) {
+                return data.length();
+            }
+
+            @Override
+            public void serializeInto(String topic, String data, ByteBuffer buffer) {
+                buffer.put((byte) 0);
+                throw new SerializationException("Failed to serialize");
+            }
+
+            @Override
+            public void close() {}
+        };
+
+        for (CompressionType compression : CompressionType.values()) {
+            RecordAccumulator accum = new RecordAccumulator(1024, 10 * 1024, compression, 0L, 100L, new Metrics(time), time, metricTags);
+            final List<Exception> exceptions = new ArrayList<Exception>();
+            Callback callback = new Callback() {
+                public void onCompletion(RecordMetadata metadata, Exception exception) {
+                    exceptions.add(exception);
+                }
+            };
+            accum.append(tp1, null, SerializedRecordField.create(serializer, topic, "value"), callback, maxBlockTimeMs);
+            try {
+                accum.append(tp1, null, SerializedRecordField.create(failingSerializer, topic, "value"), callback, maxBlockTimeMs);
+                fail("The serializer should have failed");
+            } catch (SerializationException e) {
+                // expected
+            }
+            accum.append(tp1, null, SerializedRecordField.create(serializer, topic, "value"), callback, maxBlockTimeMs);
+
+            List<RecordBatch> batches = accum.drain(cluster, Collections.singleton(node1), Integer.MAX_VALUE, 0).get(node1.id());
+            // the failed record takes no place in the batch, so the records around it are still sent
+            assertEquals(1, batches.size());
+            Iterator<LogEntry> iter = batches.get(0).records.iterator();
+            for (int i = 0; i < 2; i++) {
+                Record record = iter.next().record();
+                record.ensureValid();
+                assertEquals("Values should match", ByteBuffer.wrap(serializer.serialize(topic, "value")), record.value());
+            }
+            assertFalse("No more records", iter.hasNext());
+            batches.get(0).done(0L, null);
+            assertEquals(asList(null, null), exceptions);
+        }
+    }
+
     @Test
     public void testAppendLarge() throws Exception {
         int batchSize = 512;
@@ -139,6 +565,36 @@ public class RecordAccumulatorTest {
         assertEquals("But due to size bound only one partition should have been retrieved", 1, batches.size());
     }
 
+    @Test
+    public void testDrainBacklog() throws Exception {
+        RecordAccumulator accum = new RecordAccumulator(1024, 10 * 1024, CompressionType.NONE, 10L, 100L, metrics, time, metricTags);
+        int appends = 1024 / msgSize;
+        for (int i = 0; i < 3 * appends + 1; i++)
+            accum.append(tp1, key, ByteBuffer.allocate(value.length).putInt(i).array(), null, maxBlockTimeMs);
+        accum.append(tp2, key, value, null, maxBlockTimeMs);
+
+        List<RecordBatch> batches = accum.drain(cluster, Collections.singleton(node1), Integer.MAX_VALUE, 0).get(node1.id());
+        List<RecordBatch> tp1Batches = new ArrayList<RecordBatch>();
+        for (RecordBatch batch : batches) {
+            if (batch.topicPartition.equals(tp1))
+                tp1Batches.add(batch);
+        }
+        assertEquals("The full batches of the backlogged partition should all be drained", 3, tp1Batches.size());
+        assertEquals("The other partition's batch should be drained too", 4, batches.size());
+        int expected = 0;
+        for (RecordBatch batch : tp1Batches) {
+            for (LogEntry entry : batch.records)
+                assertEquals("The batches should be in order", expected++, entry.record().value().getInt());
+        }
+        assertEquals(3 * appends, expected);
+        assertTrue("The last batch, which is not full, should be left", accum.hasUnsent());
+
+        for (int i = 0; i < 3 * appends; i++)
+            accum.append(tp1, key, value, null, maxBlockTimeMs);
+        batches = accum.drain(cluster, Collections.singleton(node1), 2048, 0).get(node1.id());
+        assertEquals("No more batches than fit in the request should be drained", 2, batches.size());
+    }
+
     @SuppressWarnings("unused")
     @Test
     public void testStressfulSituation() throws Exception {
@@ -181,6 +637,71 @@ public class RecordAccumulatorTest {
     }
 
 
+    @Test
+    public void testConcurrentAppendsToOnePartition() throws Exception {
+        final int numThreads = 8;
+        final int msgs = 5000;
+        final RecordAccumulator accum = new RecordAccumulator(1024, 64 * 1024, CompressionType.NONE, 0L, 100L, metrics, time, metricTags);
+        final List<Long> completedOffsets = Collections.synchronizedList(new ArrayList<Long>());
+        final Callback callback = new Callback() {
+            @Override
+            public void onCompletion(RecordMetadata metadata, Exception exception) {
+                completedOffsets.add(metadata.offset());
+            }
+        };
+        List<Thread> threads = new ArrayList<Thread>();
+        for (int i = 0; i < numThreads; i++) {
+            final int thread = i;
+            threads.add(new Thread() {
+                public void run() {
+                    for (int i = 0; i < msgs; i++) {
+                        try {
+                            byte[] value = ByteBuffer.allocate(8).putInt(thread).putInt(i).array();
+                            accum.append(tp1, key, value, callback, maxBlockTimeMs);
+                        } catch (Exception e) {
+                            e.printStackTrace();
+                        }
+                    }
+                }
+            });
+        }
+        for (Thread t : threads)
+            t.start();
+
+        int[] nextPerThread = new int[numThreads];
+        int read = 0;
+        long baseOffset = 0;
+        while (read < numThreads * msgs) {
+            Set<Node> nodes = accum.ready(cluster, time.milliseconds()).readyNodes;
+            List<RecordBatch> batches = accum.drain(cluster, nodes, Integer.MAX_VALUE, 0).get(node1.id());
+            if (batches == null)
+                continue;
+            for (RecordBatch batch : batches) {
+                int count = 0;
+                for (LogEntry entry : batch.records) {
+                    entry.record().ensureValid();
+                    ByteBuffer value = entry.record().value();
+                    int thread = value.getInt();
+                    assertEquals("Records from one thread should stay in order", nextPerThread[thread]++, value.getInt());
+                    count++;
+                }
+                assertEquals(count, batch.recordCount);
+                batch.done(baseOffset, null);
+                baseOffset += count;
+                read += count;
+                accum.deallocate(batch);
+            }
+        }
+        for (Thread t : threads)
+            t.join();
+
+        assertEquals(numThreads * msgs, completedOffsets.size());
+        for (int i = 0; i < completedOffsets.size(); i++)
+            assertEquals("Callbacks should complete in offset order", (long) i, (long) completedOffsets.get(i));
+        assertFalse(accum.hasUnsent());
+    }
+
+
     @Test
     public void testNextReadyCheckDelay() throws Exception {
         // Next check time will use lingerMs since this test won't trigger any retries/backoff
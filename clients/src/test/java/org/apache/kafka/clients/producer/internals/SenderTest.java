@@ -16,8 +16,10 @@ import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertTrue;
 import static org.junit.Assert.fail;
 
+import java.util.ArrayList;
 import java.util.Collections;
 import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.Future;
@@ -33,6 +35,8 @@ import org.apache.kafka.common.metrics.Metrics;
 import org.apache.kafka.common.protocol.Errors;
 import org.apache.kafka.common.protocol.types.Struct;
 import org.apache.kafka.common.record.CompressionType;
+import org.apache.kafka.common.record.Record;
+import org.apache.kafka.common.record.Records;
 import org.apache.kafka.common.requests.ProduceResponse;
 import org.apache.kafka.common.utils.MockTime;
 import org.apache.kafka.test.TestUtils;
@@ -116,6 +120,41 @@ public class SenderTest {
         assertEquals(300, maxMetric.value(), EPS);
     }
 
+    @Test
+    public void testQuotaPacing() throws Exception {
+        Metrics m = new Metrics();
+        try {
+            Sender sender = new Sender(client, metadata, this.accumulator, MAX_REQUEST_SIZE, ACKS_ALL, MAX_RETRIES, m, time,
+                                       "clientId", REQUEST_TIMEOUT, false, true);
+            accumulator.append(tp, "key".getBytes(), "value".getBytes(), null, MAX_BLOCK_TIMEOUT);
+            sender.run(time.milliseconds()); // connect
+            sender.run(time.milliseconds()); // send produce request
+            // the broker holds back the throttled response for the throttle time before sending it
+            time.sleep(100);
+            client.respond(produceResponse(tp, 0, Errors.NONE.code(), 100));
+            sender.run(time.milliseconds()); // receive the throttled response
+
+            Future<RecordMetadata> future = accumulator.append(tp, "key".getBytes(), "value".getBytes(), null, MAX_BLOCK_TIMEOUT).future;
+            sender.run(time.milliseconds());
+            assertEquals("A throttled node should still be sent to", 1, client.inFlightRequestCount());
+            accumulator.append(tp, "key".getBytes(), "value".getBytes(), null, MAX_BLOCK_TIMEOUT);
+            sender.run(time.milliseconds());
+            assertEquals("A throttled node should only have one request in flight", 1, client.inFlightRequestCount());
+
+            time.sleep(100);
+            client.respond(produceResponse(tp, 1, Errors.NONE.code(), 0));
+            sender.run(time.milliseconds()); // receive the response, which is no longer throttled
+            assertEquals(1L, future.get().offset());
+            sender.run(time.milliseconds());
+            assertEquals("The records held back should go out once the response arrives", 1, client.inFlightRequestCount());
+            accumulator.append(tp, "key".getBytes(), "value".getBytes(), null, MAX_BLOCK_TIMEOUT);
+            sender.run(time.milliseconds());
+            assertEquals("A node that is no longer throttled should be sent to at once", 2, client.inFlightRequestCount());
+        } finally {
+            m.close();
+        }
+    }
+
     @Test
     public void testRetries() throws Exception {
         // create a sender with retries = 1
@@ -165,6 +204,33 @@ public class SenderTest {
         }
     }
 
+    @Test
+    public void testBacklogSentInOneRequest() throws Exception {
+        Metrics m = new Metrics();
+        try {
+            // batches that are full with a single record
+            int batchSize = Records.LOG_OVERHEAD + Record.recordSize("key".getBytes(), "value".getBytes());
+            RecordAccumulator accumulator = new RecordAccumulator(batchSize, 1024 * 1024, CompressionType.NONE, 0L, 0L, m, time, metricTags);
+            Sender sender = new Sender(client, metadata, accumulator, MAX_REQUEST_SIZE, ACKS_ALL, 1, m, time, "clientId", REQUEST_TIMEOUT);
+            List<Future<RecordMetadata>> futures = new ArrayList<Future<RecordMetadata>>();
+            for (int i = 0; i < 3; i++)
+                futures.add(accumulator.append(tp, "key".getBytes(), "value".getBytes(), null, MAX_BLOCK_TIMEOUT).future);
+            sender.run(time.milliseconds()); // connect
+            sender.run(time.milliseconds()); // send produce request
+            assertEquals("The batches should go in a single request", 1, client.inFlightRequestCount());
+            client.respond(produceResponse(tp, -1, Errors.NOT_LEADER_FOR_PARTITION.code(), 0));
+            sender.run(time.milliseconds()); // receive error, the batches are retried
+            sender.run(time.milliseconds()); // resend
+            assertEquals("The retried batches should go in a single request", 1, client.inFlightRequestCount());
+            client.respond(produceResponse(tp, 10, Errors.NONE.code(), 0));
+            sender.run(time.milliseconds());
+            for (int i = 0; i < futures.size(); i++)
+                assertEquals("The records should keep their order", 10 + i, futures.get(i).get().offset());
+        } finally {
+            m.close();
+        }
+    }
+
     private void completedWithError(Future<RecordMetadata> future, Errors error) throws Exception {
         assertTrue("Request should be completed", future.isDone());
         try {
@@ -0,0 +1,98 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more contributor license agreements. See the NOTICE
+ * file distributed with this work for additional information regarding copyright ownership. The ASF licenses this file
+ * to You under the Apache License, Version 2.0 (the "License"); you may not use this file except in compliance with the
+ * License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on
+ * an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.apache.kafka.clients.producer.internals;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.kafka.common.MetricName;
+import org.apache.kafka.common.errors.TimeoutException;
+import org.apache.kafka.common.metrics.Metrics;
+import org.apache.kafka.common.utils.MockTime;
+import org.junit.After;
+import org.junit.Test;
+
+public class TopicMemoryLimitsTest {
+
+    private MockTime time = new MockTime();
+    private Metrics metrics = new Metrics(time);
+    private Map<String, String> metricTags = new LinkedHashMap<String, String>();
+
+    @After
+    public void teardown() {
+        this.metrics.close();
+    }
+
+    @Test
+    public void testUnlimited() throws Exception {
+        TopicMemoryLimits limits = new TopicMemoryLimits(0L, metrics, metricTags);
+        assertEquals(100L, limits.reserve("a", 1024, 100L));
+        assertEquals(100L, limits.reserve("a", 1024, 100L));
+        limits.add("a", 512);
+        assertEquals(2560L, limits.heldMemory("a"));
+        assertEquals(0L, limits.heldMemory("b"));
+
+        Map<String, String> topicTags = new LinkedHashMap<String, String>(metricTags);
+        topicTags.put("topic", "a");
+        MetricName held = new MetricName("buffer-held-bytes", "producer-topic-metrics", topicTags);
+        assertEquals(2560.0, metrics.metrics().get(held).value(), 0.0);
+        limits.release("a", 2560);
+        assertEquals(0.0, metrics.metrics().get(held).value(), 0.0);
+    }
+
+    @Test
+    public void testTopicBlocksOnlyItself() throws Exception {
+        final TopicMemoryLimits limits = new TopicMemoryLimits(2048L, metrics, metricTags);
+        limits.reserve("hot", 1024, 0L);
+        limits.reserve("hot", 1024, 0L);
+        try {
+            limits.reserve("hot", 1024, 0L);
+            fail("The topic should be at its limit");
+        } catch (TimeoutException e) {
+            // this is good
+        }
+        limits.reserve("cold", 1024, 0L);
+        assertEquals(2048L, limits.heldMemory("hot"));
+
+        final CountDownLatch reserved = new CountDownLatch(1);
+        Thread thread = new Thread() {
+            public void run() {
+                try {
+                    limits.reserve("hot", 1024, Long.MAX_VALUE);
+                    reserved.countDown();
+                } catch (InterruptedException e) {
+                    // the latch is not counted down
+                }
+            }
+        };
+        thread.start();
+        assertEquals("The append should block on the topic's limit", 1L, reserved.getCount());
+        limits.release("hot", 1024);
+        assertTrue("Releasing memory of the topic should unblock it", reserved.await(5, TimeUnit.SECONDS));
+        thread.join();
+        assertEquals(2048L, limits.heldMemory("hot"));
+    }
+
+    @Test
+    public void testOversizedBufferWhenTopicHoldsNothing() throws Exception {
+        TopicMemoryLimits limits = new TopicMemoryLimits(1024L, metrics, metricTags);
+        limits.reserve("a", 4096, 0L);
+        assertEquals(4096L, limits.heldMemory("a"));
+    }
+}
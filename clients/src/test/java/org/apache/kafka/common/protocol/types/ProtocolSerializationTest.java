@@ -18,6 +18,7 @@ package org.apache.kafka.common.protocol.types;
 
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
 import static org.junit.Assert.fail;
 
 import java.nio.ByteBuffer;
@@ -90,6 +91,58 @@ public class ProtocolSerializationTest {
         struct.validate(); // should be valid even with missing value
     }
 
+    @Test
+    public void testGatheringToBytes() {
+        Schema partition = new Schema(new Field("partition", Type.INT32), new Field("record_set", Type.BYTES));
+        Schema schema = new Schema(new Field("acks", Type.INT16), new Field("data", new ArrayOf(partition)));
+        ByteBuffer small = ByteBuffer.wrap("small".getBytes());
+        ByteBuffer large = ByteBuffer.wrap("a larger record set".getBytes());
+        Struct struct = new Struct(schema).set("acks", (short) 1);
+        struct.set("data", new Object[] {struct.instance("data").set("partition", 0).set("record_set", large),
+                                         struct.instance("data").set("partition", 1).set("record_set", small)});
+
+        ByteBuffer[] buffers = struct.toBytes(10);
+        assertEquals("The large record set should be referenced between the framing before and after it", 3, buffers.length);
+        assertSame("The large record set should not be copied", large.array(), buffers[1].array());
+
+        ByteBuffer expected = ByteBuffer.allocate(struct.sizeOf());
+        struct.writeTo(expected);
+        expected.flip();
+        ByteBuffer gathered = ByteBuffer.allocate(struct.sizeOf());
+        for (ByteBuffer buffer : buffers)
+            gathered.put(buffer);
+        gathered.flip();
+        assertEquals("The gathered buffers should hold the same bytes as the struct written to one buffer", expected, gathered);
+        assertEquals("Writing the buffers out should not consume the record sets", "a larger record set".length(), large.remaining());
+    }
+
+    @Test
+    public void testGatheringToBytesOfBufferSequence() {
+        Schema partition = new Schema(new Field("partition", Type.INT32), new Field("record_set", Type.BYTES));
+        Schema schema = new Schema(new Field("acks", Type.INT16), new Field("data", new ArrayOf(partition)));
+        ByteBuffer first = ByteBuffer.wrap("the first batch".getBytes());
+        ByteBuffer second = ByteBuffer.wrap("the second batch".getBytes());
+        ByteBuffer[] small = new ByteBuffer[] {ByteBuffer.wrap("a".getBytes()), ByteBuffer.wrap("b".getBytes())};
+        Struct struct = new Struct(schema).set("acks", (short) 1);
+        struct.set("data", new Object[] {struct.instance("data").set("partition", 0).set("record_set", new ByteBuffer[] {first, second}),
+                                         struct.instance("data").set("partition", 1).set("record_set", small)});
+
+        ByteBuffer[] buffers = struct.toBytes(10);
+        assertEquals("Each buffer of the large record set should be referenced", 5, buffers.length);
+        assertSame("The first buffer should not be copied", first.array(), buffers[1].array());
+        assertSame("The second buffer should not be copied", second.array(), buffers[3].array());
+
+        ByteBuffer gathered = ByteBuffer.allocate(struct.sizeOf());
+        for (ByteBuffer buffer : buffers)
+            gathered.put(buffer);
+        gathered.flip();
+        Struct read = (Struct) schema.read(gathered);
+        Object[] data = read.getArray("data");
+        assertEquals(ByteBuffer.wrap("the first batchthe second batch".getBytes()), ((Struct) data[0]).getBytes("record_set"));
+        assertEquals(ByteBuffer.wrap("ab".getBytes()), ((Struct) data[1]).getBytes("record_set"));
+        assertEquals("Writing the buffers out should not consume them", "the first batch".length(), first.remaining());
+    }
+
     private Object roundtrip(Type type, Object obj) {
         ByteBuffer buffer = ByteBuffer.allocate(type.sizeOf(obj));
         type.write(buffer, obj);
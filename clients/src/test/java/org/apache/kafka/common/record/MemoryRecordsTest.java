@@ -41,6 +41,10 @@ public class MemoryRecordsTest {
     public void testIterator() {
         MemoryRecords recs1 = MemoryRecords.emptyRecords(ByteBuffer.allocate(1024), compression);
         MemoryRecords recs2 = MemoryRecords.emptyRecords(ByteBuffer.allocate(1024), compression);
+        MemoryRecords recs3 = MemoryRecords.emptyRecords(ByteBuffer.allocate(1024), compression);
+        MemoryRecords recs4 = compression == CompressionType.NONE ?
+            MemoryRecords.emptyConcurrentRecords(ByteBuffer.allocateDirect(1024), 1024) :
+            MemoryRecords.emptyRecords(ByteBuffer.allocateDirect(1024), compression, 1024);
         List<Record> list = Arrays.asList(new Record("a".getBytes(), "1".getBytes()),
                                           new Record("b".getBytes(), "2".getBytes()),
                                           new Record("c".getBytes(), "3".getBytes()));
@@ -48,12 +52,16 @@ public class MemoryRecordsTest {
             Record r = list.get(i);
             recs1.append(i, r);
             recs2.append(i, toArray(r.key()), toArray(r.value()));
+            recs3.append(i, field(toArray(r.key())), field(toArray(r.value())));
+            assertEquals(i, recs4.tryAppend(i, field(toArray(r.key())), field(toArray(r.value()))));
         }
         recs1.close();
         recs2.close();
+        recs3.close();
+        recs4.close();
 
         for (int iteration = 0; iteration < 2; iteration++) {
-            for (MemoryRecords recs : Arrays.asList(recs1, recs2)) {
+            for (MemoryRecords recs : Arrays.asList(recs1, recs2, recs3, recs4)) {
                 Iterator<LogEntry> iter = recs.iterator();
                 for (int i = 0; i < list.size(); i++) {
                     assertTrue(iter.hasNext());
@@ -67,6 +75,75 @@ public class MemoryRecordsTest {
         }
     }
 
+    @Test
+    public void testCompressInPlace() {
+        MemoryRecords recs = MemoryRecords.emptyConcurrentRecords(ByteBuffer.allocateDirect(1024), 1024);
+        Record record = new Record("key".getBytes(), "value".getBytes());
+        int count = 0;
+        while (recs.tryAppend(count, toArray(record.key()), toArray(record.value())) >= 0)
+            count++;
+        recs.close();
+        int uncompressedSize = recs.sizeInBytes();
+
+        // the scratch buffer is too small for the compressed records, so the compressor has to grow it
+        assertEquals(compression != CompressionType.NONE, recs.compress(compression, ByteBuffer.allocate(64)));
+        if (compression != CompressionType.NONE)
+            assertTrue(recs.sizeInBytes() < uncompressedSize);
+        assertEquals(compression, new MemoryRecords.RecordsIterator(recs.buffer(), CompressionType.NONE, true).next().record().compressionType());
+        Iterator<LogEntry> iter = recs.iterator();
+        for (int i = 0; i < count; i++) {
+            LogEntry entry = iter.next();
+            assertEquals((long) i, entry.offset());
+            assertEquals(record, entry.record());
+            entry.record().ensureValid();
+        }
+        assertFalse(iter.hasNext());
+    }
+
+    @Test
+    public void testIteratorWithDecompressionContext() {
+        // the largest record comes first, so the buffer it is read into does not need to grow for the others
+        List<Record> list = Arrays.asList(new Record("aa".getBytes(), "11".getBytes()),
+                                          new Record("b".getBytes(), "2".getBytes()),
+                                          new Record("c".getBytes(), "3".getBytes()));
+        MemoryRecords recs = MemoryRecords.emptyRecords(ByteBuffer.allocate(1024), compression);
+        for (int i = 0; i < list.size(); i++)
+            recs.append(i, list.get(i));
+        recs.close();
+
+        DecompressionContext context = new DecompressionContext(true);
+        for (int iteration = 0; iteration < 2; iteration++) {
+            Iterator<LogEntry> iter = recs.iterator(context);
+            byte[] previous = null;
+            for (int i = 0; i < list.size(); i++) {
+                assertTrue(iter.hasNext());
+                LogEntry entry = iter.next();
+                assertEquals((long) i, entry.offset());
+                assertEquals(list.get(i), entry.record());
+                entry.record().ensureValid();
+                if (compression != CompressionType.NONE && previous != null)
+                    assertTrue("Compressed records should be read into the same buffer", previous == entry.record().buffer().array());
+                previous = entry.record().buffer().array();
+            }
+            assertFalse(iter.hasNext());
+        }
+    }
+
+    /**
+     * A record field that writes itself, rather than being a byte array the records can take as is
+     */
+    private static RecordField field(final byte[] bytes) {
+        return new RecordField() {
+            public int sizeInBytes() {
+                return bytes.length;
+            }
+
+            public void writeTo(ByteBuffer buffer) {
+                buffer.put(bytes);
+            }
+        };
+    }
+
     @Parameterized.Parameters
     public static Collection<Object[]> data() {
         List<Object[]> values = new ArrayList<Object[]>();
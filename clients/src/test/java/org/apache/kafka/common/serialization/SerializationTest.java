@@ -14,11 +14,14 @@ package org.apache.kafka.common.serialization;
 
 import org.junit.Test;
 
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 
+import static org.junit.Assert.assertArrayEquals;
 import static org.junit.Assert.assertEquals;
 
 public class SerializationTest {
@@ -74,6 +77,68 @@ public class SerializationTest {
                 null, deserializer.deserialize(mytopic, serializer.serialize(mytopic, null)));
     }
 
+    @Test
+    public void testInPlaceSerializers() {
+        String mytopic = "testTopic";
+        for (String encoding : Arrays.asList("UTF8", "UTF-16")) {
+            InPlaceSerializer<String> serializer = (InPlaceSerializer<String>) getStringSerDeser(encoding).serializer;
+            for (String str : Arrays.asList("", "my string", "\u00e9t\u00e9", "\u20ac10", "\ud83d\ude00 smile", "\ud83d unpaired", "unpaired \ude00"))
+                assertSerializedInPlace(serializer, mytopic, str);
+            assertEquals(-1, serializer.serializedSize(mytopic, null));
+            assertEquals("Only UTF8 strings should be serialized in place", encoding.equals("UTF8"), serializer.serializesInPlace());
+        }
+
+        InPlaceSerializer<Integer> integerSerializer = new IntegerSerializer();
+        for (Integer integer : Arrays.asList(423412424, -41243432))
+            assertSerializedInPlace(integerSerializer, mytopic, integer);
+        assertEquals(-1, integerSerializer.serializedSize(mytopic, null));
+
+        InPlaceSerializer<Long> longSerializer = new LongSerializer();
+        for (Long l : Arrays.asList(Long.MAX_VALUE, -41243432L))
+            assertSerializedInPlace(longSerializer, mytopic, l);
+        assertEquals(-1, longSerializer.serializedSize(mytopic, null));
+
+        InPlaceSerializer<byte[]> byteArraySerializer = new ByteArraySerializer();
+        assertSerializedInPlace(byteArraySerializer, mytopic, new byte[] {1, 2, 3});
+        assertEquals(-1, byteArraySerializer.serializedSize(mytopic, null));
+    }
+
+    @Test
+    public void testBufferDeserializers() {
+        String mytopic = "testTopic";
+        for (String encoding : Arrays.asList("UTF8", "UTF-16")) {
+            SerDeser<String> serDeser = getStringSerDeser(encoding);
+            for (String str : Arrays.asList("", "my string", "\u00e9t\u00e9", "\u20ac10"))
+                assertDeserializedFromBuffer((BufferDeserializer<String>) serDeser.deserializer, mytopic, serDeser.serializer.serialize(mytopic, str));
+        }
+        assertDeserializedFromBuffer(new IntegerDeserializer(), mytopic, new IntegerSerializer().serialize(mytopic, -41243432));
+        assertDeserializedFromBuffer(new LongDeserializer(), mytopic, new LongSerializer().serialize(mytopic, Long.MAX_VALUE));
+    }
+
+    private <T> void assertDeserializedFromBuffer(BufferDeserializer<T> deserializer, String topic, byte[] data) {
+        T expected = deserializer.deserialize(topic, data);
+        // the bytes in the middle of a larger buffer, as a record's are in the fetched data
+        ByteBuffer buffer = ByteBuffer.allocate(data.length + 2);
+        buffer.put((byte) 0).put(data).put((byte) 0);
+        buffer.position(1);
+        buffer.limit(data.length + 1);
+        assertEquals("Should deserialize to the same as deserialize() from a heap buffer", expected, deserializer.deserialize(topic, buffer.slice()));
+        ByteBuffer direct = ByteBuffer.allocateDirect(data.length);
+        direct.put(data).flip();
+        assertEquals("Should deserialize to the same as deserialize() from a direct buffer", expected, deserializer.deserialize(topic, direct));
+    }
+
+    private <T> void assertSerializedInPlace(InPlaceSerializer<T> serializer, String topic, T data) {
+        byte[] expected = serializer.serialize(topic, data);
+        int size = serializer.serializedSize(topic, data);
+        assertEquals("Serialized size should match the serialized bytes of " + data, expected.length, size);
+        ByteBuffer buffer = ByteBuffer.allocate(size + 2);
+        buffer.put((byte) 0);
+        serializer.serializeInto(topic, data, buffer);
+        assertEquals("The serializer should write exactly its serialized size", size + 1, buffer.position());
+        assertArrayEquals("Should write the same bytes as serialize() for " + data, expected, Arrays.copyOfRange(buffer.array(), 1, size + 1));
+    }
+
     private SerDeser<String> getStringSerDeser(String encoder) {
         Map<String, Object> serializerConfigs = new HashMap<String, Object>();
         serializerConfigs.put("key.serializer.encoding", encoder);
@@ -0,0 +1,76 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more contributor license agreements. See the NOTICE
+ * file distributed with this work for additional information regarding copyright ownership. The ASF licenses this file
+ * to You under the Apache License, Version 2.0 (the "License"); you may not use this file except in compliance with the
+ * License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on
+ * an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.apache.kafka.common.utils;
+
+import java.nio.ByteBuffer;
+import java.util.Random;
+import java.util.zip.CRC32;
+import java.util.zip.Checksum;
+
+/**
+ * Compares the CRC32 implementations over heap and direct buffers of record sized inputs, the way
+ * {@link org.apache.kafka.common.record.Record#computeChecksum(ByteBuffer, int, int)} uses them. Each case is run
+ * once to warm up before it is timed.
+ * <p>
+ * Usage: ChecksumBench [iterations] [size ...]
+ */
+public class ChecksumBench {
+
+    private static final int[] DEFAULT_SIZES = {32, 100, 512, 1024, 4096, 16384, 65536};
+
+    public static void main(String[] args) {
+        long iterations = args.length > 0 ? Long.parseLong(args[0]) : 1000000L;
+        int[] sizes = DEFAULT_SIZES;
+        if (args.length > 1) {
+            sizes = new int[args.length - 1];
+            for (int i = 1; i < args.length; i++)
+                sizes[i - 1] = Integer.parseInt(args[i]);
+        }
+
+        System.out.println("Chosen implementation: " + Checksums.crc32Impl());
+        Random random = new Random(0);
+        for (int size : sizes) {
+            byte[] bytes = new byte[size];
+            random.nextBytes(bytes);
+            ByteBuffer heap = ByteBuffer.wrap(bytes);
+            ByteBuffer direct = ByteBuffer.allocateDirect(size);
+            direct.put(bytes).flip();
+            // keep the total work about the same for every size
+            long count = Math.max(1000, iterations * 100 / size);
+            for (String impl : new String[] {Checksums.PURE_JAVA, Checksums.JDK}) {
+                for (ByteBuffer buffer : new ByteBuffer[] {heap, direct}) {
+                    run(impl, buffer, size, count);
+                    long ns = run(impl, buffer, size, count);
+                    System.out.println(String.format("%-9s %-6s %6d bytes: %8.1f ns per checksum, %8.1f MB/sec",
+                                                     impl, buffer.isDirect() ? "direct" : "heap", size, ns / (double) count,
+                                                     count * (double) size * 1000.0 / ns));
+                }
+            }
+        }
+    }
+
+    private static long run(String impl, ByteBuffer buffer, int size, long count) {
+        long total = 0;
+        long start = System.nanoTime();
+        for (long i = 0; i < count; i++) {
+            Checksum crc = Checksums.PURE_JAVA.equals(impl) ? new Crc32() : new CRC32();
+            Checksums.update(crc, buffer, 0, size);
+            total += crc.getValue();
+        }
+        long ellapsed = System.nanoTime() - start;
+        // use the checksums so that they are not optimized away
+        if (total == 42)
+            System.out.println();
+        return ellapsed;
+    }
+}
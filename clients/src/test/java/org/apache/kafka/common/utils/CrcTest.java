@@ -17,9 +17,13 @@
 package org.apache.kafka.common.utils;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
 import org.junit.Test;
 
 import java.nio.ByteBuffer;
+import java.util.zip.CRC32;
+import java.util.zip.Checksum;
 
 public class CrcTest {
 
@@ -56,4 +60,34 @@ public class CrcTest {
 
         assertEquals("Crc values should be the same", crc1.getValue(), crc2.getValue());
     }
+
+    @Test
+    public void testChecksumsMatchCrc32() {
+        final byte[] bytes = "Any String you want".getBytes();
+        ByteBuffer heap = ByteBuffer.allocate(bytes.length + 2);
+        ByteBuffer direct = ByteBuffer.allocateDirect(bytes.length + 2);
+        for (ByteBuffer buffer : new ByteBuffer[] {heap, direct}) {
+            buffer.put((byte) 0).put(bytes).put((byte) 0);
+            buffer.flip();
+        }
+
+        Crc32 expected = new Crc32();
+        expected.updateInt(bytes.length);
+        expected.update(bytes, 0, bytes.length);
+        for (ByteBuffer buffer : new ByteBuffer[] {heap, direct}) {
+            for (Checksum crc : new Checksum[] {new Crc32(), new CRC32(), Checksums.crc32()}) {
+                Checksums.updateInt(crc, bytes.length);
+                Checksums.update(crc, buffer, 1, bytes.length);
+                assertEquals("Crc values should be the same", expected.getValue(), crc.getValue());
+            }
+        }
+        assertEquals("The buffer position should not change", 0, direct.position());
+        assertEquals("The buffer limit should not change", bytes.length + 2, direct.limit());
+    }
+
+    @Test
+    public void testChecksumsImplProperty() {
+        assertTrue(Checksums.useJdk(Checksums.JDK));
+        assertFalse(Checksums.useJdk(Checksums.PURE_JAVA));
+    }
 }
@@ -20,7 +20,7 @@ package kafka.message
 import java.io.{InputStream, OutputStream}
 import java.nio.ByteBuffer
 
-import org.apache.kafka.common.utils.Crc32
+import org.apache.kafka.common.utils.Checksums
 
 class MessageWriter(segmentSize: Int) extends BufferingOutputStream(segmentSize) {
 
@@ -70,7 +70,7 @@ class MessageWriter(segmentSize: Int) extends BufferingOutputStream(segmentSize)
     // write data
     writeData
     // compute CRC32
-    val crc = new Crc32()
+    val crc = Checksums.crc32()
     if (offset < seg.written) crc.update(seg.bytes, offset, seg.written - offset)
     seg = seg.next
     while (seg != null) {
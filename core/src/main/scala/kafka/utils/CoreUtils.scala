@@ -33,7 +33,7 @@ import java.util.Properties
 import kafka.cluster.EndPoint
 import kafka.common.KafkaException
 import kafka.common.KafkaStorageException
-import org.apache.kafka.common.utils.Crc32
+import org.apache.kafka.common.utils.Checksums
 import org.apache.kafka.common.utils.Utils
 
 
@@ -169,7 +169,7 @@ object CoreUtils extends Logging {
    * @return The CRC32
    */
   def crc32(bytes: Array[Byte], offset: Int, size: Int): Long = {
-    val crc = new Crc32()
+    val crc = Checksums.crc32()
     crc.update(bytes, offset, size)
     crc.getValue()
   }